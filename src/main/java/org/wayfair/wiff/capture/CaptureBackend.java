@@ -0,0 +1,67 @@
+package org.wayfair.wiff.capture;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A library through which network interfaces are captured. It lists the
+ * interfaces and opens capture handles on them.
+ */
+public interface CaptureBackend {
+  /**
+   * A network interface that can be captured
+   */
+  public static class Device {
+    private final String name;
+    private final String description;
+
+    public Device(String name, String description) {
+      this.name = name;
+      this.description = description;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the description of the interface, null if there is none
+     */
+    public String getDescription() {
+      return description;
+    }
+  }
+
+  /**
+   * @return the version of the capture library
+   */
+  String getVersion();
+
+  /**
+   * @return the network interfaces that can be captured, in the order libpcap
+   *         lists them
+   * @throws IOException
+   *           if the interfaces cannot be listed
+   */
+  List<Device> findDevices() throws IOException;
+
+  /**
+   * Opens a live capture handle on a network interface
+   *
+   * @param name
+   *          the name of the network interface
+   * @param snaplen
+   *          the most bytes captured of each packet
+   * @param promisc
+   *          the promiscuous mode flag
+   * @param timeout
+   *          the read timeout in milliseconds
+   * @param bufferSize
+   *          the size of the kernel capture buffer in bytes
+   * @return the capture handle
+   * @throws IOException
+   *           if the interface cannot be opened
+   */
+  LiveCapture open(String name, int snaplen, int promisc, int timeout,
+      int bufferSize) throws IOException;
+}
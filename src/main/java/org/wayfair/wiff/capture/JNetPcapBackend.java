@@ -0,0 +1,54 @@
+package org.wayfair.wiff.capture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapIf;
+
+/**
+ * Captures through libpcap using jnetpcap, which needs its own native library
+ * installed next to libpcap.
+ */
+public class JNetPcapBackend implements CaptureBackend {
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.CaptureBackend#getVersion()
+   */
+  public String getVersion() {
+    return Pcap.libVersion();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.CaptureBackend#findDevices()
+   */
+  public List<Device> findDevices() throws IOException {
+    List<PcapIf> devices = new ArrayList<PcapIf>();
+    StringBuilder errbuf = new StringBuilder();
+    if (Pcap.findAllDevs(devices, errbuf) == Pcap.ERROR) {
+      throw new IOException(errbuf.toString());
+    }
+
+    List<Device> found = new ArrayList<Device>();
+    for (PcapIf device : devices) {
+      found.add(new Device(device.getName(), device.getDescription()));
+    }
+    return found;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.CaptureBackend#open(java.lang.String, int,
+   * int, int, int)
+   */
+  public LiveCapture open(String name, int snaplen, int promisc, int timeout,
+      int bufferSize) throws IOException {
+    return new JNetPcapCapture(name, snaplen, promisc, timeout, bufferSize);
+  }
+}
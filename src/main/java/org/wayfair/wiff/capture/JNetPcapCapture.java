@@ -0,0 +1,157 @@
+package org.wayfair.wiff.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jnetpcap.ByteBufferHandler;
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapBpfProgram;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.PcapStat;
+
+/**
+ * Captures packets through libpcap using jnetpcap. Packets are handed over as
+ * buffers that point into libpcap's own buffer, so they are only copied once,
+ * into the pool.
+ */
+public class JNetPcapCapture extends LiveCapture {
+  // Passes each packet on to the handler given as the user argument
+  private static final Forwarder HANDLER = new Forwarder();
+
+  private final Pcap             pcap;
+  private final PcapStat         stats = new PcapStat();
+
+  /**
+   * Opens a live capture handle on a network interface
+   *
+   * @param name
+   *          the name of the network interface
+   * @param snaplen
+   *          the most bytes captured of each packet
+   * @param promisc
+   *          the promiscuous mode flag
+   * @param timeout
+   *          the read timeout in milliseconds
+   * @param bufferSize
+   *          the size of the kernel capture buffer in bytes
+   * @throws IOException
+   *           if the interface cannot be opened
+   */
+  public JNetPcapCapture(String name, int snaplen, int promisc, int timeout,
+      int bufferSize) throws IOException {
+    super(name);
+
+    StringBuilder errbuf = new StringBuilder();
+    if (Pcap.isPcap100Loaded()) {
+      /*
+       * http://stackoverflow.com/questions/7763321/libpcap-to-capture-10-gbps
+       * -nic pretty nice article on speeding up libpcap captures
+       */
+      LOGGER.info("Pcap API 1.0.0 or above is loaded.");
+      pcap = Pcap.create(name, errbuf);
+      if (pcap != null) {
+        pcap.setSnaplen(snaplen);
+        pcap.setPromisc(promisc);
+        pcap.setTimeout(timeout);
+
+        pcap.setDirection(Pcap.Direction.INOUT);
+        pcap.setBufferSize(bufferSize);
+        // warnings are positive, errors negative
+        if (pcap.activate() < 0) {
+          errbuf.append(pcap.getErr());
+          pcap.close();
+          throw new IOException("Could not activate " + name + ": " + errbuf);
+        }
+      }
+    } else {
+      pcap = Pcap.openLive(name, snaplen, promisc, timeout, errbuf);
+    }
+    if (pcap == null) {
+      throw new IOException("Could not open " + name + ": " + errbuf);
+    }
+
+    LOGGER.info(name + " pcap major version: " + pcap.majorVersion());
+    LOGGER.info(name + " pcap minor version: " + pcap.minorVersion());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#setFilter(java.lang.String)
+   */
+  public void setFilter(String filter) throws IllegalArgumentException {
+    PcapBpfProgram program = new PcapBpfProgram();
+    int optimize = 0; // 0 = false
+    int netmask = 0xFFFFFF00; // 255.255.255.0
+
+    if (pcap.compile(program, filter, optimize, netmask) != Pcap.OK) {
+      throw new IllegalArgumentException(
+          "Problem compiling tcpdump filter with error" + pcap.getErr());
+    }
+
+    if (pcap.setFilter(program) != Pcap.OK) {
+      throw new IllegalArgumentException(
+          "Problem setting tcpdump filter with error" + pcap.getErr());
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#getLinkType()
+   */
+  public int getLinkType() {
+    return pcap.datalink();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#dispatch(int,
+   * org.wayfair.wiff.capture.LiveCapture.PacketHandler)
+   */
+  public int dispatch(int count, PacketHandler handler) {
+    int result = pcap.dispatch(count, HANDLER, handler);
+    if (result == Pcap.ERROR) {
+      LOGGER.error("Error while capturing on " + name + ": " + pcap.getErr());
+    }
+    return result;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#breakLoop()
+   */
+  public void breakLoop() {
+    pcap.breakloop();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#getDroppedPackets()
+   */
+  public long getDroppedPackets() {
+    synchronized (stats) {
+      pcap.stats(stats);
+      return stats.getDrop();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#close()
+   */
+  public void close() {
+    pcap.close();
+  }
+
+  private static class Forwarder implements ByteBufferHandler<PacketHandler> {
+    public void nextPacket(PcapHeader header, ByteBuffer buffer,
+        PacketHandler handler) {
+      handler.nextPacket(buffer, header.timestampInMicros());
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.wayfair.wiff.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A capture handle on a network interface. WiffCapture drives each handle from
+ * its own thread, asking it for batches of packets until capture is stopped.
+ */
+public abstract class LiveCapture {
+  protected final String name;
+  protected final Logger LOGGER = Logger.getLogger(this.getClass());
+
+  /**
+   * The libraries live capture can go through. Ffm calls libpcap directly
+   * through the Foreign Function & Memory API; it is only built on Java 22 and
+   * above, by the ffm build profile.
+   */
+  public enum Backends {
+    JNetPcap, Ffm;
+
+    /**
+     * @return the backend, loaded
+     * @throws IOException
+     *           if the backend is not built or its library cannot be loaded
+     */
+    public CaptureBackend load() throws IOException {
+      if (this == JNetPcap) {
+        return new JNetPcapBackend();
+      }
+      try {
+        return (CaptureBackend) Class.forName(
+            "org.wayfair.wiff.capture.FfmPcapBackend").newInstance();
+      } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+        throw new IOException("The " + this
+            + " capture backend needs Java 22, and WIFF built on Java 22", e);
+      } catch (ReflectiveOperationException | LinkageError e) {
+        throw new IOException("The " + this
+            + " capture backend could not be loaded: " + e, e);
+      }
+    }
+  }
+
+  /**
+   * Receives the packets of a capture handle
+   */
+  public interface PacketHandler {
+    /**
+     * @param packet
+     *          the packet's bytes, from its position to its limit. The buffer
+     *          is only valid until this method returns.
+     * @param timestamp
+     *          the time the packet was captured, in microseconds since the
+     *          epoch
+     */
+    void nextPacket(ByteBuffer packet, long timestamp);
+  }
+
+  /**
+   * @param name
+   *          the name of the network interface
+   */
+  public LiveCapture(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the name of the network interface
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Sets a tcpdump filter on the incoming packets
+   *
+   * @param filter
+   *          the tcpdump filter
+   * @throws IllegalArgumentException
+   *           if the filter cannot be compiled or set
+   */
+  public abstract void setFilter(String filter) throws IllegalArgumentException;
+
+  /**
+   * @return the link-layer header type of the captured packets, see
+   *         org.wayfair.wiff.util.LinkLayer
+   */
+  public abstract int getLinkType();
+
+  /**
+   * Hands a batch of captured packets to a handler, waiting up to the read
+   * timeout for packets to arrive
+   *
+   * @param count
+   *          the most packets to handle, -1 to handle everything that is ready
+   * @param handler
+   *          the handler to call for each packet
+   * @return the number of packets handled, or a negative number once the
+   *         capture has been stopped or has failed
+   */
+  public abstract int dispatch(int count, PacketHandler handler);
+
+  /**
+   * Stops capture, causing any dispatch in progress to return
+   */
+  public abstract void breakLoop();
+
+  /**
+   * @return the number of packets dropped since capture started
+   */
+  public abstract long getDroppedPackets();
+
+  /**
+   * Releases the capture handle
+   */
+  public abstract void close();
+}
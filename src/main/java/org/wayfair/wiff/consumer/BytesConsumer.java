@@ -1,6 +1,7 @@
 package org.wayfair.wiff.consumer;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 import org.wayfair.wiff.core.Wiff;
 import org.wayfair.wiff.queue.WiffQueue;
@@ -37,14 +38,27 @@ public class BytesConsumer extends WiffConsumer<byte[]> implements Runnable {
 
     ByteBuffer killSignal = ByteBuffer.wrap(killPill);
 
+    ArrayList<byte[]> batch = new ArrayList<byte[]>(BATCH_SIZE);
+
     running = true;
     while (running) {
+      batch.clear();
       try {
-        byte[] buffer = queue.remove();
+        queue.drainTo(batch, BATCH_SIZE);
+      } catch (WiffQueueRemovalException e) {
+        LOGGER.error("", e);
+        continue;
+      }
 
-        // check for kilk signal
+      boolean killed = false;
+      for (byte[] buffer : batch) {
+        // check for kill signal, and leave any others to the other consumers
         if (ByteBuffer.wrap(buffer).compareTo(killSignal) == 0) {
-          break;
+          if (killed) {
+            requeue(buffer);
+          }
+          killed = true;
+          continue;
         }
 
         // pass data through services
@@ -53,8 +67,10 @@ public class BytesConsumer extends WiffConsumer<byte[]> implements Runnable {
             service.processData(buffer);
           }
         }
-      } catch (WiffQueueRemovalException e) {
-        LOGGER.error("", e);
+      }
+
+      if (killed) {
+        break;
       }
     }
   }
@@ -1,6 +1,7 @@
 package org.wayfair.wiff.consumer;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 import org.wayfair.wiff.core.ByteBufferPool;
 import org.wayfair.wiff.core.Wiff;
@@ -16,7 +17,8 @@ import org.wayfair.wiff.util.WiffPacket;
  * 
  */
 public class PacketConsumer extends WiffConsumer<WiffByteBuffer> {
-  private ByteBufferPool pool;
+  private ByteBufferPool      pool;
+  private WiffService<?, ?>[] services;
 
   /**
    * @param queue
@@ -33,8 +35,23 @@ public class PacketConsumer extends WiffConsumer<WiffByteBuffer> {
    *          the pool to which buffers taken from the queue are returned
    */
   public PacketConsumer(WiffQueue<WiffByteBuffer> queue, ByteBufferPool pool) {
+    this(queue, pool, null);
+  }
+
+  /**
+   * @param queue
+   *          the queue from which data is retrieved
+   * @param pool
+   *          the pool to which buffers taken from the queue are returned
+   * @param services
+   *          the services this consumer alone passes packets through, or null
+   *          for the services shared by every consumer
+   */
+  public PacketConsumer(WiffQueue<WiffByteBuffer> queue, ByteBufferPool pool,
+      WiffService<?, ?>[] services) {
     this.queue = queue;
     this.pool = pool;
+    this.services = services;
     killPill = new WiffByteBuffer(-1, ByteBuffer.wrap("KILL".getBytes()));
   }
 
@@ -44,38 +61,65 @@ public class PacketConsumer extends WiffConsumer<WiffByteBuffer> {
    * @see org.wayfair.wiff.consumer.WiffConsumer#run()
    */
   public void run() {
-    @SuppressWarnings("unchecked")
-    WiffService<WiffPacket, ?>[] services = (WiffService<WiffPacket, ?>[]) Wiff
+    WiffService<?, ?>[] own = this.services != null ? this.services : Wiff
         .getServices();
+    @SuppressWarnings("unchecked")
+    WiffService<WiffPacket, ?>[] services = (WiffService<WiffPacket, ?>[]) own;
 
     // A reusable wrapper of packet info
     WiffPacket packet = new WiffPacket();
 
+    ArrayList<WiffByteBuffer> batch = new ArrayList<WiffByteBuffer>(BATCH_SIZE);
+
     running = true;
     while (running) {
+      batch.clear();
       try {
-        WiffByteBuffer buffer = queue.remove();
+        queue.drainTo(batch, BATCH_SIZE);
+      } catch (Exception e) {
+        LOGGER.error("", e);
+        continue;
+      }
 
-        // check for kill signal
+      boolean killed = false;
+      for (WiffByteBuffer buffer : batch) {
+        // check for kill signal, and leave any others to the other consumers
         if (buffer.compareTo(killPill) == 0) {
-          break;
+          if (killed) {
+            requeue(buffer);
+          }
+          killed = true;
+          continue;
         }
 
-        packet.setPacket(buffer.asByteBuffer());
+        try {
+          packet.setPacket(buffer.asByteBuffer(), buffer.getLinkType(),
+              buffer.getTimestamp());
 
-        // pass packet info through services
-        if (services != null) {
-          for (WiffService<WiffPacket, ?> service : services) {
-            service.processData(packet);
+          // pass packet info through services
+          if (services != null) {
+            for (WiffService<WiffPacket, ?> service : services) {
+              service.processData(packet);
+            }
+          }
+        } catch (Exception e) {
+          LOGGER.error("", e);
+        } finally {
+          // if a pool was given, return the buffer to it, even if a service
+          // failed, or the pool runs dry
+          if (pool != null) {
+            pool.returnBuffer(buffer);
           }
         }
+      }
 
-        // if a pool was given, return the buffer to it.
-        if (pool != null) {
-          pool.returnBuffer(buffer);
-        }
-      } catch (Exception e) {
-        LOGGER.error("", e);
+      // a short batch emptied the queue, so this thread is about to wait
+      if (pool != null && (killed || batch.size() < BATCH_SIZE)) {
+        pool.flush();
+      }
+
+      if (killed) {
+        break;
       }
     }
   }
@@ -5,6 +5,9 @@ import org.wayfair.wiff.queue.WiffQueue;
 import org.wayfair.wiff.queue.WiffQueue.WiffQueueAdditionException;
 
 public abstract class WiffConsumer<T> implements Runnable {
+  // The most elements taken from the queue at once
+  protected static final int BATCH_SIZE = 64;
+
   protected WiffQueue<T> queue;
   protected T            killPill;
   protected boolean      running;
@@ -34,6 +37,20 @@ public abstract class WiffConsumer<T> implements Runnable {
     }
   }
 
+  /**
+   * Puts a kill pill taken in another consumer's batch back on the queue
+   * 
+   * @param pill
+   *          the kill pill
+   */
+  protected void requeue(T pill) {
+    try {
+      queue.add(pill);
+    } catch (WiffQueueAdditionException e) {
+      LOGGER.info("Could not reinsert kill pill.");
+    }
+  }
+
   /**
    * Indicates if the run method is executing
    * 
@@ -0,0 +1,225 @@
+package org.wayfair.wiff.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+/**
+ * A pool that packs packets back to back into large slabs instead of giving
+ * each packet a buffer of the maximum packet size. Each buffer handed out is a
+ * view of just enough of the current slab to hold its packet, so a pool of the
+ * same size holds many more packets in flight.
+ *
+ * A slab is reused once every packet in it has been returned and the pool has
+ * moved on to another slab. The buffers handed out of a slab are kept with it
+ * and handed out again in the same order each time it is reused, so after the
+ * first use of a slab no object is made per packet.
+ */
+public class ArenaByteBufferPool extends ByteBufferPool {
+  private final Slab[]                    slabs;
+  private final ArrayBlockingQueue<Slab>  free;
+  private final int                       slabCapacity;
+  private final int                       bufferCapacity;
+
+  // The slab packets are currently packed into
+  private Slab                            current;
+
+  private final Logger                    LOGGER = Logger
+                                                     .getLogger(this.getClass());
+
+  /**
+   * @param slabCount
+   *          the number of slabs in the pool
+   * @param slabCapacity
+   *          the size of each slab in bytes
+   * @param bufferCapacity
+   *          the size in bytes of the largest packet, the size of buffers
+   *          requested without a length
+   */
+  public ArenaByteBufferPool(int slabCount, int slabCapacity, int bufferCapacity) {
+    super(0, 0);
+    if (slabCapacity < bufferCapacity) {
+      throw new IllegalArgumentException("Slabs of " + slabCapacity
+          + " bytes cannot hold packets of " + bufferCapacity + " bytes");
+    }
+    this.slabCapacity = slabCapacity;
+    this.bufferCapacity = bufferCapacity;
+
+    slabs = new Slab[Math.max(1, slabCount)];
+    free = new ArrayBlockingQueue<Slab>(slabs.length);
+    for (int i = 0; i < slabs.length; i++) {
+      slabs[i] = new Slab(i, slabCapacity);
+      free.add(slabs[i]);
+    }
+    LOGGER.info("Arena Size: " + slabs.length + " slabs of " + slabCapacity
+        + " bytes");
+  }
+
+  /**
+   * Gets a buffer large enough for the largest packet
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#getByteBuffer()
+   */
+  @Override
+  public WiffByteBuffer getByteBuffer() {
+    return getByteBuffer(bufferCapacity);
+  }
+
+  /**
+   * Gets a buffer of exactly the requested length, packed into the current
+   * slab. Blocks while every slab is in use, without holding the pool's lock,
+   * so packets can still be returned to it and packed into it meanwhile.
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#getByteBuffer(int)
+   */
+  @Override
+  public WiffByteBuffer getByteBuffer(int length) {
+    WiffByteBuffer buffer = pollByteBuffer(length);
+    if (buffer != null || length > slabCapacity) {
+      return buffer;
+    }
+
+    Slab next;
+    try {
+      next = free.take();
+    } catch (InterruptedException e) {
+      LOGGER.info("", e);
+      return null;
+    }
+    synchronized (this) {
+      if (current != null && current.remaining() >= length) {
+        // another thread moved on to a slab while this one waited
+        free.add(next);
+      } else {
+        moveTo(next);
+      }
+      return current.allocate(length);
+    }
+  }
+
+  /**
+   * Gets a buffer of exactly the requested length without waiting for a slab
+   * to be reclaimed
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#pollByteBuffer(int)
+   */
+  @Override
+  public synchronized WiffByteBuffer pollByteBuffer(int length) {
+    if (length > slabCapacity) {
+      LOGGER.error("Packet of " + length + " bytes is larger than a slab");
+      return null;
+    }
+
+    if (current == null || current.remaining() < length) {
+      Slab next = free.poll();
+      if (next == null) {
+        return null;
+      }
+      moveTo(next);
+    }
+    return current.allocate(length);
+  }
+
+  /**
+   * Packs packets into a free slab from now on. Called with the pool's lock
+   * held.
+   */
+  private void moveTo(Slab next) {
+    if (current != null) {
+      // the pool no longer writes to this slab
+      current.release();
+    }
+    current = next;
+    current.reset();
+  }
+
+  /**
+   * Releases a packet's share of its slab
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#returnBuffer(org.wayfair.wiff.util.WiffByteBuffer)
+   */
+  @Override
+  public void returnBuffer(WiffByteBuffer buffer) {
+    slabs[buffer.getID()].release();
+  }
+
+  /**
+   * @return the number of slabs in the pool
+   */
+  @Override
+  public int size() {
+    return slabs.length;
+  }
+
+  /**
+   * @return the number of slabs that hold no packets
+   */
+  @Override
+  public int available() {
+    return free.size();
+  }
+
+  /**
+   * A region of memory that packets are packed into. It counts the packets
+   * that have not been returned, plus one while it is the pool's current slab.
+   */
+  private class Slab {
+    final int                       id;
+    final ByteBuffer                memory;
+    final AtomicInteger             references = new AtomicInteger();
+
+    // The buffers handed out since the slab was reset, in order, and the
+    // buffers made for it so far
+    int                             used;
+    final ArrayList<WiffByteBuffer> buffers    = new ArrayList<WiffByteBuffer>();
+
+    Slab(int id, int capacity) {
+      this.id = id;
+      memory = ByteBuffer.allocate(capacity);
+    }
+
+    int remaining() {
+      return memory.remaining();
+    }
+
+    /**
+     * Empties a slab taken from the free list. The pool holds a reference
+     * until it moves on to another slab.
+     */
+    void reset() {
+      memory.clear();
+      references.set(1);
+      used = 0;
+    }
+
+    /**
+     * Hands out the next buffer of the slab, over the next length bytes. Every
+     * buffer handed out before the slab was last reset has been returned, so
+     * it is free to be pointed somewhere else. Called with the pool's lock
+     * held.
+     */
+    WiffByteBuffer allocate(int length) {
+      references.incrementAndGet();
+
+      if (used == buffers.size()) {
+        buffers.add(new WiffByteBuffer(id, memory.duplicate()));
+      }
+      WiffByteBuffer buffer = buffers.get(used++);
+
+      int offset = memory.position();
+      buffer.setRegion(offset, length);
+      memory.position(offset + length);
+      return buffer;
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        free.add(this);
+      }
+    }
+  }
+}
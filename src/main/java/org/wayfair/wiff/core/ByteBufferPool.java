@@ -1,19 +1,46 @@
 package org.wayfair.wiff.core;
 
-import java.util.ArrayList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 import org.wayfair.wiff.util.WiffByteBuffer;
 
+/**
+ * A fixed set of buffers shared between the threads that capture packets and
+ * the threads that process them, without locks.
+ *
+ * Each thread keeps a magazine, a small stack of free buffer IDs, that it takes
+ * buffers from and returns buffers to. Full magazines are exchanged through a
+ * shared lock-free stack (the depot), so the shared state is touched once per
+ * magazine rather than once per buffer. A thread only waits when the depot and
+ * its own magazine are both empty.
+ *
+ * Buffers in a magazine are out of reach of the other threads, so a thread
+ * that is about to go idle or stop hands its magazine back with flush().
+ */
 public class ByteBufferPool {
-  private ArrayList<WiffByteBuffer> buffers;
-  private ArrayList<Boolean>        available;
-  private Semaphore                 sema;
+  // The most buffers a thread keeps to itself
+  private static final int             MAX_MAGAZINE  = 32;
 
-  private int                       size;
+  // How long a waiting thread sleeps before looking for buffers again, in ms
+  private static final int             WAIT_INTERVAL = 10;
 
-  private final Logger              LOGGER = Logger.getLogger(this.getClass());
+  private WiffByteBuffer[]             buffers;
+  private int                          magazineSize;
+
+  private final AtomicReference<Depot> depot         = new AtomicReference<Depot>();
+  private final AtomicInteger          depotCount    = new AtomicInteger();
+  private final ThreadLocal<Magazine>  magazines;
+
+  // Threads waiting for a buffer
+  private final Object                 lock          = new Object();
+  private volatile int                 waiting;
+
+  private int                          size;
+
+  private final Logger                 LOGGER        = Logger.getLogger(this
+                                                         .getClass());
 
   /**
    * Create a pool of 100 buffers, each of the theoretical max datagram size
@@ -30,74 +57,205 @@ public class ByteBufferPool {
    *          the size of each buffer in bytes
    */
   public ByteBufferPool(int size, int bufferCapacity) {
-    buffers = new ArrayList<WiffByteBuffer>(size);
-    available = new ArrayList<Boolean>(size);
-    sema = new Semaphore(size);
+    /*
+     * Buffers in the magazine of a thread that has gone quiet are out of reach
+     * of the others, so magazines are kept small next to the pool.
+     */
+    magazineSize = Math.max(1, Math.min(MAX_MAGAZINE, size / 64));
+    magazines = new ThreadLocal<Magazine>() {
+      protected Magazine initialValue() {
+        return new Magazine(magazineSize);
+      }
+    };
 
     loadByteBuffers(size, bufferCapacity);
   }
 
   /**
-   * Gets an available buffer from the pool
-   * 
-   * @return an available WiffByteBuffer, null if none are free
+   * Gets an available buffer from the pool, waiting for one to be returned if
+   * none are free
+   *
+   * @return an available WiffByteBuffer, null if interrupted while waiting
    */
-  public synchronized WiffByteBuffer getByteBuffer() {
-    WiffByteBuffer buffer = null;
-    try {
-      sema.acquire();
-      for (int i = 0; i < size; i++) {
-        if (available.get(i)) {
-          buffer = buffers.get(i);
-          available.set(i, false);
-          break;
+  public WiffByteBuffer getByteBuffer() {
+    WiffByteBuffer buffer = pollByteBuffer(0);
+    if (buffer != null) {
+      return buffer;
+    }
+
+    synchronized (lock) {
+      waiting++;
+      try {
+        while ((buffer = pollByteBuffer(0)) == null) {
+          lock.wait(WAIT_INTERVAL);
         }
+      } catch (InterruptedException e) {
+        LOGGER.info("", e);
+      } finally {
+        waiting--;
       }
-    } catch (InterruptedException e) {
-      LOGGER.info("", e);
     }
+    return buffer;
+  }
+
+  /**
+   * Gets an available buffer from the pool with room for a packet. Every
+   * buffer in this pool has the same capacity, so the length is only a hint.
+   *
+   * @param length
+   *          the number of bytes that will be put in the buffer
+   * @return an available WiffByteBuffer, null if interrupted while waiting
+   */
+  public WiffByteBuffer getByteBuffer(int length) {
+    return getByteBuffer();
+  }
 
-    if (buffer == null) {
-      sema.release();
+  /**
+   * Gets an available buffer from the pool without waiting for one to be
+   * returned
+   *
+   * @param length
+   *          the number of bytes that will be put in the buffer
+   * @return an available WiffByteBuffer, null if none are free
+   */
+  public WiffByteBuffer pollByteBuffer(int length) {
+    Magazine magazine = magazines.get();
+    if (magazine.count == 0) {
+      Depot full = pop();
+      if (full == null) {
+        return null;
+      }
+      magazine.ids = full.ids;
+      magazine.count = full.count;
     }
-    return buffer;
+    return buffers[magazine.ids[--magazine.count]];
   }
 
   /**
    * Returns a buffer to the pool
-   * 
+   *
    * @param buffer
    *          the buffer to return to the pool
    */
   public void returnBuffer(WiffByteBuffer buffer) {
     buffer.clear();
-    available.set(buffer.getID(), true);
 
-    sema.release();
+    Magazine magazine = magazines.get();
+    magazine.ids[magazine.count++] = buffer.getID();
+
+    // hand the magazine over once it is full, or at once if a thread waits
+    if (magazine.count == magazineSize || waiting > 0) {
+      handOver(magazine);
+    }
+  }
+
+  /**
+   * Hands the calling thread's free buffers back to the pool, where any thread
+   * can take them. Called by a thread that is about to wait for work or stop,
+   * so buffers are not kept from the others while it does nothing.
+   */
+  public void flush() {
+    Magazine magazine = magazines.get();
+    if (magazine.count > 0) {
+      handOver(magazine);
+    }
+  }
+
+  private void handOver(Magazine magazine) {
+    push(magazine.ids, magazine.count);
+    magazine.ids = new int[magazineSize];
+    magazine.count = 0;
+
+    if (waiting > 0) {
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
   }
 
   /**
    * Adds buffers to the pool
-   * 
+   *
    * @param num
    *          the number of buffers to add to the pool
    * @param bufferCapacity
    *          the capacity in bytes of the new buffers
    */
   private void loadByteBuffers(int num, int bufferCapacity) {
-    for (int i = 0; i < num; i++) {
-      buffers.add(new WiffByteBuffer(i, bufferCapacity));
-      available.add(true);
+    buffers = new WiffByteBuffer[num];
+    for (int i = 0; i < num; i += magazineSize) {
+      int[] ids = new int[magazineSize];
+      int count = 0;
+      for (int id = i; id < Math.min(num, i + magazineSize); id++) {
+        buffers[id] = new WiffByteBuffer(id, bufferCapacity);
+        ids[count++] = id;
+      }
+      push(ids, count);
     }
     size += num;
-    LOGGER.info("Pool Size: " + size);
+    if (num > 0) {
+      LOGGER.info("Pool Size: " + size);
+    }
+  }
+
+  private void push(int[] ids, int count) {
+    Depot node = new Depot(ids, count);
+    Depot head;
+    do {
+      head = depot.get();
+      node.next = head;
+    } while (!depot.compareAndSet(head, node));
+    depotCount.addAndGet(count);
+  }
+
+  private Depot pop() {
+    Depot head;
+    do {
+      head = depot.get();
+      if (head == null) {
+        return null;
+      }
+    } while (!depot.compareAndSet(head, head.next));
+    depotCount.addAndGet(-head.count);
+    return head;
   }
 
   public int size() {
     return size;
   }
 
+  /**
+   * @return the number of free buffers, not counting those kept in threads'
+   *         magazines
+   */
   public int available() {
-    return sema.availablePermits();
+    return depotCount.get();
+  }
+
+  /**
+   * The free buffers a thread keeps to itself
+   */
+  private static class Magazine {
+    int[] ids;
+    int   count;
+
+    Magazine(int size) {
+      ids = new int[size];
+    }
+  }
+
+  /**
+   * A magazine handed to the depot. A node is never pushed twice, so the stack
+   * is safe from ABA.
+   */
+  static class Depot {
+    final int[] ids;
+    final int   count;
+    Depot       next;
+
+    Depot(int[] ids, int count) {
+      this.ids = ids;
+      this.count = count;
+    }
   }
 }
@@ -0,0 +1,558 @@
+package org.wayfair.wiff.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+/**
+ * A pool whose memory lives outside the Java heap, in direct buffers, and
+ * whose buffers come in a few sizes. A packet gets a buffer of the smallest
+ * size that holds it, so small packets do not each tie up buffer_capacity
+ * bytes, and the garbage collector never scans packet data.
+ *
+ * Memory is allocated in chunks, each cut into buffers of one size. A size
+ * gets another chunk when it runs out of buffers, as long as the pool stays
+ * within its budget. The pool keeps a histogram of the packet sizes asked for,
+ * and from time to time gives back a chunk of any size that holds more memory
+ * than its share of the recent packets needs. A chunk is only given back once
+ * all of its buffers have been returned.
+ *
+ * Free buffers are kept as ByteBufferPool keeps them: each thread has a
+ * magazine of free buffer IDs for every size, and exchanges full magazines
+ * with the other threads through a lock-free stack (the depot) per size.
+ */
+public class SizeClassByteBufferPool extends ByteBufferPool {
+  // The size of a chunk, unless a buffer is larger
+  private static final int                   CHUNK_SIZE     = 1024 * 1024;
+
+  // The most buffers of a size a thread keeps to itself
+  private static final int                   MAX_MAGAZINE   = 32;
+
+  // The number of requests between two looks at the histogram
+  private static final int                   REBALANCE_RATE = 1 << 16;
+
+  // How long a waiting thread sleeps before looking for buffers again, in ms
+  private static final int                   WAIT_INTERVAL  = 10;
+
+  private final int[]                        sizes;
+  private final int                          chunkSize;
+  private final int                          maxChunks;
+
+  // Buffer IDs hold the chunk's slot in the high bits, the buffer in the low
+  private final AtomicReferenceArray<Chunk>  chunks;
+  private final ArrayList<Integer>           freeSlots      = new ArrayList<Integer>();
+
+  private final int[]                        magazineSizes;
+  private final AtomicReferenceArray<Depot>  depots;
+  private final AtomicIntegerArray           depotCounts;
+  private final ThreadLocal<Magazines>       magazines;
+  private final int[]                        classChunks;
+  private int                                usedChunks;
+
+  // Requests for each size since the last look at the histogram
+  private final AtomicLongArray              histogram;
+  private final AtomicInteger                requests       = new AtomicInteger();
+
+  // Threads waiting for a buffer
+  private final Object                       lock           = new Object();
+  private volatile int                       waiting;
+
+  private final Logger                       LOGGER         = Logger
+                                                                .getLogger(this
+                                                                    .getClass());
+
+  /**
+   * @param poolBytes
+   *          the most memory the pool may hold, in bytes
+   * @param sizes
+   *          the buffer sizes, in bytes. Sizes above bufferCapacity are
+   *          ignored.
+   * @param bufferCapacity
+   *          the size in bytes of the largest packet, the size of buffers
+   *          requested without a length
+   */
+  public SizeClassByteBufferPool(long poolBytes, int[] sizes, int bufferCapacity) {
+    super(0, 0);
+
+    // sorted, no larger than the largest packet, which always has a size
+    int[] sorted = sizes.clone();
+    Arrays.sort(sorted);
+    int count = 0;
+    while (count < sorted.length && sorted[count] < bufferCapacity) {
+      count++;
+    }
+    this.sizes = Arrays.copyOf(sorted, count + 1);
+    this.sizes[count] = bufferCapacity;
+
+    chunkSize = Math.max(CHUNK_SIZE, bufferCapacity);
+    if (chunkSize / this.sizes[0] > 0xffff) {
+      throw new IllegalArgumentException("Buffers of " + this.sizes[0]
+          + " bytes are too small for chunks of " + chunkSize + " bytes");
+    }
+    maxChunks = (int) Math.max(this.sizes.length, poolBytes / chunkSize);
+
+    chunks = new AtomicReferenceArray<Chunk>(maxChunks);
+    for (int i = maxChunks - 1; i >= 0; i--) {
+      freeSlots.add(i);
+    }
+
+    /*
+     * As in ByteBufferPool, magazines are kept small next to the most buffers
+     * of the size the pool could hold
+     */
+    magazineSizes = new int[this.sizes.length];
+    for (int i = 0; i < this.sizes.length; i++) {
+      long most = (long) maxChunks * (chunkSize / this.sizes[i]);
+      magazineSizes[i] = (int) Math.max(1, Math.min(MAX_MAGAZINE, most / 64));
+    }
+    depots = new AtomicReferenceArray<Depot>(this.sizes.length);
+    depotCounts = new AtomicIntegerArray(this.sizes.length);
+    magazines = new ThreadLocal<Magazines>() {
+      protected Magazines initialValue() {
+        return new Magazines();
+      }
+    };
+    classChunks = new int[this.sizes.length];
+    histogram = new AtomicLongArray(this.sizes.length);
+
+    for (int i = 0; i < this.sizes.length; i++) {
+      grow(i);
+    }
+    LOGGER.info("Off-heap Pool Size: " + maxChunks + " chunks of " + chunkSize
+        + " bytes, buffer sizes " + Arrays.toString(this.sizes));
+  }
+
+  /**
+   * Gets a buffer large enough for the largest packet
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#getByteBuffer()
+   */
+  @Override
+  public WiffByteBuffer getByteBuffer() {
+    return getByteBuffer(sizes[sizes.length - 1]);
+  }
+
+  /**
+   * Gets a buffer of the smallest size that holds the requested length,
+   * waiting for one to be returned if the pool is out of memory
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#getByteBuffer(int)
+   */
+  @Override
+  public WiffByteBuffer getByteBuffer(int length) {
+    WiffByteBuffer buffer = pollByteBuffer(length);
+    if (buffer != null || length > sizes[sizes.length - 1]) {
+      return buffer;
+    }
+
+    synchronized (lock) {
+      waiting++;
+      try {
+        while ((buffer = take(length)) == null) {
+          lock.wait(WAIT_INTERVAL);
+        }
+      } catch (InterruptedException e) {
+        LOGGER.info("", e);
+      } finally {
+        waiting--;
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Gets a buffer of the smallest size that holds the requested length
+   * without waiting for one to be returned
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#pollByteBuffer(int)
+   */
+  @Override
+  public WiffByteBuffer pollByteBuffer(int length) {
+    int sizeClass = sizeClass(length);
+    if (sizeClass < 0) {
+      LOGGER.error("Packet of " + length + " bytes is larger than a buffer");
+      return null;
+    }
+
+    histogram.incrementAndGet(sizeClass);
+    if ((requests.incrementAndGet() & (REBALANCE_RATE - 1)) == 0) {
+      rebalance();
+    }
+    return take(length);
+  }
+
+  /**
+   * Returns a buffer to the free buffers of its size, or to its chunk if the
+   * chunk is being given back
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#returnBuffer(org.wayfair.wiff.util.WiffByteBuffer)
+   */
+  @Override
+  public void returnBuffer(WiffByteBuffer buffer) {
+    buffer.clear();
+
+    Chunk chunk = chunks.get(buffer.getID() >>> 16);
+    chunk.inUse.decrementAndGet();
+    if (chunk.retiring) {
+      retire(chunk);
+      return;
+    }
+
+    int sizeClass = chunk.sizeClass;
+    Magazines magazine = magazines.get();
+    magazine.ids[sizeClass][magazine.counts[sizeClass]++] = buffer.getID();
+
+    // hand the magazine over once it is full, or at once if a thread waits
+    if (magazine.counts[sizeClass] == magazineSizes[sizeClass] || waiting > 0) {
+      handOver(magazine, sizeClass);
+    }
+  }
+
+  /**
+   * Hands the calling thread's free buffers of every size back to the pool
+   *
+   * @see org.wayfair.wiff.core.ByteBufferPool#flush()
+   */
+  @Override
+  public void flush() {
+    Magazines magazine = magazines.get();
+    for (int i = 0; i < sizes.length; i++) {
+      if (magazine.counts[i] > 0) {
+        handOver(magazine, i);
+      }
+    }
+  }
+
+  /**
+   * @return the most buffers of the largest size the pool can hold
+   */
+  @Override
+  public int size() {
+    return maxChunks * (chunkSize / sizes[sizes.length - 1]);
+  }
+
+  /**
+   * @return the number of free buffers of every size, not counting those kept
+   *         in threads' magazines
+   */
+  @Override
+  public int available() {
+    int available = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      available += depotCounts.get(i);
+    }
+    return available;
+  }
+
+  /**
+   * @return the bytes of memory currently held by the pool
+   */
+  public synchronized long getAllocated() {
+    return (long) usedChunks * chunkSize;
+  }
+
+  /**
+   * @param sizeClass
+   *          an index into the buffer sizes
+   * @return the number of chunks holding buffers of the size
+   */
+  public synchronized int getChunks(int sizeClass) {
+    return classChunks[sizeClass];
+  }
+
+  /**
+   * @return the buffer sizes, smallest first
+   */
+  public int[] getSizes() {
+    return sizes.clone();
+  }
+
+  /**
+   * @param length
+   *          a packet's length in bytes
+   * @return the index of the smallest buffer size that holds the packet, -1 if
+   *         none does
+   */
+  private int sizeClass(int length) {
+    for (int i = 0; i < sizes.length; i++) {
+      if (length <= sizes[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Takes a free buffer of the packet's size, growing the size if it has run
+   * out. With no memory left to grow, a buffer of a larger size will do.
+   */
+  private WiffByteBuffer take(int length) {
+    int sizeClass = sizeClass(length);
+    WiffByteBuffer buffer = poll(sizeClass);
+    if (buffer == null && grow(sizeClass)) {
+      buffer = poll(sizeClass);
+    }
+    for (int i = sizeClass + 1; buffer == null && i < sizes.length; i++) {
+      buffer = poll(i);
+    }
+
+    if (buffer != null) {
+      buffer.asByteBuffer().limit(length);
+    }
+    return buffer;
+  }
+
+  /**
+   * Takes a free buffer of a size from the calling thread's magazine, refilling
+   * the magazine from the depot when it is empty. Buffers of retiring chunks
+   * are counted back to their chunks on the way.
+   */
+  private WiffByteBuffer poll(int sizeClass) {
+    Magazines magazine = magazines.get();
+    while (true) {
+      if (magazine.counts[sizeClass] == 0) {
+        Depot full = pop(sizeClass);
+        if (full == null) {
+          return null;
+        }
+        magazine.ids[sizeClass] = full.ids;
+        magazine.counts[sizeClass] = full.count;
+      }
+
+      int id = magazine.ids[sizeClass][--magazine.counts[sizeClass]];
+      Chunk chunk = chunks.get(id >>> 16);
+      if (!chunk.retiring) {
+        chunk.inUse.incrementAndGet();
+        return chunk.buffers[id & 0xffff];
+      }
+      retire(chunk);
+    }
+  }
+
+  /**
+   * Allocates a chunk of buffers of one size
+   *
+   * @return false if the pool holds all the memory it may
+   */
+  private synchronized boolean grow(int sizeClass) {
+    if (freeSlots.isEmpty()) {
+      return false;
+    }
+    int slot = freeSlots.remove(freeSlots.size() - 1);
+
+    Chunk chunk = new Chunk(slot, sizeClass);
+    chunks.set(slot, chunk);
+    classChunks[sizeClass]++;
+    usedChunks++;
+
+    int magazineSize = magazineSizes[sizeClass];
+    for (int i = 0; i < chunk.buffers.length; i += magazineSize) {
+      int[] ids = new int[magazineSize];
+      int count = 0;
+      for (int b = i; b < Math.min(chunk.buffers.length, i + magazineSize); b++) {
+        ids[count++] = chunk.buffers[b].getID();
+      }
+      push(sizeClass, ids, count);
+    }
+    return true;
+  }
+
+  /**
+   * Counts one of a retiring chunk's buffers as back, and gives the chunk's
+   * memory back once all of them are
+   */
+  private void retire(Chunk chunk) {
+    if (chunk.retired.incrementAndGet() == chunk.buffers.length) {
+      synchronized (this) {
+        chunks.set(chunk.slot, null);
+        freeSlots.add(chunk.slot);
+        classChunks[chunk.sizeClass]--;
+        usedChunks--;
+      }
+    }
+  }
+
+  /**
+   * Compares the chunks each size holds with its share of the recent
+   * requests, and starts giving back one chunk of each size that holds more
+   * than its share while at least a chunk's worth of its buffers are free
+   */
+  private synchronized void rebalance() {
+    long[] demand = new long[sizes.length];
+    long total = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      demand[i] = histogram.getAndSet(i, 0) * sizes[i];
+      total += demand[i];
+    }
+
+    boolean[] retiring = new boolean[sizes.length];
+    for (int slot = 0; slot < maxChunks; slot++) {
+      Chunk chunk = chunks.get(slot);
+      if (chunk != null && chunk.retiring) {
+        retiring[chunk.sizeClass] = true;
+      }
+    }
+
+    for (int i = 0; i < sizes.length && total > 0; i++) {
+      long target = Math.max(1, Math.round((double) maxChunks * demand[i]
+          / total));
+      if (classChunks[i] <= target) {
+        continue;
+      }
+
+      // the chunk of the size with the fewest buffers in use
+      Chunk idle = null;
+      int live = 0;
+      int inUse = 0;
+      for (int slot = 0; slot < maxChunks; slot++) {
+        Chunk chunk = chunks.get(slot);
+        if (chunk != null && chunk.sizeClass == i && !chunk.retiring) {
+          live++;
+          inUse += chunk.inUse.get();
+          if (idle == null || chunk.inUse.get() < idle.inUse.get()) {
+            idle = chunk;
+          }
+        }
+      }
+      int buffers = chunkSize / sizes[i];
+      if (live <= target || live * buffers - inUse < buffers) {
+        continue;
+      }
+
+      idle.retiring = true;
+      retiring[i] = true;
+      LOGGER.debug("Giving back a chunk of " + sizes[i] + " byte buffers");
+    }
+
+    /*
+     * Free buffers of retiring chunks will not be taken again. Those in the
+     * depot and this thread's magazine are counted back now; a buffer returned
+     * while its chunk was being marked may reach the depot after this, so the
+     * depot is swept again on every look until the chunk is gone.
+     */
+    Magazines magazine = magazines.get();
+    for (int i = 0; i < sizes.length; i++) {
+      if (retiring[i]) {
+        magazine.counts[i] = sweep(magazine.ids[i], magazine.counts[i]);
+        sweep(i);
+      }
+    }
+  }
+
+  /**
+   * Takes the buffers of retiring chunks out of the depot of a size
+   */
+  private void sweep(int sizeClass) {
+    Depot head = depots.getAndSet(sizeClass, null);
+    while (head != null) {
+      Depot next = head.next;
+      depotCounts.addAndGet(sizeClass, -head.count);
+      int count = sweep(head.ids, head.count);
+      if (count > 0) {
+        // a fresh node, as a node is never pushed twice
+        push(sizeClass, head.ids, count);
+      }
+      head = next;
+    }
+  }
+
+  /**
+   * Counts back the buffers of retiring chunks among some free buffer IDs,
+   * keeping the rest
+   *
+   * @return the number of IDs kept, at the front of the array
+   */
+  private int sweep(int[] ids, int count) {
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      Chunk chunk = chunks.get(ids[i] >>> 16);
+      if (chunk.retiring) {
+        retire(chunk);
+      } else {
+        ids[kept++] = ids[i];
+      }
+    }
+    return kept;
+  }
+
+  private void handOver(Magazines magazine, int sizeClass) {
+    push(sizeClass, magazine.ids[sizeClass], magazine.counts[sizeClass]);
+    magazine.ids[sizeClass] = new int[magazineSizes[sizeClass]];
+    magazine.counts[sizeClass] = 0;
+
+    if (waiting > 0) {
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void push(int sizeClass, int[] ids, int count) {
+    Depot node = new Depot(ids, count);
+    Depot head;
+    do {
+      head = depots.get(sizeClass);
+      node.next = head;
+    } while (!depots.compareAndSet(sizeClass, head, node));
+    depotCounts.addAndGet(sizeClass, count);
+  }
+
+  private Depot pop(int sizeClass) {
+    Depot head;
+    do {
+      head = depots.get(sizeClass);
+      if (head == null) {
+        return null;
+      }
+    } while (!depots.compareAndSet(sizeClass, head, head.next));
+    depotCounts.addAndGet(sizeClass, -head.count);
+    return head;
+  }
+
+  /**
+   * The free buffers of every size a thread keeps to itself
+   */
+  private class Magazines {
+    final int[][] ids    = new int[sizes.length][];
+    final int[]   counts = new int[sizes.length];
+
+    Magazines() {
+      for (int i = 0; i < sizes.length; i++) {
+        ids[i] = new int[magazineSizes[i]];
+      }
+    }
+  }
+
+  /**
+   * A region of memory outside the heap, cut into buffers of one size
+   */
+  private class Chunk {
+    final int              slot;
+    final int              sizeClass;
+    final WiffByteBuffer[] buffers;
+
+    final AtomicInteger    inUse   = new AtomicInteger();
+    final AtomicInteger    retired = new AtomicInteger();
+    volatile boolean       retiring;
+
+    Chunk(int slot, int sizeClass) {
+      this.slot = slot;
+      this.sizeClass = sizeClass;
+
+      ByteBuffer memory = ByteBuffer.allocateDirect(chunkSize);
+      int size = sizes[sizeClass];
+      buffers = new WiffByteBuffer[chunkSize / size];
+      for (int i = 0; i < buffers.length; i++) {
+        memory.limit((i + 1) * size).position(i * size);
+        buffers[i] = new WiffByteBuffer(slot << 16 | i, memory.slice());
+      }
+    }
+  }
+}
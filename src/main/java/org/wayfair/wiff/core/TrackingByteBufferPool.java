@@ -0,0 +1,218 @@
+package org.wayfair.wiff.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+/**
+ * Wraps a pool to find buffers that are never returned to it. Every buffer
+ * handed out and returned is counted, and a sample of them is followed: where
+ * each was taken from the pool is recorded, and a buffer held longer than a
+ * threshold is logged with that place, once, as leaked.
+ *
+ * Following a buffer costs a stack trace, so the sample rate keeps the cost
+ * low enough to leave on in production. Counting alone costs two atomic
+ * increments a packet.
+ */
+public class TrackingByteBufferPool extends ByteBufferPool {
+  private final ByteBufferPool                            pool;
+  private final int                                       sampleEvery;
+  private final long                                      threshold;
+
+  // Buffers being followed, by identity, and where they were taken
+  private final ConcurrentHashMap<WiffByteBuffer, Lease> leases  = new ConcurrentHashMap<WiffByteBuffer, Lease>();
+
+  private final AtomicLong                                leased  = new AtomicLong();
+  private final AtomicInteger                             leaked  = new AtomicInteger();
+  private final AtomicLong                                flagged = new AtomicLong();
+
+  private final Logger                                    LOGGER  = Logger
+                                                                      .getLogger(this
+                                                                          .getClass());
+
+  /**
+   * @param pool
+   *          the pool to follow the buffers of
+   * @param sampleRate
+   *          the share of buffers to follow, between 0 and 1
+   * @param threshold
+   *          how long a buffer may be held before it is counted as leaked, in
+   *          milliseconds
+   */
+  public TrackingByteBufferPool(ByteBufferPool pool, float sampleRate,
+      long threshold) {
+    super(0, 0);
+    if (sampleRate <= 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+    }
+    this.pool = pool;
+    this.sampleEvery = Math.round(1 / sampleRate);
+    this.threshold = threshold;
+
+    Thread watcher = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(Math.max(100, TrackingByteBufferPool.this.threshold / 4));
+            check(System.currentTimeMillis());
+          }
+        } catch (InterruptedException e) {
+          LOGGER.info("", e);
+        }
+      }
+    }, "LeakWatcher");
+    watcher.setDaemon(true);
+    watcher.start();
+    LOGGER.info("Following 1 in " + sampleEvery + " pool buffers, leaked after "
+        + threshold + " ms");
+  }
+
+  /**
+   * @see org.wayfair.wiff.core.ByteBufferPool#getByteBuffer()
+   */
+  @Override
+  public WiffByteBuffer getByteBuffer() {
+    return lease(pool.getByteBuffer());
+  }
+
+  /**
+   * @see org.wayfair.wiff.core.ByteBufferPool#getByteBuffer(int)
+   */
+  @Override
+  public WiffByteBuffer getByteBuffer(int length) {
+    return lease(pool.getByteBuffer(length));
+  }
+
+  /**
+   * @see org.wayfair.wiff.core.ByteBufferPool#pollByteBuffer(int)
+   */
+  @Override
+  public WiffByteBuffer pollByteBuffer(int length) {
+    return lease(pool.pollByteBuffer(length));
+  }
+
+  /**
+   * @see org.wayfair.wiff.core.ByteBufferPool#returnBuffer(org.wayfair.wiff.util.WiffByteBuffer)
+   */
+  @Override
+  public void returnBuffer(WiffByteBuffer buffer) {
+    leased.decrementAndGet();
+    Lease lease = leases.remove(buffer);
+    if (lease != null) {
+      synchronized (lease) {
+        lease.returned = true;
+        if (lease.flagged) {
+          leaked.decrementAndGet();
+          LOGGER.info("Leaked buffer returned after "
+              + (System.currentTimeMillis() - lease.acquired) + " ms");
+        }
+      }
+    }
+    pool.returnBuffer(buffer);
+  }
+
+  /**
+   * @see org.wayfair.wiff.core.ByteBufferPool#flush()
+   */
+  @Override
+  public void flush() {
+    pool.flush();
+  }
+
+  @Override
+  public int size() {
+    return pool.size();
+  }
+
+  @Override
+  public int available() {
+    return pool.available();
+  }
+
+  /**
+   * @return the buffers the pool holds
+   */
+  public int getLive() {
+    return pool.size();
+  }
+
+  /**
+   * @return the buffers handed out and not yet returned
+   */
+  public long getLeased() {
+    return leased.get();
+  }
+
+  /**
+   * @return the followed buffers held longer than the threshold and not yet
+   *         returned
+   */
+  public int getLeaked() {
+    return leaked.get();
+  }
+
+  /**
+   * @return the followed buffers ever held longer than the threshold
+   */
+  public long getFlagged() {
+    return flagged.get();
+  }
+
+  /**
+   * @return the live, leased and leaked counts, for the log
+   */
+  public String summary() {
+    return "live: " + getLive() + ", leased: " + getLeased() + ", leaked: "
+        + getLeaked() + " of 1 in " + sampleEvery + " followed ("
+        + getFlagged() + " ever)";
+  }
+
+  /**
+   * Logs the followed buffers that have just passed the threshold
+   *
+   * @param now
+   *          the current time, in milliseconds
+   */
+  void check(long now) {
+    for (Lease lease : leases.values()) {
+      if (lease.flagged || now - lease.acquired <= threshold) {
+        continue;
+      }
+      synchronized (lease) {
+        if (!lease.returned) {
+          lease.flagged = true;
+          leaked.incrementAndGet();
+          flagged.incrementAndGet();
+          LOGGER.warn("Buffer held for " + (now - lease.acquired)
+              + " ms, taken from the pool here:", lease.site);
+        }
+      }
+    }
+  }
+
+  private WiffByteBuffer lease(WiffByteBuffer buffer) {
+    if (buffer == null) {
+      return null;
+    }
+    leased.incrementAndGet();
+    if (ThreadLocalRandom.current().nextInt(sampleEvery) == 0) {
+      leases.put(buffer, new Lease());
+    }
+    return buffer;
+  }
+
+  /**
+   * A followed buffer: when and where it was taken from the pool
+   */
+  private static class Lease {
+    final long      acquired = System.currentTimeMillis();
+    final Throwable site     = new Throwable("Taken by "
+                                 + Thread.currentThread().getName());
+    volatile boolean flagged;
+    boolean          returned;
+  }
+}
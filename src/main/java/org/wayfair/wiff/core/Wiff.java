@@ -4,7 +4,9 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import org.wayfair.wiff.capture.LiveCapture.Backends;
 import org.wayfair.wiff.queue.*;
+import org.wayfair.wiff.queue.WiffQueue.Queues;
 import org.wayfair.wiff.processor.*;
 import org.wayfair.wiff.processor.WiffProcessor.Processors;
 import org.wayfair.wiff.service.*;
@@ -16,8 +18,12 @@ import org.wayfair.wiff.parser.Parser.Parsers;
 import org.wayfair.wiff.consumer.*;
 import org.wayfair.wiff.consumer.WiffConsumer.Consumers;
 
+import org.wayfair.wiff.util.FlowSampler;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
 import org.wayfair.wiff.util.WiffByteBuffer;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 
@@ -31,9 +37,15 @@ abstract public class Wiff {
   private static Thread                  captureThread;
   private static WiffProcessor           processor;
   private static WiffService<?, ?>[]     services;
+  private static WiffService<?, ?>[][]   pipelineServices;
+  private static int                     pipelines  = 1;
+  private static boolean                 runToCompletion;
   private static WiffConsumer<?>[]       consumers;
   private static Thread[]                consumerThreads;
   public static ByteBufferPool           pool;
+  private static FlowSampler             sampler;
+
+  private static Policies                overloadPolicy;
 
   private static Logger                  LOGGER;
   private static Level                   log_level  = Level.INFO;
@@ -98,6 +110,8 @@ abstract public class Wiff {
    */
   private static void initializeCapture() {
     String captureSource = properties.getString("capture_source", "0");
+    overloadPolicy = Policies.valueOf(properties.getString("overload_policy",
+        "Block"));
 
     // See if the capture source is a processor
     boolean isProcessor = properties.contains("wiff.processor." + captureSource
@@ -105,31 +119,134 @@ abstract public class Wiff {
 
     if (isProcessor) {
       // Create incoming packet queue
-      queue = new WiffLinkedBlockingQueue<byte[]>();
+      queue = createQueue(properties.getInt("queue_capacity", 0),
+          overloadPolicy, new WiffSpillingQueue.BytesCodec(), null, 0);
 
       // create processor
       processor = createProcessor(captureSource, queue);
     } else {
+      runToCompletion = properties.getBoolean("run_to_completion", false);
 
       // Create ByteBuffer pool
       float poolSize = properties.getFloat("pool_size", 512);
       int bufferCapacity = properties.getInt("buffer_capacity", 65535);
 
-      Double numBuffers = Math.pow(2, 20) / bufferCapacity * poolSize;
-      pool = new ByteBufferPool(numBuffers.intValue(), bufferCapacity);
+      if (runToCompletion) {
+        // Packets are processed where they are captured, never copied
+        pool = new ByteBufferPool(0, 0);
+      } else if (properties.getBoolean("pool_arena", false)) {
+        // Pack packets into slabs rather than a buffer each
+        int slabSize = properties.getInt("arena_slab_size", 1024 * 1024);
+        Double numSlabs = Math.pow(2, 20) / slabSize * poolSize;
+        pool = new ArenaByteBufferPool(numSlabs.intValue(), slabSize,
+            bufferCapacity);
+      } else if (properties.getBoolean("pool_offheap", false)) {
+        // Keep packets outside the heap, in buffers of a few sizes
+        String[] classes = properties.getString("pool_size_classes",
+            "128,2048,9216,65536").split(",");
+        int[] sizes = new int[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+          sizes[i] = Integer.parseInt(classes[i].trim());
+        }
+        Double poolBytes = Math.pow(2, 20) * poolSize;
+        pool = new SizeClassByteBufferPool(poolBytes.longValue(), sizes,
+            bufferCapacity);
+      } else {
+        Double numBuffers = Math.pow(2, 20) / bufferCapacity * poolSize;
+        pool = new ByteBufferPool(numBuffers.intValue(), bufferCapacity);
+      }
+
+      // Follow a sample of buffers to find those never returned
+      float leakSampleRate = properties.getFloat("pool_leak_sample_rate", 0);
+      if (leakSampleRate > 0 && !runToCompletion) {
+        pool = new TrackingByteBufferPool(pool, leakSampleRate,
+            properties.getInt("pool_leak_threshold", 60) * 1000L);
+      }
 
-      // Create incoming packet queue
-      queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+      // Create incoming packet queue, bounded by the pool
+      int numConsumers = properties.getInt("consumer_count", 1);
+      pipelines = runToCompletion ? 1 : Math.max(1,
+          properties.getInt("pipelines", 1));
+      if (pipelines > 1) {
+        // A consumer, services and reporters of its own for each pipeline
+        numConsumers = pipelines;
+      }
+      // A spilling queue holds at most half the pool's buffers in memory
+      int inMemory = pool.size() / 2;
+      int capacity = properties.getInt("queue_capacity", 0);
+
+      /*
+       * A queue cannot give the buffer of a packet it drops back to the pool,
+       * so the capture drops the oldest packet when the pool runs dry instead
+       */
+      Policies queuePolicy = overloadPolicy;
+      if (queuePolicy == Policies.DropOldest) {
+        queuePolicy = Policies.DropNewest;
+      }
+      if ((pipelines > 1 || properties.getBoolean("consumer_affinity", false))
+          && numConsumers > 1) {
+        // A queue per consumer, every packet of a connection to the same one
+        WiffQueue<WiffByteBuffer>[] lanes = new WiffQueue[numConsumers];
+        for (int i = 0; i < numConsumers; i++) {
+          lanes[i] = createQueue(capacity > 0 ? Math.max(1, capacity
+              / numConsumers) : 0, queuePolicy,
+              new WiffSpillingQueue.BufferCodec(pool), "lane-" + i,
+              Math.max(1, inMemory / numConsumers));
+        }
+        queue = new FlowAffinityQueue(lanes);
+      } else {
+        queue = createQueue(capacity, queuePolicy,
+            new WiffSpillingQueue.BufferCodec(pool), null, Math.max(1,
+                inMemory));
+      }
 
       // Create capture object
       String tcpFilter = properties.getString("tcpdump_filter");
-      capture = new WiffCapture(captureSource, queue, pool, tcpFilter);
+      int fileReaders = properties.getInt("capture_file_readers", 1);
+      boolean tail = properties.getBoolean("capture_tail", false);
+
+      // Filters for individual capture devices override tcpdump_filter
+      HashMap<String, String> deviceFilters = new HashMap<String, String>();
+      for (String device : captureSource.split(",")) {
+        String key = "tcpdump_filter." + device.trim();
+        if (properties.contains(key)) {
+          deviceFilters.put(device.trim(), properties.getString(key));
+        }
+      }
+      Backends backend = Backends.valueOf(properties.getString(
+          "capture_backend", "JNetPcap"));
+      int batchSize = properties.getInt("capture_batch_size", -1);
+      int fanout = properties.getInt("capture_fanout", 1);
+      capture = new WiffCapture(captureSource, queue, pool, tcpFilter,
+          deviceFilters, backend, batchSize, fanout, fileReaders, tail);
+
+      // Sample traffic by connection
+      float sampleRate = properties.getFloat("sample_rate", 1);
+      if (properties.getBoolean("sample_adaptive", false)) {
+        float minRate = properties.getFloat("sample_rate_min", 0.01f);
+        int queueLimit = properties.getInt("sample_queue_limit", 100000);
+        sampler = new FlowSampler(sampleRate, Math.min(minRate, sampleRate),
+            queue, queueLimit);
+      } else if (sampleRate < 1) {
+        sampler = new FlowSampler(sampleRate);
+      }
+      capture.setSampler(sampler);
+      capture.setOverloadPolicy(overloadPolicy,
+          properties.getInt("overload_shed_time", 30) * 1000L);
     }
 
     // Initialize services
     String servicesNames = properties.getString("wiff.services");
     if (servicesNames != null) {
-      createServices(servicesNames.split(","));
+      pipelineServices = new WiffService[pipelines][];
+      for (int i = 0; i < pipelines; i++) {
+        pipelineServices[i] = createServices(servicesNames.split(","));
+      }
+      services = pipelineServices[0];
+    }
+    if (runToCompletion && capture != null) {
+      // No queue or consumers, the capture threads run the services
+      capture.setServices(services);
     }
 
     // Start capture
@@ -142,7 +259,11 @@ abstract public class Wiff {
     }
 
     // Create consumers
-    int numConsumers = properties.getInt("consumer_count", 1);
+    int numConsumers = pipelines > 1 ? pipelines : properties.getInt(
+        "consumer_count", 1);
+    if (runToCompletion && capture != null) {
+      numConsumers = 0;
+    }
     consumers = new WiffConsumer[numConsumers];
     consumerThreads = new Thread[numConsumers];
 
@@ -155,7 +276,16 @@ abstract public class Wiff {
           break;
         case PacketConsumer:
         default:
-          consumer = new PacketConsumer(queue, pool);
+          if (pipelines > 1) {
+            consumer = new PacketConsumer(
+                ((FlowAffinityQueue) queue).getLane(i), pool,
+                pipelineServices != null ? pipelineServices[i] : null);
+          } else if (queue instanceof FlowAffinityQueue) {
+            consumer = new PacketConsumer(
+                ((FlowAffinityQueue) queue).getLane(i), pool);
+          } else {
+            consumer = new PacketConsumer(queue, pool);
+          }
           break;
       }
       consumers[i] = consumer;
@@ -168,6 +298,73 @@ abstract public class Wiff {
     }
   }
 
+  /**
+   * Creates a queue of the type named by queue_type
+   * 
+   * @param capacity
+   *          the most elements the queue holds, 0 for no limit. A ring is
+   *          always bounded, by queue_ring_capacity if no capacity is given.
+   *          A spilling queue holds this many in memory, or
+   *          spill_memory_capacity if no capacity is given, or limit if
+   *          neither is.
+   * @param policy
+   *          what to do when an element is added to a full queue
+   * @param codec
+   *          writes the elements to disk for a spilling queue
+   * @param name
+   *          the name of one of several queues, to keep their spilled
+   *          elements apart, or null
+   * @param limit
+   *          the most elements a spilling queue may hold in memory, 0 for no
+   *          limit. Pooled buffers are only spilled once the queue holds this
+   *          many, so it must be below the number of buffers in the pool.
+   * @return a queue object
+   */
+  private static <T> WiffQueue<T> createQueue(int capacity, Policies policy,
+      WiffSpillingQueue.Codec<T> codec, String name, int limit) {
+    String queueType = properties.getString("queue_type",
+        "WiffLinkedBlockingQueue");
+    switch (Queues.valueOf(queueType)) {
+      case WiffRingQueue:
+        if (capacity <= 0) {
+          capacity = properties.getInt("queue_ring_capacity", 65536);
+        }
+        return new WiffRingQueue<T>(capacity, policy,
+            WiffRingQueue.WaitStrategies.valueOf(properties.getString(
+                "queue_wait_strategy", "Park")));
+      case WiffSpillingQueue:
+        if (capacity <= 0) {
+          capacity = properties.getInt("spill_memory_capacity", 0);
+        }
+        if (limit > 0 && capacity > limit) {
+          LOGGER.warn("A spilling queue cannot hold " + capacity
+              + " packets in memory with a pool of " + pool.size()
+              + " buffers, holding " + limit);
+        }
+        if (limit > 0 && (capacity <= 0 || capacity > limit)) {
+          capacity = limit;
+        } else if (capacity <= 0) {
+          capacity = 10000;
+        }
+        File directory = new File(properties.getString("spill_directory",
+            "spill"));
+        if (name != null) {
+          directory = new File(directory, name);
+        }
+        try {
+          return new WiffSpillingQueue<T>(capacity, codec, directory,
+              properties.getInt("spill_segment_size", 64) << 20,
+              properties.getInt("spill_max_size", 0) * (1L << 20), policy);
+        } catch (IOException e) {
+          LOGGER.error("Cannot spill to " + directory + ", not spilling", e);
+          return new WiffLinkedBlockingQueue<T>(capacity, policy);
+        }
+      case WiffLinkedBlockingQueue:
+      default:
+        return new WiffLinkedBlockingQueue<T>(capacity, policy);
+    }
+  }
+
   /**
    * Creates a processor according to the config file
    * 
@@ -205,13 +402,15 @@ abstract public class Wiff {
   }
 
   /**
-   * Instantiates a set of services as defined in the configuration
+   * Instantiates a set of services, and their reporters and parsers, as
+   * defined in the configuration
    * 
    * @param serviceNames
    *          the set of names of services to create
+   * @return the services
    */
-  private static void createServices(String[] serviceNames) {
-    services = new WiffService[serviceNames.length];
+  private static WiffService<?, ?>[] createServices(String[] serviceNames) {
+    WiffService<?, ?>[] services = new WiffService[serviceNames.length];
 
     int index = 0;
     for (String serviceName : serviceNames) {
@@ -233,7 +432,13 @@ abstract public class Wiff {
       switch (Services.valueOf(serviceType)) {
         case WiffStitch:
           int cacheTime = properties.getInt(serivcePrefix + "cachetime", 1);
-          services[index] = new WiffStitch(cacheTime, reporter);
+          WiffStitch stitch = new WiffStitch(cacheTime, reporter);
+          stitch.setGapBudget(properties.getInt(serivcePrefix + "gap_bytes", 0),
+              properties.getInt(serivcePrefix + "gap_time", 0));
+          if (queue instanceof FlowAffinityQueue) {
+            stitch.setFlowAffinity(true);
+          }
+          services[index] = stitch;
           break;
         case ParseBytes:
           services[index] = new ParseBytes(reporter);
@@ -247,6 +452,7 @@ abstract public class Wiff {
 
       LOGGER.info("Service " + serviceName + " has been started.");
     }
+    return services;
   }
 
   /**
@@ -291,6 +497,13 @@ abstract public class Wiff {
       default:
         break;
     }
+    if (reporter != null) {
+      // With run to completion, reports are made by the capture threads
+      reporter.setInline(runToCompletion);
+      reporter.setCapacity(
+          properties.getInt(reporterPrefix + "queue_capacity",
+              properties.getInt("reporter_queue_capacity", 0)), overloadPolicy);
+    }
     return reporter;
   }
 
@@ -341,6 +554,15 @@ abstract public class Wiff {
     return services;
   }
 
+  /**
+   * Returns the sampler deciding which connections are captured
+   * 
+   * @return the sampler, null if every connection is captured
+   */
+  public static FlowSampler getSampler() {
+    return sampler;
+  }
+
   public static int getSSLPort() {
     int port = 443;
     if (properties != null) {
@@ -379,6 +601,23 @@ abstract public class Wiff {
           if (capture != null) {
             LOGGER.info("Stopping capture...");
             capture.stop();
+            if (runToCompletion) {
+              // let the capture threads finish the packets they hold
+              captureThread.join();
+            }
+            if (sampler != null) {
+              LOGGER.info(sampler.getDropped() + " packets sampled out");
+            }
+            LOGGER.info("Dropped under overload: " + Overload.summary());
+            if (pool instanceof TrackingByteBufferPool) {
+              LOGGER.info("Pool buffers "
+                  + ((TrackingByteBufferPool) pool).summary());
+            }
+            for (String device : capture.getCaptureInterfaces()) {
+              LOGGER.info(device + ": " + capture.getCapturedPackets(device)
+                  + " packets captured, " + capture.getDroppedPackets(device)
+                  + " dropped");
+            }
             LOGGER.info("done.");
           }
 
@@ -397,15 +636,20 @@ abstract public class Wiff {
 
           // Stop the services. Each service is responsible for shutting down
           // its reporters.
-          if (services != null) {
+          if (pipelineServices != null) {
             LOGGER.info("Stopping services...");
-            for (WiffService<?, ?> service : services) {
-              service.stop();
+            for (WiffService<?, ?>[] pipeline : pipelineServices) {
+              for (WiffService<?, ?> service : pipeline) {
+                service.stop();
+              }
             }
             LOGGER.info("done.");
           }
 
           // clean up the queue
+          if (queue instanceof WiffSpillingQueue) {
+            LOGGER.info("Queue " + ((WiffSpillingQueue<?>) queue).summary());
+          }
           LOGGER.info("Destroying the queue...");
           queue.teardown();
           LOGGER.info("done.");
@@ -2,33 +2,64 @@ package org.wayfair.wiff.core;
 
 import org.apache.log4j.Logger;
 import org.jnetpcap.*;
+import org.wayfair.wiff.capture.CaptureBackend;
+import org.wayfair.wiff.capture.CaptureBackend.Device;
+import org.wayfair.wiff.capture.LiveCapture;
+import org.wayfair.wiff.capture.LiveCapture.Backends;
+import org.wayfair.wiff.capture.LiveCapture.PacketHandler;
 import org.wayfair.wiff.queue.WiffQueue;
 import org.wayfair.wiff.queue.WiffQueue.WiffQueueAdditionException;
+import org.wayfair.wiff.service.WiffService;
+import org.wayfair.wiff.util.FlowHash;
+import org.wayfair.wiff.util.FlowSampler;
+import org.wayfair.wiff.util.FlowShedder;
+import org.wayfair.wiff.util.LinkLayer;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+import org.wayfair.wiff.util.PacketFilter;
+import org.wayfair.wiff.util.PcapFileReader;
+import org.wayfair.wiff.util.PcapReader;
+import org.wayfair.wiff.util.PcapStreamReader;
+import org.wayfair.wiff.util.ReadAheadInputStream;
 import org.wayfair.wiff.util.WiffByteBuffer;
+import org.wayfair.wiff.util.WiffPacket;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 import static java.nio.file.StandardWatchEventKinds.*;
 
 public class WiffCapture implements Runnable {
-  private static Pcap               pcap;
-
   // Will be filled with NICs
-  private List<PcapIf>              captureDevices;
-
-  private ByteBufferHandler<String> handler;
+  private List<Device>              captureDevices;
 
-  // For any error msgs
-  private StringBuilder             errbuf;
+  // The interfaces being captured, each on its own thread
+  private List<CaptureInterface>    interfaces = new ArrayList<CaptureInterface>();
 
   // Capture all packets, no trucation
   private final int                 snaplen = 64 * 1024;
@@ -38,17 +69,60 @@ public class WiffCapture implements Runnable {
   // 10 seconds in millis
   private final int                 timeout = 10 * 1000;
 
+  // Kernel capture buffer of each interface
+  private final int                 bufferSize = 128 * 1024 * 1024;
+
+  // Library used to capture from network interfaces
+  private CaptureBackend            backend;
+
+  // Most packets handled per dispatch, -1 for all that are ready
+  private final int                 batchSize;
+
+  // Number of capture handles sharing each network interface
+  private final int                 fanout;
+
   private final boolean             offline;
   private final boolean             streamMode;
 
-  private boolean                   running = false;
+  private volatile boolean          running = false;
   private String                    tcpFilter;
-  private float                     totalCount;
+  private PacketFilter              packetFilter;
+  private FlowSampler               sampler;
+  private Policies                  overloadPolicy = Policies.Block;
+  private FlowShedder               shedder;
+  private AtomicLong                totalCount = new AtomicLong();
+  private int                       maxPacket;
+
+  // Number of capture files from a directory open at once
+  private int                       fileReaders;
+
+  // Read the capture file that is still being written to
+  private boolean                   tail;
+
+  // How long to wait for more data at the end of a tailed file
+  private final int                 tailInterval = 100;
+
+  // Run to completion on a folder: threads running the services over the
+  // packets of the capture files, each for a share of the connections
+  private PacketWorker[]            workers;
+
+  // Capture files handed to the readers that have not been finished
+  private Set<File>                 inFlight   = Collections
+                                                   .newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  // Whether capture files in the folder wait to be handed to the reader, and
+  // whether none does and none is being read; both guarded by inFlight
+  private boolean                   waiting    = true;
+  private boolean                   idle;
 
   private String                    captureSoure;
   private WiffQueue<WiffByteBuffer> queue;
   private ByteBufferPool            pool;
 
+  // Run to completion: packets go through these services on the capture thread
+  private WiffService<WiffPacket, ?>[] services;
+  private ThreadLocal<WiffPacket>      packets;
+
   private final Logger              LOGGER  = Logger.getLogger(this.getClass());
 
   /**
@@ -75,14 +149,85 @@ public class WiffCapture implements Runnable {
   public WiffCapture(String captureSource,
       final WiffQueue<WiffByteBuffer> queue, final ByteBufferPool pool,
       String tcpFilter) {
+    this(captureSource, queue, pool, tcpFilter, 1, false);
+  }
 
+  /**
+   * Creates a capture object that pulls packets from the specified capture
+   * source and pushes them onto the queue
+   * 
+   * @param captureSource
+   *          a string containing the name of the capture device, it's index in
+   *          the available capture device list, a capture file or a directory
+   *          of capture files
+   * @param queue
+   *          the queue onto which this object places captured packets
+   * @param pool
+   *          the pool from which packet buffers are taken
+   * @param tcpFilter
+   *          an optional tcpdump filter
+   * @param fileReaders
+   *          the number of capture files open at once when the capture source
+   *          is a directory, read in order while the others are decompressed
+   * @param tail
+   *          when the capture source is a directory, whether to read the
+   *          newest capture file while it is still being written to
+   */
+  public WiffCapture(String captureSource,
+      final WiffQueue<WiffByteBuffer> queue, final ByteBufferPool pool,
+      String tcpFilter, int fileReaders, boolean tail) {
+    this(captureSource, queue, pool, tcpFilter, null, Backends.JNetPcap, -1, 1,
+        fileReaders, tail);
+  }
+
+  /**
+   * Creates a capture object that pulls packets from the specified capture
+   * source and pushes them onto the queue
+   * 
+   * @param captureSource
+   *          a string containing the name of the capture device, it's index in
+   *          the available capture device list, a comma separated list of
+   *          capture devices, a capture file or a directory of capture files
+   * @param queue
+   *          the queue onto which this object places captured packets
+   * @param pool
+   *          the pool from which packet buffers are taken
+   * @param tcpFilter
+   *          an optional tcpdump filter
+   * @param deviceFilters
+   *          optional tcpdump filters for individual capture devices, keyed by
+   *          the device as it is given in the capture source. These replace
+   *          tcpFilter for their device.
+   * @param backend
+   *          the library used to capture from network interfaces
+   * @param batchSize
+   *          the most packets taken from a network interface at once, -1 to
+   *          take every packet that is ready
+   * @param fanout
+   *          the number of capture handles, each with its own thread, that
+   *          share each network interface by flow
+   * @param fileReaders
+   *          the number of capture files open at once when the capture source
+   *          is a directory, read in order while the others are decompressed
+   * @param tail
+   *          when the capture source is a directory, whether to read the
+   *          newest capture file while it is still being written to
+   */
+  public WiffCapture(String captureSource,
+      final WiffQueue<WiffByteBuffer> queue, final ByteBufferPool pool,
+      String tcpFilter, Map<String, String> deviceFilters, Backends backend,
+      int batchSize, int fanout, int fileReaders, boolean tail) {
+
+    this.batchSize = batchSize == 0 ? -1 : batchSize;
+    this.fanout = Math.max(1, fanout);
+    this.fileReaders = Math.max(1, fileReaders);
+    this.tail = tail;
     this.tcpFilter = tcpFilter;
     this.captureSoure = captureSource;
     this.queue = queue;
     this.pool = pool;
 
-    errbuf = new StringBuilder();
-    captureDevices = new ArrayList<PcapIf>();
+    captureDevices = new ArrayList<Device>();
 
     File source = new File(captureSource);
     if (source.exists()) {
@@ -93,110 +238,402 @@ public class WiffCapture implements Runnable {
       streamMode = true;
     }
 
-    if (offline) {
-      // Create capture object
-      LOGGER.info("Opening offline capture from file: " + captureSource);
-      pcap = Pcap.openOffline(captureSource, errbuf);
-    } else if (streamMode) {
+    if (!streamMode) {
+      // Capture files are read in Java, so the filter is evaluated in Java too
+      if (tcpFilter != null && !tcpFilter.isEmpty()) {
+        try {
+          LOGGER.info("Setting capture file filter: " + tcpFilter);
+          packetFilter = new PacketFilter(tcpFilter);
+        } catch (IllegalArgumentException e) {
+          // reading the files unfiltered would pass traffic the filter excludes
+          LOGGER.error("Could not compile capture file filter: "
+              + e.getMessage() + ". Exiting...");
+          System.exit(1);
+        }
+      }
+    } else {
+      try {
+        this.backend = backend.load();
+      } catch (IOException e) {
+        LOGGER.error(e.getMessage() + ". Exiting...");
+        System.exit(1);
+      }
+
       // Load and display all available capture devices
       getCaptureDevices();
       displayCaptureDevices();
 
-      // Get the requested capture device
-      PcapIf device = null;
-      try {
-        // read capture source as index into the capture device array
-        device = captureDevices.get(Integer.parseInt(captureSource));
-      } catch (NumberFormatException e) {
-        // if the capture source is not numeric, then try to match on the name
-        for (PcapIf d : captureDevices) {
-          if (d.getName().equals(captureSource)) {
-            device = d;
-            break;
+      // Open a handle on each requested capture device
+      for (String name : captureSource.split(",")) {
+        name = name.trim();
+        if (name.isEmpty()) {
+          continue;
+        }
+
+        Device device = findCaptureDevice(name);
+        if (device == null) {
+          LOGGER.error("Could not open specified capture device (" + name
+              + "). Exiting...");
+          System.exit(1);
+        }
+        for (CaptureInterface i : interfaces) {
+          if (i.name.equals(device.getName())) {
+            LOGGER.error("Capture device " + device.getName()
+                + " is listed more than once. Exiting...");
+            System.exit(1);
           }
         }
-      }
 
-      if (device != null) {
-        LOGGER.info("Using: " + device.getName());
+        String filter = tcpFilter;
+        if (deviceFilters != null && deviceFilters.containsKey(name)) {
+          filter = deviceFilters.get(name);
+        }
 
-        // Create capture object
-        if (Pcap.isPcap100Loaded()) {
-          /*
-           * http://stackoverflow.com/questions/7763321/libpcap-to-capture-10-gbps
-           * -nic pretty nice article on speeding up libpcap captures
-           */
-          LOGGER.info("Pcap API 1.0.0 or above is loaded.");
-          pcap = Pcap.create(device.getName(), errbuf);
-          pcap.setSnaplen(snaplen);
-          pcap.setPromisc(flags);
-          pcap.setTimeout(timeout);
-
-          pcap.setDirection(Pcap.Direction.INOUT);
-          pcap.setBufferSize(128 * 1024 * 1024);
-          pcap.activate();
-        } else {
-          pcap = Pcap.openLive(device.getName(), snaplen, flags, timeout,
-              errbuf);
+        LOGGER.info("Using: " + device.getName());
+        try {
+          for (int share = 0; share < this.fanout; share++) {
+            LiveCapture capture = openLiveCapture(device.getName());
+            interfaces.add(new CaptureInterface(capture, fanoutFilter(filter,
+                this.fanout, share, capture.getLinkType()), share));
+          }
+        } catch (IOException e) {
+          LOGGER.error("Error while opening capture source " + name + ": "
+              + e.getMessage() + ". Exiting...");
+          System.exit(1);
         }
-      } else {
-        LOGGER.error("Could not open specified capture device (" + captureSource
+      }
+      if (interfaces.isEmpty()) {
+        LOGGER.error("No capture device given (" + captureSource
             + "). Exiting...");
         System.exit(1);
       }
     }
+  }
+
+  /**
+   * Finds a capture device by its index in the capture device list or by its
+   * name
+   * 
+   * @param source
+   *          the index or name of the device
+   * @return the device, or null if there is no such device
+   */
+  private Device findCaptureDevice(String source) {
+    try {
+      // read capture source as index into the capture device array
+      int index = Integer.parseInt(source);
+      return index >= 0 && index < captureDevices.size() ? captureDevices
+          .get(index) : null;
+    } catch (NumberFormatException e) {
+      // if the capture source is not numeric, then try to match on the name
+      for (Device d : captureDevices) {
+        if (d.getName().equals(source)) {
+          return d;
+        }
+      }
+    }
+    return null;
+  }
 
-    handler = new ByteBufferHandler<String>() {
-      // float received, dropped;
-      // PcapStat stats;
-      int            max_packet = 0;
-      WiffByteBuffer b;
+  /**
+   * Restricts a filter to one share of the connections on an interface. The
+   * share is picked from the sum of the IP addresses, which is the same in both
+   * directions and for every fragment, so each connection is captured by a
+   * single handle. IPv4 and IPv6 are split, and on Ethernet so are they behind
+   * one VLAN tag. Anything else, such as ARP or stacked VLAN tags, goes to the
+   * first share.
+   * 
+   * The kernel runs the filter before a packet is copied to a handle's ring,
+   * so each handle only receives its own share of the traffic, but every
+   * handle's filter is run on every packet: the cost of filtering a packet
+   * grows with the number of handles.
+   * 
+   * @param filter
+   *          the tcpdump filter, may be null or empty
+   * @param fanout
+   *          the number of handles sharing the interface
+   * @param share
+   *          the share of the connections to capture
+   * @param linkType
+   *          the link-layer header type of the interface
+   * @return the filter for the share
+   */
+  static String fanoutFilter(String filter, int fanout, int share,
+      int linkType) {
+    if (fanout == 1) {
+      return filter;
+    }
 
-      public void nextPacket(PcapHeader arg0, ByteBuffer buffer, String arg2) {
-        try {
-          if (buffer.capacity() > max_packet) {
-            max_packet = buffer.capacity();
-            LOGGER.debug("Largest Packet Size: " + max_packet + " bytes");
-          }
+    String ipv4 = "(ip and (ip[12:4] + ip[16:4]) % " + fanout + " = " + share
+        + ")";
+    StringBuilder ipv6 = new StringBuilder("(ip6 and (ip6[8:4]");
+    for (int word = 12; word < 40; word += 4) {
+      ipv6.append(" + ip6[").append(word).append(":4]");
+    }
+    ipv6.append(") % ").append(fanout).append(" = ").append(share).append(")");
 
-          b = pool.getByteBuffer();
-          b.put(buffer);
-          b.flip();
-          queue.add(b);
+    String partition = ipv4 + " or " + ipv6;
+    if (linkType != LinkLayer.ETHERNET) {
+      // libpcap only knows VLAN tags on Ethernet
+      if (share == 0) {
+        partition += " or not (ip or ip6)";
+      }
+      partition = "(" + partition + ")";
+    } else {
+      String tagged = partition;
+      if (share == 0) {
+        // a vlan keyword here would move the offsets of what follows it
+        partition += " or not (ip or ip6 or ether proto 0x8100)";
+        tagged += " or not (ip or ip6)";
+      }
+      // vlan moves every offset after it, so the tagged clause comes last
+      partition = "(" + partition + " or (vlan and (" + tagged + ")))";
+    }
+    if (filter == null || filter.trim().isEmpty()) {
+      return partition;
+    }
+    return "(" + filter + ") and " + partition;
+  }
 
-        } catch (WiffQueueAdditionException e) {
-          LOGGER.error("", e);
+  /**
+   * Opens a live capture handle on a network interface
+   * 
+   * @param device
+   *          the name of the network interface
+   * @return the capture handle
+   * @throws IOException
+   *           if the interface could not be opened
+   */
+  private LiveCapture openLiveCapture(String device) throws IOException {
+    return backend.open(device, snaplen, flags, timeout, bufferSize);
+  }
+
+  /**
+   * Copies a packet into a buffer from the pool and places it on the queue
+   * 
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the packet's capture
+   * @param timestamp
+   *          the time the packet was captured, in microseconds since the
+   *          epoch
+   */
+  private void enqueue(ByteBuffer packet, int linkType, long timestamp) {
+    int hash = 0;
+    if (sampler != null || shedder != null || workers != null) {
+      hash = FlowHash.hash(packet, linkType);
+    }
+    if (sampler != null && !sampler.sample(packet, linkType, hash)) {
+      return;
+    }
+    if (shedder != null && shedder.isShed(hash)) {
+      Overload.drop(Reasons.FlowShed);
+      return;
+    }
+
+    if (packet.remaining() > maxPacket) {
+      maxPacket = packet.remaining();
+      LOGGER.debug("Largest Packet Size: " + maxPacket + " bytes");
+    }
+
+    if (services != null) {
+      if (workers != null) {
+        // every packet of a connection goes to the same worker, in order
+        workers[FlowHash.partition(hash, workers.length)].add(packet, linkType,
+            timestamp);
+      } else {
+        process(packet, linkType, timestamp);
+      }
+      totalCount.incrementAndGet();
+      return;
+    }
+
+    WiffByteBuffer b = getByteBuffer(packet.remaining(), hash);
+    if (b != null) {
+      b.put(packet);
+      b.flip();
+      b.setLinkType(linkType);
+      b.setTimestamp(timestamp);
+      if (!add(b)) {
+        pool.returnBuffer(b);
+      }
+    }
+    totalCount.incrementAndGet();
+  }
+
+  /**
+   * Passes a packet through the services on this thread, in place. The
+   * services copy what they keep, so the packet is neither copied into the
+   * pool nor queued. Decoding reads the capture's buffer without moving it.
+   * 
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the packet's capture
+   * @param timestamp
+   *          the time the packet was captured, in microseconds since the
+   *          epoch
+   */
+  private void process(ByteBuffer packet, int linkType, long timestamp) {
+    WiffPacket p = packets.get();
+    p.setPacket(packet, linkType, timestamp);
+    for (WiffService<WiffPacket, ?> service : services) {
+      try {
+        service.processData(p);
+      } catch (Exception e) {
+        LOGGER.error("", e);
+      }
+    }
+  }
+
+  /**
+   * Places a buffer on the queue
+   * 
+   * @return false if the queue did not take the buffer, which is still the
+   *         caller's to return to the pool
+   */
+  private boolean add(WiffByteBuffer b) {
+    try {
+      return queue.add(b);
+    } catch (WiffQueueAdditionException e) {
+      LOGGER.error("", e);
+      return false;
+    }
+  }
+
+  /**
+   * Takes a buffer from the pool, applying the overload policy if the pool
+   * has none free
+   * 
+   * @param length
+   *          the length of the packet
+   * @param hash
+   *          the flow hash of the packet
+   * @return a buffer for the packet, null if the packet is dropped
+   */
+  private WiffByteBuffer getByteBuffer(int length, int hash) {
+    WiffByteBuffer b;
+    switch (overloadPolicy) {
+      case DropNewest:
+        b = pool.pollByteBuffer(length);
+        if (b == null) {
+          Overload.drop(Reasons.PoolFull);
         }
-        ++totalCount;
+        return b;
+      case DropOldest:
+        b = pool.pollByteBuffer(length);
+        if (b == null) {
+          // at most one waiting packet is dropped for each arriving packet
+          WiffByteBuffer oldest = queue.poll();
+          if (oldest != null && oldest.getID() < 0) {
+            // a kill signal is not the pool's, it goes back on the queue
+            if (!add(oldest)) {
+              LOGGER.error("Kill signal could not be put back on the queue");
+            }
+          } else if (oldest != null) {
+            Overload.drop(Reasons.PoolOldest);
+            pool.returnBuffer(oldest);
+            b = pool.pollByteBuffer(length);
+          }
+          if (b == null) {
+            // nothing freed a buffer for it, so the packet is dropped instead
+            Overload.drop(Reasons.PoolOldestMissed);
+          }
+        }
+        return b;
+      case ShedFlows:
+        b = pool.pollByteBuffer(length);
+        if (b == null) {
+          Overload.drop(Reasons.PoolFull);
+          shedder.shed(hash);
+        }
+        return b;
+      case Block:
+      default:
+        return pool.getByteBuffer(length);
+    }
+  }
+
+  /**
+   * Sets what happens to captured packets when the pool has no free buffer.
+   * Blocking leaves packets to be dropped by the kernel.
+   * 
+   * @param policy
+   *          the overload policy
+   * @param shedTime
+   *          when shedding flows, how long the rest of a connection's packets
+   *          are dropped for after one is dropped, in milliseconds
+   */
+  public void setOverloadPolicy(Policies policy, long shedTime) {
+    overloadPolicy = policy;
+    shedder = policy == Policies.ShedFlows ? new FlowShedder(shedTime) : null;
+  }
+
+  /**
+   * Runs every packet to completion on the thread that captured it: the
+   * packet is decoded and passed through the services there, instead of being
+   * copied into the pool and placed on the queue for a consumer.
+   * 
+   * @param services
+   *          the services to pass packets through, null to queue packets
+   */
+  @SuppressWarnings("unchecked")
+  public void setServices(WiffService<?, ?>[] services) {
+    this.services = (WiffService<WiffPacket, ?>[]) services;
+    packets = new ThreadLocal<WiffPacket>() {
+      protected WiffPacket initialValue() {
+        return new WiffPacket();
       }
     };
   }
 
+  /**
+   * Samples the captured traffic by connection. Packets of connections that
+   * are not sampled are dropped before they are copied into the pool.
+   * 
+   * @param sampler
+   *          the sampler deciding which connections are kept, null to keep
+   *          every packet
+   */
+  public void setSampler(FlowSampler sampler) {
+    this.sampler = sampler;
+  }
+
   /**
    * Captures network packets
    */
   public void run() {
     running = true;
-    if (offline || streamMode) {
-      if (pcap != null) {
-        LOGGER.info("Pcap major version: " + pcap.majorVersion());
-        LOGGER.info("Pcap minor version: " + pcap.minorVersion());
-        LOGGER.info("Pcap library version: " + Pcap.libVersion());
-
-        // Set tcpdump filter
-        if (tcpFilter != null && !tcpFilter.isEmpty()) {
-          try {
-            LOGGER.info("Setting tcpdump filter: " + tcpFilter);
-            setStreamFilter(pcap, tcpFilter);
-          } catch (IllegalArgumentException e) {
-            LOGGER.error("", e);
-          }
+    if (offline) {
+      LOGGER.info("Reading offline capture from file: " + captureSoure);
+      readCaptureFile(new CaptureFile(new File(captureSoure), true));
+      pool.flush();
+    } else if (streamMode) {
+      LOGGER.info("Pcap library version: " + backend.getVersion());
+
+      /*
+       * Every interface after the first gets a thread of its own, the first is
+       * captured on this thread
+       */
+      List<Thread> threads = new ArrayList<Thread>();
+      for (CaptureInterface i : interfaces.subList(1, interfaces.size())) {
+        Thread thread = new Thread(i);
+        thread.setName("CaptureThread-" + i.name
+            + (fanout > 1 ? "-" + i.share : ""));
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+        threads.add(thread);
+      }
+      interfaces.get(0).run();
+
+      try {
+        for (Thread thread : threads) {
+          thread.join();
         }
-      } else {
-        LOGGER.error("Error while opening capture source: " + errbuf);
-        System.exit(1);
+      } catch (InterruptedException e) {
+        LOGGER.info("", e);
       }
-      pcap.loop(Pcap.LOOP_INFINITE, handler, "");
     } else {
       try {
         watchDirectory(captureSoure);
@@ -211,8 +648,8 @@ public class WiffCapture implements Runnable {
    */
   public void stop() {
     running = false;
-    if (offline || streamMode) {
-      pcap.breakloop();
+    for (CaptureInterface i : interfaces) {
+      i.capture.breakLoop();
     }
   }
 
@@ -220,9 +657,14 @@ public class WiffCapture implements Runnable {
    * Loads all available capture devices
    */
   private void getCaptureDevices() {
-    int r = Pcap.findAllDevs(captureDevices, errbuf);
-    if (r == Pcap.ERROR || captureDevices.isEmpty()) {
-      LOGGER.error("Can't read list of devices, error is %s" + errbuf);
+    String error = "none found";
+    try {
+      captureDevices = backend.findDevices();
+    } catch (IOException e) {
+      error = e.getMessage();
+    }
+    if (captureDevices.isEmpty()) {
+      LOGGER.error("Can't read list of devices, error is " + error);
       System.exit(1);
     }
   }
@@ -235,7 +677,7 @@ public class WiffCapture implements Runnable {
 
     int i = 0;
     String description;
-    for (PcapIf device : captureDevices) {
+    for (Device device : captureDevices) {
       description = (i++) + ": " + device.getName() + " ";
       description += (device.getDescription() != null) ? device
           .getDescription() : "No description available";
@@ -244,39 +686,114 @@ public class WiffCapture implements Runnable {
   }
 
   /**
-   * Sets a tcpdump filter on the incoming packets
+   * @return the number of packets dropped on all capture devices
    */
+  public long getDroppedPackets() {
+    // capture files are read in full, nothing is dropped
+    long dropped = 0;
+    for (CaptureInterface i : interfaces) {
+      dropped += i.getDropped();
+    }
+    return dropped;
+  }
+
   /**
-   * @param pcap
-   *          the pcap object on which the filter will be applied
-   * @param packet_filter
-   *          the TCP filter
-   * @throws IllegalArgumentException
+   * @param device
+   *          the name of a capture device
+   * @return the number of packets dropped on the device, or 0 if it is not
+   *         being captured
    */
-  private void setStreamFilter(Pcap pcap, String packet_filter)
-      throws IllegalArgumentException {
-    PcapBpfProgram program = new PcapBpfProgram();
-    int optimize = 0; // 0 = false
-    int netmask = 0xFFFFFF00; // 255.255.255.0
+  public long getDroppedPackets(String device) {
+    long dropped = 0;
+    for (CaptureInterface i : interfaces) {
+      if (i.name.equals(device)) {
+        dropped += i.getDropped();
+      }
+    }
+    return dropped;
+  }
 
-    if (pcap.compile(program, packet_filter, optimize, netmask) != Pcap.OK) {
-      throw new IllegalArgumentException(
-          "Problem compiling tcpdump filter with error" + pcap.getErr());
+  /**
+   * @param device
+   *          the name of a capture device
+   * @return the number of packets captured on the device, or 0 if it is not
+   *         being captured
+   */
+  public long getCapturedPackets(String device) {
+    long captured = 0;
+    for (CaptureInterface i : interfaces) {
+      if (i.name.equals(device)) {
+        captured += i.count.get();
+      }
     }
+    return captured;
+  }
 
-    if (pcap.setFilter(program) != Pcap.OK) {
-      throw new IllegalArgumentException(
-          "Problem setting tcpdump filter with error" + pcap.getErr());
+  /**
+   * @return the names of the capture devices being captured, empty when the
+   *         capture source is a capture file or directory
+   */
+  public List<String> getCaptureInterfaces() {
+    List<String> names = new ArrayList<String>();
+    for (CaptureInterface i : interfaces) {
+      if (!names.contains(i.name)) {
+        names.add(i.name);
+      }
     }
+    return names;
   }
 
   /**
-   * @return the number of dropped packets
+   * A capture handle on a device, with its own filter. Packets from every
+   * handle are placed on the same queue.
    */
-  public long getDroppedPackets() {
-    PcapStat stats = new PcapStat();
-    pcap.stats(stats);
-    return stats.getDrop();
+  private class CaptureInterface implements Runnable, PacketHandler {
+    final String      name;
+    final LiveCapture capture;
+    final String      filter;
+    final int         share;
+    final AtomicLong  count = new AtomicLong();
+    final int         linkType;
+
+    CaptureInterface(LiveCapture capture, String filter, int share) {
+      this.name = capture.getName();
+      this.capture = capture;
+      this.linkType = capture.getLinkType();
+      this.filter = filter;
+      this.share = share;
+    }
+
+    public void run() {
+      // Set tcpdump filter
+      if (filter != null && !filter.isEmpty()) {
+        try {
+          LOGGER.info("Setting tcpdump filter on " + name + ": " + filter);
+          capture.setFilter(filter);
+        } catch (IllegalArgumentException e) {
+          LOGGER.error("", e);
+        }
+      }
+
+      while (running) {
+        int n = capture.dispatch(batchSize, this);
+        if (n < 0) {
+          break;
+        } else if (n == 0) {
+          // nothing arrived, keep no free buffers from the consumers
+          pool.flush();
+        }
+      }
+      pool.flush();
+    }
+
+    public void nextPacket(ByteBuffer packet, long timestamp) {
+      count.incrementAndGet();
+      enqueue(packet, linkType, timestamp);
+    }
+
+    long getDropped() {
+      return capture.getDroppedPackets();
+    }
   }
 
   /**
@@ -284,6 +801,17 @@ public class WiffCapture implements Runnable {
    * are present all but the two most recent files are read. We leave two files
    * in case they are still being written to.
    * 
+   * In tail mode every file is read, including the one still being written to.
+   * Records are read from it as they are appended; once a newer file appears
+   * the writer has moved on, so the file is read to its end and deleted.
+   * 
+   * Files are read one after the other, oldest first, by a single reader
+   * thread, which deletes each once it is done. Packets are queued in the
+   * order they were captured, so a connection that spans two files is not
+   * interleaved and a newer file never moves the packet clock on while an
+   * older one is still being read. The next few files are opened while one is
+   * read, so gzipped files are decompressed ahead on threads of their own.
+   * 
    * @param directory
    *          the path to the directory to watch
    * @throws IOException
@@ -296,103 +824,527 @@ public class WiffCapture implements Runnable {
     WatchService watcher = FileSystems.getDefault().newWatchService();
     path.register(watcher, ENTRY_CREATE);
 
-    File file = null;
-    File[] files = null;
-    File dir = path.toFile();
-    File oldestCapture = null;
-
-    FileFilter filter = new FileFilter() {
-      public boolean accept(File file) {
-        return file.isFile() && file.getName().matches(".*\\.p?cap.*");
+    // Run to completion, the packets are processed on workers by connection
+    List<Thread> workerThreads = new ArrayList<Thread>();
+    if (services != null && fileReaders > 1) {
+      workers = new PacketWorker[fileReaders];
+      for (int i = 0; i < workers.length; i++) {
+        workers[i] = new PacketWorker();
+        Thread thread = new Thread(workers[i]);
+        thread.setName("CaptureFileWorker-" + i);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+        workerThreads.add(thread);
       }
-    };
+    }
+
+    // Start the reader, which takes files from a queue in order
+    LinkedBlockingQueue<CaptureFile> files = new LinkedBlockingQueue<CaptureFile>();
+    Thread readerThread = new Thread(new FileReader(files));
+    readerThread.setName("CaptureFileReader");
+    readerThread.setPriority(Thread.MAX_PRIORITY);
+    readerThread.start();
+
+    // Capture files waiting to be read, oldest first
+    ArrayDeque<File> pending = new ArrayDeque<File>();
+    listCaptureFiles(path.toFile(), pending);
 
-    int numFiles = dir.listFiles(filter).length;
-    int captureIndex = -1;
-    long start = 0, timeModified;
-    WatchKey watchKey = null;
+    // In tail mode, the file still being written to
+    CaptureFile active = null;
+
+    int keep = tail ? 0 : 2;
     while (running) {
-      if (numFiles < 3) {
-        watchKey = watcher.take();
-        numFiles += watchKey.pollEvents().size();
-      }
+      // Hand every file but the two most recent (unless tailing) to the reader
+      synchronized (inFlight) {
+        while (pending.size() > keep) {
+          CaptureFile file = new CaptureFile(pending.poll(), !tail);
+          if (active != null) {
+            // a newer file means the writer has closed the previous one
+            active.closed = true;
+          }
+          active = tail ? file : null;
 
-      // get files
-      files = dir.listFiles(new FileFilter() {
-        public boolean accept(File file) {
-          return file.isFile();
+          inFlight.add(file.file);
+          files.put(file);
         }
-      });
-
-      // process batch
-      for (int i = 0; i < numFiles - 2; i++) {
-        // get oldest file
-        timeModified = Long.MAX_VALUE;
-        for (int j = 0; j < files.length; j++) {
-          file = files[j];
-          if (file != null && file.lastModified() < timeModified) {
-            timeModified = file.lastModified();
-            oldestCapture = file;
-            captureIndex = j;
+        waiting = false;
+        updateIdle();
+      }
+
+      WatchKey watchKey = watcher.poll(1, TimeUnit.SECONDS);
+      if (watchKey == null) {
+        continue;
+      }
+      List<WatchEvent<?>> events = watchKey.pollEvents();
+      synchronized (inFlight) {
+        // the reader is not idle while a new file waits to be handed over
+        waiting = true;
+        updateIdle();
+      }
+      for (WatchEvent<?> event : events) {
+        if (event.kind() == OVERFLOW) {
+          // Events were lost, fall back to listing the directory
+          pending.clear();
+          listCaptureFiles(path.toFile(), pending);
+        } else {
+          /*
+           * Files are created by rotation, so each new file is the most recent
+           * one and the queue stays in order of creation
+           */
+          File file = path.resolve((Path) event.context()).toFile();
+          if (isCaptureFile(file)) {
+            pending.add(file);
           }
         }
-        if (oldestCapture != null) {
-          if (LOGGER.isDebugEnabled()) {
-            start = System.currentTimeMillis();
+      }
+      watchKey.reset();
+    }
+
+    readerThread.join();
+    for (Thread thread : workerThreads) {
+      thread.join();
+    }
+    watcher.close();
+  }
+
+  /**
+   * Marks whether the reader is idle, with no capture file waiting to be read
+   * or being read, and wakes those waiting for it. Called holding inFlight.
+   */
+  private void updateIdle() {
+    idle = !waiting && inFlight.isEmpty();
+    if (idle) {
+      inFlight.notifyAll();
+    }
+  }
+
+  /**
+   * Waits until every capture file in the folder has been read and deleted,
+   * except those left for the writer
+   * 
+   * @param timeout
+   *          the most milliseconds to wait
+   * @return true if the reader is idle, false if the wait timed out
+   * @throws InterruptedException
+   */
+  boolean awaitIdle(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (inFlight) {
+      while (!idle) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          return false;
+        }
+        inFlight.wait(left);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Adds the capture files in a directory to a queue, oldest first
+   * 
+   * @param dir
+   *          the directory to list
+   * @param pending
+   *          the queue to which the files are added
+   */
+  private void listCaptureFiles(File dir, ArrayDeque<File> pending) {
+    File[] files = dir.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return isCaptureFile(file);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+
+    // look up each modification time once rather than on every comparison
+    final HashMap<File, Long> modified = new HashMap<File, Long>();
+    for (File file : files) {
+      modified.put(file, file.lastModified());
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        int result = modified.get(a).compareTo(modified.get(b));
+        return result != 0 ? result : a.compareTo(b);
+      }
+    });
+
+    for (File file : files) {
+      if (!inFlight.contains(file)) {
+        pending.add(file);
+      }
+    }
+  }
+
+  private static boolean isCaptureFile(File file) {
+    return file.isFile() && file.getName().matches(".*\\.p?cap.*");
+  }
+
+  /**
+   * Reads every packet in a pcap or pcapng file that passes the filter and
+   * places it on the queue. If the file is not closed, the end of the file is
+   * polled for new records until it is.
+   * 
+   * @param capture
+   *          the capture file to read
+   * @return true if the file was read, false if it could not be read
+   */
+  private boolean readCaptureFile(CaptureFile capture) {
+    PcapReader reader = capture.reader;
+    try {
+      if (reader == null) {
+        reader = openCaptureFile(capture.file, !capture.closed);
+      }
+
+      // compressed files are only read once, they cannot be tailed
+      boolean mapped = reader instanceof PcapFileReader;
+
+      while (running) {
+        // anything written before the file was closed is read by this pass
+        boolean closed = capture.closed || !mapped;
+
+        ByteBuffer packet;
+        while (running && (packet = reader.nextPacket()) != null) {
+          // a pcapng file may hold packets of several link types
+          int linkType = reader.getLinkType();
+          if (packetFilter == null || packetFilter.accept(packet, linkType)) {
+            enqueue(packet, linkType, reader.getTimestamp());
           }
-          // Open cature file
-          pcap = Pcap.openOffline(oldestCapture.getPath(), errbuf);
+        }
+        // the workers get what was read before this waits for more
+        flushWorkers();
 
-          /*
-           * Start the processing the file. The loop should break automatically
-           * when complete
-           */
-          if (pcap != null) {
-            // set tcp filter
-            if (tcpFilter != null && !tcpFilter.isEmpty()) {
-              setStreamFilter(pcap, tcpFilter);
-            }
+        if (closed) {
+          break;
+        }
+        if (reader.getOffset() > capture.file.length()) {
+          LOGGER.warn(capture.file.getName()
+              + " was truncated while it was being read");
+          break;
+        }
+        Thread.sleep(tailInterval);
+      }
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("", e);
+      return false;
+    } catch (RuntimeException e) {
+      // a bad file must not take its reader down with it
+      LOGGER.error("", e);
+      return false;
+    } catch (InterruptedException e) {
+      LOGGER.info("", e);
+      return true;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          LOGGER.error("", e);
+        }
+      }
+    }
+  }
 
-            pcap.loop(Pcap.LOOP_INFINITE, handler, "");
-            pcap.close();
+  /**
+   * Hands the packets copied for the workers over to them
+   */
+  private void flushWorkers() {
+    if (workers != null) {
+      for (PacketWorker worker : workers) {
+        worker.flush();
+      }
+    }
+  }
 
-            /*
-             * Delete file so that we don't fill the disk with data that has
-             * already been processed.
-             */
-            if (LOGGER.isDebugEnabled()) {
-              LOGGER.debug("Deleting file " + oldestCapture.getName());
-            }
-            if (!oldestCapture.delete() && running) {
-              LOGGER
-                  .error("Could not delete capture file after processing. Exiting...");
-              System.exit(1);
-            }
-            oldestCapture = null;
-            files[captureIndex] = null;
-            captureIndex = -1;
-            pcap = null;
-
-            if (LOGGER.isDebugEnabled()) {
-              LOGGER.debug("Total received from this file: " + totalCount);
-              LOGGER.debug("Queue size: " + queue.size());
-              LOGGER.debug("Time to process: "
-                  + ((System.currentTimeMillis() - start)) + " milliseconds\n");
-              totalCount = 0;
-              LOGGER.debug("Pool size: " + pool.available());
+  /**
+   * Opens a reader for a capture file. Uncompressed files are memory mapped.
+   * Gzipped files are decompressed on a separate thread as they are read, so
+   * decompression overlaps with the dispatch of packets. When files are opened
+   * ahead of the one being read, each may decompress up to 64 MB ahead of it.
+   * 
+   * @param file
+   *          the capture file to open
+   * @param tail
+   *          true if the file may still be written to
+   * @return a reader for the file's packets
+   * @throws IOException
+   */
+  private PcapReader openCaptureFile(File file, boolean tail)
+      throws IOException {
+    String name = file.getName();
+    if (name.endsWith(".gz")) {
+      InputStream in = new GZIPInputStream(new FileInputStream(file),
+          64 * 1024);
+      int chunks = fileReaders > 1 ? 1024 : 16;
+      return new PcapStreamReader(new ReadAheadInputStream(in,
+          "CaptureDecompressor-" + name, 64 * 1024, chunks), file.getPath());
+    } else if (name.endsWith(".zst")) {
+      throw new IOException("zstd compressed capture files are not supported: "
+          + file);
+    }
+    return new PcapFileReader(file, tail);
+  }
+
+  /**
+   * Deletes a capture file that has been read
+   * 
+   * @param file
+   *          the capture file to delete
+   * @return true if the file was deleted
+   */
+  private boolean deleteCaptureFile(File file) {
+    if (file.delete()) {
+      return true;
+    }
+    /*
+     * Some platforms (Windows) refuse to delete a file while a mapping of it is
+     * still alive. Mappings are only released once they are garbage collected.
+     */
+    System.gc();
+    return file.delete();
+  }
+
+  /**
+   * A capture file that has been handed to the file reader
+   */
+  private static class CaptureFile {
+    final File       file;
+
+    // false while the file may still be written to
+    volatile boolean closed;
+
+    // set once the file has been opened ahead of its turn
+    PcapReader       reader;
+
+    CaptureFile(File file, boolean closed) {
+      this.file = file;
+      this.closed = closed;
+    }
+  }
+
+  /**
+   * Reads capture files taken from a queue one at a time, in order, and
+   * deletes each file once it has been read. While a file is read, up to
+   * fileReaders - 1 of the files after it are opened, so they are decompressed
+   * at the same time; their packets are only queued once it is their turn.
+   */
+  private class FileReader implements Runnable {
+    final LinkedBlockingQueue<CaptureFile> files;
+
+    // Files opened ahead, oldest first
+    final ArrayDeque<CaptureFile>          opened = new ArrayDeque<CaptureFile>();
+
+    FileReader(LinkedBlockingQueue<CaptureFile> files) {
+      this.files = files;
+    }
+
+    public void run() {
+      try {
+        while (running) {
+          if (opened.isEmpty()) {
+            CaptureFile capture = files.poll(1, TimeUnit.SECONDS);
+            if (capture == null) {
+              continue;
             }
-          } else {
-            LOGGER.error("Unable to read " + oldestCapture.getPath()
-                + ". Retrying...");
+            opened.add(capture);
+          }
+
+          // open the files after this one so they decompress while it is read
+          CaptureFile next;
+          while (opened.size() < fileReaders && (next = files.poll()) != null) {
+            open(next);
+            opened.add(next);
+          }
+
+          CaptureFile capture = opened.poll();
+          long start = System.currentTimeMillis();
+          finish(capture, readCaptureFile(capture), start);
+          synchronized (inFlight) {
+            updateIdle();
           }
+          // the next file may be a while coming
+          pool.flush();
         }
-        if (!running) {
-          break;
+      } catch (InterruptedException e) {
+        LOGGER.info("", e);
+      } finally {
+        for (CaptureFile capture : opened) {
+          close(capture);
+        }
+        pool.flush();
+        if (workers != null) {
+          for (PacketWorker worker : workers) {
+            worker.stop();
+          }
+        }
+      }
+    }
+
+    /**
+     * Opens a file ahead of its turn. If it cannot be opened it is opened again
+     * when its turn comes, and the error is reported then.
+     */
+    private void open(CaptureFile capture) {
+      try {
+        capture.reader = openCaptureFile(capture.file, !capture.closed);
+      } catch (IOException e) {
+        capture.reader = null;
+      }
+    }
+
+    /**
+     * Closes a file opened ahead that will not be read
+     */
+    private void close(CaptureFile capture) {
+      synchronized (inFlight) {
+        inFlight.remove(capture.file);
+        updateIdle();
+      }
+      if (capture.reader != null) {
+        try {
+          capture.reader.close();
+        } catch (IOException e) {
+          LOGGER.error("", e);
+        }
+      }
+    }
+
+    /**
+     * Deletes a file that has been read
+     */
+    private void finish(CaptureFile capture, boolean read, long start) {
+      inFlight.remove(capture.file);
+      if (!read) {
+        LOGGER.error("Unable to read " + capture.file.getPath()
+            + ". Leaving it in place.");
+        return;
+      }
+      if (!running) {
+        // reading was cut short, leave the file for the next run
+        return;
+      }
+
+      /*
+       * Delete file so that we don't fill the disk with data that has already
+       * been processed.
+       */
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Deleting file " + capture.file.getName());
+      }
+      if (!deleteCaptureFile(capture.file)) {
+        LOGGER
+            .error("Could not delete capture file after processing. Exiting...");
+        System.exit(1);
+      }
+
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Total received: " + totalCount);
+        LOGGER.debug("Queue size: " + queue.size());
+        LOGGER.debug("Time to process: "
+            + ((System.currentTimeMillis() - start)) + " milliseconds\n");
+        LOGGER.debug("Pool size: " + pool.available());
+      }
+    }
+  }
+
+  /**
+   * Runs the services over the packets of a share of the connections in the
+   * capture files. The file reader copies each packet into a batch of the
+   * worker its connection hashes to, and hands the batch over when it is full
+   * or the reader reaches the end of what has been written. A connection's
+   * packets are processed in order, by one thread, while the files are still
+   * read one at a time.
+   */
+  private class PacketWorker implements Runnable {
+    // Most bytes in a batch, and batches per worker
+    static final int                      BATCH_SIZE = 1024 * 1024;
+    static final int                      BATCHES    = 4;
+
+    // Handed over after the last batch, to stop the worker
+    final ByteBuffer                      end        = ByteBuffer.allocate(0);
+
+    // Batches filled by the reader, and emptied ones for it to fill again
+    final BlockingQueue<ByteBuffer>       full       = new LinkedBlockingQueue<ByteBuffer>();
+    final BlockingQueue<ByteBuffer>       empty      = new LinkedBlockingQueue<ByteBuffer>();
+
+    // The batch the reader is filling, only touched by the reader
+    ByteBuffer                            batch;
+
+    PacketWorker() {
+      for (int i = 0; i < BATCHES; i++) {
+        empty.add(ByteBuffer.allocate(BATCH_SIZE));
+      }
+    }
+
+    /**
+     * Copies a packet into the batch being filled, waiting for an empty batch
+     * if the worker is behind. Called by the file reader.
+     */
+    void add(ByteBuffer packet, int linkType, long timestamp) {
+      try {
+        if (batch != null && batch.remaining() < 16 + packet.remaining()) {
+          batch.flip();
+          full.put(batch);
+          batch = null;
         }
+        if (batch == null) {
+          batch = empty.take();
+        }
+        batch.putInt(packet.remaining()).putInt(linkType).putLong(timestamp);
+        batch.put(packet);
+      } catch (InterruptedException e) {
+        // the reader is being stopped, the packet is dropped
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Hands the batch being filled over, if it holds any packet. Called by the
+     * file reader.
+     */
+    void flush() {
+      if (batch == null || batch.position() == 0) {
+        return;
+      }
+      try {
+        batch.flip();
+        full.put(batch);
+        batch = null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-      numFiles = 2;
-      if (watchKey != null) {
-        watchKey.reset();
+    }
+
+    /**
+     * Hands the last batch over and lets the worker finish. Called by the file
+     * reader.
+     */
+    void stop() {
+      flush();
+      full.add(end);
+    }
+
+    public void run() {
+      try {
+        ByteBuffer b;
+        while ((b = full.take()) != end) {
+          ByteBuffer packet = b.duplicate();
+          while (b.hasRemaining()) {
+            int length = b.getInt();
+            int linkType = b.getInt();
+            long timestamp = b.getLong();
+            packet.limit(b.position() + length).position(b.position());
+            process(packet, linkType, timestamp);
+            b.position(b.position() + length);
+          }
+          b.clear();
+          empty.put(b);
+        }
+      } catch (InterruptedException e) {
+        LOGGER.info("", e);
       }
     }
   }
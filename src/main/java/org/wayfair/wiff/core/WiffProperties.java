@@ -167,8 +167,12 @@ public class WiffProperties implements Serializable {
   }
 
   public float getFloat(String key, float defaultValue) {
+    String result = getString(key);
+    if (result == null) {
+      return defaultValue;
+    }
     try {
-      return Float.parseFloat(getString(key));
+      return Float.parseFloat(result);
     } catch (NumberFormatException e) {
       return defaultValue;
     }
@@ -3,15 +3,20 @@ package org.wayfair.wiff.parser;
 import static org.wayfair.wiff.util.ParseFunctions.*;
 
 import java.text.ParseException;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
 import org.apache.log4j.Logger;
+import org.wayfair.wiff.util.ByteRope;
 import org.wayfair.wiff.util.DateFormatter;
 import org.wayfair.wiff.util.DateParser;
 
-public class HTTPParser implements Parser<byte[], byte[]> {
+/**
+ * Transforms TCP streams of HTTP into elasticsearch Bulk API messages, one per
+ * request and response. Streams are read where they are held, and only the
+ * fields extracted are copied out.
+ */
+public class HTTPParser implements Parser<ByteRope, byte[]> {
   public static final String headerIdentifier = "HTTP/";
   public static final String lineEnding       = "\r\n";
   public static final String blankLine        = "\r\n\r\n";
@@ -51,8 +56,17 @@ public class HTTPParser implements Parser<byte[], byte[]> {
    *          the bytes of the the TCP stream
    */
   public byte[] parse(byte[] data) {
-    String stream = new String(data);
+    return parse(ByteRope.wrap(data));
+  }
 
+  /**
+   * Transforms a TCP stream into a message for elasticsearch using the Bulk API
+   * syntax.
+   * 
+   * @param stream
+   *          the bytes of the the TCP stream
+   */
+  public byte[] parse(ByteRope stream) {
     int requestStart = stream.lastIndexOf(lineEnding,
         stream.indexOf(headerIdentifier));
     int requestEnd, responseEnd, time;
@@ -75,8 +89,10 @@ public class HTTPParser implements Parser<byte[], byte[]> {
       requestEnd = stream.indexOf(blankLine, requestEnd);
       requestEnd = stream.indexOf(headerIdentifier, requestEnd);
       if (requestEnd < 0) {
-        LOGGER.debug("Could not parse stream:\n"
-            + stream.substring(requestStart));
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Could not parse stream:\n"
+              + stream.substring(requestStart));
+        }
         break;
       }
 
@@ -153,7 +169,7 @@ public class HTTPParser implements Parser<byte[], byte[]> {
    *          the Stringbuilder to which the parsed data will be appended
    * @return true if the parsing was successful, otherwise false.
    */
-  public boolean parseRequest(String stream, int start, int end,
+  public boolean parseRequest(ByteRope stream, int start, int end,
       boolean includeBody, StringBuilder dst) {
     // determine the start and end of the header
     int headerStart = stream.indexOf(headerIdentifier, start) - 1;
@@ -161,7 +177,9 @@ public class HTTPParser implements Parser<byte[], byte[]> {
 
     if (headerStart < 0 || headerEnd < 0 || headerStart > end
         || headerEnd > end) {
-      LOGGER.debug("Unable to parse request:\n" + stream);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Unable to parse request:\n" + stream);
+      }
       return false;
     }
 
@@ -263,7 +281,7 @@ public class HTTPParser implements Parser<byte[], byte[]> {
    *         will be returned if parsing fails.
    */
   @SuppressWarnings("deprecation")
-  public int parseResponse(String stream, int start, int end,
+  public int parseResponse(ByteRope stream, int start, int end,
       boolean includeBody, StringBuilder dst) {
 
     Date date = null;
@@ -278,7 +296,9 @@ public class HTTPParser implements Parser<byte[], byte[]> {
      * must have erred in stitching
      */
     if (start + 13 > respCodeEnd) {
-      LOGGER.debug("Unable to parse response:\n" + stream);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Unable to parse response:\n" + stream);
+      }
       return -1;
     }
 
@@ -354,15 +374,14 @@ public class HTTPParser implements Parser<byte[], byte[]> {
 
     if (includeBody) {
       if (headerEnd < end && contentLength > 0) {
-        String body = stream.substring(headerEnd + blankLine.length(), end);
-
+        int bodyStart = headerEnd + blankLine.length();
         if (isGzipped) {
-          byte[] bytes = body.getBytes();
-          bytes = Arrays.copyOfRange(bytes, bytes.length - contentLength,
-              bytes.length);
+          // the compressed bytes, as they are in the stream
+          byte[] bytes = stream.toByteArray(
+              Math.max(bodyStart, end - contentLength), end);
           appendKeyValue(dst, "body", decompress(bytes));
         } else {
-          appendKeyValue(dst, "body", escape(body));
+          appendKeyValue(dst, "body", escape(stream.substring(bodyStart, end)));
         }
       }
     }
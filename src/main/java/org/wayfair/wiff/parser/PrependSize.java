@@ -1,16 +1,10 @@
 package org.wayfair.wiff.parser;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import org.apache.log4j.Logger;
+import org.wayfair.wiff.util.ByteRope;
 
-public class PrependSize implements Parser<byte[], byte[]> {
-  private ByteArrayOutputStream message = new ByteArrayOutputStream(60000);
-  private ByteBuffer            buffer  = ByteBuffer.allocate(4);
-
-  protected final Logger        LOGGER  = Logger.getLogger(this.getClass());
+public class PrependSize implements Parser<ByteRope, byte[]> {
 
   /**
    * Prepends the length of the byte array to the given byte array
@@ -20,20 +14,22 @@ public class PrependSize implements Parser<byte[], byte[]> {
    * @return the given byte array with its own length prepended
    */
   public byte[] parse(byte[] data) {
-    // Get the size in byte form
-    int size = data.length;
-    buffer.putInt(size);
+    return parse(ByteRope.wrap(data));
+  }
 
-    // prepend the size to the beginning of the byte array
-    try {
-      message.write(buffer.array());
-      message.write(data);
-    } catch (IOException e) {
-      LOGGER.error("", e);
-    }
-    byte[] msg = message.toByteArray();
-    buffer.clear();
-    message.reset();
+  /**
+   * Prepends the length of a stream to the stream's bytes
+   * 
+   * @param data
+   *          the stream to which its own length will be prepended
+   * @return the stream's bytes with their length prepended, copied once
+   */
+  public byte[] parse(ByteRope data) {
+    // the size, then the bytes, in the one array
+    int size = data.length();
+    byte[] msg = new byte[size + 4];
+    ByteBuffer.wrap(msg).putInt(size);
+    data.copyTo(0, msg, 4, size);
     return msg;
   }
 }
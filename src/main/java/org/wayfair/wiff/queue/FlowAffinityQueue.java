@@ -0,0 +1,181 @@
+package org.wayfair.wiff.queue;
+
+import java.util.Collection;
+
+import org.wayfair.wiff.util.FlowHash;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+/**
+ * Spreads packets over one queue per consumer by connection, so every packet
+ * of a connection is handled by the same consumer, in the order captured.
+ * Consumers take packets from their own queue, a lane. Taking packets from
+ * this queue takes them from each lane in turn, for those that drain the queue
+ * as a whole, such as the pool dropping the oldest packet.
+ */
+public class FlowAffinityQueue implements WiffQueue<WiffByteBuffer> {
+  // How long remove waits before looking at the lanes again
+  private static final long                 WAIT_MILLIS = 1;
+
+  private final WiffQueue<WiffByteBuffer>[] lanes;
+
+  // The lane poll looks at first, so no lane is always emptied first
+  private int                               next;
+
+  /**
+   * @param lanes
+   *          a queue for each consumer
+   */
+  public FlowAffinityQueue(WiffQueue<WiffByteBuffer>[] lanes) {
+    this.lanes = lanes;
+  }
+
+  /**
+   * @param consumer
+   *          a consumer's index
+   * @return the queue the consumer takes packets from
+   */
+  public WiffQueue<WiffByteBuffer> getLane(int consumer) {
+    return lanes[consumer];
+  }
+
+  /**
+   * @return the number of lanes
+   */
+  public int getLanes() {
+    return lanes.length;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#add(java.lang.Object)
+   */
+  public boolean add(WiffByteBuffer element) throws WiffQueueAdditionException {
+    int hash = FlowHash.hash(element.asByteBuffer(), element.getLinkType());
+    return lanes[FlowHash.partition(hash, lanes.length)].add(element);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#addAll(java.util.Collection)
+   */
+  public int addAll(Collection<? extends WiffByteBuffer> elements)
+      throws WiffQueueAdditionException {
+    int added = 0;
+    for (WiffByteBuffer element : elements) {
+      if (add(element)) {
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Removes the oldest packet of the next lane that has one, waiting until
+   * one does
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#remove()
+   */
+  public WiffByteBuffer remove() throws WiffQueueRemovalException {
+    WiffByteBuffer element;
+    while ((element = next(true)) == null) {
+      // the lanes are not told of each other's packets, so look again
+      try {
+        Thread.sleep(WAIT_MILLIS);
+      } catch (InterruptedException e) {
+        throw new WiffQueueRemovalException(e.getMessage(), e);
+      }
+    }
+    return element;
+  }
+
+  /**
+   * Removes at least one packet, waiting for it, and then up to max from the
+   * lanes in turn
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#drainTo(java.util.Collection, int)
+   */
+  public int drainTo(Collection<? super WiffByteBuffer> elements, int max)
+      throws WiffQueueRemovalException {
+    elements.add(remove());
+    int removed = 1;
+    WiffByteBuffer element;
+    while (removed < max && (element = next(true)) != null) {
+      elements.add(element);
+      removed++;
+    }
+    return removed;
+  }
+
+  /**
+   * Removes the oldest packet of the next lane that has one. A consumer's kill
+   * signal is not taken: it is put back on the lane it came from, which alone
+   * its consumer reads, and the next lane is looked at.
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#poll()
+   */
+  public WiffByteBuffer poll() {
+    return next(false);
+  }
+
+  /**
+   * Removes the oldest element of the next lane that has one
+   * 
+   * @param signals
+   *          whether kill signals are taken, or left on their lanes
+   * @return the element, null if no lane has one
+   */
+  private synchronized WiffByteBuffer next(boolean signals) {
+    for (int i = 0; i < lanes.length; i++) {
+      WiffQueue<WiffByteBuffer> lane = lanes[next];
+      next = (next + 1) % lanes.length;
+      WiffByteBuffer element = lane.poll();
+      if (element == null) {
+        continue;
+      }
+      if (signals || element.getID() >= 0 || !putBack(lane, element)) {
+        return element;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Puts a kill signal back on its lane, which has room for it as it was
+   * just taken from it
+   * 
+   * @return false if the lane did not take it back
+   */
+  private boolean putBack(WiffQueue<WiffByteBuffer> lane, WiffByteBuffer signal) {
+    try {
+      return lane.add(signal);
+    } catch (WiffQueueAdditionException e) {
+      return false;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#size()
+   */
+  public int size() {
+    int size = 0;
+    for (WiffQueue<WiffByteBuffer> lane : lanes) {
+      size += lane.size();
+    }
+    return size;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#teardown()
+   */
+  public void teardown() {
+    for (WiffQueue<WiffByteBuffer> lane : lanes) {
+      lane.teardown();
+    }
+  }
+}
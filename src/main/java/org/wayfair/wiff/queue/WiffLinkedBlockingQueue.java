@@ -1,13 +1,34 @@
 package org.wayfair.wiff.queue;
 
+import java.util.Collection;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+
 public class WiffLinkedBlockingQueue<T> implements WiffQueue<T> {
 
   private LinkedBlockingQueue<T> queue;
+  private Policies               policy;
 
   public WiffLinkedBlockingQueue() {
-    this.queue = new LinkedBlockingQueue<T>();
+    this(0, Policies.Block);
+  }
+
+  /**
+   * Creates a bounded queue. Dropping the oldest element discards it, so a
+   * queue of pooled buffers should not drop the oldest.
+   * 
+   * @param capacity
+   *          the most elements the queue holds, 0 for no limit
+   * @param policy
+   *          what to do when an element is added to a full queue
+   */
+  public WiffLinkedBlockingQueue(int capacity, Policies policy) {
+    this.queue = capacity > 0 ? new LinkedBlockingQueue<T>(capacity)
+        : new LinkedBlockingQueue<T>();
+    this.policy = policy;
   }
 
   /*
@@ -17,15 +38,61 @@ public class WiffLinkedBlockingQueue<T> implements WiffQueue<T> {
    */
   public boolean add(T element) throws WiffQueueAdditionException {
     boolean success = false;
-    try {
-      queue.put(element);
-      success = true;
-    } catch (InterruptedException e) {
-      throw new WiffQueueAdditionException(e.getMessage(), e);
+    switch (policy) {
+      case DropOldest:
+        while (!(success = queue.offer(element))) {
+          if (queue.poll() != null) {
+            Overload.drop(Reasons.QueueOldest);
+          }
+        }
+        break;
+      case DropNewest:
+      case ShedFlows:
+        success = queue.offer(element);
+        if (!success) {
+          Overload.drop(Reasons.QueueFull);
+        }
+        break;
+      case Block:
+      default:
+        try {
+          queue.put(element);
+          success = true;
+        } catch (InterruptedException e) {
+          throw new WiffQueueAdditionException(e.getMessage(), e);
+        }
+        break;
     }
     return success;
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#addAll(java.util.Collection)
+   */
+  public int addAll(Collection<? extends T> elements)
+      throws WiffQueueAdditionException {
+    int added = 0;
+    for (T element : elements) {
+      if (add(element)) {
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#drainTo(java.util.Collection, int)
+   */
+  public int drainTo(Collection<? super T> elements, int max)
+      throws WiffQueueRemovalException {
+    elements.add(remove());
+    return 1 + queue.drainTo(elements, max - 1);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -39,6 +106,15 @@ public class WiffLinkedBlockingQueue<T> implements WiffQueue<T> {
     }
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.queue.WiffQueue#poll()
+   */
+  public T poll() {
+    return queue.poll();
+  }
+
   /*
    * (non-Javadoc)
    * 
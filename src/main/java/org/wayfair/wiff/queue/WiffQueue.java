@@ -1,7 +1,13 @@
 package org.wayfair.wiff.queue;
 
+import java.util.Collection;
+
 public interface WiffQueue<T> {
 
+  public enum Queues {
+    WiffLinkedBlockingQueue, WiffRingQueue, WiffSpillingQueue;
+  }
+
   /**
    * Places an element on the queue
    * 
@@ -12,6 +18,31 @@ public interface WiffQueue<T> {
    */
   public boolean add(T e) throws WiffQueueAdditionException;
 
+  /**
+   * Places several elements on the queue, in order
+   * 
+   * @param elements
+   *          the elements to be inserted
+   * @return the number of elements inserted
+   * @throws WiffQueueAdditionException
+   */
+  public int addAll(Collection<? extends T> elements)
+      throws WiffQueueAdditionException;
+
+  /**
+   * Waits for at least one element, then removes as many of the oldest
+   * elements as are available, up to a limit
+   * 
+   * @param elements
+   *          the collection the elements are added to, oldest first
+   * @param max
+   *          the most elements to remove
+   * @return the number of elements removed
+   * @throws WiffQueueRemovalException
+   */
+  public int drainTo(Collection<? super T> elements, int max)
+      throws WiffQueueRemovalException;
+
   /**
    * Returns the oldest value on the queue
    * 
@@ -20,6 +51,13 @@ public interface WiffQueue<T> {
    */
   public T remove() throws WiffQueueRemovalException;
 
+  /**
+   * Removes the oldest value on the queue without waiting for one
+   * 
+   * @return the queue's oldest element, null if the queue is empty
+   */
+  public T poll();
+
   /**
    * Returns the number of elements in the queue
    * 
@@ -0,0 +1,348 @@
+package org.wayfair.wiff.queue;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+
+/**
+ * A bounded queue held in a preallocated ring, for any number of threads
+ * adding and removing at once without locks.
+ *
+ * Elements are added at the tail and removed at the head, both ever-growing
+ * sequence numbers. Each slot of the ring has a sequence of its own that says
+ * whether it is free for the tail's current lap or holds an element for the
+ * head's. A thread claims a slot, or a run of slots for a batch, with a single
+ * compare-and-set of the tail or head, so nothing is allocated and no lock is
+ * taken to hand an element over.
+ *
+ * A thread that finds the queue empty, or full under the Block policy, waits
+ * as the wait strategy says.
+ */
+public class WiffRingQueue<T> implements WiffQueue<T> {
+  private final Object[]        ring;
+  private final AtomicLongArray sequences;
+  private final int             mask;
+
+  private final AtomicLong      tail = new AtomicLong();
+  private final AtomicLong      head = new AtomicLong();
+
+  private final Policies        policy;
+  private final WaitStrategies  waitStrategy;
+
+  public enum WaitStrategies {
+    /**
+     * Keep checking. Lowest latency, but a waiting thread uses a whole core.
+     */
+    Spin,
+
+    /**
+     * Let other threads run between checks
+     */
+    Yield,
+
+    /**
+     * Sleep between checks, for up to a millisecond as the wait grows longer
+     */
+    Park;
+
+    private static final long MAX_PARK = 1000000;
+
+    /**
+     * Waits once before the queue is checked again
+     *
+     * @param attempt
+     *          the number of times the thread has already waited
+     */
+    void idle(int attempt) {
+      switch (this) {
+        case Spin:
+          break;
+        case Yield:
+          Thread.yield();
+          break;
+        case Park:
+        default:
+          LockSupport.parkNanos(Math.min(MAX_PARK, 1000L << Math.min(attempt,
+              10)));
+          break;
+      }
+    }
+  }
+
+  /**
+   * @param capacity
+   *          the most elements the queue holds, rounded up to a power of two
+   * @param policy
+   *          what to do when an element is added to a full queue. Dropping the
+   *          oldest element discards it, so a queue of pooled buffers should
+   *          not drop the oldest.
+   * @param waitStrategy
+   *          how threads wait for an element or for room
+   */
+  public WiffRingQueue(int capacity, Policies policy,
+      WaitStrategies waitStrategy) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+
+    ring = new Object[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+    this.policy = policy;
+    this.waitStrategy = waitStrategy;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#add(java.lang.Object)
+   */
+  public boolean add(T element) throws WiffQueueAdditionException {
+    switch (policy) {
+      case DropOldest:
+        while (!offer(element)) {
+          if (poll() != null) {
+            Overload.drop(Reasons.QueueOldest);
+          }
+        }
+        return true;
+      case DropNewest:
+      case ShedFlows:
+        if (!offer(element)) {
+          Overload.drop(Reasons.QueueFull);
+          return false;
+        }
+        return true;
+      case Block:
+      default:
+        for (int attempt = 0; !offer(element); attempt++) {
+          if (Thread.interrupted()) {
+            throw new WiffQueueAdditionException("Interrupted");
+          }
+          waitStrategy.idle(attempt);
+        }
+        return true;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#addAll(java.util.Collection)
+   */
+  public int addAll(Collection<? extends T> elements)
+      throws WiffQueueAdditionException {
+    int added = 0;
+    int remaining = elements.size();
+    Iterator<? extends T> iterator = elements.iterator();
+    while (remaining > 0) {
+      int published = offer(iterator, remaining);
+      if (published == 0) {
+        // the queue is full, the policy decides for the next element
+        published = 1;
+        if (add(iterator.next())) {
+          added++;
+        }
+      } else {
+        added += published;
+      }
+      remaining -= published;
+    }
+    return added;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#remove()
+   */
+  public T remove() throws WiffQueueRemovalException {
+    T element;
+    for (int attempt = 0; (element = poll()) == null; attempt++) {
+      if (Thread.interrupted()) {
+        throw new WiffQueueRemovalException("Interrupted");
+      }
+      waitStrategy.idle(attempt);
+    }
+    return element;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#drainTo(java.util.Collection, int)
+   */
+  public int drainTo(Collection<? super T> elements, int max)
+      throws WiffQueueRemovalException {
+    int removed;
+    for (int attempt = 0; (removed = poll(elements, max)) == 0; attempt++) {
+      if (Thread.interrupted()) {
+        throw new WiffQueueRemovalException("Interrupted");
+      }
+      waitStrategy.idle(attempt);
+    }
+    return removed;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#poll()
+   */
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long position = head.get();
+    while (true) {
+      long available = sequences.get(index(position)) - (position + 1);
+      if (available == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = head.get();
+      } else if (available < 0) {
+        // the slot has not been filled yet
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+
+    int index = index(position);
+    T element = (T) ring[index];
+    ring[index] = null;
+    sequences.lazySet(index, position + ring.length);
+    return element;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#size()
+   */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(ring.length, size));
+  }
+
+  /**
+   * @return the most elements the queue holds
+   */
+  public int capacity() {
+    return ring.length;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#teardown()
+   */
+  public void teardown() {
+  }
+
+  private int index(long sequence) {
+    return (int) sequence & mask;
+  }
+
+  /**
+   * Adds an element if there is room, without waiting
+   */
+  private boolean offer(T element) {
+    long position = tail.get();
+    while (true) {
+      long free = sequences.get(index(position)) - position;
+      if (free == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (free < 0) {
+        // the slot still holds an element from the last lap
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+
+    int index = index(position);
+    ring[index] = element;
+    sequences.lazySet(index, position + 1);
+    return true;
+  }
+
+  /**
+   * Adds as many of the next elements as there is room for, claiming their
+   * slots at once
+   *
+   * @return the number of elements added
+   */
+  private int offer(Iterator<? extends T> elements, int count) {
+    long position;
+    int claimed;
+    do {
+      position = tail.get();
+      long room = ring.length - (position - head.get());
+      claimed = (int) Math.min(count, room);
+      if (claimed <= 0) {
+        return 0;
+      }
+    } while (!tail.compareAndSet(position, position + claimed));
+
+    /*
+     * The head has passed every claimed slot, but the threads that removed
+     * their last elements may not have released them yet.
+     */
+    for (long p = position; p < position + claimed; p++) {
+      int index = index(p);
+      while (sequences.get(index) != p) {
+        Thread.yield();
+      }
+      ring[index] = elements.next();
+      sequences.lazySet(index, p + 1);
+    }
+    return claimed;
+  }
+
+  /**
+   * Removes the run of filled slots at the head, up to a limit, claiming them
+   * at once
+   *
+   * @return the number of elements removed
+   */
+  @SuppressWarnings("unchecked")
+  private int poll(Collection<? super T> elements, int max) {
+    long position;
+    int claimed;
+    do {
+      position = head.get();
+      claimed = 0;
+      while (claimed < max
+          && sequences.get(index(position + claimed)) == position + claimed + 1) {
+        claimed++;
+      }
+      if (claimed == 0) {
+        return 0;
+      }
+    } while (!head.compareAndSet(position, position + claimed));
+
+    for (long p = position; p < position + claimed; p++) {
+      int index = index(p);
+      elements.add((T) ring[index]);
+      ring[index] = null;
+      sequences.lazySet(index, p + ring.length);
+    }
+    return claimed;
+  }
+}
@@ -0,0 +1,564 @@
+package org.wayfair.wiff.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+import org.wayfair.wiff.core.ByteBufferPool;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+/**
+ * A queue that holds a bounded number of elements in memory and writes any
+ * more to memory-mapped segment files on disk, so a burst is queued rather
+ * than dropped without the heap growing with it.
+ *
+ * Once the queue has started spilling, every new element goes to disk until
+ * the disk backlog has been read back, so elements always leave in the order
+ * they arrived. Elements are read back from disk once those in memory have
+ * been taken, and a segment file is deleted once it has been read.
+ *
+ * Elements are written and read back by a codec. A pooled buffer is copied to
+ * disk and returned to its pool at once, and read back into a buffer from the
+ * pool, so a burst does not hold pool buffers either. Elements the codec cannot
+ * spill, such as the consumers' kill pill, are always kept in memory, in their
+ * place among those on disk.
+ */
+public class WiffSpillingQueue<T> implements WiffQueue<T> {
+  // Marks the end of the records in a segment
+  private static final int     END_OF_SEGMENT = -1;
+
+  // How long to wait before trying again to read back an element
+  private static final long    RETRY_MILLIS   = 10;
+
+  private final ArrayDeque<T>  memory;
+  // Elements that may not be spilled, queued behind those on disk
+  private final ArrayDeque<Held<T>> held = new ArrayDeque<Held<T>>();
+  private final int            memoryCapacity;
+  private final Codec<T>       codec;
+  private final Policies       policy;
+
+  private final File           directory;
+  private final int            segmentSize;
+  private final long           maxSegments;
+
+  // Segments in the order they were written; the last is being written
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  private long                 nextSegment;
+
+  // Elements and bytes on disk
+  private long                 backlog;
+  private long                 backlogBytes;
+
+  private long                 spilled;
+  private long                 unspilled;
+  private long                 spillStart;
+  private long                 spillStartCount;
+
+  // The oldest element on disk could not be read back for want of room
+  private boolean              stalled;
+
+  private final Logger         LOGGER         = Logger.getLogger(this
+                                                  .getClass());
+
+  /**
+   * Writes elements to disk and reads them back
+   */
+  public interface Codec<T> {
+    /**
+     * @return false if the element must stay in memory
+     */
+    public boolean spillable(T element);
+
+    /**
+     * @return the number of bytes the element takes on disk
+     */
+    public int size(T element);
+
+    /**
+     * Writes an element, which is then released
+     */
+    public void write(T element, ByteBuffer out);
+
+    /**
+     * Reads back an element written by write. It must not wait for room, as
+     * it is called with the queue locked.
+     *
+     * @param in
+     *          the element's bytes, from its position to its limit
+     * @return the element, null if there is no room for it yet, in which case
+     *         it is left on disk and read again later
+     */
+    public T read(ByteBuffer in);
+
+    /**
+     * Releases an element that has been written or dropped
+     */
+    public void release(T element);
+  }
+
+  /**
+   * Spills byte arrays
+   */
+  public static class BytesCodec implements Codec<byte[]> {
+    public boolean spillable(byte[] element) {
+      return true;
+    }
+
+    public int size(byte[] element) {
+      return element.length;
+    }
+
+    public void write(byte[] element, ByteBuffer out) {
+      out.put(element);
+    }
+
+    public byte[] read(ByteBuffer in) {
+      byte[] element = new byte[in.remaining()];
+      in.get(element);
+      return element;
+    }
+
+    public void release(byte[] element) {
+    }
+  }
+
+  /**
+   * Spills pooled buffers, returning them to the pool once written and taking
+   * a buffer from it to read each back into
+   */
+  public static class BufferCodec implements Codec<WiffByteBuffer> {
+    private final ByteBufferPool pool;
+
+    /**
+     * @param pool
+     *          the pool the buffers come from
+     */
+    public BufferCodec(ByteBufferPool pool) {
+      this.pool = pool;
+    }
+
+    // buffers that are not from the pool, such as a kill pill, stay in memory
+    public boolean spillable(WiffByteBuffer element) {
+      return element.getID() >= 0;
+    }
+
+    // the packet's link type and timestamp are written before it
+    public int size(WiffByteBuffer element) {
+      return 12 + element.asByteBuffer().remaining();
+    }
+
+    public void write(WiffByteBuffer element, ByteBuffer out) {
+      out.putInt(element.getLinkType());
+      out.putLong(element.getTimestamp());
+      out.put(element.asByteBuffer().duplicate());
+    }
+
+    public WiffByteBuffer read(ByteBuffer in) {
+      int linkType = in.getInt();
+      long timestamp = in.getLong();
+      WiffByteBuffer buffer = pool.pollByteBuffer(in.remaining());
+      if (buffer != null) {
+        buffer.put(in);
+        buffer.flip();
+        buffer.setLinkType(linkType);
+        buffer.setTimestamp(timestamp);
+      }
+      return buffer;
+    }
+
+    public void release(WiffByteBuffer element) {
+      pool.returnBuffer(element);
+    }
+  }
+
+  /**
+   * @param memoryCapacity
+   *          the most elements held in memory
+   * @param codec
+   *          writes elements to disk and reads them back
+   * @param directory
+   *          where segment files are written. Segment files left there by an
+   *          earlier run are deleted.
+   * @param segmentSize
+   *          the size of each segment file in bytes, more than the largest
+   *          element
+   * @param maxSize
+   *          the most bytes of segment files on disk, 0 for no limit
+   * @param policy
+   *          what to do when an element is added while memory and disk are
+   *          full
+   * @throws IOException
+   *           if the directory cannot be created
+   */
+  public WiffSpillingQueue(int memoryCapacity, Codec<T> codec, File directory,
+      int segmentSize, long maxSize, Policies policy) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create spill directory " + directory);
+    }
+    File[] stale = directory.listFiles();
+    for (File file : stale == null ? new File[0] : stale) {
+      if (file.getName().endsWith(".seg") && !file.delete()) {
+        LOGGER.warn("Could not delete old segment " + file);
+      }
+    }
+
+    this.memoryCapacity = Math.max(1, memoryCapacity);
+    this.memory = new ArrayDeque<T>(this.memoryCapacity);
+    this.codec = codec;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSize > 0 ? Math.max(1, maxSize / segmentSize)
+        : Long.MAX_VALUE;
+    this.policy = policy;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#add(java.lang.Object)
+   */
+  public synchronized boolean add(T element) throws WiffQueueAdditionException {
+    int length = codec.size(element);
+    if (length + 8 > segmentSize) {
+      LOGGER.error("Element of " + length + " bytes is larger than a segment");
+      Overload.drop(Reasons.QueueFull);
+      return false;
+    }
+
+    while (!offer(element, length)) {
+      switch (policy) {
+        case DropOldest:
+          T oldest = take();
+          if (oldest == null || !codec.spillable(oldest)) {
+            // nothing can be read back to make room, or it may not be dropped
+            if (oldest != null) {
+              memory.addFirst(oldest);
+            }
+            Overload.drop(Reasons.QueueFull);
+            return false;
+          }
+          codec.release(oldest);
+          Overload.drop(Reasons.QueueOldest);
+          break;
+        case DropNewest:
+        case ShedFlows:
+          Overload.drop(Reasons.QueueFull);
+          return false;
+        case Block:
+        default:
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            throw new WiffQueueAdditionException(e.getMessage(), e);
+          }
+          break;
+      }
+    }
+    notifyAll();
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#addAll(java.util.Collection)
+   */
+  public synchronized int addAll(Collection<? extends T> elements)
+      throws WiffQueueAdditionException {
+    int added = 0;
+    for (T element : elements) {
+      if (add(element)) {
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#remove()
+   */
+  public synchronized T remove() throws WiffQueueRemovalException {
+    T element;
+    try {
+      while ((element = take()) == null) {
+        // no one is told when the room to read back an element frees up
+        wait(stalled ? RETRY_MILLIS : 0);
+      }
+    } catch (InterruptedException e) {
+      throw new WiffQueueRemovalException(e.getMessage(), e);
+    }
+    notifyAll();
+    return element;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#drainTo(java.util.Collection, int)
+   */
+  public synchronized int drainTo(Collection<? super T> elements, int max)
+      throws WiffQueueRemovalException {
+    elements.add(remove());
+    int removed = 1;
+    T element;
+    while (removed < max && (element = take()) != null) {
+      elements.add(element);
+      removed++;
+    }
+    return removed;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#poll()
+   */
+  public synchronized T poll() {
+    T element = take();
+    if (element != null) {
+      notifyAll();
+    }
+    return element;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#size()
+   */
+  public synchronized int size() {
+    return (int) Math.min(Integer.MAX_VALUE, memory.size() + held.size()
+        + backlog);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.queue.WiffQueue#teardown()
+   */
+  public synchronized void teardown() {
+    while (!segments.isEmpty()) {
+      segments.removeFirst().delete();
+    }
+    backlog = 0;
+    backlogBytes = 0;
+  }
+
+  /**
+   * @return the number of elements written to disk
+   */
+  public synchronized long getSpilled() {
+    return spilled;
+  }
+
+  /**
+   * @return the number of elements read back from disk
+   */
+  public synchronized long getUnspilled() {
+    return unspilled;
+  }
+
+  /**
+   * @return the number of elements on disk
+   */
+  public synchronized long getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * @return the number of bytes of elements on disk
+   */
+  public synchronized long getBacklogBytes() {
+    return backlogBytes;
+  }
+
+  /**
+   * @return the spill counts and disk backlog, for the log
+   */
+  public synchronized String summary() {
+    return "spilled: " + spilled + ", unspilled: " + unspilled
+        + ", backlog: " + backlog + " (" + backlogBytes + " bytes in "
+        + segments.size() + " segments)";
+  }
+
+  /**
+   * Adds an element to memory, or to disk if memory is full or the queue is
+   * already spilling
+   *
+   * @param length
+   *          the number of bytes the element takes on disk
+   * @return false if there is no room for the element
+   */
+  private boolean offer(T element, int length) {
+    boolean spilling = backlog > 0 || !held.isEmpty();
+    if (!spilling && memory.size() < memoryCapacity) {
+      memory.addLast(element);
+      return true;
+    }
+    if (!codec.spillable(element)) {
+      // over capacity if need be, after everything spilled so far
+      if (spilling) {
+        held.addLast(new Held<T>(element, spilled));
+      } else {
+        memory.addLast(element);
+      }
+      return true;
+    }
+
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.out.remaining() < length + 8) {
+      if (segments.size() >= maxSegments) {
+        return false;
+      }
+      try {
+        if (segment != null) {
+          segment.out.putInt(END_OF_SEGMENT);
+        }
+        segment = new Segment(new File(directory, "spill-" + nextSegment++
+            + ".seg"));
+        segments.addLast(segment);
+      } catch (IOException e) {
+        // as if the disk were full
+        LOGGER.error("", e);
+        return false;
+      }
+    }
+
+    if (backlog == 0) {
+      spillStart = System.currentTimeMillis();
+      spillStartCount = spilled;
+      LOGGER.info("Queue is full, spilling to " + directory);
+    }
+
+    segment.out.putInt(length);
+    codec.write(element, segment.out);
+    segment.written = segment.out.position();
+    codec.release(element);
+
+    backlog++;
+    backlogBytes += length;
+    spilled++;
+    return true;
+  }
+
+  /**
+   * Takes the oldest element, from memory and then from disk
+   *
+   * @return the element, null if the queue is empty or the oldest element on
+   *         disk cannot be read back yet
+   */
+  private T take() {
+    stalled = false;
+    T element = memory.pollFirst();
+    if (element != null) {
+      return element;
+    }
+
+    while (true) {
+      Held<T> first = held.peekFirst();
+      if (first != null && (first.after <= unspilled || backlog == 0)) {
+        held.removeFirst();
+        return first.element;
+      }
+      if (backlog == 0) {
+        return null;
+      }
+
+      Segment segment = segments.peekFirst();
+      ByteBuffer in = segment.in;
+
+      int record = in.position();
+      int length = record < segment.written ? in.getInt() : END_OF_SEGMENT;
+      if (length == END_OF_SEGMENT) {
+        // the segment being written has nothing more yet
+        if (segment == segments.peekLast()) {
+          return null;
+        }
+        segments.removeFirst().delete();
+        continue;
+      }
+
+      int limit = in.limit();
+      in.limit(in.position() + length);
+      element = codec.read(in);
+      if (element == null) {
+        // leave it on disk until there is room for it
+        in.limit(limit).position(record);
+        stalled = true;
+        return null;
+      }
+      in.position(in.limit()).limit(limit);
+
+      backlog--;
+      backlogBytes -= length;
+      unspilled++;
+      if (backlog == 0) {
+        // the burst is over, memory takes new elements again
+        segments.removeFirst().delete();
+        long time = Math.max(1, System.currentTimeMillis() - spillStart);
+        long count = spilled - spillStartCount;
+        LOGGER.info("Spill read back: " + count + " elements in " + time
+            + " ms (" + count * 1000 / time + "/s)");
+      }
+      return element;
+    }
+  }
+
+  /**
+   * An element kept in memory while the queue spills
+   */
+  private static class Held<T> {
+    final T    element;
+    // the number of elements spilled before it
+    final long after;
+
+    Held(T element, long after) {
+      this.element = element;
+      this.after = after;
+    }
+  }
+
+  /**
+   * A memory-mapped segment file, written at one position and read at another
+   */
+  private class Segment {
+    final File             file;
+    final MappedByteBuffer out;
+    final ByteBuffer       in;
+    // how far out has been written, for the reader
+    int                    written;
+
+    Segment(File file) throws IOException {
+      this.file = file;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(segmentSize);
+        out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+            segmentSize);
+      } finally {
+        raf.close();
+      }
+      in = out.duplicate();
+    }
+
+    /**
+     * Deletes the file. Its disk space is freed once the mapping is collected.
+     */
+    void delete() {
+      if (!file.delete()) {
+        LOGGER.warn("Could not delete segment " + file);
+      }
+    }
+  }
+}
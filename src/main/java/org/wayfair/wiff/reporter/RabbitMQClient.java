@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import org.wayfair.wiff.parser.Parser;
+import org.wayfair.wiff.util.ByteRope;
 
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Connection;
@@ -17,6 +18,7 @@ public class RabbitMQClient<T> extends WiffReporter<T> {
 
   private ByteArrayOutputStream messageBuffer = new ByteArrayOutputStream(200000);
   private int                   reportInterval;
+  private int                   count;
 
   /**
    * Create a reporter that sends data to RabbitMQ
@@ -90,7 +92,6 @@ public class RabbitMQClient<T> extends WiffReporter<T> {
    * @see java.lang.Runnable#run()
    */
   public void run() {
-    int count = 0;
     running = true;
     try {
       while (running) {
@@ -103,38 +104,7 @@ public class RabbitMQClient<T> extends WiffReporter<T> {
             break;
           }
 
-          byte[] msg = null;
-          if (parser != null) {
-            msg = (byte[]) parser.parse(value);
-          } else if (value instanceof byte[]) {
-            msg = (byte[]) value;
-          } else if (value instanceof String) {
-            msg = ((String) value).getBytes();
-          } else {
-            LOGGER.error(this.getClass().getName()
-                + " cannot handle data of this type. Exiting...");
-            System.exit(1);
-          }
-
-          if (reportInterval == 1) {
-            // Send message immediately
-            report(msg);
-          } else {
-            if (reportInterval > 1) {
-              // Send message when the batch size has been reached
-              messageBuffer.write(msg);
-              if (++count > reportInterval) {
-                report();
-                count = 0;
-              }
-            } else {
-              if (messageBuffer.size() + msg.length > 60000) {
-                // Send message when it is sufficiently large
-                report();
-              }
-              messageBuffer.write(msg);
-            }
-          }
+          process(value);
         }
       }
     } catch (Exception e) {
@@ -144,6 +114,67 @@ public class RabbitMQClient<T> extends WiffReporter<T> {
     cleanup();
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.wayfair.wiff.reporter.WiffReporter#process(java.lang.Object)
+   */
+  @Override
+  protected void process(T value) throws IOException {
+    byte[] msg = null;
+    // a stream nothing parses is written out a chunk at a time, not copied
+    ByteRope rope = null;
+    if (parser != null) {
+      msg = (byte[]) parser.parse(value);
+    } else if (value instanceof byte[]) {
+      msg = (byte[]) value;
+    } else if (value instanceof ByteRope) {
+      rope = (ByteRope) value;
+    } else if (value instanceof String) {
+      msg = ((String) value).getBytes();
+    } else {
+      LOGGER.error(this.getClass().getName()
+          + " cannot handle data of this type. Exiting...");
+      System.exit(1);
+    }
+    int length = rope != null ? rope.length() : msg.length;
+
+    if (reportInterval == 1) {
+      // Send message immediately
+      report(rope != null ? rope.toByteArray() : msg);
+    } else {
+      if (reportInterval > 1) {
+        // Send message when the batch size has been reached
+        write(msg, rope);
+        if (++count > reportInterval) {
+          report();
+          count = 0;
+        }
+      } else {
+        if (messageBuffer.size() + length > 60000) {
+          // Send message when it is sufficiently large
+          report();
+        }
+        write(msg, rope);
+      }
+    }
+    if (value instanceof ByteRope) {
+      // written or parsed, so its chunks can be used again
+      ((ByteRope) value).release();
+    }
+  }
+
+  /**
+   * Adds a message to the current batch
+   */
+  private void write(byte[] msg, ByteRope rope) throws IOException {
+    if (rope != null) {
+      rope.writeTo(messageBuffer);
+    } else {
+      messageBuffer.write(msg);
+    }
+  }
+
   /**
    * Reports the current batch of messages and reset buffers
    */
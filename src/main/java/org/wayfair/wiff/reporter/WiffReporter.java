@@ -1,8 +1,12 @@
 package org.wayfair.wiff.reporter;
 
+import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.wayfair.wiff.parser.Parser;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
 
 import org.apache.log4j.Logger;
 
@@ -13,6 +17,10 @@ public abstract class WiffReporter<T> implements Runnable {
 
   protected boolean                running = false;
   protected T                      killSignal;
+  protected Policies               policy  = Policies.Block;
+
+  // Handle messages on the sending thread rather than a thread of its own
+  protected boolean                inline  = false;
 
   protected final Logger           LOGGER  = Logger.getLogger(this.getClass());
 
@@ -45,14 +53,97 @@ public abstract class WiffReporter<T> implements Runnable {
     this.parser = parser;
   }
 
+  /**
+   * Bounds the number of messages waiting to be reported. Must be called
+   * before the reporter is started.
+   * 
+   * @param capacity
+   *          the most messages waiting, 0 for no limit
+   * @param policy
+   *          what to do with a message sent while the queue is full
+   */
+  public void setCapacity(int capacity, Policies policy) {
+    messages = capacity > 0 ? new LinkedBlockingQueue<T>(capacity)
+        : new LinkedBlockingQueue<T>();
+    this.policy = policy;
+  }
+
+  /**
+   * Handles each message on the thread that sends it, parsing it and adding
+   * it to the batch, which is reported on that thread once full. The reporter
+   * is not run on a thread of its own. Must be called before the reporter is
+   * started.
+   * 
+   * @param inline
+   *          true to handle messages on the sending thread
+   */
+  public void setInline(boolean inline) {
+    this.inline = inline;
+  }
+
+  /**
+   * @return true if messages are handled on the thread that sends them
+   */
+  public boolean isInline() {
+    return inline;
+  }
+
   /**
    * @param value
    * @throws InterruptedException
    */
   public void sendData(T value) throws InterruptedException {
-    messages.put(value);
+    if (inline) {
+      if (value != killSignal) {
+        try {
+          synchronized (this) {
+            process(value);
+          }
+        } catch (IOException e) {
+          LOGGER.error("", e);
+        }
+      }
+      return;
+    }
+
+    // the kill signal is never dropped
+    if (value == killSignal) {
+      messages.put(value);
+      return;
+    }
+
+    switch (policy) {
+      case DropOldest:
+        while (!messages.offer(value)) {
+          if (messages.poll() != null) {
+            Overload.drop(Reasons.ReporterOldest);
+          }
+        }
+        break;
+      case DropNewest:
+      case ShedFlows:
+        // each message is a whole connection
+        if (!messages.offer(value)) {
+          Overload.drop(Reasons.ReporterFull);
+        }
+        break;
+      case Block:
+      default:
+        messages.put(value);
+        break;
+    }
   }
 
+  /**
+   * Parses a message and adds it to the batch, reporting the batch if it is
+   * full
+   * 
+   * @param value
+   *          the message
+   * @throws IOException
+   */
+  protected abstract void process(T value) throws IOException;
+
   /**
    * @return
    * @throws InterruptedException
@@ -90,4 +181,4 @@ public abstract class WiffReporter<T> implements Runnable {
   public boolean isRunning() {
     return running;
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -3,16 +3,17 @@ package org.wayfair.wiff.service;
 import static org.wayfair.wiff.util.ByteArrayFunctions.extractMessage;
 
 import org.wayfair.wiff.reporter.WiffReporter;
+import org.wayfair.wiff.util.ByteRope;
 
 /**
  * A service that reads data that has been parsed by the PrependSize Parser.
  */
-public class ParseBytes extends WiffService<byte[], byte[]> {
+public class ParseBytes extends WiffService<byte[], ByteRope> {
 
   /**
    * @param reporter
    */
-  public ParseBytes(WiffReporter<byte[]> reporter) {
+  public ParseBytes(WiffReporter<ByteRope> reporter) {
     super(reporter);
     startReporter();
   }
@@ -33,7 +34,7 @@ public class ParseBytes extends WiffService<byte[], byte[]> {
 
       // send to reporter
       try {
-        reporter.sendData(message);
+        reporter.sendData(ByteRope.wrap(message));
       } catch (InterruptedException e) {
         LOGGER.error("", e);
       }
@@ -3,6 +3,7 @@ package org.wayfair.wiff.service;
 import java.util.concurrent.TimeUnit;
 
 import org.wayfair.wiff.reporter.WiffReporter;
+import org.wayfair.wiff.util.EventClock;
 import org.wayfair.wiff.util.WiffPacket;
 import static org.wayfair.wiff.util.ParseFunctions.*;
 
@@ -13,10 +14,14 @@ public class WiffRoundtrip extends WiffService<WiffPacket, String> {
   private StringBuilder     message;
   private Cache<Long, Long> pushes;
 
+  // Pushes expire on the packets' capture time
+  private EventClock        clock;
+
   public WiffRoundtrip() {
     message = new StringBuilder(500);
+    clock = new EventClock(1, TimeUnit.SECONDS);
     pushes = CacheBuilder.newBuilder().expireAfterAccess(30, TimeUnit.SECONDS)
-        .concurrencyLevel(1).build();
+        .concurrencyLevel(1).ticker(clock).build();
   }
 
   public WiffRoundtrip(WiffReporter<String> reporter) {
@@ -29,6 +34,7 @@ public class WiffRoundtrip extends WiffService<WiffPacket, String> {
   public void processData(WiffPacket packet) {
     if (packet.hasTcpHeader()) {
       try {
+        clock.observe(packet.getTimestamp());
         long seq = packet.getSequenceNumber();
 
         // if it's a push add it to the cache
@@ -28,10 +28,11 @@ public abstract class WiffService<T, S> {
   public abstract void processData(T input);
 
   /**
-   * Starts the reporter on its own thread
+   * Starts the reporter on its own thread, unless it handles messages on the
+   * threads that send them
    */
   public void startReporter() {
-    if (reporter != null) {
+    if (reporter != null && !reporter.isInline()) {
       reporterThread = new Thread(reporter);
       reporterThread.start();
     }
@@ -50,6 +51,14 @@ public abstract class WiffService<T, S> {
   public void stopReporter() {
     if (reporter != null) {
       LOGGER.info("Calling shut down on reporter " + reporter.getClass());
+      if (reporter.isInline()) {
+        // report what is left of the batch on this thread
+        synchronized (reporter) {
+          reporter.stop();
+          reporter.cleanup();
+        }
+        return;
+      }
       try {
         reporter.stop();
 
@@ -1,47 +1,100 @@
 package org.wayfair.wiff.service;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
-
 import org.wayfair.wiff.reporter.WiffReporter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.wayfair.wiff.util.ByteRope;
+import org.wayfair.wiff.util.EventClock;
+import org.wayfair.wiff.util.FlowTable;
 import org.wayfair.wiff.util.TcpReconstructor;
-import org.wayfair.wiff.util.WiffConnection;
+import org.wayfair.wiff.util.TimingWheel;
 import org.wayfair.wiff.util.WiffPacket;
 
-public class WiffStitch extends WiffService<WiffPacket, byte[]> {
-  private Cache<WiffConnection, TcpReconstructor>           connections;
-  private RemovalListener<WiffConnection, TcpReconstructor> connectionsRemovalListener;
+/**
+ * Reassembles the TCP streams of connections and sends each to the reporter
+ * once it closes, or once no packet of it has been seen for the cache time.
+ * Idle time is measured on the packets' capture timestamps, so replayed
+ * captures expire connections as they expired on the wire. Idle connections
+ * are expired, and their streams sent, by a thread of their own, which alone
+ * keeps the timing wheel; new connections are handed to it without a lock.
+ * With flow affinity, a connection's consumer stitches its packets without a
+ * lock too, and the expiry thread waits for it to finish the packet in hand.
+ * 
+ * Given a gap budget, a stream stops waiting for a segment capture lost once
+ * the budget runs out, and an idle connection's stream is sent with any gaps
+ * skipped rather than dropped.
+ */
+public class WiffStitch extends WiffService<WiffPacket, ByteRope> {
+  // Separately locked parts of the shared connection table
+  private static final int                      STRIPES = 64;
+
+  // How often idle connections are looked for, in milliseconds
+  private static final int                      TICK    = 100;
+
+  // How long without packets before the clock runs on the time of day
+  private static final int                      IDLE    = 1;
+
+  private FlowTable<Flow>                       connections;
+  private FlowTable.RemovalListener<Flow>       connectionsRemovalListener;
+  private int                                   cacheTime;
+  private int                                   gapBytes;
+  private int                                   gapTime;
+
+  // With flow affinity, each consumer thread keeps its own connections
+  private boolean                               flowAffinity;
+  private ThreadLocal<FlowTable<Flow>>          localConnections;
+  private final List<FlowTable<Flow>>           tables  = new CopyOnWriteArrayList<FlowTable<Flow>>();
 
-  private Object                                            lock = new Object();
+  // Idle connections of every table, expired on packet time
+  private final EventClock                      clock   = new EventClock(
+                                                            IDLE,
+                                                            TimeUnit.SECONDS);
+  private final TimingWheel<Flow>               wheel   = new TimingWheel<Flow>(
+                                                            TimeUnit.MILLISECONDS
+                                                                .toMicros(TICK));
+
+  // New connections, linked through their Flow, for the wheel's thread
+  private final AtomicReference<Flow>           pending = new AtomicReference<Flow>();
+  private Thread                                expiryThread;
+  private volatile boolean                      running;
 
   public WiffStitch() {
     this(1);
   }
 
-  public WiffStitch(WiffReporter<byte[]> reporter) {
+  public WiffStitch(WiffReporter<ByteRope> reporter) {
     this(1, reporter);
   }
 
-  public WiffStitch(int cacheTime, WiffReporter<byte[]> reporter) {
+  public WiffStitch(int cacheTime, WiffReporter<ByteRope> reporter) {
     this(cacheTime);
     this.reporter = reporter;
     startReporter();
   }
 
   public WiffStitch(int cacheTime) {
-    connectionsRemovalListener = new RemovalListener<WiffConnection, TcpReconstructor>() {
-      public void onRemoval(
-          RemovalNotification<WiffConnection, TcpReconstructor> notification) {
-        TcpReconstructor r = notification.getValue();
+    this.cacheTime = cacheTime;
+    connectionsRemovalListener = new FlowTable.RemovalListener<Flow>() {
+      public void onRemoval(Flow flow) {
+        flow.cancel();
         if (reporter != null) {
           try {
-            byte[] content = r.getBytes();
-            if (content != null && content.length > 0) {
+            ByteRope content;
+            if (flowAffinity) {
+              // its one consumer takes no lock, it is waited for instead
+              flow.awaitIdle();
+              content = getStream(flow);
+            } else {
+              synchronized (flow.reconstructor) {
+                content = getStream(flow);
+              }
+            }
+            if (content != null && content.length() > 0) {
               reporter.sendData(content);
             }
           } catch (InterruptedException e) {
@@ -51,9 +104,64 @@ public class WiffStitch extends WiffService<WiffPacket, byte[]> {
       }
     };
 
-    connections = CacheBuilder.newBuilder().concurrencyLevel(1)
-        .expireAfterAccess(cacheTime, TimeUnit.SECONDS).recordStats()
-        .removalListener(connectionsRemovalListener).build();
+    connections = newTable(STRIPES);
+    tables.add(connections);
+
+    running = true;
+    expiryThread = new Thread(new Expiry());
+    expiryThread.setDaemon(true);
+    expiryThread.start();
+  }
+
+  /**
+   * Gives each consumer thread a connection table of its own. Only safe when
+   * every packet of a connection is handed to the same consumer, in which case
+   * packets are stitched without contention.
+   * 
+   * @param flowAffinity
+   *          true if every packet of a connection goes to the same consumer
+   */
+  public void setFlowAffinity(boolean flowAffinity) {
+    this.flowAffinity = flowAffinity;
+    localConnections = new ThreadLocal<FlowTable<Flow>>() {
+      protected FlowTable<Flow> initialValue() {
+        FlowTable<Flow> table = newTable(1);
+        tables.add(table);
+        return table;
+      }
+    };
+  }
+
+  /**
+   * Sets how long streams wait for segments capture lost
+   * 
+   * @param bytes
+   *          the most bytes a stream holds waiting for a gap to be filled, 0
+   *          for no limit
+   * @param millis
+   *          the longest a stream waits for a gap to be filled, in
+   *          milliseconds of packet time, 0 for no limit
+   */
+  public void setGapBudget(int bytes, int millis) {
+    gapBytes = bytes;
+    gapTime = millis;
+  }
+
+  /**
+   * @return the stream of a connection that takes no more packets
+   */
+  private ByteRope getStream(Flow flow) {
+    if (gapBytes > 0 || gapTime > 0) {
+      // give up on what is missing and send what there is
+      flow.reconstructor.close();
+    }
+    return flow.reconstructor.getStream();
+  }
+
+  private FlowTable<Flow> newTable(int stripes) {
+    // connections are expired by the wheel, not the table
+    return new FlowTable<Flow>(stripes, 0, TimeUnit.SECONDS,
+        connectionsRemovalListener);
   }
 
   /*
@@ -66,23 +174,62 @@ public class WiffStitch extends WiffService<WiffPacket, byte[]> {
   public void processData(WiffPacket packet) {
     if (packet.hasTcpHeader()) {
       try {
-        // See if we this is part of an existing session
-        WiffConnection c = new WiffConnection(packet);
-
-        TcpReconstructor r;
-        synchronized (lock) {
-          r = connections.getIfPresent(c);
-          // create a new session if there isn't already one or if the existing
-          // one is closed
-          if (r == null || r.isClosed()) {
-            r = new TcpReconstructor();
-            connections.put(c, r);
+        long time = clock.observe(packet.getTimestamp());
+        long deadline = time + TimeUnit.SECONDS.toMicros(cacheTime);
+
+        // no other thread sees a local table's connections
+        FlowTable<Flow> table = flowAffinity ? localConnections.get()
+            : connections;
+
+        // See if we this is part of an existing session, and create a new
+        // one if there isn't or if the existing one is closed
+        Flow flow = table.get(packet);
+        boolean complete;
+        while (true) {
+          while (flow == null || flow.reconstructor.isClosed()) {
+            Flow created = new Flow(table, packet);
+            created.reconstructor.setGapBudget(gapBytes, gapTime,
+                TimeUnit.MILLISECONDS);
+            if (table.replace(packet, flow, created)) {
+              flow = created;
+              flow.extend(deadline);
+              schedule(flow);
+            } else {
+              flow = table.get(packet);
+            }
+          }
+          flow.extend(deadline);
+
+          // a connection is cancelled before its stream is sent, so one still
+          // live here sends this packet with it; one that expired since it
+          // was looked up is looked up again
+          if (flowAffinity) {
+            // no other consumer sees the connection: only the expiry thread
+            // has to be kept out, and it waits while the flow is busy
+            flow.busy = true;
+            if (!flow.isCancelled()) {
+              try {
+                complete = flow.reconstructor.ReassemblePacket(packet, time);
+              } finally {
+                flow.busy = false;
+              }
+              break;
+            }
+            flow.busy = false;
+          } else {
+            synchronized (flow.reconstructor) {
+              if (!flow.isCancelled()) {
+                complete = flow.reconstructor.ReassemblePacket(packet, time);
+                break;
+              }
+            }
           }
+          flow = table.get(packet);
         }
 
-        // if this packet ends the session, invalidate it in the cache
-        if (r.ReassemblePacket(packet)) {
-          connections.invalidate(c);
+        // if this packet ends the session, remove it from the table
+        if (complete) {
+          table.remove(packet, flow);
         }
       } catch (Exception e) {
         LOGGER.error("", e);
@@ -92,8 +239,143 @@ public class WiffStitch extends WiffService<WiffPacket, byte[]> {
 
   @Override
   public void stop() {
-    // Make sure to send over any remaining completed sessions
-    connections.cleanUp();
+    running = false;
+    expiryThread.interrupt();
+    try {
+      expiryThread.join();
+    } catch (InterruptedException e) {
+      LOGGER.error("", e);
+    }
+
+    // Make sure to send over any remaining sessions
+    List<Flow> remaining = new ArrayList<Flow>();
+    schedulePending();
+    wheel.clear(remaining);
+    for (Flow flow : remaining) {
+      flow.remove();
+    }
     super.stop();
   }
+
+  /**
+   * Hands a new connection to the wheel's thread
+   */
+  private void schedule(Flow flow) {
+    Flow head;
+    do {
+      head = pending.get();
+      flow.nextPending = head;
+    } while (!pending.compareAndSet(head, flow));
+  }
+
+  /**
+   * Puts the connections created since the last call in the wheel. Only
+   * called holding the wheel's lock, or once its thread has stopped.
+   */
+  private void schedulePending() {
+    Flow flow = pending.getAndSet(null);
+    while (flow != null) {
+      Flow next = flow.nextPending;
+      flow.nextPending = null;
+      wheel.schedule(flow, flow.getDeadline());
+      flow = next;
+    }
+  }
+
+  /**
+   * Moves the wheel on with the packet clock, sending on the streams of
+   * connections that have gone idle. Run by the expiry thread on each tick.
+   * 
+   * @param expired
+   *          an empty list, used for the idle connections and left empty
+   */
+  private void expire(List<Flow> expired) {
+    synchronized (wheel) {
+      schedulePending();
+      wheel.advance(clock.now(), expired);
+      for (Flow flow : expired) {
+        flow.remove();
+      }
+      expired.clear();
+    }
+  }
+
+  /**
+   * Moves the packet clock on to a time and expires the connections idle by
+   * then on the calling thread, as the next tick of the expiry thread would.
+   * For tests, which then need not wait for the tick.
+   * 
+   * @param timestamp
+   *          a packet time, in microseconds since the epoch
+   */
+  void advance(long timestamp) {
+    clock.observe(timestamp);
+    expire(new ArrayList<Flow>());
+  }
+
+  /**
+   * A connection's reassembled stream, with the endpoints it is kept under
+   * and its idle timer
+   */
+  private static class Flow extends TimingWheel.Timer {
+    final TcpReconstructor reconstructor = new TcpReconstructor();
+    final FlowTable<Flow>  table;
+    final long             sourceHigh;
+    final long             sourceLow;
+    final int              sourcePort;
+    final long             destinationHigh;
+    final long             destinationLow;
+    final int              destinationPort;
+    // the next connection handed to the wheel's thread with this one
+    Flow                   nextPending;
+    // set by its consumer while it stitches a packet, with flow affinity
+    volatile boolean       busy;
+
+    Flow(FlowTable<Flow> table, WiffPacket packet) {
+      this.table = table;
+      sourceHigh = packet.getSourceHigh();
+      sourceLow = packet.getSourceLow();
+      sourcePort = packet.getSourcePort();
+      destinationHigh = packet.getDestinationHigh();
+      destinationLow = packet.getDestinationLow();
+      destinationPort = packet.getDestinationPort();
+    }
+
+    /**
+     * Waits for the consumer to finish the packet it is stitching. The
+     * consumer sets busy before it checks whether the connection has been
+     * cancelled, and this is called after cancelling it, so once busy is
+     * clear the consumer takes no more packets for it.
+     */
+    void awaitIdle() {
+      while (busy) {
+        Thread.yield();
+      }
+    }
+
+    /**
+     * Takes this connection out of its table, which sends its stream on
+     */
+    void remove() {
+      table.remove(sourceHigh, sourceLow, sourcePort, destinationHigh,
+          destinationLow, destinationPort, this);
+    }
+  }
+
+  /**
+   * Expires idle connections every tick
+   */
+  private class Expiry implements Runnable {
+    public void run() {
+      List<Flow> expired = new ArrayList<Flow>();
+      while (running) {
+        try {
+          Thread.sleep(TICK);
+        } catch (InterruptedException e) {
+          break;
+        }
+        expire(expired);
+      }
+    }
+  }
 }
\ No newline at end of file
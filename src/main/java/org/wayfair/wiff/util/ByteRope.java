@@ -0,0 +1,531 @@
+package org.wayfair.wiff.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A sequence of bytes held in chunks rather than one array, so it grows
+ * without copying what it holds. Readers see it as one run of bytes and
+ * search and cut it in place, as they would a String, without it being
+ * copied into one first.
+ *
+ * Chunks come from a shared pool, smallest first so a short stream holds
+ * little, doubling to a largest size. Releasing a rope returns its chunks to
+ * the pool; a rope that is never released is simply collected. A rope may only
+ * be written by one thread, and must not be read once released.
+ *
+ * Ropes are filled on one thread and released on another, so the pool is kept
+ * as ByteBufferPool keeps buffers: each thread has a magazine of free chunks
+ * of each size, and full magazines are exchanged through a lock-free stack
+ * (the depot) per size.
+ */
+public class ByteRope {
+  // The chunk sizes, from 2 KB doubling to 16 KB
+  private static final int                             MIN_CHUNK_BITS = 11;
+  private static final int                             CLASSES        = 4;
+
+  // The most free chunks of each size a thread keeps to itself, and the most
+  // kept in the depot
+  private static final int                             MAGAZINE       = 16;
+  private static final int                             MAX_FREE       = 1024;
+
+  private static final AtomicReferenceArray<Depot>     DEPOTS;
+  private static final AtomicIntegerArray              DEPOT_COUNTS;
+  private static final ThreadLocal<Magazines>          MAGAZINES;
+
+  static {
+    DEPOTS = new AtomicReferenceArray<Depot>(CLASSES);
+    DEPOT_COUNTS = new AtomicIntegerArray(CLASSES);
+    MAGAZINES = new ThreadLocal<Magazines>() {
+      protected Magazines initialValue() {
+        return new Magazines();
+      }
+    };
+  }
+
+  private byte[][]                                     chunks         = new byte[4][];
+  // where each chunk ends in the rope, and its size class, -1 if not pooled
+  private int[]                                        ends           = new int[4];
+  private int[]                                        classes        = new int[4];
+  private int                                          count;
+  private int                                          length;
+
+  /**
+   * Creates an empty rope
+   */
+  public ByteRope() {
+  }
+
+  /**
+   * @param bytes
+   *          the bytes of the rope, which are not copied
+   * @return a rope holding an array
+   */
+  public static ByteRope wrap(byte[] bytes) {
+    ByteRope rope = new ByteRope();
+    rope.add(bytes, bytes.length, -1);
+    return rope;
+  }
+
+  /**
+   * Appends bytes, copying them into chunks
+   *
+   * @param bytes
+   *          the bytes to append
+   */
+  public void append(byte[] bytes) {
+    int offset = 0;
+    while (offset < bytes.length) {
+      int n = room(bytes.length - offset);
+      System.arraycopy(bytes, offset, chunks[count - 1], fill(), n);
+      extend(n);
+      offset += n;
+    }
+  }
+
+  /**
+   * Appends the remaining bytes of a buffer, copying them into chunks. The
+   * buffer's position is left as it was.
+   *
+   * @param buffer
+   *          the bytes to append
+   */
+  public void append(ByteBuffer buffer) {
+    int position = buffer.position();
+    int remaining = buffer.remaining();
+    ByteBuffer view = buffer.hasArray() ? null : buffer.duplicate();
+    while (remaining > 0) {
+      int n = room(remaining);
+      if (view == null) {
+        System.arraycopy(buffer.array(), buffer.arrayOffset() + position,
+            chunks[count - 1], fill(), n);
+      } else {
+        view.get(chunks[count - 1], fill(), n);
+      }
+      extend(n);
+      position += n;
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Puts bytes ahead of those held, without copying them
+   *
+   * @param bytes
+   *          the bytes to put first
+   */
+  public void prepend(byte[] bytes) {
+    if (bytes.length == 0) {
+      return;
+    }
+    grow();
+    System.arraycopy(chunks, 0, chunks, 1, count);
+    System.arraycopy(classes, 0, classes, 1, count);
+    for (int i = count; i > 0; i--) {
+      ends[i] = ends[i - 1] + bytes.length;
+    }
+    chunks[0] = bytes;
+    classes[0] = -1;
+    ends[0] = bytes.length;
+    count++;
+    length += bytes.length;
+  }
+
+  /**
+   * @return the number of bytes held
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * @param index
+   *          the index of a byte
+   * @return the byte at the index
+   */
+  public byte byteAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException(Integer.toString(index));
+    }
+    int chunk = locate(index);
+    return chunks[chunk][index - start(chunk)];
+  }
+
+  /**
+   * @param index
+   *          the index of a byte
+   * @return the byte at the index as an ISO-8859-1 character
+   */
+  public char charAt(int index) {
+    return (char) (byteAt(index) & 0xff);
+  }
+
+  /**
+   * Finds the first occurrence of an ASCII token, as String.indexOf does
+   *
+   * @param token
+   *          the characters to look for
+   * @param from
+   *          the index to start looking from
+   * @return the index the token starts at, -1 if it does not occur
+   */
+  public int indexOf(String token, int from) {
+    int last = length - token.length();
+    if (from < 0) {
+      from = 0;
+    }
+    if (token.isEmpty()) {
+      return Math.min(from, length);
+    }
+    if (from > last) {
+      return -1;
+    }
+    char first = token.charAt(0);
+    int chunk = locate(from);
+    int index = from;
+    while (index <= last) {
+      byte[] bytes = chunks[chunk];
+      int start = start(chunk);
+      int end = Math.min(ends[chunk], last + 1);
+      for (int i = index - start; i < end - start; i++) {
+        if ((bytes[i] & 0xff) == first && matches(token, start + i, chunk)) {
+          return start + i;
+        }
+      }
+      index = ends[chunk++];
+    }
+    return -1;
+  }
+
+  /**
+   * @param token
+   *          the characters to look for
+   * @return the index the token first starts at, -1 if it does not occur
+   */
+  public int indexOf(String token) {
+    return indexOf(token, 0);
+  }
+
+  /**
+   * Finds the last occurrence of an ASCII token, as String.lastIndexOf does
+   *
+   * @param token
+   *          the characters to look for
+   * @param from
+   *          the last index the token may start at
+   * @return the index the token starts at, -1 if it does not occur
+   */
+  public int lastIndexOf(String token, int from) {
+    from = Math.min(from, length - token.length());
+    if (from < 0) {
+      return -1;
+    }
+    if (token.isEmpty()) {
+      return from;
+    }
+    char first = token.charAt(0);
+    int chunk = locate(from);
+    int index = from;
+    while (index >= 0) {
+      byte[] bytes = chunks[chunk];
+      int start = start(chunk);
+      for (int i = index - start; i >= 0; i--) {
+        if ((bytes[i] & 0xff) == first && matches(token, start + i, chunk)) {
+          return start + i;
+        }
+      }
+      index = start - 1;
+      chunk--;
+    }
+    return -1;
+  }
+
+  /**
+   * @param start
+   *          the index of the first byte
+   * @param end
+   *          the index after the last byte
+   * @return the bytes in the range decoded in the platform's charset, as new
+   *         String(bytes) would
+   */
+  public String substring(int start, int end) {
+    check(start, end);
+    if (start == end) {
+      return "";
+    }
+    int chunk = locate(start);
+    if (end <= ends[chunk]) {
+      return new String(chunks[chunk], start - start(chunk), end - start);
+    }
+    return new String(toByteArray(start, end));
+  }
+
+  /**
+   * @param start
+   *          the index of the first byte
+   * @return the bytes from the index on, decoded in the platform's charset
+   */
+  public String substring(int start) {
+    return substring(start, length);
+  }
+
+  /**
+   * @param start
+   *          the index of the first byte
+   * @param end
+   *          the index after the last byte
+   * @return a copy of the bytes in the range
+   */
+  public byte[] toByteArray(int start, int end) {
+    check(start, end);
+    byte[] bytes = new byte[end - start];
+    copyTo(start, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * @return a copy of the bytes held
+   */
+  public byte[] toByteArray() {
+    return toByteArray(0, length);
+  }
+
+  /**
+   * Copies bytes out into an array
+   *
+   * @param start
+   *          the index of the first byte to copy
+   * @param dst
+   *          the array to copy into
+   * @param offset
+   *          where in the array to copy to
+   * @param n
+   *          the number of bytes to copy
+   */
+  public void copyTo(int start, byte[] dst, int offset, int n) {
+    check(start, start + n);
+    int chunk = n == 0 ? 0 : locate(start);
+    while (n > 0) {
+      int from = start - start(chunk);
+      int part = Math.min(n, ends[chunk] - start);
+      System.arraycopy(chunks[chunk], from, dst, offset, part);
+      start += part;
+      offset += part;
+      n -= part;
+      chunk++;
+    }
+  }
+
+  /**
+   * Writes the bytes held to a stream, a chunk at a time
+   *
+   * @param out
+   *          the stream to write to
+   * @throws IOException
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    for (int i = 0; i < count; i++) {
+      out.write(chunks[i], 0, ends[i] - start(i));
+    }
+  }
+
+  /**
+   * Returns this rope's chunks to the pool and empties it
+   */
+  public void release() {
+    for (int i = 0; i < count; i++) {
+      if (classes[i] >= 0) {
+        free(chunks[i], classes[i]);
+      }
+      chunks[i] = null;
+    }
+    count = 0;
+    length = 0;
+  }
+
+  /**
+   * @return the bytes held decoded in the platform's charset
+   */
+  @Override
+  public String toString() {
+    return substring(0, length);
+  }
+
+  /**
+   * Makes sure the last chunk has room for more bytes, taking a new one from
+   * the pool if it is full or not pooled
+   *
+   * @param wanted
+   *          the number of bytes to be appended
+   * @return how many of them fit in the last chunk
+   */
+  private int room(int wanted) {
+    if (count == 0 || classes[count - 1] < 0
+        || fill() == chunks[count - 1].length) {
+      // each chunk twice the size of the last, up to the largest
+      int size = count == 0 || classes[count - 1] < 0 ? 0 : Math.min(
+          classes[count - 1] + 1, CLASSES - 1);
+      add(take(size), 0, size);
+    }
+    return Math.min(wanted, chunks[count - 1].length - fill());
+  }
+
+  /**
+   * Takes a free chunk of a size from the calling thread's magazine, refilling
+   * the magazine from the depot, or allocates one if there are none
+   */
+  private static byte[] take(int size) {
+    Magazines magazine = MAGAZINES.get();
+    if (magazine.counts[size] == 0) {
+      Depot full = pop(size);
+      if (full == null) {
+        return new byte[1 << (MIN_CHUNK_BITS + size)];
+      }
+      magazine.chunks[size] = full.chunks;
+      magazine.counts[size] = full.count;
+    }
+    byte[][] free = magazine.chunks[size];
+    byte[] chunk = free[--magazine.counts[size]];
+    free[magazine.counts[size]] = null;
+    return chunk;
+  }
+
+  /**
+   * Puts a chunk in the calling thread's magazine, handing the magazine to the
+   * depot once it is full. A full magazine the depot has no room for is left
+   * to the collector.
+   */
+  private static void free(byte[] chunk, int size) {
+    Magazines magazine = MAGAZINES.get();
+    magazine.chunks[size][magazine.counts[size]++] = chunk;
+    if (magazine.counts[size] == MAGAZINE) {
+      if (DEPOT_COUNTS.get(size) < MAX_FREE) {
+        push(size, magazine.chunks[size]);
+      }
+      magazine.chunks[size] = new byte[MAGAZINE][];
+      magazine.counts[size] = 0;
+    }
+  }
+
+  private static void push(int size, byte[][] chunks) {
+    Depot node = new Depot(chunks);
+    Depot head;
+    do {
+      head = DEPOTS.get(size);
+      node.next = head;
+    } while (!DEPOTS.compareAndSet(size, head, node));
+    DEPOT_COUNTS.addAndGet(size, chunks.length);
+  }
+
+  private static Depot pop(int size) {
+    Depot head;
+    do {
+      head = DEPOTS.get(size);
+      if (head == null) {
+        return null;
+      }
+    } while (!DEPOTS.compareAndSet(size, head, head.next));
+    DEPOT_COUNTS.addAndGet(size, -head.count);
+    return head;
+  }
+
+  private void add(byte[] chunk, int used, int size) {
+    grow();
+    chunks[count] = chunk;
+    classes[count] = size;
+    ends[count] = length + used;
+    count++;
+    length += used;
+  }
+
+  private void grow() {
+    if (count == chunks.length) {
+      chunks = Arrays.copyOf(chunks, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+      classes = Arrays.copyOf(classes, count * 2);
+    }
+  }
+
+  /**
+   * @return the number of bytes used in the last chunk
+   */
+  private int fill() {
+    return ends[count - 1] - start(count - 1);
+  }
+
+  private void extend(int n) {
+    ends[count - 1] += n;
+    length += n;
+  }
+
+  private int start(int chunk) {
+    return chunk == 0 ? 0 : ends[chunk - 1];
+  }
+
+  /**
+   * @return the chunk holding a byte
+   */
+  private int locate(int index) {
+    int low = 0;
+    int high = count - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (ends[mid] <= index) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return true if the token occurs at an index, which is in a chunk
+   */
+  private boolean matches(String token, int index, int chunk) {
+    for (int k = 1; k < token.length(); k++) {
+      int i = index + k;
+      while (i >= ends[chunk]) {
+        chunk++;
+      }
+      if ((chunks[chunk][i - start(chunk)] & 0xff) != token.charAt(k)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void check(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("[" + start + ", " + end + ") of "
+          + length);
+    }
+  }
+
+  /**
+   * The free chunks of each size a thread keeps to itself
+   */
+  private static class Magazines {
+    final byte[][][] chunks = new byte[CLASSES][MAGAZINE][];
+    final int[]      counts = new int[CLASSES];
+  }
+
+  /**
+   * A full magazine handed to the depot. A node is never pushed twice, so the
+   * stack is safe from ABA.
+   */
+  private static class Depot {
+    final byte[][] chunks;
+    final int      count;
+    Depot          next;
+
+    Depot(byte[][] chunks) {
+      this.chunks = chunks;
+      this.count = chunks.length;
+    }
+  }
+}
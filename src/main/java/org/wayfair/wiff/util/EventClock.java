@@ -0,0 +1,76 @@
+package org.wayfair.wiff.util;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A clock that keeps the time of the packets seen rather than the time of day,
+ * so state expires by how much traffic time has passed. Replaying captures
+ * faster than they were recorded expires connections as they expired on the
+ * wire, and a stall in capture does not expire everything at once.
+ *
+ * When no packet moves the clock on for the idle time, as when traffic stops,
+ * the clock runs on with the time of day from then, as a watermark. It is a
+ * Ticker so Guava caches can expire entries on it.
+ */
+public class EventClock extends Ticker {
+  // The clock only moves forward in steps of this many microseconds
+  private static final long RESOLUTION = 1000;
+
+  private final long        idle;
+  private volatile long     time;
+  private volatile long     arrival;
+
+  /**
+   * @param idle
+   *          how long the clock waits for packets before running on the time
+   *          of day
+   * @param unit
+   *          the unit of idle
+   */
+  public EventClock(long idle, TimeUnit unit) {
+    this.idle = unit.toMicros(idle);
+    arrival = System.nanoTime();
+  }
+
+  /**
+   * Moves the clock on to the time of a packet, if it is later
+   *
+   * @param timestamp
+   *          the time a packet was captured, in microseconds since the epoch,
+   *          0 if unknown, in which case the time of day is used
+   * @return the time used for the packet
+   */
+  public long observe(long timestamp) {
+    if (timestamp == 0) {
+      timestamp = System.currentTimeMillis() * 1000;
+    }
+    // written rarely, so threads sharing the clock rarely contend
+    if (timestamp - time >= RESOLUTION) {
+      time = timestamp;
+      arrival = System.nanoTime();
+    }
+    return timestamp;
+  }
+
+  /**
+   * @return the current time in microseconds since the epoch: that of the
+   *         latest packet, plus however much longer than the idle time has
+   *         passed since
+   */
+  public long now() {
+    long waited = (System.nanoTime() - arrival) / 1000;
+    return time + Math.max(0, waited - idle);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.google.common.base.Ticker#read()
+   */
+  @Override
+  public long read() {
+    return now() * 1000;
+  }
+}
@@ -0,0 +1,168 @@
+package org.wayfair.wiff.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hashes the IP addresses and ports of a packet such that both directions of a
+ * connection produce the same value. Used to keep every packet of a connection
+ * on the same path through WIFF.
+ */
+public class FlowHash {
+  private static final int PROTO_TCP = 6;
+  private static final int PROTO_UDP = 17;
+
+  /**
+   * Hashes the flow of a raw Ethernet frame
+   *
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @return the direction independent hash of the packet's flow, 0 if the
+   *         packet is not IP
+   */
+  public static int hash(ByteBuffer packet) {
+    return hash(packet, LinkLayer.ETHERNET);
+  }
+
+  /**
+   * Hashes the flow of a packet
+   *
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the capture, see LinkLayer
+   * @return the direction independent hash of the packet's flow, 0 if the
+   *         packet is not IP
+   */
+  public static int hash(ByteBuffer packet, int linkType) {
+    int end = packet.limit();
+    int ip = LinkLayer.networkOffset(packet, packet.position(), end, linkType);
+    if (ip < 0) {
+      return 0;
+    }
+
+    int ports = 0;
+    long transport = LinkLayer.transport(packet, ip, end);
+    int protocol = LinkLayer.protocol(transport);
+    int offset = LinkLayer.offset(transport);
+    if ((protocol == PROTO_TCP || protocol == PROTO_UDP) && offset >= 0
+        && offset + 4 <= end) {
+      ports = packet.getInt(offset);
+    }
+
+    if (LinkLayer.version(packet, ip) == 4) {
+      return hash(packet.getInt(ip + 12), ports >>> 16, packet.getInt(ip + 16),
+          ports & 0xffff);
+    }
+    return hash(packet.getLong(ip + 8), packet.getLong(ip + 16), ports >>> 16,
+        packet.getLong(ip + 24), packet.getLong(ip + 32), ports & 0xffff);
+  }
+
+  /**
+   * Hashes the flow of a decoded packet
+   *
+   * @param packet
+   *          a TCP or UDP packet
+   * @return the direction independent hash of the packet's flow, the same as
+   *         for its bytes
+   */
+  public static int hash(WiffPacket packet) {
+    if (packet.getIpVersion() == 4) {
+      return hash(packet.getSourceIPAsInt(), packet.getSourcePort(),
+          packet.getDestinationIPAsInt(), packet.getDestinationPort());
+    }
+    return hash(packet.getSourceHigh(), packet.getSourceLow(),
+        packet.getSourcePort(), packet.getDestinationHigh(),
+        packet.getDestinationLow(), packet.getDestinationPort());
+  }
+
+  /**
+   * Hashes a flow given as its two endpoints
+   *
+   * @param sourceIp
+   *          the source IPv4 address
+   * @param sourcePort
+   *          the source port
+   * @param destinationIp
+   *          the destination IPv4 address
+   * @param destinationPort
+   *          the destination port
+   * @return the direction independent hash of the flow
+   */
+  public static int hash(int sourceIp, int sourcePort, int destinationIp,
+      int destinationPort) {
+    long a = (sourceIp & 0xffffffffL) << 16 | (sourcePort & 0xffff);
+    long b = (destinationIp & 0xffffffffL) << 16 | (destinationPort & 0xffff);
+
+    // order the endpoints so that both directions hash alike
+    long low = Math.min(a, b);
+    long high = Math.max(a, b);
+
+    return mix(low * 0x9e3779b97f4a7c15L + high);
+  }
+
+  /**
+   * Hashes a flow given as its two endpoints, with 128-bit addresses
+   *
+   * @param sourceHigh
+   *          the high 64 bits of the source IPv6 address
+   * @param sourceLow
+   *          the low 64 bits of the source IPv6 address
+   * @param sourcePort
+   *          the source port
+   * @param destinationHigh
+   *          the high 64 bits of the destination IPv6 address
+   * @param destinationLow
+   *          the low 64 bits of the destination IPv6 address
+   * @param destinationPort
+   *          the destination port
+   * @return the direction independent hash of the flow
+   */
+  public static int hash(long sourceHigh, long sourceLow, int sourcePort,
+      long destinationHigh, long destinationLow, int destinationPort) {
+    // order the endpoints so that both directions hash alike
+    boolean swap = sourceHigh != destinationHigh ? sourceHigh > destinationHigh
+        : sourceLow != destinationLow ? sourceLow > destinationLow
+            : sourcePort > destinationPort;
+    if (swap) {
+      long high = sourceHigh;
+      long low = sourceLow;
+      int port = sourcePort;
+      sourceHigh = destinationHigh;
+      sourceLow = destinationLow;
+      sourcePort = destinationPort;
+      destinationHigh = high;
+      destinationLow = low;
+      destinationPort = port;
+    }
+
+    long h = sourceHigh;
+    h = h * 0x9e3779b97f4a7c15L + sourceLow;
+    h = h * 0x9e3779b97f4a7c15L + (sourcePort & 0xffff);
+    h = h * 0x9e3779b97f4a7c15L + destinationHigh;
+    h = h * 0x9e3779b97f4a7c15L + destinationLow;
+    h = h * 0x9e3779b97f4a7c15L + (destinationPort & 0xffff);
+    return mix(h);
+  }
+
+  /**
+   * Picks the partition a flow belongs to
+   *
+   * @param hash
+   *          the flow's hash
+   * @param partitions
+   *          the number of partitions
+   * @return a partition index between 0 and partitions - 1
+   */
+  public static int partition(int hash, int partitions) {
+    return (hash & 0x7fffffff) % partitions;
+  }
+
+  private static int mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53e3b1aL;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+}
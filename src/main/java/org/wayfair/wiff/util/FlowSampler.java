@@ -0,0 +1,380 @@
+package org.wayfair.wiff.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.wayfair.wiff.queue.WiffQueue;
+
+/**
+ * Decides which connections to keep when traffic is sampled. A connection is
+ * kept when its flow hash falls below the sample rate, so either every packet
+ * of a connection is kept or none is. Lowering the rate only drops connections
+ * that were kept at the higher rate.
+ *
+ * When given a queue, the rate adapts to its depth: it is halved (down to a
+ * minimum) while the queue holds more than a limit and doubled (up to the
+ * configured rate) once it has drained below a quarter of the limit.
+ *
+ * A connection is decided once, at the rate of the moment, when its SYN is
+ * seen (or its first packet, if the SYN was missed), and the decision and rate
+ * are recorded so a change of rate only applies to new connections. Decisions
+ * are kept by flow hash in a table that grows with the number of connections,
+ * split into separately locked stripes as FlowTable is, so capture threads can
+ * share it. A decision is dropped once its connection has not been seen for
+ * the decision timeout; a connection idle for longer is decided again.
+ */
+public class FlowSampler {
+  // How often the rate may change, in milliseconds
+  private static final long  ADJUST_INTERVAL = 1000;
+
+  // How long a decision is kept without a packet of its connection, in ms
+  private static final int   DECISION_TIMEOUT = 2 * 60 * 1000;
+
+  private static final int   STRIPE_BITS     = 6;
+  private static final int   STRIPES         = 1 << STRIPE_BITS;
+  private static final int   PROTO_TCP       = 6;
+  private static final int   SYN             = 0x02;
+  private static final int   ACK             = 0x10;
+
+  private final float        maxRate;
+  private final float        minRate;
+  private final WiffQueue<?> queue;
+  private final int          queueLimit;
+
+  private volatile float     rate;
+  private volatile long      nextAdjustment;
+
+  /*
+   * The decision for each connection, by flow hash: the bits of the rate it was
+   * decided at, the rate negated if the connection is dropped
+   */
+  private final Stripe[]     decisions       = new Stripe[STRIPES];
+
+  private final AtomicLong   dropped         = new AtomicLong();
+
+  private final Logger       LOGGER          = Logger.getLogger(this
+                                                 .getClass());
+
+  /**
+   * Creates a sampler with a fixed rate
+   *
+   * @param rate
+   *          the fraction of connections to keep, between 0 and 1
+   */
+  public FlowSampler(float rate) {
+    this(rate, rate, null, 0);
+  }
+
+  /**
+   * Creates a sampler whose rate adapts to the depth of a queue
+   *
+   * @param rate
+   *          the largest fraction of connections to keep, between 0 and 1
+   * @param minRate
+   *          the smallest fraction of connections to keep
+   * @param queue
+   *          the queue whose depth is watched
+   * @param queueLimit
+   *          the depth above which the rate is lowered
+   */
+  public FlowSampler(float rate, float minRate, WiffQueue<?> queue,
+      int queueLimit) {
+    if (rate <= 0 || rate > 1 || minRate <= 0 || minRate > rate) {
+      throw new IllegalArgumentException("Invalid sample rates " + minRate
+          + " - " + rate);
+    }
+    this.maxRate = rate;
+    this.minRate = minRate;
+    this.queue = queue;
+    this.queueLimit = queueLimit;
+    this.rate = rate;
+    for (int i = 0; i < STRIPES; i++) {
+      decisions[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Determines if a packet belongs to a connection that is kept
+   *
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @return true if the packet should be processed
+   */
+  public boolean sample(ByteBuffer packet) {
+    return sample(packet, LinkLayer.ETHERNET, FlowHash.hash(packet));
+  }
+
+  /**
+   * Determines if a packet belongs to a connection that is kept
+   *
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the packet's capture
+   * @param hash
+   *          the packet's flow hash
+   * @return true if the packet should be processed
+   */
+  public boolean sample(ByteBuffer packet, int linkType, int hash) {
+    return sample(hash, opens(packet, linkType));
+  }
+
+  /**
+   * Determines if a connection already under way is kept
+   *
+   * @param hash
+   *          the connection's flow hash
+   * @return true if the connection's packets should be processed
+   */
+  public boolean sample(int hash) {
+    return sample(hash, false);
+  }
+
+  /**
+   * Determines if a connection is kept
+   *
+   * @param hash
+   *          the connection's flow hash
+   * @param opens
+   *          whether the packet opens the connection, which decides it anew
+   * @return true if the connection's packets should be processed
+   */
+  public boolean sample(int hash, boolean opens) {
+    if (queue != null) {
+      adjust();
+    }
+    int now = (int) System.currentTimeMillis();
+    Stripe stripe = stripe(hash);
+    boolean kept;
+    synchronized (stripe) {
+      int decision = opens ? 0 : stripe.get(hash, now);
+      if (decision != 0) {
+        // a positive rate's bits are positive, a negated one's negative
+        kept = decision > 0;
+      } else {
+        float current = rate;
+        kept = (hash & 0xffffffffL) < threshold(current);
+        stripe.put(hash, Float.floatToIntBits(kept ? current : -current), now);
+      }
+    }
+    if (kept) {
+      return true;
+    }
+    dropped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * @return the fraction of connections currently kept
+   */
+  public float getRate() {
+    return rate;
+  }
+
+  /**
+   * @param hash
+   *          a connection's flow hash
+   * @return the fraction of connections that were kept when the connection was
+   *         decided, or the current fraction if its decision is not known
+   */
+  public float getRate(int hash) {
+    Stripe stripe = stripe(hash);
+    int decision;
+    synchronized (stripe) {
+      decision = stripe.get(hash, (int) System.currentTimeMillis());
+    }
+    if (decision != 0) {
+      return Math.abs(Float.intBitsToFloat(decision));
+    }
+    return rate;
+  }
+
+  /**
+   * @return the number of connections whose decisions are kept
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : decisions) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  private Stripe stripe(int hash) {
+    // the top bits of a hash pick the stripe, the bottom bits the slot
+    return decisions[hash >>> (32 - STRIPE_BITS)];
+  }
+
+  /**
+   * @return the number of packets that were sampled out
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the flow hashes below which connections are kept at a rate
+   */
+  private static long threshold(float rate) {
+    return (long) (rate * 4294967296.0);
+  }
+
+  /**
+   * @return true if a packet is a TCP SYN without an ACK
+   */
+  private static boolean opens(ByteBuffer packet, int linkType) {
+    int end = packet.limit();
+    int ip = LinkLayer.networkOffset(packet, packet.position(), end, linkType);
+    if (ip < 0) {
+      return false;
+    }
+    long transport = LinkLayer.transport(packet, ip, end);
+    int offset = LinkLayer.offset(transport);
+    return LinkLayer.protocol(transport) == PROTO_TCP && offset >= 0
+        && offset + 14 <= end
+        && (packet.get(offset + 13) & (SYN | ACK)) == SYN;
+  }
+
+  /**
+   * Lowers or raises the rate according to the depth of the queue
+   */
+  private void adjust() {
+    long now = System.currentTimeMillis();
+    if (now < nextAdjustment) {
+      return;
+    }
+    synchronized (this) {
+      if (now < nextAdjustment) {
+        return;
+      }
+      nextAdjustment = now + ADJUST_INTERVAL;
+
+      int depth = queue.size();
+      if (depth > queueLimit && rate > minRate) {
+        rate = Math.max(minRate, rate / 2);
+        LOGGER.info("Queue holds " + depth + " packets, sample rate lowered to "
+            + rate);
+      } else if (depth < queueLimit / 4 && rate < maxRate) {
+        rate = Math.min(maxRate, rate * 2);
+        LOGGER.info("Queue holds " + depth + " packets, sample rate raised to "
+            + rate);
+      }
+    }
+  }
+
+  /**
+   * One separately locked part of the decisions: a linear probing hash table
+   * in parallel arrays that doubles as it fills. An empty slot has a decision
+   * of 0, which no rate has. Decisions not looked up for the timeout are
+   * found a few slots at a time as the stripe is used, and dropped.
+   */
+  private static class Stripe {
+    // Slots a stripe starts with, and how full it gets before doubling
+    private static final int   INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR      = 0.75f;
+
+    // Slots checked for timed out decisions on each lookup
+    private static final int   SWEEP            = 2;
+
+    int[]                      hashes           = new int[INITIAL_CAPACITY];
+    int[]                      decisions        = new int[INITIAL_CAPACITY];
+    int[]                      accessed         = new int[INITIAL_CAPACITY];
+    int                        size;
+    int                        sweep;
+
+    /**
+     * @return the decision for a connection, 0 if there is none
+     */
+    int get(int hash, int now) {
+      sweep(now);
+      int mask = hashes.length - 1;
+      for (int i = hash & mask; decisions[i] != 0; i = (i + 1) & mask) {
+        if (hashes[i] == hash) {
+          accessed[i] = now;
+          return decisions[i];
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Sets the decision for a connection
+     */
+    void put(int hash, int decision, int now) {
+      sweep(now);
+      int mask = hashes.length - 1;
+      int i = hash & mask;
+      while (decisions[i] != 0 && hashes[i] != hash) {
+        i = (i + 1) & mask;
+      }
+      if (decisions[i] == 0) {
+        size++;
+      }
+      hashes[i] = hash;
+      decisions[i] = decision;
+      accessed[i] = now;
+      if (size > hashes.length * LOAD_FACTOR) {
+        grow();
+      }
+    }
+
+    /**
+     * Drops the decisions in the next few slots if they have timed out
+     */
+    private void sweep(int now) {
+      int mask = hashes.length - 1;
+      for (int n = 0; n < SWEEP; n++) {
+        sweep = (sweep + 1) & mask;
+        if (decisions[sweep] != 0 && now - accessed[sweep] > DECISION_TIMEOUT) {
+          delete(sweep);
+        }
+      }
+    }
+
+    /**
+     * Empties a slot, moving back any entry further along its probe sequence
+     * so that no lookup passes an empty slot before reaching its key
+     */
+    private void delete(int i) {
+      int mask = hashes.length - 1;
+      for (int j = (i + 1) & mask; decisions[j] != 0; j = (j + 1) & mask) {
+        int home = hashes[j] & mask;
+        // leave the entry if its home slot lies after the hole
+        if (i <= j ? i < home && home <= j : i < home || home <= j) {
+          continue;
+        }
+        hashes[i] = hashes[j];
+        decisions[i] = decisions[j];
+        accessed[i] = accessed[j];
+        i = j;
+      }
+      decisions[i] = 0;
+      size--;
+    }
+
+    private void grow() {
+      int[] oldHashes = hashes;
+      int[] oldDecisions = decisions;
+      int[] oldAccessed = accessed;
+      int capacity = oldHashes.length * 2;
+      hashes = new int[capacity];
+      decisions = new int[capacity];
+      accessed = new int[capacity];
+      int mask = capacity - 1;
+      for (int j = 0; j < oldHashes.length; j++) {
+        if (oldDecisions[j] != 0) {
+          int i = oldHashes[j] & mask;
+          while (decisions[i] != 0) {
+            i = (i + 1) & mask;
+          }
+          hashes[i] = oldHashes[j];
+          decisions[i] = oldDecisions[j];
+          accessed[i] = oldAccessed[j];
+        }
+      }
+    }
+  }
+}
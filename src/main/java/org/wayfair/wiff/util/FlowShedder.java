@@ -0,0 +1,47 @@
+package org.wayfair.wiff.util;
+
+/**
+ * Remembers connections that have lost a packet under overload so the rest of
+ * their packets can be dropped too. A connection missing a packet cannot be
+ * reassembled, so the capacity is better spent on complete connections.
+ *
+ * Connections are tracked by flow hash in a fixed table, so memory does not
+ * grow with the number of connections. Connections that share a slot are shed
+ * together, which only ever sheds more than necessary.
+ */
+public class FlowShedder {
+  private static final int SLOTS = 1 << 16;
+
+  // Time until which the connections in each slot are shed, in milliseconds
+  private final long[]     shedUntil = new long[SLOTS];
+  private final long       shedTime;
+
+  /**
+   * @param shedTime
+   *          how long a connection is shed for, in milliseconds
+   */
+  public FlowShedder(long shedTime) {
+    this.shedTime = shedTime;
+  }
+
+  /**
+   * Starts shedding a connection
+   *
+   * @param hash
+   *          the connection's flow hash
+   */
+  public void shed(int hash) {
+    // racing writers store nearly the same time, either is fine
+    shedUntil[hash & (SLOTS - 1)] = System.currentTimeMillis() + shedTime;
+  }
+
+  /**
+   * @param hash
+   *          a connection's flow hash
+   * @return true if the connection's packets are being dropped
+   */
+  public boolean isShed(int hash) {
+    long until = shedUntil[hash & (SLOTS - 1)];
+    return until != 0 && until > System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,474 @@
+package org.wayfair.wiff.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A table of values kept per connection, keyed by the connection's two
+ * endpoints whichever way round a packet gives them. Keys are held as
+ * primitives in open-addressed arrays, so a lookup builds no key object, and
+ * the table is split into stripes, each with its own lock, so threads working
+ * on different connections rarely contend.
+ *
+ * Like the Guava cache it replaces in WiffStitch, a value that has not been
+ * looked up for the expiry time is dropped, and every value that leaves the
+ * table, whether replaced, removed or expired, is passed to the removal
+ * listener. Expired values are found as the table is used, a few slots at a
+ * time, and all at once by expire(). The listener is called once the stripe's
+ * lock has been released, so it may take its time, or block.
+ *
+ * @param <V>
+ *          the type of value kept per connection
+ */
+public class FlowTable<V> {
+  // Slots a stripe starts with, and how full it gets before doubling
+  private static final int        INITIAL_CAPACITY = 64;
+  private static final float      LOAD_FACTOR      = 0.75f;
+
+  // Slots checked for expired entries on each lookup
+  private static final int        SWEEP            = 2;
+
+  private final Stripe[]           stripes;
+  private final int                stripeShift;
+  private final int                expireAfterAccess;
+  private final Ticker             ticker;
+  private final RemovalListener<V> listener;
+
+  /**
+   * Told of every value that leaves the table, after it has left. Called with
+   * no lock held, by the thread that removed it or another using the same
+   * stripe.
+   */
+  public interface RemovalListener<V> {
+    void onRemoval(V value);
+  }
+
+  /**
+   * @param stripes
+   *          the number of separately locked parts, rounded up to a power of
+   *          two
+   * @param expireAfterAccess
+   *          how long a value is kept without being looked up, 0 to keep it
+   *          until removed
+   * @param unit
+   *          the unit of expireAfterAccess
+   * @param listener
+   *          told of every value that leaves the table, may be null
+   */
+  public FlowTable(int stripes, long expireAfterAccess, TimeUnit unit,
+      RemovalListener<V> listener) {
+    this(stripes, expireAfterAccess, unit, listener, Ticker.systemTicker());
+  }
+
+  /**
+   * @param stripes
+   *          the number of separately locked parts, rounded up to a power of
+   *          two
+   * @param expireAfterAccess
+   *          how long a value is kept without being looked up, 0 to keep it
+   *          until removed
+   * @param unit
+   *          the unit of expireAfterAccess
+   * @param listener
+   *          told of every value that leaves the table, may be null
+   * @param ticker
+   *          the time source for expiry
+   */
+  public FlowTable(int stripes, long expireAfterAccess, TimeUnit unit,
+      RemovalListener<V> listener, Ticker ticker) {
+    int n = 1;
+    while (n < stripes) {
+      n <<= 1;
+    }
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    // the top bits of a hash pick the stripe, the bottom bits the slot
+    stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+    // access times are kept in milliseconds, as an int
+    this.expireAfterAccess = (int) Math.min(Integer.MAX_VALUE / 2,
+        unit.toMillis(expireAfterAccess));
+    this.ticker = ticker;
+    this.listener = listener;
+  }
+
+  /**
+   * @param packet
+   *          a decoded packet
+   * @return the value of the packet's connection, null if there is none
+   */
+  public V get(WiffPacket packet) {
+    return get(packet.getSourceHigh(), packet.getSourceLow(),
+        packet.getSourcePort(), packet.getDestinationHigh(),
+        packet.getDestinationLow(), packet.getDestinationPort());
+  }
+
+  /**
+   * @return the value of a connection, given as its two endpoints with IPv6
+   *         (or IPv4-mapped) addresses, null if there is none
+   */
+  public V get(long sourceHigh, long sourceLow, int sourcePort,
+      long destinationHigh, long destinationLow, int destinationPort) {
+    if (swap(sourceHigh, sourceLow, sourcePort, destinationHigh,
+        destinationLow, destinationPort)) {
+      return stripeGet(destinationHigh, destinationLow, sourceHigh, sourceLow,
+          ports(destinationPort, sourcePort));
+    }
+    return stripeGet(sourceHigh, sourceLow, destinationHigh, destinationLow,
+        ports(sourcePort, destinationPort));
+  }
+
+  /**
+   * Sets the value of the packet's connection if it is still the expected one
+   *
+   * @param packet
+   *          a decoded packet
+   * @param expected
+   *          the connection's current value, null if it should have none
+   * @param value
+   *          the connection's new value
+   * @return true if the value was set, false if the connection's value was
+   *         not the expected one
+   */
+  public boolean replace(WiffPacket packet, V expected, V value) {
+    return replace(packet.getSourceHigh(), packet.getSourceLow(),
+        packet.getSourcePort(), packet.getDestinationHigh(),
+        packet.getDestinationLow(), packet.getDestinationPort(), expected,
+        value);
+  }
+
+  /**
+   * Sets the value of a connection, given as its two endpoints, if it is still
+   * the expected one
+   *
+   * @return true if the value was set, false if the connection's value was
+   *         not the expected one
+   */
+  public boolean replace(long sourceHigh, long sourceLow, int sourcePort,
+      long destinationHigh, long destinationLow, int destinationPort,
+      V expected, V value) {
+    if (swap(sourceHigh, sourceLow, sourcePort, destinationHigh,
+        destinationLow, destinationPort)) {
+      return stripeReplace(destinationHigh, destinationLow, sourceHigh,
+          sourceLow, ports(destinationPort, sourcePort), expected, value);
+    }
+    return stripeReplace(sourceHigh, sourceLow, destinationHigh,
+        destinationLow, ports(sourcePort, destinationPort), expected, value);
+  }
+
+  /**
+   * Removes the packet's connection if its value is the expected one
+   *
+   * @param packet
+   *          a decoded packet
+   * @param expected
+   *          the connection's current value
+   * @return true if the connection was removed
+   */
+  public boolean remove(WiffPacket packet, V expected) {
+    return remove(packet.getSourceHigh(), packet.getSourceLow(),
+        packet.getSourcePort(), packet.getDestinationHigh(),
+        packet.getDestinationLow(), packet.getDestinationPort(), expected);
+  }
+
+  /**
+   * Removes a connection, given as its two endpoints, if its value is the
+   * expected one
+   *
+   * @return true if the connection was removed
+   */
+  public boolean remove(long sourceHigh, long sourceLow, int sourcePort,
+      long destinationHigh, long destinationLow, int destinationPort,
+      V expected) {
+    return replace(sourceHigh, sourceLow, sourcePort, destinationHigh,
+        destinationLow, destinationPort, expected, null);
+  }
+
+  /**
+   * Drops every value that has not been looked up for the expiry time
+   */
+  public void expire() {
+    if (expireAfterAccess <= 0) {
+      return;
+    }
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        int now = now();
+        for (int i = 0; i < stripe.values.length;) {
+          // a removal may shift another entry into this slot
+          if (!expire(stripe, i, now)) {
+            i++;
+          }
+        }
+      }
+      notifyRemoved(stripe);
+    }
+  }
+
+  /**
+   * @return the number of connections in the table
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  private V stripeGet(long aHigh, long aLow, long bHigh, long bLow, int ports) {
+    int hash = hash(aHigh, aLow, bHigh, bLow, ports);
+    Stripe stripe = stripe(hash);
+    V value = null;
+    synchronized (stripe) {
+      int now = now();
+      sweep(stripe, now);
+      int i = stripe.find(hash, aHigh, aLow, bHigh, bLow, ports);
+      if (i >= 0 && !expire(stripe, i, now)) {
+        stripe.accessed[i] = now;
+        value = value(stripe, i);
+      }
+    }
+    notifyRemoved(stripe);
+    return value;
+  }
+
+  private boolean stripeReplace(long aHigh, long aLow, long bHigh, long bLow,
+      int ports, V expected, V value) {
+    int hash = hash(aHigh, aLow, bHigh, bLow, ports);
+    Stripe stripe = stripe(hash);
+    boolean replaced;
+    synchronized (stripe) {
+      int now = now();
+      sweep(stripe, now);
+      int i = stripe.find(hash, aHigh, aLow, bHigh, bLow, ports);
+      V current = i < 0 ? null : value(stripe, i);
+      replaced = current == expected;
+      if (replaced && i >= 0) {
+        if (value == null) {
+          stripe.delete(i);
+        } else {
+          stripe.values[i] = value;
+          stripe.accessed[i] = now;
+        }
+        if (current != value) {
+          removed(stripe, current);
+        }
+      } else if (replaced && value != null) {
+        stripe.insert(hash, aHigh, aLow, bHigh, bLow, ports, value, now);
+      }
+    }
+    notifyRemoved(stripe);
+    return replaced;
+  }
+
+  /**
+   * Removes the entry in a stripe's slot if it has expired
+   *
+   * @return true if it was removed
+   */
+  private boolean expire(Stripe stripe, int i, int now) {
+    if (expireAfterAccess <= 0 || stripe.values[i] == null
+        || now - stripe.accessed[i] < expireAfterAccess) {
+      return false;
+    }
+    V value = value(stripe, i);
+    stripe.delete(i);
+    removed(stripe, value);
+    return true;
+  }
+
+  /**
+   * Checks the next few slots of a stripe for expired entries
+   */
+  private void sweep(Stripe stripe, int now) {
+    if (expireAfterAccess <= 0) {
+      return;
+    }
+    for (int n = 0; n < SWEEP; n++) {
+      if (!expire(stripe, stripe.sweep, now)) {
+        stripe.sweep = (stripe.sweep + 1) & (stripe.values.length - 1);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V value(Stripe stripe, int i) {
+    return (V) stripe.values[i];
+  }
+
+  private Stripe stripe(int hash) {
+    // a shift of 32 would leave the hash as it is
+    return stripes.length == 1 ? stripes[0] : stripes[hash >>> stripeShift];
+  }
+
+  /**
+   * Keeps a value that has left a stripe for the listener. The stripe must be
+   * locked.
+   */
+  private void removed(Stripe stripe, V value) {
+    if (listener != null && value != null) {
+      stripe.removed.add(value);
+      stripe.pending = true;
+    }
+  }
+
+  /**
+   * Tells the listener of the values that have left a stripe. The stripe must
+   * not be locked.
+   */
+  @SuppressWarnings("unchecked")
+  private void notifyRemoved(Stripe stripe) {
+    // a thread that misses another's removal leaves it to that thread
+    if (!stripe.pending) {
+      return;
+    }
+    Object[] values;
+    synchronized (stripe) {
+      values = stripe.removed.toArray();
+      stripe.removed.clear();
+      stripe.pending = false;
+    }
+    for (Object value : values) {
+      listener.onRemoval((V) value);
+    }
+  }
+
+  private int now() {
+    return expireAfterAccess > 0 ? (int) (ticker.read() / 1000000) : 0;
+  }
+
+  /**
+   * @return true if the destination endpoint orders before the source, so
+   *         that the key puts it first
+   */
+  private static boolean swap(long sourceHigh, long sourceLow, int sourcePort,
+      long destinationHigh, long destinationLow, int destinationPort) {
+    return sourceHigh != destinationHigh ? sourceHigh > destinationHigh
+        : sourceLow != destinationLow ? sourceLow > destinationLow
+            : sourcePort > destinationPort;
+  }
+
+  private static int ports(int a, int b) {
+    return (a & 0xffff) << 16 | (b & 0xffff);
+  }
+
+  private static int hash(long aHigh, long aLow, long bHigh, long bLow,
+      int ports) {
+    return FlowHash.hash(aHigh, aLow, ports >>> 16, bHigh, bLow,
+        ports & 0xffff);
+  }
+
+  /**
+   * One separately locked part of the table: a linear probing hash table in
+   * parallel arrays, four longs of addresses per slot. An empty slot has no
+   * value.
+   */
+  private static class Stripe {
+    long[]   addresses = new long[INITIAL_CAPACITY * 4];
+    int[]    ports     = new int[INITIAL_CAPACITY];
+    int[]    hashes    = new int[INITIAL_CAPACITY];
+    int[]    accessed  = new int[INITIAL_CAPACITY];
+    Object[] values    = new Object[INITIAL_CAPACITY];
+    int      size;
+    int      sweep;
+
+    // values that have left the stripe, for the listener
+    final ArrayList<Object> removed = new ArrayList<Object>();
+    volatile boolean        pending;
+
+    int find(int hash, long aHigh, long aLow, long bHigh, long bLow, int port) {
+      int mask = values.length - 1;
+      for (int i = hash & mask;; i = (i + 1) & mask) {
+        if (values[i] == null) {
+          return -1;
+        }
+        int k = i << 2;
+        if (hashes[i] == hash && ports[i] == port && addresses[k] == aHigh
+            && addresses[k + 1] == aLow && addresses[k + 2] == bHigh
+            && addresses[k + 3] == bLow) {
+          return i;
+        }
+      }
+    }
+
+    void insert(int hash, long aHigh, long aLow, long bHigh, long bLow,
+        int port, Object value, int now) {
+      if (size + 1 > values.length * LOAD_FACTOR) {
+        grow();
+      }
+      int mask = values.length - 1;
+      int i = hash & mask;
+      while (values[i] != null) {
+        i = (i + 1) & mask;
+      }
+      int k = i << 2;
+      addresses[k] = aHigh;
+      addresses[k + 1] = aLow;
+      addresses[k + 2] = bHigh;
+      addresses[k + 3] = bLow;
+      ports[i] = port;
+      hashes[i] = hash;
+      accessed[i] = now;
+      values[i] = value;
+      size++;
+    }
+
+    /**
+     * Empties a slot, moving back any entry further along its probe sequence
+     * so that no lookup passes an empty slot before reaching its key
+     */
+    void delete(int i) {
+      int mask = values.length - 1;
+      for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+        int home = hashes[j] & mask;
+        // leave the entry if its home slot lies after the hole
+        if (i <= j ? i < home && home <= j : i < home || home <= j) {
+          continue;
+        }
+        move(j, i);
+        i = j;
+      }
+      values[i] = null;
+      size--;
+    }
+
+    private void move(int from, int to) {
+      System.arraycopy(addresses, from << 2, addresses, to << 2, 4);
+      ports[to] = ports[from];
+      hashes[to] = hashes[from];
+      accessed[to] = accessed[from];
+      values[to] = values[from];
+    }
+
+    private void grow() {
+      long[] oldAddresses = addresses;
+      int[] oldPorts = ports;
+      int[] oldHashes = hashes;
+      int[] oldAccessed = accessed;
+      Object[] oldValues = values;
+
+      int capacity = oldValues.length * 2;
+      addresses = new long[capacity * 4];
+      ports = new int[capacity];
+      hashes = new int[capacity];
+      accessed = new int[capacity];
+      values = new Object[capacity];
+      size = 0;
+      sweep = 0;
+      for (int i = 0; i < oldValues.length; i++) {
+        if (oldValues[i] != null) {
+          int k = i << 2;
+          insert(oldHashes[i], oldAddresses[k], oldAddresses[k + 1],
+              oldAddresses[k + 2], oldAddresses[k + 3], oldPorts[i],
+              oldValues[i], oldAccessed[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package org.wayfair.wiff.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the network and transport headers of a captured packet. Where the
+ * network header starts depends on the link-layer header type of the capture,
+ * numbered as in pcap files and by libpcap, and on any VLAN tags.
+ */
+public class LinkLayer {
+  public static final int  ETHERNET       = 1;
+  public static final int  RAW            = 101;
+  public static final int  LINUX_SLL      = 113;
+  public static final int  IPV4           = 228;
+  public static final int  IPV6           = 229;
+  public static final int  LINUX_SLL2     = 276;
+
+  // Raw IP as libpcap numbers it on most platforms, and on OpenBSD
+  public static final int  DLT_RAW        = 12;
+  public static final int  DLT_RAW_BSD    = 14;
+
+  public static final int  ETHERTYPE_IP   = 0x0800;
+  public static final int  ETHERTYPE_IPV6 = 0x86dd;
+
+  private static final int ETHERTYPE_VLAN = 0x8100;
+  private static final int ETHERTYPE_QINQ = 0x88a8;
+  private static final int ETHERTYPE_9100 = 0x9100;
+
+  // The most VLAN tags skipped, two for QinQ
+  private static final int MAX_VLAN_TAGS  = 2;
+
+  // The most IPv6 extension headers walked before the transport header
+  private static final int MAX_EXTENSIONS = 8;
+
+  /**
+   * Finds the IPv4 or IPv6 header of a packet
+   *
+   * @param packet
+   *          the buffer holding the packet
+   * @param start
+   *          the offset of the packet in the buffer
+   * @param end
+   *          the offset just past the end of the packet
+   * @param linkType
+   *          the link-layer header type of the capture
+   * @return the offset of the network header in the buffer, -1 if the packet
+   *         is not IP or is too short to hold the whole header
+   */
+  public static int networkOffset(ByteBuffer packet, int start, int end,
+      int linkType) {
+    int offset;
+    int type;
+    switch (linkType) {
+      case ETHERNET:
+        offset = start + 12;
+        if (offset + 2 > end) {
+          return -1;
+        }
+        type = packet.getShort(offset) & 0xffff;
+        for (int tags = 0; tags < MAX_VLAN_TAGS && isVlan(type); tags++) {
+          offset += 4;
+          if (offset + 2 > end) {
+            return -1;
+          }
+          type = packet.getShort(offset) & 0xffff;
+        }
+        offset += 2;
+        break;
+      case LINUX_SLL:
+        if (start + 16 > end) {
+          return -1;
+        }
+        type = packet.getShort(start + 14) & 0xffff;
+        offset = start + 16;
+        break;
+      case LINUX_SLL2:
+        if (start + 20 > end) {
+          return -1;
+        }
+        type = packet.getShort(start) & 0xffff;
+        offset = start + 20;
+        break;
+      case RAW:
+      case DLT_RAW:
+      case DLT_RAW_BSD:
+      case IPV4:
+      case IPV6:
+        // no link-layer header, the IP version says which it is
+        if (start >= end) {
+          return -1;
+        }
+        type = version(packet, start) == 6 ? ETHERTYPE_IPV6 : ETHERTYPE_IP;
+        offset = start;
+        break;
+      default:
+        return -1;
+    }
+
+    if (type == ETHERTYPE_IP) {
+      return offset + 20 <= end && version(packet, offset) == 4 ? offset : -1;
+    } else if (type == ETHERTYPE_IPV6) {
+      return offset + 40 <= end && version(packet, offset) == 6 ? offset : -1;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the transport header that follows a network header, skipping any
+   * IPv6 extension headers
+   *
+   * @param packet
+   *          the buffer holding the packet
+   * @param ip
+   *          the offset of the network header, as found by networkOffset
+   * @param end
+   *          the offset just past the end of the packet
+   * @return the transport protocol in the high 32 bits and the offset of its
+   *         header in the low 32 bits. The offset is -1 for a fragment other
+   *         than the first, which has no transport header, and both are -1
+   *         if the headers run past the end of the packet or an IPv4 header
+   *         is shorter than 20 bytes.
+   */
+  public static long transport(ByteBuffer packet, int ip, int end) {
+    if (version(packet, ip) == 4) {
+      int headerLength = (packet.get(ip) & 0x0f) * 4;
+      if (headerLength < 20 || ip + headerLength > end) {
+        return -1;
+      }
+      int protocol = packet.get(ip + 9) & 0xff;
+      // only the first fragment carries the transport header
+      if ((packet.getShort(ip + 6) & 0x1fff) != 0) {
+        return pack(protocol, -1);
+      }
+      return pack(protocol, ip + headerLength);
+    }
+
+    int next = packet.get(ip + 6) & 0xff;
+    int offset = ip + 40;
+    for (int i = 0; i < MAX_EXTENSIONS; i++) {
+      switch (next) {
+        case 0: // hop-by-hop options
+        case 43: // routing
+        case 60: // destination options
+          if (offset + 2 > end) {
+            return -1;
+          }
+          next = packet.get(offset) & 0xff;
+          offset += ((packet.get(offset + 1) & 0xff) + 1) * 8;
+          break;
+        case 51: // authentication
+          if (offset + 2 > end) {
+            return -1;
+          }
+          next = packet.get(offset) & 0xff;
+          offset += ((packet.get(offset + 1) & 0xff) + 2) * 4;
+          break;
+        case 44: // fragment
+          if (offset + 8 > end) {
+            return -1;
+          }
+          next = packet.get(offset) & 0xff;
+          if ((packet.getShort(offset + 2) & 0xfff8) != 0) {
+            return pack(next, -1);
+          }
+          offset += 8;
+          break;
+        default:
+          return offset <= end ? pack(next, offset) : -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the transport protocol of a value returned by transport
+   */
+  public static int protocol(long transport) {
+    return (int) (transport >> 32);
+  }
+
+  /**
+   * @return the transport header offset of a value returned by transport
+   */
+  public static int offset(long transport) {
+    return (int) transport;
+  }
+
+  /**
+   * @return the IP version of the network header at an offset
+   */
+  public static int version(ByteBuffer packet, int ip) {
+    return (packet.get(ip) & 0xf0) >> 4;
+  }
+
+  private static boolean isVlan(int type) {
+    return type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ
+        || type == ETHERTYPE_9100;
+  }
+
+  private static long pack(int protocol, int offset) {
+    return (long) protocol << 32 | (offset & 0xffffffffL);
+  }
+}
@@ -0,0 +1,93 @@
+package org.wayfair.wiff.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What WIFF does when packets or messages arrive faster than they can be
+ * processed, and a count of everything dropped because of it.
+ *
+ * The policy applies at three points: taking a buffer from the packet pool,
+ * adding to a bounded queue and adding to a reporter's message queue.
+ */
+public class Overload {
+  private static final AtomicLongArray dropped = new AtomicLongArray(
+                                                   Reasons.values().length);
+
+  public enum Policies {
+    /**
+     * Wait for room. Capture falls behind and the kernel drops packets.
+     */
+    Block,
+
+    /**
+     * Drop whatever is arriving
+     */
+    DropNewest,
+
+    /**
+     * Drop the oldest waiting packet or message to make room
+     */
+    DropOldest,
+
+    /**
+     * Drop every packet of a connection once one of its packets is dropped,
+     * so the connections that are kept are complete. Messages are whole
+     * connections, so for them this is the same as DropNewest.
+     */
+    ShedFlows;
+  }
+
+  public enum Reasons {
+    // A packet was dropped because the pool had no free buffer
+    PoolFull,
+    // A waiting packet was dropped so its buffer could be reused
+    PoolOldest,
+    // A packet was dropped because dropping a waiting packet did not free a
+    // buffer for it, or no packet was waiting
+    PoolOldestMissed,
+    // A packet was dropped because its connection is being shed
+    FlowShed,
+    // An element was dropped because a queue was full
+    QueueFull,
+    // The oldest element of a full queue was dropped
+    QueueOldest,
+    // A message was dropped because a reporter's queue was full
+    ReporterFull,
+    // The oldest message of a reporter's full queue was dropped
+    ReporterOldest;
+  }
+
+  /**
+   * Counts a dropped packet or message
+   *
+   * @param reason
+   *          why it was dropped
+   */
+  public static void drop(Reasons reason) {
+    dropped.incrementAndGet(reason.ordinal());
+  }
+
+  /**
+   * @param reason
+   *          a reason for dropping packets or messages
+   * @return the number dropped for the reason
+   */
+  public static long getDropped(Reasons reason) {
+    return dropped.get(reason.ordinal());
+  }
+
+  /**
+   * @return the number of packets and messages dropped for each reason, for
+   *         the log
+   */
+  public static String summary() {
+    StringBuilder summary = new StringBuilder();
+    for (Reasons reason : Reasons.values()) {
+      if (summary.length() > 0) {
+        summary.append(", ");
+      }
+      summary.append(reason).append(": ").append(getDropped(reason));
+    }
+    return summary.toString();
+  }
+}
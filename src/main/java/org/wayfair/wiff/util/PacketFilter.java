@@ -0,0 +1,364 @@
+package org.wayfair.wiff.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates a subset of the tcpdump filter syntax against captured packets in
+ * Java. This allows capture files to be filtered without libpcap.
+ *
+ * Supported primitives are "ip", "ip6", "tcp", "udp", "[src|dst] host ADDR",
+ * "[src|dst] net ADDR/BITS", "[src|dst] port N" and "[src|dst] portrange N-M",
+ * combined with "and", "or", "not" (or "&&", "||", "!") and parentheses. As in
+ * tcpdump, "ip", "host" and "net" match IPv4 only, while "tcp", "udp" and the
+ * ports match IPv6 as well. Primitives next to each other are joined by an
+ * implicit "and", so a protocol can qualify the primitive after it, as in
+ * "tcp dst port 80".
+ */
+public class PacketFilter {
+  private static final int PROTO_TCP    = 6;
+  private static final int PROTO_UDP    = 17;
+
+  // IP versions matched by the "ip" and "ip6" primitives
+  private static final int IPV4         = -4;
+  private static final int IPV6         = -6;
+
+  private static final int EITHER       = 0;
+  private static final int SRC          = 1;
+  private static final int DST          = 2;
+
+  private final String     expression;
+  private final Node       root;
+
+  private List<String>     tokens;
+  private int              next;
+
+  /**
+   * Compiles a filter expression
+   *
+   * @param expression
+   *          the tcpdump filter expression
+   * @throws IllegalArgumentException
+   *           if the expression uses syntax outside the supported subset
+   */
+  public PacketFilter(String expression) throws IllegalArgumentException {
+    this.expression = expression;
+    tokens = tokenize(expression);
+    next = 0;
+    root = tokens.isEmpty() ? new Accept() : parseOr();
+    if (next < tokens.size()) {
+      throw new IllegalArgumentException("Unexpected token '"
+          + tokens.get(next) + "' in filter: " + expression);
+    }
+    tokens = null;
+  }
+
+  /**
+   * Determines if a packet passes the filter
+   *
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @return true if the packet matches the filter expression
+   */
+  public boolean accept(ByteBuffer packet) {
+    return accept(packet, LinkLayer.ETHERNET);
+  }
+
+  /**
+   * Determines if a packet passes the filter
+   *
+   * @param packet
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the capture, see LinkLayer
+   * @return true if the packet matches the filter expression
+   */
+  public boolean accept(ByteBuffer packet, int linkType) {
+    int end = packet.limit();
+    return root.matches(packet,
+        LinkLayer.networkOffset(packet, packet.position(), end, linkType), end);
+  }
+
+  /**
+   * @return the expression this filter was compiled from
+   */
+  public String getExpression() {
+    return expression;
+  }
+
+  /* Parsing */
+
+  private static List<String> tokenize(String expression) {
+    List<String> list = new ArrayList<String>();
+    String spaced = expression.replace("(", " ( ").replace(")", " ) ")
+        .replace("&&", " and ").replace("||", " or ").replace("!", " not ");
+    for (String token : spaced.trim().split("\\s+")) {
+      if (!token.isEmpty()) {
+        list.add(token.toLowerCase());
+      }
+    }
+    return list;
+  }
+
+  private Node parseOr() {
+    Node node = parseAnd();
+    while (peek("or")) {
+      next++;
+      node = new Or(node, parseAnd());
+    }
+    return node;
+  }
+
+  private Node parseAnd() {
+    Node node = parseNot();
+    // "tcp port 80" is "tcp and port 80"
+    while (peek("and") || (next < tokens.size() && !peek("or") && !peek(")"))) {
+      if (peek("and")) {
+        next++;
+      }
+      node = new And(node, parseNot());
+    }
+    return node;
+  }
+
+  private Node parseNot() {
+    if (peek("not")) {
+      next++;
+      return new Not(parseNot());
+    }
+    if (peek("(")) {
+      next++;
+      Node node = parseOr();
+      expect(")");
+      return node;
+    }
+    return parsePrimitive();
+  }
+
+  private Node parsePrimitive() {
+    String token = take();
+    int direction = EITHER;
+    if (token.equals("src") || token.equals("dst")) {
+      direction = token.equals("src") ? SRC : DST;
+      token = take();
+    }
+
+    if (token.equals("host")) {
+      int address = parseAddress(take());
+      return new Net(direction, address, 0xffffffff);
+    } else if (token.equals("net")) {
+      String value = take();
+      int slash = value.indexOf('/');
+      int bits = slash < 0 ? 32 : parseNumber(value.substring(slash + 1), 32);
+      int mask = bits == 0 ? 0 : 0xffffffff << (32 - bits);
+      int address = parseAddress(slash < 0 ? value : value.substring(0, slash));
+      return new Net(direction, address & mask, mask);
+    } else if (token.equals("port")) {
+      int port = parseNumber(take(), 65535);
+      return new Port(direction, port, port);
+    } else if (token.equals("portrange")) {
+      String[] range = take().split("-");
+      if (range.length != 2) {
+        throw unsupported(token);
+      }
+      return new Port(direction, parseNumber(range[0], 65535), parseNumber(
+          range[1], 65535));
+    } else if (direction == EITHER) {
+      if (token.equals("ip")) {
+        return new Protocol(IPV4);
+      } else if (token.equals("ip6")) {
+        return new Protocol(IPV6);
+      } else if (token.equals("tcp")) {
+        return new Protocol(PROTO_TCP);
+      } else if (token.equals("udp")) {
+        return new Protocol(PROTO_UDP);
+      }
+    }
+    throw unsupported(token);
+  }
+
+  private boolean peek(String token) {
+    return next < tokens.size() && tokens.get(next).equals(token);
+  }
+
+  private String take() {
+    if (next >= tokens.size()) {
+      throw new IllegalArgumentException("Unexpected end of filter: "
+          + expression);
+    }
+    return tokens.get(next++);
+  }
+
+  private void expect(String token) {
+    if (!take().equals(token)) {
+      throw new IllegalArgumentException("Expected '" + token
+          + "' in filter: " + expression);
+    }
+  }
+
+  private int parseNumber(String value, int max) {
+    try {
+      int number = Integer.parseInt(value);
+      if (number >= 0 && number <= max) {
+        return number;
+      }
+    } catch (NumberFormatException e) {
+    }
+    throw unsupported(value);
+  }
+
+  private int parseAddress(String value) {
+    String[] octets = value.split("\\.");
+    if (octets.length != 4) {
+      throw unsupported(value);
+    }
+    int address = 0;
+    for (String octet : octets) {
+      address = (address << 8) | parseNumber(octet, 255);
+    }
+    return address;
+  }
+
+  private IllegalArgumentException unsupported(String token) {
+    return new IllegalArgumentException("Unsupported token '" + token
+        + "' in filter: " + expression);
+  }
+
+  /* Evaluation */
+
+  /**
+   * @return the offset of the IPv4 header, or -1 if the packet is not IPv4
+   */
+  private static int ipOffset(ByteBuffer b, int ip, int end) {
+    return ip >= 0 && LinkLayer.version(b, ip) == 4 ? ip : -1;
+  }
+
+  /**
+   * @return the offset of the TCP or UDP header, or -1 if there is none
+   */
+  private static int transportOffset(ByteBuffer b, int ip, int end) {
+    if (ip < 0) {
+      return -1;
+    }
+    // only the first fragment carries the ports
+    long transport = LinkLayer.transport(b, ip, end);
+    int protocol = LinkLayer.protocol(transport);
+    int offset = LinkLayer.offset(transport);
+    if ((protocol != PROTO_TCP && protocol != PROTO_UDP) || offset < 0) {
+      return -1;
+    }
+    return offset + 4 <= end ? offset : -1;
+  }
+
+  /**
+   * A filter primitive or operator, given the packet's buffer, the offset of
+   * its network header (-1 if it is not IP) and the offset of its end
+   */
+  private interface Node {
+    boolean matches(ByteBuffer b, int ip, int end);
+  }
+
+  private static class Accept implements Node {
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      return true;
+    }
+  }
+
+  private static class And implements Node {
+    private final Node left, right;
+
+    And(Node left, Node right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      return left.matches(b, ip, end) && right.matches(b, ip, end);
+    }
+  }
+
+  private static class Or implements Node {
+    private final Node left, right;
+
+    Or(Node left, Node right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      return left.matches(b, ip, end) || right.matches(b, ip, end);
+    }
+  }
+
+  private static class Not implements Node {
+    private final Node node;
+
+    Not(Node node) {
+      this.node = node;
+    }
+
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      return !node.matches(b, ip, end);
+    }
+  }
+
+  private static class Protocol implements Node {
+    private final int protocol;
+
+    Protocol(int protocol) {
+      this.protocol = protocol;
+    }
+
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      if (protocol == IPV4) {
+        return ipOffset(b, ip, end) >= 0;
+      } else if (protocol == IPV6) {
+        return ip >= 0 && LinkLayer.version(b, ip) == 6;
+      }
+      return ip >= 0
+          && LinkLayer.protocol(LinkLayer.transport(b, ip, end)) == protocol;
+    }
+  }
+
+  private static class Net implements Node {
+    private final int direction, address, mask;
+
+    Net(int direction, int address, int mask) {
+      this.direction = direction;
+      this.address = address;
+      this.mask = mask;
+    }
+
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      if (ipOffset(b, ip, end) < 0) {
+        return false;
+      }
+      boolean src = (b.getInt(ip + 12) & mask) == address;
+      boolean dst = (b.getInt(ip + 16) & mask) == address;
+      return direction == SRC ? src : direction == DST ? dst : src || dst;
+    }
+  }
+
+  private static class Port implements Node {
+    private final int direction, low, high;
+
+    Port(int direction, int low, int high) {
+      this.direction = direction;
+      this.low = Math.min(low, high);
+      this.high = Math.max(low, high);
+    }
+
+    public boolean matches(ByteBuffer b, int ip, int end) {
+      int transport = transportOffset(b, ip, end);
+      if (transport < 0) {
+        return false;
+      }
+      int srcPort = b.getShort(transport) & 0xffff;
+      int dstPort = b.getShort(transport + 2) & 0xffff;
+      boolean src = srcPort >= low && srcPort <= high;
+      boolean dst = dstPort >= low && dstPort <= high;
+      return direction == SRC ? src : direction == DST ? dst : src || dst;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package org.wayfair.wiff.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads packets from a pcap or pcapng capture file without going through
+ * libpcap. The file is memory mapped in windows, so files of any size can be
+ * read, and a file that is still being written to can be read again as it
+ * grows.
+ *
+ * A mapping cannot reach past the end of a file, and is only released once it
+ * is garbage collected. The end of a file that is still growing is therefore
+ * read into a buffer that is reused as it grows, rather than mapped again
+ * each time a few records are appended; only whole windows are mapped.
+ */
+public class PcapFileReader extends PcapReader {
+  // Largest region of the file mapped at once
+  private static final long WINDOW_SIZE = 128 * 1024 * 1024;
+
+  // Mapped windows start on a multiple of this
+  private static final long ALIGNMENT   = 1024 * 1024;
+
+  // Most bytes read at once from the end of a growing file
+  private static final int  TAIL_SIZE   = 1024 * 1024;
+
+  private final File        file;
+  private RandomAccessFile  raf;
+  private FileChannel       channel;
+
+  // Whether the file may still be written to
+  private final boolean     tail;
+
+  // The end of a growing file, read rather than mapped
+  private ByteBuffer        tailBuffer;
+
+  /**
+   * Opens a capture file for reading
+   *
+   * @param file
+   *          the pcap or pcapng file to read
+   * @throws IOException
+   */
+  public PcapFileReader(File file) throws IOException {
+    this(file, false);
+  }
+
+  /**
+   * Opens a capture file for reading
+   *
+   * @param file
+   *          the pcap or pcapng file to read
+   * @param tail
+   *          true if the file may still be written to, in which case its end
+   *          is read rather than mapped
+   * @throws IOException
+   */
+  public PcapFileReader(File file, boolean tail) throws IOException {
+    super(file.getPath());
+    this.file = file;
+    this.tail = tail;
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.util.PcapReader#ensure(long, int)
+   */
+  @Override
+  protected boolean ensure(long start, int length) throws IOException {
+    long end = start + length;
+    if (window != null && start >= windowStart
+        && end <= windowStart + window.limit()) {
+      return true;
+    }
+
+    long size = channel.size();
+    if (end > size) {
+      return false;
+    }
+
+    // a whole window is mapped once, and used until the reader passes its end
+    long mapStart = start - start % ALIGNMENT;
+    long mapLength = Math.max(WINDOW_SIZE, end - mapStart);
+    if (mapStart + mapLength <= size) {
+      setWindow(channel.map(FileChannel.MapMode.READ_ONLY, mapStart,
+          mapLength), mapStart);
+    } else if (!tail) {
+      // the last window of a file that is not growing
+      setWindow(channel.map(FileChannel.MapMode.READ_ONLY, mapStart, size
+          - mapStart), mapStart);
+    } else {
+      return read(start, length, size);
+    }
+    return true;
+  }
+
+  /**
+   * Reads the end of a growing file into the tail buffer, from the first byte
+   * the reader has yet to pass
+   *
+   * @return false if the region could not be read, as the file was truncated
+   */
+  private boolean read(long start, int length, long size) throws IOException {
+    int capacity = Math.max(TAIL_SIZE, length);
+    if (tailBuffer == null || tailBuffer.capacity() < capacity) {
+      tailBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+    tailBuffer.clear();
+    tailBuffer.limit((int) Math.min(tailBuffer.capacity(), size - start));
+    while (tailBuffer.hasRemaining()) {
+      if (channel.read(tailBuffer, start + tailBuffer.position()) < 0) {
+        break;
+      }
+    }
+    tailBuffer.flip();
+    setWindow(tailBuffer, start);
+    return tailBuffer.limit() >= length;
+  }
+
+  private void setWindow(ByteBuffer buffer, long start) {
+    window = buffer;
+    window.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+    windowStart = start;
+    packet = window.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the file being read
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    window = null;
+    packet = null;
+    tailBuffer = null;
+    channel.close();
+    raf.close();
+  }
+}
@@ -0,0 +1,396 @@
+package org.wayfair.wiff.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads packets from pcap or pcapng data without going through libpcap. The
+ * record headers are walked in place in a window of the data supplied by the
+ * subclass; each packet is exposed as a view onto that window, so no data is
+ * copied until the caller copies it.
+ *
+ * The reader never consumes a partial record. If the end of the data is reached
+ * in the middle of a record, nextPacket returns null and the offset of that
+ * record is kept, so a later call picks it up once the rest is available.
+ */
+public abstract class PcapReader implements Closeable {
+  // pcap magic numbers (as read big endian)
+  private static final int  PCAP_MAGIC         = 0xa1b2c3d4;
+  private static final int  PCAP_MAGIC_SWAPPED = 0xd4c3b2a1;
+  private static final int  PCAP_NSEC          = 0xa1b23c4d;
+  private static final int  PCAP_NSEC_SWAPPED  = 0x4d3cb2a1;
+
+  // pcapng block types
+  private static final int  SECTION_HEADER     = 0x0a0d0d0a;
+  private static final int  INTERFACE_DESC     = 0x00000001;
+  private static final int  OBSOLETE_PACKET    = 0x00000002;
+  private static final int  SIMPLE_PACKET      = 0x00000003;
+  private static final int  ENHANCED_PACKET    = 0x00000006;
+  private static final int  BYTE_ORDER_MAGIC   = 0x1a2b3c4d;
+
+  private static final int  PCAP_HEADER_LENGTH = 24;
+  private static final int  MAX_INTERFACES     = 256;
+
+  private final String      name;
+
+  // The region of the data currently available, and a view for packets
+  protected ByteBuffer      window;
+  protected long            windowStart;
+  protected ByteBuffer      packet;
+
+  private boolean           pcapng;
+  private boolean           headerRead;
+  protected ByteOrder       order;
+  private long              offset;
+
+  // pcap: one link type and resolution for the whole file
+  private int               linkType           = -1;
+  private boolean           nanoseconds;
+
+  // pcapng: per interface link type, snap length and resolution
+  private int[]             ifLinkTypes        = new int[MAX_INTERFACES];
+  private int[]             ifSnapLengths      = new int[MAX_INTERFACES];
+  private long[]            ifTsUnits          = new long[MAX_INTERFACES];
+  private int               ifCount;
+
+  private long              timestamp;
+  private int               capturedLength;
+  private int               originalLength;
+  private int               interfaceId;
+
+  /**
+   * @param name
+   *          a name for the data being read, used in error messages
+   */
+  protected PcapReader(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Advances to the next packet
+   *
+   * @return a read-only view of the packet's bytes, positioned at its first
+   *         byte and limited to its captured length, or null if no complete
+   *         packet is available. The view is reused by the next call.
+   * @throws IOException
+   *           if the data is not pcap or pcapng
+   */
+  public ByteBuffer nextPacket() throws IOException {
+    if (!headerRead && !readFileHeader()) {
+      return null;
+    }
+    return pcapng ? nextBlock() : nextRecord();
+  }
+
+  /**
+   * Reads the pcap global header or determines that the data is pcapng
+   *
+   * @return true if the header was read, false if it is not yet complete
+   * @throws IOException
+   */
+  private boolean readFileHeader() throws IOException {
+    if (!ensure(0, PCAP_HEADER_LENGTH)) {
+      return false;
+    }
+    window.order(ByteOrder.BIG_ENDIAN);
+    int magic = window.getInt(0);
+    switch (magic) {
+      case PCAP_MAGIC:
+      case PCAP_NSEC:
+        order = ByteOrder.BIG_ENDIAN;
+        break;
+      case PCAP_MAGIC_SWAPPED:
+      case PCAP_NSEC_SWAPPED:
+        order = ByteOrder.LITTLE_ENDIAN;
+        break;
+      case SECTION_HEADER:
+        pcapng = true;
+        headerRead = true;
+        return true;
+      default:
+        throw new IOException(name + " is not a pcap or pcapng file");
+    }
+    nanoseconds = magic == PCAP_NSEC || magic == PCAP_NSEC_SWAPPED;
+    window.order(order);
+    linkType = window.getInt(20);
+    offset = PCAP_HEADER_LENGTH;
+    headerRead = true;
+    return true;
+  }
+
+  /**
+   * Reads the next pcap record
+   *
+   * @return the packet's bytes or null if no complete record is available
+   * @throws IOException
+   */
+  private ByteBuffer nextRecord() throws IOException {
+    if (!ensure(offset, 16)) {
+      return null;
+    }
+    int at = (int) (offset - windowStart);
+    long seconds = window.getInt(at) & 0xffffffffL;
+    long fraction = window.getInt(at + 4) & 0xffffffffL;
+    int caplen = window.getInt(at + 8);
+    int len = window.getInt(at + 12);
+
+    if (caplen < 0 || caplen > 0x40000) {
+      throw new IOException("Corrupt record at offset " + offset + " in "
+          + name);
+    }
+    if (!ensure(offset, 16 + caplen)) {
+      return null;
+    }
+    at = (int) (offset - windowStart);
+
+    timestamp = seconds * 1000000 + (nanoseconds ? fraction / 1000 : fraction);
+    capturedLength = caplen;
+    originalLength = len;
+    interfaceId = 0;
+    offset += 16 + caplen;
+    return view(at + 16, caplen);
+  }
+
+  /**
+   * Reads pcapng blocks until a packet block is found
+   *
+   * @return the packet's bytes or null if no complete block is available
+   * @throws IOException
+   */
+  private ByteBuffer nextBlock() throws IOException {
+    while (ensure(offset, 12)) {
+      int at = (int) (offset - windowStart);
+
+      // the section header type reads the same in either byte order
+      int type = window.getInt(at);
+      if (type == SECTION_HEADER) {
+        window.order(ByteOrder.BIG_ENDIAN);
+        int magic = window.getInt(at + 8);
+        if (magic == BYTE_ORDER_MAGIC) {
+          order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == BYTE_ORDER_MAGIC) {
+          order = ByteOrder.LITTLE_ENDIAN;
+        } else {
+          throw new IOException("Bad pcapng byte order magic in " + name);
+        }
+        // interface ids are local to a section
+        ifCount = 0;
+      }
+      window.order(order);
+
+      int length = window.getInt(at + 4);
+      if (length < 12 || (length & 3) != 0) {
+        throw new IOException("Corrupt block at offset " + offset + " in "
+            + name);
+      }
+      if (!ensure(offset, length)) {
+        return null;
+      }
+      at = (int) (offset - windowStart);
+      offset += length;
+
+      switch (type) {
+        case INTERFACE_DESC:
+          if (length < 20) {
+            throw corruptBlock(length);
+          }
+          readInterface(at, length);
+          break;
+        case ENHANCED_PACKET:
+          return enhancedPacket(at, length);
+        case OBSOLETE_PACKET:
+          return obsoletePacket(at, length);
+        case SIMPLE_PACKET:
+          return simplePacket(at, length);
+        default:
+          // section headers, statistics, name resolution, custom blocks...
+          break;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Records the link type, snap length and timestamp resolution of an
+   * interface description block
+   */
+  private void readInterface(int at, int length) {
+    if (ifCount == MAX_INTERFACES) {
+      return;
+    }
+    ifLinkTypes[ifCount] = window.getShort(at + 8) & 0xffff;
+    ifSnapLengths[ifCount] = window.getInt(at + 12);
+
+    // default resolution is microseconds
+    long units = 1000000;
+    int option = at + 16;
+    int end = at + length - 4;
+    while (option + 4 <= end) {
+      int code = window.getShort(option) & 0xffff;
+      int optionLength = window.getShort(option + 2) & 0xffff;
+      if (code == 0) {
+        break;
+      }
+      if (code == 9 && optionLength == 1) {
+        // if_tsresol: power of 10, or of 2 if the high bit is set
+        int resolution = window.get(option + 4);
+        units = (resolution & 0x80) != 0 ? 1L << (resolution & 0x7f)
+            : pow10(resolution);
+      }
+      option += 4 + ((optionLength + 3) & ~3);
+    }
+    ifTsUnits[ifCount] = units;
+    ifCount++;
+  }
+
+  private ByteBuffer enhancedPacket(int at, int length) throws IOException {
+    capturedLength = packetLength(at, length);
+    interfaceId = window.getInt(at + 8);
+    long ts = (window.getInt(at + 12) & 0xffffffffL) << 32
+        | (window.getInt(at + 16) & 0xffffffffL);
+    originalLength = window.getInt(at + 24);
+    timestamp = toMicros(ts, interfaceId);
+    return view(at + 28, capturedLength);
+  }
+
+  private ByteBuffer obsoletePacket(int at, int length) throws IOException {
+    capturedLength = packetLength(at, length);
+    interfaceId = window.getShort(at + 8) & 0xffff;
+    long ts = (window.getInt(at + 12) & 0xffffffffL) << 32
+        | (window.getInt(at + 16) & 0xffffffffL);
+    originalLength = window.getInt(at + 24);
+    timestamp = toMicros(ts, interfaceId);
+    return view(at + 28, capturedLength);
+  }
+
+  private ByteBuffer simplePacket(int at, int length) throws IOException {
+    if (length < 16) {
+      throw corruptBlock(length);
+    }
+    interfaceId = 0;
+    originalLength = window.getInt(at + 8);
+
+    // the captured length is implied by the block length and snap length
+    capturedLength = Math.min(originalLength, length - 16);
+    if (ifCount > 0 && ifSnapLengths[0] > 0) {
+      capturedLength = Math.min(capturedLength, ifSnapLengths[0]);
+    }
+    if (capturedLength < 0) {
+      throw corruptBlock(length);
+    }
+    timestamp = 0;
+    return view(at + 12, capturedLength);
+  }
+
+  /**
+   * Reads the captured length of an enhanced or obsolete packet block, whose
+   * packet follows a 28 byte header and is followed by the block length
+   *
+   * @throws IOException
+   *           if the packet does not fit in the block
+   */
+  private int packetLength(int at, int length) throws IOException {
+    int caplen = length < 32 ? -1 : window.getInt(at + 20);
+    if (caplen < 0 || caplen > length - 32) {
+      throw corruptBlock(length);
+    }
+    return caplen;
+  }
+
+  /**
+   * @return the error for the block just read, which the offset has passed
+   */
+  private IOException corruptBlock(int length) {
+    return new IOException("Corrupt block at offset " + (offset - length)
+        + " in " + name);
+  }
+
+  private long toMicros(long ts, int id) {
+    long units = id < ifCount ? ifTsUnits[id] : 1000000;
+    if (units == 1000000) {
+      return ts;
+    }
+    return (long) (ts * (1000000d / units));
+  }
+
+  private static long pow10(int exponent) {
+    long result = 1;
+    for (int i = 0; i < exponent; i++) {
+      result *= 10;
+    }
+    return result;
+  }
+
+  /**
+   * Points the reusable packet view at a region of the current window
+   */
+  private ByteBuffer view(int position, int length) {
+    packet.limit(packet.capacity());
+    packet.position(position);
+    packet.limit(position + length);
+    return packet;
+  }
+
+  /**
+   * Makes sure the given region of the data is in the window, moving the window
+   * if needed. The window's order must be set to the current byte order, and
+   * the packet view must be a view of the window.
+   *
+   * @param start
+   *          the offset of the region from the start of the data
+   * @param length
+   *          the length of the region
+   * @return false if the data does not (yet) contain the whole region
+   * @throws IOException
+   */
+  protected abstract boolean ensure(long start, int length) throws IOException;
+
+  /**
+   * @return the data link type of the last packet read (or of the file, for
+   *         pcap files), -1 if it is not yet known
+   */
+  public int getLinkType() {
+    if (pcapng) {
+      return interfaceId < ifCount ? ifLinkTypes[interfaceId] : -1;
+    }
+    return linkType;
+  }
+
+  /**
+   * @return the capture timestamp of the last packet read, in microseconds
+   *         since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the number of bytes captured for the last packet read
+   */
+  public int getCapturedLength() {
+    return capturedLength;
+  }
+
+  /**
+   * @return the length of the last packet read as it was on the wire
+   */
+  public int getOriginalLength() {
+    return originalLength;
+  }
+
+  /**
+   * @return the offset of the next record to be read
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the name of the data being read
+   */
+  public String getName() {
+    return name;
+  }
+}
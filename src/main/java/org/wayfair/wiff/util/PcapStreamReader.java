@@ -0,0 +1,99 @@
+package org.wayfair.wiff.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads packets from a stream of pcap or pcapng data, such as a decompressed
+ * capture file. The stream is read into a buffer and records are walked in
+ * place in that buffer; only the unread tail of the buffer is moved when it is
+ * refilled.
+ */
+public class PcapStreamReader extends PcapReader {
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final InputStream in;
+  private boolean           eof;
+
+  /**
+   * @param in
+   *          the stream of pcap or pcapng data
+   * @param name
+   *          a name for the stream, used in error messages
+   */
+  public PcapStreamReader(InputStream in, String name) {
+    this(in, name, BUFFER_SIZE);
+  }
+
+  /**
+   * @param in
+   *          the stream of pcap or pcapng data
+   * @param name
+   *          a name for the stream, used in error messages
+   * @param bufferSize
+   *          the initial size of the buffer. It grows if a record is larger.
+   */
+  public PcapStreamReader(InputStream in, String name, int bufferSize) {
+    super(name);
+    this.in = in;
+    window = ByteBuffer.allocate(bufferSize);
+    window.limit(0);
+    packet = window.asReadOnlyBuffer();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.util.PcapReader#ensure(long, int)
+   */
+  @Override
+  protected boolean ensure(long start, int length) throws IOException {
+    long end = start + length;
+    if (start >= windowStart && end <= windowStart + window.limit()) {
+      return true;
+    }
+    if (eof) {
+      return false;
+    }
+
+    // Records are read in order, so everything before start has been used
+    int from = (int) (start - windowStart);
+    int kept = window.limit() - from;
+
+    ByteBuffer buffer = window;
+    if (length > buffer.capacity()) {
+      buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+    }
+    System.arraycopy(window.array(), from, buffer.array(), 0, kept);
+
+    byte[] bytes = buffer.array();
+    int filled = kept;
+    while (filled < length) {
+      int read = in.read(bytes, filled, bytes.length - filled);
+      if (read < 0) {
+        eof = true;
+        break;
+      }
+      filled += read;
+    }
+
+    window = buffer;
+    window.clear();
+    window.limit(filled);
+    window.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+    windowStart = start;
+    packet = window.asReadOnlyBuffer();
+    return filled >= length;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,188 @@
+package org.wayfair.wiff.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a stream ahead of its consumer on a separate thread. Any work done by
+ * the wrapped stream, such as decompression, happens on that thread while the
+ * consumer works on data that has already been read. At most a fixed number of
+ * chunks are read ahead.
+ */
+public class ReadAheadInputStream extends InputStream {
+  private static final byte[]              END    = new byte[0];
+
+  private final InputStream                in;
+  private final int                        chunkSize;
+  private final ArrayBlockingQueue<byte[]> chunks;
+  private final ArrayBlockingQueue<byte[]> free;
+  private final Thread                     thread;
+
+  private byte[]                           current;
+  private int                              position;
+
+  private volatile IOException             error;
+  private volatile boolean                 closed;
+
+  private final Logger                     LOGGER = Logger.getLogger(this
+                                                      .getClass());
+
+  /**
+   * Reads ahead up to 16 chunks of 64 KB
+   *
+   * @param in
+   *          the stream to read
+   * @param name
+   *          the name of the reading thread
+   */
+  public ReadAheadInputStream(InputStream in, String name) {
+    this(in, name, 64 * 1024, 16);
+  }
+
+  /**
+   * @param in
+   *          the stream to read
+   * @param name
+   *          the name of the reading thread
+   * @param chunkSize
+   *          the number of bytes read at a time
+   * @param capacity
+   *          the number of chunks that may be read ahead
+   */
+  public ReadAheadInputStream(InputStream in, String name, int chunkSize,
+      int capacity) {
+    this.in = in;
+    this.chunkSize = chunkSize;
+    chunks = new ArrayBlockingQueue<byte[]>(capacity + 1);
+    free = new ArrayBlockingQueue<byte[]>(capacity + 1);
+
+    thread = new Thread(new Runnable() {
+      public void run() {
+        readAhead();
+      }
+    });
+    thread.setName(name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Fills chunks from the wrapped stream until it ends or this stream is closed
+   */
+  private void readAhead() {
+    try {
+      while (!closed) {
+        byte[] chunk = free.poll();
+        if (chunk == null) {
+          chunk = new byte[chunkSize];
+        }
+
+        int filled = 0;
+        int read = 0;
+        while (filled < chunk.length
+            && (read = in.read(chunk, filled, chunk.length - filled)) >= 0) {
+          filled += read;
+        }
+
+        if (filled > 0) {
+          chunks.put(filled < chunk.length ? Arrays.copyOf(chunk, filled)
+              : chunk);
+        }
+        if (read < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      error = e;
+    } catch (InterruptedException e) {
+      return;
+    }
+    try {
+      chunks.put(END);
+    } catch (InterruptedException e) {
+      LOGGER.debug("", e);
+    }
+  }
+
+  /**
+   * Makes the next chunk current if the current one has been read
+   *
+   * @return false at the end of the stream
+   * @throws IOException
+   */
+  private boolean nextChunk() throws IOException {
+    if (current == END) {
+      return false;
+    }
+    if (current != null && position < current.length) {
+      return true;
+    }
+    if (current != null && current.length == chunkSize) {
+      free.offer(current);
+    }
+
+    try {
+      current = chunks.take();
+      position = 0;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException(e.getMessage());
+    }
+
+    if (current == END) {
+      if (error != null) {
+        throw error;
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.InputStream#read()
+   */
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk()) {
+      return -1;
+    }
+    return current[position++] & 0xff;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int count = Math.min(len, current.length - position);
+    System.arraycopy(current, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.InputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    thread.interrupt();
+    in.close();
+  }
+}
@@ -0,0 +1,155 @@
+package org.wayfair.wiff.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The segments of one direction of a TCP stream that arrived ahead of the
+ * bytes before them, ordered by sequence number. Sequence numbers are
+ * unwrapped to 64 bits around the next one expected, so the order holds across
+ * the 32-bit wrap. Each byte is held once: a segment overlapping what is held,
+ * or what has been written, is trimmed to the bytes that are new.
+ */
+class SegmentStore {
+  private final TreeMap<Long, TcpFragment> segments = new TreeMap<Long, TcpFragment>();
+
+  // The segment with the lowest sequence number, kept to be looked at cheaply
+  private Map.Entry<Long, TcpFragment>     first;
+  private int                              bytes;
+
+  /**
+   * @param sequence
+   *          a 32-bit sequence number
+   * @param expected
+   *          the unwrapped sequence number expected next
+   * @return the sequence number unwrapped to the 64-bit value nearest expected
+   */
+  static long unwrap(long sequence, long expected) {
+    return expected + (int) (sequence - expected);
+  }
+
+  /**
+   * Stores the bytes of a segment that are not held already
+   *
+   * @param start
+   *          the unwrapped sequence number of the segment's first byte
+   * @param acknowledge
+   *          the segment's acknowledge number
+   * @param data
+   *          the segment's payload
+   * @param expected
+   *          the unwrapped sequence number expected next, before which bytes
+   *          have already been written
+   */
+  void add(long start, long acknowledge, byte[] data, long expected) {
+    long end = start + data.length;
+    long from = Math.max(start, expected);
+
+    // skip what the segment before this one holds already
+    Map.Entry<Long, TcpFragment> before = segments.floorEntry(from);
+    if (before != null) {
+      from = Math.max(from, before.getKey() + before.getValue().data.length);
+    }
+
+    // then fill the gaps between the segments held after it
+    while (from < end) {
+      Map.Entry<Long, TcpFragment> next = segments.ceilingEntry(from);
+      long to = next == null ? end : Math.min(end, next.getKey());
+      if (to > from) {
+        byte[] piece = from == start && to == end ? data : Arrays.copyOfRange(
+            data, (int) (from - start), (int) (to - start));
+        put(from, new TcpFragment(from & 0xffffffffL, acknowledge, piece,
+            false, true, false));
+      }
+      if (next == null) {
+        break;
+      }
+      from = Math.max(from, next.getKey() + next.getValue().data.length);
+    }
+  }
+
+  /**
+   * Drops or trims the segments that start before a sequence number, as their
+   * bytes have been written
+   *
+   * @param expected
+   *          the unwrapped sequence number expected next
+   */
+  void discard(long expected) {
+    while (first != null && first.getKey() < expected) {
+      long start = first.getKey();
+      TcpFragment fragment = removeFirst();
+      if (start + fragment.data.length > expected) {
+        // keep the bytes not yet written
+        put(expected, new TcpFragment(expected & 0xffffffffL,
+            fragment.ack_no, Arrays.copyOfRange(fragment.data,
+                (int) (expected - start), fragment.data.length), false, true,
+            false));
+      }
+    }
+  }
+
+  /**
+   * @return the unwrapped sequence number of the first segment held
+   */
+  long firstStart() {
+    return first.getKey();
+  }
+
+  /**
+   * @return the first segment held, null if there is none
+   */
+  TcpFragment first() {
+    return first == null ? null : first.getValue();
+  }
+
+  /**
+   * Removes the first segment held
+   *
+   * @return the segment removed
+   */
+  TcpFragment removeFirst() {
+    TcpFragment fragment = segments.pollFirstEntry().getValue();
+    bytes -= fragment.data.length;
+    first = segments.firstEntry();
+    return fragment;
+  }
+
+  /**
+   * @return the number of payload bytes held
+   */
+  int bytes() {
+    return bytes;
+  }
+
+  /**
+   * @return true if no segment is held
+   */
+  boolean isEmpty() {
+    return first == null;
+  }
+
+  /**
+   * Removes every segment held
+   *
+   * @return the segments, with their 32-bit sequence numbers
+   */
+  List<TcpFragment> clear() {
+    List<TcpFragment> all = new ArrayList<TcpFragment>(segments.values());
+    segments.clear();
+    first = null;
+    bytes = 0;
+    return all;
+  }
+
+  private void put(long start, TcpFragment fragment) {
+    segments.put(start, fragment);
+    bytes += fragment.data.length;
+    if (first == null || start < first.getKey()) {
+      first = segments.firstEntry();
+    }
+  }
+}
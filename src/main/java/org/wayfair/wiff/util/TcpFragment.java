@@ -0,0 +1,41 @@
+package org.wayfair.wiff.util;
+
+/**
+ * A TCP segment's payload and the header fields reassembly needs, kept until
+ * the segment can be put in its place in the stream
+ */
+class TcpFragment {
+  public long   seq_no = 0;
+  public long   ack_no = 0;
+  public byte[] data   = null;
+  public boolean syn, ack, fin;
+  // the sender, to tell the direction once the handshake is seen
+  public int    src_addr, src_port;
+
+  /**
+   * Creates an object containing information needed to put a TCP packet's
+   * payload in the right place within a TCP stream
+   * 
+   * @param sequence
+   *          the packet's sequence number
+   * @param acknowledge
+   *          the packet's acknowledge number
+   * @param data
+   *          the packet's payload
+   * @param syn
+   *          indicates whether the SYN flag raised on this packet
+   * @param ack
+   *          indicates whether the ACK flag raised on this packet
+   * @param fin
+   *          indicates whether the FIN flag raised on this packet
+   */
+  public TcpFragment(long sequence, long acknowledge, byte[] data, boolean syn,
+      boolean ack, boolean fin) {
+    seq_no = sequence;
+    ack_no = acknowledge;
+    this.data = data;
+    this.syn = syn;
+    this.ack = ack;
+    this.fin = fin;
+  }
+}
\ No newline at end of file
@@ -1,28 +1,83 @@
 package org.wayfair.wiff.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.wayfair.wiff.core.Wiff;
 import org.wayfair.wiff.util.WiffPacket;
 import org.wayfair.wiff.util.ssl.SSLDecryptor;
 
+/**
+ * Reassembles the TCP stream of one connection. It is not thread safe, so the
+ * packets of a connection must be passed in by one thread at a time.
+ * 
+ * Segments that arrive early wait in a store per direction, ordered by
+ * sequence number, until the bytes before them have been written. Sequence
+ * numbers are compared modulo 2^32, so streams may wrap.
+ * 
+ * A segment lost in capture holds back everything after it. Given a budget,
+ * the reconstructor gives up on such a gap once too many bytes wait behind it,
+ * or once they have waited too long, and carries on from the bytes after it.
+ * The ranges skipped are listed with the connection's addresses at the start
+ * of the stream.
+ * 
+ * The stream is written into the chunks of a ByteRope, straight from the
+ * packets' buffers when the bytes arrive in order, and handed over as it is.
+ */
 public class TcpReconstructor {
+  // How far from the next sequence number expected a segment may be stored
+  private static final int        WINDOW        = 1 << 30;
+
+  // No FIN seen yet, or nothing waiting
+  private static final long       NONE          = Long.MIN_VALUE;
+
+  // The most ranges skipped that are listed, past which they are only counted
+  private static final int        MAX_GAPS      = 32;
+
   private int[]                   src_addr      = new int[2];
   private int[]                   src_port      = new int[2];
+  // the next sequence number expected, unwrapped to 64 bits
   private long[]                  seq_no        = new long[2];
   private boolean[]               finished      = new boolean[2];
   private static int              ssl_port;
   private String                  serverIP;
 
+  // the early segments of each direction, and where each direction's FIN is
+  private SegmentStore[]          segments      = { new SegmentStore(),
+      new SegmentStore()                       };
+  private long[]                  fin_at        = { NONE, NONE };
+  private long[]                  fin_ack       = new long[2];
+
+  // where each direction of the current stream starts, to place gaps in it
+  private long[]                  isn           = new long[2];
+
+  // how much may wait behind a gap, and for how long, before it is skipped
+  private int                     gap_bytes;
+  private long                    gap_time;
+  private long                    time;
+  private long                    stalled_since = NONE;
+  private List<long[]>            gaps          = new ArrayList<long[]>();
+  private long                    missing_bytes;
+
+  /*
+   * Segments that cannot be placed yet: those from before the handshake, the
+   * handshakes of later streams on the same connection, and segments too far
+   * from the sequence numbers expected to belong to this stream
+   */
   private LinkedList<TcpFragment> fragments     = new LinkedList<TcpFragment>();
 
-  private LinkedList<byte[]>      out           = new LinkedList<byte[]>();
-
-  private int                     bytes_written = 0;
+  // the connection's addresses, written ahead of the stream
+  private String                  header;
+  // the connection's flow hash, taken from its handshake
+  private int                     flow;
+  private ByteRope                out           = new ByteRope();
+  private int                     writes;
 
   private final Logger            LOGGER        = Logger.getLogger(this
                                                     .getClass());
@@ -41,6 +96,32 @@ public class TcpReconstructor {
     decryptor = new SSLDecryptor(privateKeyFile);
   }
 
+  /**
+   * Sets how long the bytes after a lost segment wait for it. Once either
+   * budget runs out the gap is skipped. Closing the stream skips any gaps
+   * left, if either budget is set.
+   * 
+   * @param bytes
+   *          the most bytes held waiting for gaps to be filled, 0 for no limit
+   * @param time
+   *          the longest a stream waits for a gap to be filled, on the
+   *          packets' timestamps, 0 for no limit
+   * @param unit
+   *          the unit of time
+   */
+  public void setGapBudget(int bytes, long time, TimeUnit unit) {
+    gap_bytes = bytes;
+    gap_time = unit.toMicros(time);
+  }
+
+  /**
+   * @return the number of bytes skipped because the segments carrying them
+   *         were not seen
+   */
+  public long getMissingBytes() {
+    return missing_bytes;
+  }
+
   /**
    * Puts this packet's payload in its proper location with in the TCP stream,
    * or creates a fragment if it cannot find its location.
@@ -50,14 +131,38 @@ public class TcpReconstructor {
    * @return true, if this packet completes the TCP stream, otherwise false.
    * @throws IOException
    */
-  public synchronized boolean ReassemblePacket(WiffPacket p) throws IOException {
-    if (isClosed()) {
+  public boolean ReassemblePacket(WiffPacket p) throws IOException {
+    return ReassemblePacket(p, p.getTimestamp());
+  }
+
+  /**
+   * Puts this packet's payload in its proper location with in the TCP stream,
+   * or creates a fragment if it cannot find its location.
+   * 
+   * @param p
+   *          the packet object describing this packet
+   * @param timestamp
+   *          the time the packet was seen, in microseconds
+   * @return true, if this packet completes the TCP stream, otherwise false.
+   * @throws IOException
+   */
+  public boolean ReassemblePacket(WiffPacket p, long timestamp)
+      throws IOException {
+    if (isClosed() || !p.hasTcpHeader()) {
       return false;
     }
-    return reassemble_tcp(p.getSequenceNumber(), p.getAckNumber(),
-        p.getTcpPayload(), p.isSyn(), p.isFin(), p.isAck(), p.isPSH(),
+    time = timestamp;
+    // the addresses are only written out from the handshake, and the payload
+    // is copied straight from the packet if it is written out at once
+    boolean syn = p.isSyn();
+    if (syn) {
+      flow = FlowHash.hash(p);
+    }
+    return reassemble(p.getSequenceNumber(), p.getAckNumber(),
+        p.getTcpPayloadBuffer(), syn, p.isFin(), p.isAck(), p.isPSH(),
         p.getSourceIPAsInt(), p.getSourcePort(), p.getDestinationIPAsInt(),
-        p.getDestinationPort(), p.getSourceIP(), p.getDestinationIP());
+        p.getDestinationPort(), syn ? p.getSourceIP() : null,
+        syn ? p.getDestinationIP() : null);
   }
 
   /**
@@ -93,6 +198,22 @@ public class TcpReconstructor {
       boolean synflag, boolean finflag, boolean ackflag, boolean pshflag,
       int net_src, int srcport, int net_dst, int dstport, String src_ip,
       String dst_ip) throws IOException {
+    if (synflag) {
+      flow = FlowHash.hash(net_src, srcport, net_dst, dstport);
+    }
+    return reassemble(sequence, acknowledge, ByteBuffer.wrap(data), synflag,
+        finflag, ackflag, pshflag, net_src, srcport, net_dst, dstport, src_ip,
+        dst_ip);
+  }
+
+  /**
+   * As reassemble_tcp, with the payload in a buffer that is only read during
+   * the call. Its bytes are copied if they are kept.
+   */
+  private boolean reassemble(long sequence, long acknowledge,
+      ByteBuffer data, boolean synflag, boolean finflag, boolean ackflag,
+      boolean pshflag, int net_src, int srcport, int net_dst, int dstport,
+      String src_ip, String dst_ip) throws IOException {
 
     int src_index = -1;
 
@@ -104,26 +225,21 @@ public class TcpReconstructor {
         src_addr[src_index] = net_src;
         src_port[src_index] = srcport;
         seq_no[src_index] = sequence + 1;
+        isn[src_index] = seq_no[src_index];
         LOGGER.debug("SYN: " + sequence + " " + src_index);
 
         if (src_index == 1) {
-          byte[] tmp = ("\"source_ip\" : \"" + dst_ip
-              + "\", \"source_port\" : \"" + dstport
-              + "\", \"destination_ip\" : \"" + src_ip
-              + "\", \"destination_port\" : \"" + srcport + "\"\r\n")
-              .getBytes();
-          out.add(tmp);
-          bytes_written += tmp.length;
+          // record the connection's sample rate so counts can be scaled back
+          FlowSampler sampler = Wiff.getSampler();
+          String sampleRate = sampler == null ? "" : ", \"sample_rate\" : "
+              + sampler.getRate(flow);
+
+          header = "\"source_ip\" : \"" + dst_ip + "\", \"source_port\" : \""
+              + dstport + "\", \"destination_ip\" : \"" + src_ip
+              + "\", \"destination_port\" : \"" + srcport + "\"" + sampleRate;
           serverIP = src_ip;
         }
 
-        /*
-         * Due to multi-threading we could have fragments before the connection
-         * is established. Grab any packets we are expecting.
-         */
-        while (check_fragments())
-          ;
-
         /*
          * We can derive the client info if the server's packet is processed
          * first.
@@ -132,13 +248,23 @@ public class TcpReconstructor {
           src_addr[0] = net_dst;
           src_port[0] = dstport;
           seq_no[0] = acknowledge;
+          isn[0] = acknowledge;
           LOGGER.debug(" Derived SYN: " + seq_no[0]);
+        }
+
+        /*
+         * Due to multi-threading we could have fragments before the connection
+         * is established. Grab any packets we are expecting.
+         */
+        if (src_addr[0] != 0 && src_addr[1] != 0) {
+          sort_fragments();
           while (check_fragments())
             ;
         }
       } else if (src_index == 1) {
         LOGGER.debug("Additional Stream");
-        addFragment(sequence, acknowledge, data, synflag, ackflag, finflag);
+        addFragment(sequence, acknowledge, toArray(data), synflag, ackflag,
+            finflag, net_src, srcport);
       }
 
       // the handshake is only the beginning
@@ -150,7 +276,8 @@ public class TcpReconstructor {
      * it for later.
      */
     if (src_addr[0] == 0 || src_addr[1] == 0) {
-      addFragment(sequence, acknowledge, data, synflag, ackflag, finflag);
+      addFragment(sequence, acknowledge, toArray(data), synflag, ackflag,
+          finflag, net_src, srcport);
       return false;
     }
 
@@ -159,37 +286,41 @@ public class TcpReconstructor {
       ;
 
     src_index = (src_addr[0] == net_src && src_port[0] == srcport) ? 0 : 1;
-    if (seq_no[src_index] == sequence
-        && acknowledge == seq_no[(src_index + 1) % 2]) {
+    if ((int) (sequence - seq_no[src_index]) == 0
+        && isAcknowledged(acknowledge, src_index)) {
       /*
        * We are expecting this packet. Grab it's data and calculate the next
        * sequence numbe.
        */
       write_packet_data(data, src_index == 0);
-      seq_no[src_index] += data.length;
+      seq_no[src_index] += data.remaining();
       LOGGER.debug("On time: " + sequence);
 
-      // See if adding this packets makes a fragment fit
-      while (check_fragments())
-        ;
+      // teardown
+      if (finflag && !finished[src_index]) {
+        LOGGER.debug("Finished: " + src_index);
+        finished[src_index] = true;
+        seq_no[src_index]++;
+      }
     } else {
-      // Out of order. Create fragment
-      addFragment(sequence, acknowledge, data, synflag, ackflag, finflag);
+      // Out of order, or partly sent before. Store what is new
+      addSegment(src_index, sequence, acknowledge, toArray(data), finflag);
       LOGGER.debug("Out of Order: " + sequence + " Expecting: "
           + seq_no[src_index]);
-      return false;
     }
 
-    // teardown
-    if (finflag) {
-      LOGGER.debug("Finished: " + src_index);
-      finished[src_index] = true;
-      seq_no[src_index]++;
-    }
+    // See if adding this packets makes a fragment fit
+    while (check_fragments())
+      ;
+
+    // Give up on gaps the budget no longer allows waiting for
+    check_gaps();
+
     if (isClosed()) {
 
       while (isClosed() && findNewStream()) {
-        check_fragments();
+        while (check_fragments())
+          ;
       }
     }
     if (isClosed()) {
@@ -213,6 +344,9 @@ public class TcpReconstructor {
       if (fragment.syn && fragment.ack) {
         seq_no[0] = fragment.ack_no;
         seq_no[1] = fragment.seq_no + 1;
+        isn[0] = seq_no[0];
+        isn[1] = seq_no[1];
+        stalled_since = NONE;
 
         finished[0] = false;
         finished[1] = false;
@@ -220,6 +354,16 @@ public class TcpReconstructor {
         it.remove();
         LOGGER.debug("Found stream: " + seq_no[0]);
 
+        // place what is stored again around the new sequence numbers
+        for (int index = 0; index < 2; index++) {
+          fin_at[index] = NONE;
+          for (TcpFragment f : segments[index].clear()) {
+            f.src_addr = src_addr[index];
+            f.src_port = src_port[index];
+            fragments.add(f);
+          }
+        }
+        sort_fragments();
         return true;
       }
     }
@@ -242,53 +386,247 @@ public class TcpReconstructor {
    *          indicates whether the ACK flag raised on this packet
    * @param fin
    *          indicates whether the FIN flag raised on this packet
+   * @param net_src
+   *          the packet's source IP address as an int
+   * @param srcport
+   *          the packet's source port
    */
   private void addFragment(long sequence, long acknowledge, byte[] data,
-      boolean syn, boolean ack, boolean fin) {
+      boolean syn, boolean ack, boolean fin, int net_src, int srcport) {
     if (fin || syn || data.length > 0) {
       LOGGER.debug("Made Fragment: " + sequence);
-      fragments
-          .add(new TcpFragment(sequence, acknowledge, data, syn, ack, fin));
+      TcpFragment fragment = new TcpFragment(sequence, acknowledge, data, syn,
+          ack, fin);
+      fragment.src_addr = net_src;
+      fragment.src_port = srcport;
+      fragments.add(fragment);
     }
   }
 
   /**
-   * Searches through the TCP fragments for one that fits. If it finds one, it
-   * is written out to the TCP stream
+   * Stores the new bytes of a segment that is not the next expected, along
+   * with where its direction ends if it carries the FIN
    * 
    * @param index
-   *          0 if it should find fragments from the client, 1 if for the server
+   *          0 if the segment is from the client, 1 if from the server
+   * @param sequence
+   *          the segment's sequence number
+   * @param acknowledge
+   *          the segment's acknowledge number
+   * @param data
+   *          the segment's payload
+   * @param fin
+   *          indicates whether the FIN flag raised on this segment
+   */
+  private void addSegment(int index, long sequence, long acknowledge,
+      byte[] data, boolean fin) {
+    long start = SegmentStore.unwrap(sequence, seq_no[index]);
+    if (Math.abs(start - seq_no[index]) > WINDOW) {
+      addFragment(sequence, acknowledge, data, false, true, fin,
+          src_addr[index], src_port[index]);
+      return;
+    }
+    if (fin && !finished[index] && fin_at[index] == NONE) {
+      fin_at[index] = start + data.length;
+      fin_ack[index] = acknowledge;
+    }
+    segments[index].add(start, acknowledge, data, seq_no[index]);
+  }
+
+  /**
+   * Moves the fragments whose direction is known into the segment stores.
+   * Handshakes stay where they are, as do fragments that do not belong to the
+   * current stream.
+   */
+  private void sort_fragments() {
+    List<TcpFragment> waiting = new ArrayList<TcpFragment>(fragments);
+    fragments.clear();
+    for (TcpFragment fragment : waiting) {
+      if (fragment.syn) {
+        fragments.add(fragment);
+        continue;
+      }
+      int index = src_addr[0] == fragment.src_addr
+          && src_port[0] == fragment.src_port ? 0 : 1;
+      addSegment(index, fragment.seq_no, fragment.ack_no, fragment.data,
+          fragment.fin);
+    }
+  }
+
+  /**
+   * @return true if an acknowledge number does not run ahead of what has been
+   *         written the other way, so that a segment carrying it can be
+   *         written after what came before it
+   */
+  private boolean isAcknowledged(long acknowledge, int index) {
+    return (int) (acknowledge - seq_no[(index + 1) % 2]) <= 0;
+  }
+
+  /**
+   * Looks at the first segment stored for each direction. If it is the next
+   * expected, it is written out to the TCP stream
+   * 
    * @return true, if a fragment is located. Otherwise, false.
    * @throws IOException
    */
   private boolean check_fragments() throws IOException {
-    int index;
-    TcpFragment fragment;
-    Iterator<TcpFragment> it = fragments.iterator();
-    while (it.hasNext()) {
-      fragment = it.next();
-      index = -1;
-      if (fragment.seq_no == seq_no[0] && fragment.ack_no == seq_no[1]) {
-        index = 0;
-      } else if (fragment.seq_no == seq_no[1] && fragment.ack_no == seq_no[0]) {
-        index = 1;
-      }
-      if (index > -1) {
+    for (int index = 0; index < 2; index++) {
+      SegmentStore store = segments[index];
+      store.discard(seq_no[index]);
+      TcpFragment fragment = store.first();
+      if (fragment != null && store.firstStart() == seq_no[index]
+          && isAcknowledged(fragment.ack_no, index)) {
+        store.removeFirst();
         write_packet_data(fragment.data, index == 0);
         seq_no[index] += fragment.data.length;
-        if (fragment.fin) {
-          LOGGER.debug("Finished: " + index);
-          finished[index] = true;
-          seq_no[index]++;
-        }
-        it.remove();
         LOGGER.debug("Found Fragment: " + seq_no[index]);
         return true;
       }
+      if (!finished[index] && fin_at[index] == seq_no[index]
+          && isAcknowledged(fin_ack[index], index)) {
+        LOGGER.debug("Finished: " + index);
+        finished[index] = true;
+        seq_no[index]++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Skips gaps while more bytes wait behind them than the byte budget allows,
+   * or a gap once the stream has waited for longer than the time budget
+   * 
+   * @throws IOException
+   */
+  private void check_gaps() throws IOException {
+    if (gap_bytes > 0) {
+      while (segments[0].bytes() + segments[1].bytes() > gap_bytes
+          && skip_gap()) {
+        while (check_fragments())
+          ;
+      }
+    }
+    if (!isStalled()) {
+      stalled_since = NONE;
+    } else if (stalled_since == NONE) {
+      stalled_since = time;
+    } else if (gap_time > 0 && time - stalled_since >= gap_time) {
+      if (skip_gap()) {
+        while (check_fragments())
+          ;
+      }
+      // any gap still open waits afresh
+      stalled_since = isStalled() ? time : NONE;
+    }
+  }
+
+  /**
+   * @return true if anything is held waiting for a gap to be filled
+   */
+  private boolean isStalled() {
+    for (int index = 0; index < 2; index++) {
+      if (!finished[index]
+          && (!segments[index].isEmpty() || fin_at[index] != NONE)) {
+        return true;
+      }
     }
     return false;
   }
 
+  /**
+   * Skips the first gap holding the stream back: the bytes missing before
+   * what is held for a direction, or else the bytes missing the other way
+   * that what is held has acknowledged
+   * 
+   * @return true if a gap was skipped
+   */
+  private boolean skip_gap() {
+    for (int index = 0; index < 2; index++) {
+      if (!finished[index]) {
+        SegmentStore store = segments[index];
+        long next = store.isEmpty() ? fin_at[index] : store.firstStart();
+        if (next > seq_no[index]) {
+          skip(index, next);
+          return true;
+        }
+      }
+    }
+    for (int index = 0; index < 2; index++) {
+      int other = (index + 1) % 2;
+      if (finished[index] || finished[other]) {
+        continue;
+      }
+      long acknowledge;
+      if (!segments[index].isEmpty()) {
+        acknowledge = segments[index].first().ack_no;
+      } else if (fin_at[index] == seq_no[index]) {
+        acknowledge = fin_ack[index];
+      } else {
+        continue;
+      }
+      int ahead = (int) (acknowledge - seq_no[other]);
+      if (ahead > 0 && ahead < WINDOW) {
+        skip(other, seq_no[other] + ahead);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves a direction on past bytes that were not seen, and records them
+   * 
+   * @param index
+   *          0 if the bytes are from the client, 1 if from the server
+   * @param next
+   *          the unwrapped sequence number to carry on from
+   */
+  private void skip(int index, long next) {
+    long length = next - seq_no[index];
+    LOGGER.debug("Skipped: " + length + " bytes at " + seq_no[index]);
+    if (gaps.size() < MAX_GAPS) {
+      gaps.add(new long[] { index, seq_no[index] - isn[index], length });
+    }
+    missing_bytes += length;
+    seq_no[index] = next;
+  }
+
+  /**
+   * @return the remaining bytes of a buffer, which is only copied if it does
+   *         not wrap an array of just those bytes
+   */
+  private static byte[] toArray(ByteBuffer buffer) {
+    if (buffer.hasArray() && buffer.arrayOffset() == 0
+        && buffer.position() == 0
+        && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes a packet's payload to the TCP stream, straight from the packet
+   * unless it needs decrypting
+   * 
+   * @param data
+   *          the data to we written
+   * @param isClient
+   *          true if the data is from the client
+   * @throws IOException
+   */
+  private void write_packet_data(ByteBuffer data, boolean isClient)
+      throws IOException {
+    if (isSSL() && decryptor != null) {
+      write_packet_data(toArray(data), isClient);
+    } else if (data.hasRemaining()) {
+      out.append(data);
+      writes++;
+    }
+  }
+
   /**
    * Writes packet's payload to the TCP stream
    * 
@@ -306,8 +644,8 @@ public class TcpReconstructor {
         d = decryptor.process(data, isClient, serverIP);
       }
       if (d != null && d.length > 0) {
-        out.add(d);
-        bytes_written += data.length;
+        out.append(d);
+        writes++;
       }
     }
   }
@@ -329,12 +667,15 @@ public class TcpReconstructor {
   public synchronized void close() {
     if (!isClosed()) {
       try {
+        skip_gaps();
         finished[0] = true;
         finished[1] = true;
 
         while (isClosed() && findNewStream()) {
-          check_fragments();
+          while (check_fragments())
+            ;
 
+          skip_gaps();
           finished[0] = true;
           finished[1] = true;
         }
@@ -345,6 +686,21 @@ public class TcpReconstructor {
     }
   }
 
+  /**
+   * Writes out everything held, skipping the gaps before it, if there is a gap
+   * budget
+   * 
+   * @throws IOException
+   */
+  private void skip_gaps() throws IOException {
+    if (gap_bytes > 0 || gap_time > 0) {
+      while (skip_gap()) {
+        while (check_fragments())
+          ;
+      }
+    }
+  }
+
   /**
    * Clears all internal storage with the exception of the tcp steam, if closed.
    */
@@ -352,25 +708,31 @@ public class TcpReconstructor {
     src_addr = null;
     src_port = null;
     seq_no = null;
+    segments = null;
 
     fragments.clear();
     fragments = null;
   }
 
-  private ByteArrayOutputStream getOutputStream() throws IOException {
-    if (out.size() < 2) {
+  /**
+   * Hands over the TCP stream, if the stream is closed, in the chunks it was
+   * written to. The caller releases it once read. The stream is only handed
+   * over once.
+   * 
+   * @return the bytes of the TCP stream, null if the stream is not closed or
+   *         has already been handed over
+   */
+  public ByteRope getStream() {
+    if (!isClosed() || out == null
+        || (header == null ? writes < 2 : writes == 0)) {
       return null;
     }
-
-    ByteArrayOutputStream output = new ByteArrayOutputStream(bytes_written);
-
-    byte[] bytes = out.poll();
-    while (bytes != null) {
-      output.write(bytes);
-      bytes = out.poll();
+    ByteRope stream = out;
+    out = null;
+    if (header != null) {
+      stream.prepend(getHeader().getBytes());
     }
-    return output;
-
+    return stream;
   }
 
   /**
@@ -380,17 +742,12 @@ public class TcpReconstructor {
    * @return the bytes of the TCP stream
    */
   public byte[] getBytes() {
-    byte[] bytes = null;
-    if (isClosed()) {
-      try {
-        ByteArrayOutputStream outStream = getOutputStream();
-        if (outStream != null) {
-          bytes = outStream.toByteArray();
-        }
-      } catch (IOException e) {
-        LOGGER.error("", e);
-      }
+    ByteRope stream = getStream();
+    if (stream == null) {
+      return null;
     }
+    byte[] bytes = stream.toByteArray();
+    stream.release();
     return bytes;
   }
 
@@ -412,41 +769,28 @@ public class TcpReconstructor {
     return stream;
   }
 
+  /**
+   * @return the connection's addresses, and any ranges skipped, as the fields
+   *         of a JSON object
+   */
+  private String getHeader() {
+    if (missing_bytes == 0) {
+      return header + "\r\n";
+    }
+    StringBuilder builder = new StringBuilder(header);
+    builder.append(", \"missing_bytes\" : ").append(missing_bytes)
+        .append(", \"missing\" : [ ");
+    for (int i = 0; i < gaps.size(); i++) {
+      long[] gap = gaps.get(i);
+      builder.append(i == 0 ? "" : ", ").append("{ \"from\" : \"")
+          .append(gap[0] == 0 ? "client" : "server")
+          .append("\", \"offset\" : ").append(gap[1])
+          .append(", \"length\" : ").append(gap[2]).append(" }");
+    }
+    return builder.append(" ]\r\n").toString();
+  }
+
   private boolean isSSL() {
     return src_port[1] == ssl_port;
   }
 }
-
-class TcpFragment {
-  public long   seq_no = 0;
-  public long   ack_no = 0;
-  public byte[] data   = null;
-  public boolean syn, ack, fin;
-
-  /**
-   * Creates an object containing information needed to put a TCP packet's
-   * payload in the right place within a TCP stream
-   * 
-   * @param sequence
-   *          the packet's sequence number
-   * @param acknowledge
-   *          the packet's acknowledge number
-   * @param data
-   *          the packet's payload
-   * @param syn
-   *          indicates whether the SYN flag raised on this packet
-   * @param ack
-   *          indicates whether the ACK flag raised on this packet
-   * @param fin
-   *          indicates whether the FIN flag raised on this packet
-   */
-  public TcpFragment(long sequence, long acknowledge, byte[] data, boolean syn,
-      boolean ack, boolean fin) {
-    seq_no = sequence;
-    ack_no = acknowledge;
-    this.data = data;
-    this.syn = syn;
-    this.ack = ack;
-    this.fin = fin;
-  }
-}
\ No newline at end of file
@@ -0,0 +1,264 @@
+package org.wayfair.wiff.util;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: timers are kept in slots of ticks, the first
+ * level one slot per tick, each level above one slot per turn of the level
+ * below, whose timers are moved down as it comes round. Scheduling a timer
+ * and expiring it each cost the same however many timers there are.
+ *
+ * A timer's deadline may be pushed back without touching the wheel; when its
+ * slot comes round it is put back for the new deadline. This suits idle
+ * timeouts, which move on with every packet but rarely fire. Likewise a
+ * cancelled timer is only dropped when its slot comes round.
+ *
+ * The wheel is not thread safe. Times are in whatever unit the tick is given
+ * in.
+ *
+ * @param <T>
+ *          the type of timer kept
+ */
+public class TimingWheel<T extends TimingWheel.Timer> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS     = 1 << SLOT_BITS;
+  private static final int MASK      = SLOTS - 1;
+  private static final int LEVELS    = 4;
+
+  /*
+   * Beyond this many ticks, advancing one tick at a time costs more than
+   * putting every timer back
+   */
+  private static final int REBASE    = SLOTS * SLOTS;
+
+  private final long       tick;
+  private final Timer[][]  slots     = new Timer[LEVELS][SLOTS];
+  private long             current;
+  private int              size;
+
+  /**
+   * Something that happens at a deadline, unless the deadline moves or the
+   * timer is cancelled first
+   */
+  public static class Timer {
+    private volatile long    deadline;
+    private volatile boolean cancelled;
+    private Timer            next;
+
+    /**
+     * @return the time this timer expires at
+     */
+    public long getDeadline() {
+      return deadline;
+    }
+
+    /**
+     * Moves this timer's deadline back. A timer already in a wheel is put back
+     * in it for the new deadline when its slot comes round.
+     *
+     * @param deadline
+     *          the time this timer expires at, ignored if earlier than the
+     *          current deadline
+     */
+    public void extend(long deadline) {
+      if (deadline > this.deadline) {
+        this.deadline = deadline;
+      }
+    }
+
+    /**
+     * Stops this timer from expiring
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * @return true if this timer has been cancelled
+     */
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  /**
+   * @param tick
+   *          the length of a slot of the first level, the resolution of the
+   *          wheel
+   */
+  public TimingWheel(long tick) {
+    this.tick = tick;
+  }
+
+  /**
+   * Adds a timer to the wheel
+   *
+   * @param timer
+   *          a timer that is in no wheel
+   * @param deadline
+   *          the time the timer expires at
+   */
+  public void schedule(T timer, long deadline) {
+    ((Timer) timer).deadline = deadline;
+    // the current slot has already come round
+    insert(timer, current + 1);
+    size++;
+  }
+
+  /**
+   * Moves the wheel on to a time, collecting the timers whose deadlines have
+   * passed. Cancelled timers are dropped.
+   *
+   * @param now
+   *          the current time, ignored if earlier than the last
+   * @param expired
+   *          the list the expired timers are added to
+   */
+  public void advance(long now, List<T> expired) {
+    long target = now / tick;
+    if (size == 0) {
+      current = Math.max(current, target);
+      return;
+    }
+    if (target - current > REBASE) {
+      // a long jump, as after a gap in traffic: sort every timer again
+      current = target;
+      Timer all = drain();
+      while (all != null) {
+        Timer timer = all;
+        all = all.next;
+        insert(timer, current);
+      }
+      size = count();
+      fire(expired);
+      return;
+    }
+    while (current < target) {
+      current++;
+      // move the next turn of each level down, from the lowest up
+      for (int level = 1; level < LEVELS; level++) {
+        if (((current >> (SLOT_BITS * (level - 1))) & MASK) != 0) {
+          break;
+        }
+        int slot = (int) ((current >> (SLOT_BITS * level)) & MASK);
+        Timer timer = slots[level][slot];
+        slots[level][slot] = null;
+        while (timer != null) {
+          Timer next = timer.next;
+          insert(timer, current);
+          timer = next;
+        }
+      }
+      fire(expired);
+    }
+  }
+
+  /**
+   * Empties the wheel, collecting every timer that has not been cancelled
+   *
+   * @param timers
+   *          the list the timers are added to
+   */
+  @SuppressWarnings("unchecked")
+  public void clear(List<T> timers) {
+    Timer timer = drain();
+    while (timer != null) {
+      if (!timer.cancelled) {
+        timers.add((T) timer);
+      }
+      timer = timer.next;
+    }
+    size = 0;
+  }
+
+  /**
+   * @return the number of timers in the wheel, counting cancelled ones not yet
+   *         dropped
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Expires the timers in the current slot of the first level, and puts back
+   * those whose deadlines have moved
+   */
+  @SuppressWarnings("unchecked")
+  private void fire(List<T> expired) {
+    int slot = (int) (current & MASK);
+    Timer timer = slots[0][slot];
+    slots[0][slot] = null;
+    while (timer != null) {
+      Timer next = timer.next;
+      if (timer.cancelled) {
+        size--;
+      } else if (timer.deadline / tick > current) {
+        insert(timer, current);
+      } else {
+        size--;
+        timer.next = null;
+        expired.add((T) timer);
+      }
+      timer = next;
+    }
+  }
+
+  /**
+   * Puts a timer in the slot for its deadline: the first level if it is due
+   * within a turn of it, otherwise the lowest level whose turn it is due
+   * within
+   * 
+   * @param earliest
+   *          the earliest tick the timer can be put in, for one already due
+   */
+  private void insert(Timer timer, long earliest) {
+    long due = Math.max(timer.deadline / tick, earliest);
+    int level = 0;
+    while (level < LEVELS - 1
+        && due - current >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    if (level == LEVELS - 1
+        && due - current >= 1L << (SLOT_BITS * LEVELS)) {
+      // further out than the wheel reaches: the last slot, to be put back
+      due = current + (1L << (SLOT_BITS * LEVELS)) - 1;
+    }
+    int slot = (int) ((due >> (SLOT_BITS * level)) & MASK);
+    timer.next = slots[level][slot];
+    slots[level][slot] = timer;
+  }
+
+  /**
+   * Unlinks every timer from its slot
+   *
+   * @return the timers as one list
+   */
+  private Timer drain() {
+    Timer all = null;
+    for (Timer[] level : slots) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        Timer timer = level[slot];
+        level[slot] = null;
+        while (timer != null) {
+          Timer next = timer.next;
+          timer.next = all;
+          all = timer;
+          timer = next;
+        }
+      }
+    }
+    return all;
+  }
+
+  private int count() {
+    int count = 0;
+    for (Timer[] level : slots) {
+      for (Timer timer : level) {
+        for (; timer != null; timer = timer.next) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -6,14 +6,43 @@ public class WiffByteBuffer {
   private final int        id;
   private final ByteBuffer buffer;
 
+  // The link-layer header type of the packet held
+  private int              linkType = LinkLayer.ETHERNET;
+
+  // When the packet held was captured, in microseconds since the epoch
+  private long             timestamp;
+
+  // The part of the buffer that holds the packet, all of it unless the
+  // buffer is a view of larger memory
+  private int              start;
+  private int              end;
+
   public WiffByteBuffer(int id, int size) {
     this.id = id;
     buffer = ByteBuffer.allocate(size);
+    end = size;
   }
 
   public WiffByteBuffer(int id, ByteBuffer buffer) {
     this.id = id;
     this.buffer = buffer;
+    end = buffer.capacity();
+  }
+
+  /**
+   * Moves the part of the buffer that holds the packet, and empties it. Lets a
+   * pool that packs packets into larger memory reuse one buffer over it for
+   * packets at different places.
+   * 
+   * @param offset
+   *          where the part starts in the buffer
+   * @param length
+   *          the length of the part
+   */
+  public void setRegion(int offset, int length) {
+    start = offset;
+    end = offset + length;
+    clear();
   }
 
   public ByteBuffer asByteBuffer() {
@@ -29,15 +58,49 @@ public class WiffByteBuffer {
   }
 
   public void flip() {
-    buffer.flip();
+    buffer.limit(buffer.position());
+    buffer.position(start);
   }
 
   public int getID() {
     return id;
   }
 
+  /**
+   * @return the link-layer header type of the packet held, see LinkLayer
+   */
+  public int getLinkType() {
+    return linkType;
+  }
+
+  /**
+   * @param linkType
+   *          the link-layer header type of the packet held, see LinkLayer
+   */
+  public void setLinkType(int linkType) {
+    this.linkType = linkType;
+  }
+
+  /**
+   * @return the time the packet held was captured, in microseconds since the
+   *         epoch, 0 if unknown
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @param timestamp
+   *          the time the packet held was captured, in microseconds since the
+   *          epoch
+   */
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
   public void clear() {
-    buffer.clear();
+    buffer.limit(end);
+    buffer.position(start);
   }
 
   public int compareTo(WiffByteBuffer b) {
@@ -1,12 +1,21 @@
 package org.wayfair.wiff.util;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
-
+/**
+ * The two endpoints of a connection. Addresses are kept as IPv6, an IPv4
+ * address as IPv4-mapped, in two longs each, so a connection is identified
+ * without formatting its addresses. Connections are equal whichever way round
+ * their endpoints are given.
+ */
 public class WiffConnection {
-  private String sourceIp;
-  private int    sourcePort;
-  private String destinationIp;
-  private int    destinationPort;
+  private long sourceHigh;
+  private long sourceLow;
+  private int  sourcePort;
+  private long destinationHigh;
+  private long destinationLow;
+  private int  destinationPort;
 
   /**
    * @param sourceIp
@@ -17,12 +26,19 @@ public class WiffConnection {
    *          a connection's destination IP address
    * @param destinationPort
    *          a connection's destination port
+   * @throws UnknownHostException
+   *           if an address is not an IP address
    */
   public WiffConnection(String sourceIp, int sourcePort, String destinationIp,
-      int destinationPort) {
-    this.sourceIp = sourceIp;
+      int destinationPort) throws UnknownHostException {
+    long[] source = toLongs(InetAddress.getByName(sourceIp).getAddress());
+    long[] destination = toLongs(InetAddress.getByName(destinationIp)
+        .getAddress());
+    this.sourceHigh = source[0];
+    this.sourceLow = source[1];
     this.sourcePort = sourcePort;
-    this.destinationIp = destinationIp;
+    this.destinationHigh = destination[0];
+    this.destinationLow = destination[1];
     this.destinationPort = destinationPort;
   }
 
@@ -32,15 +48,17 @@ public class WiffConnection {
    * @throws Exception
    */
   public WiffConnection(WiffPacket packet) throws Exception {
-    sourceIp = packet.getSourceIP();
+    sourceHigh = packet.getSourceHigh();
+    sourceLow = packet.getSourceLow();
     sourcePort = packet.getSourcePort();
-    destinationIp = packet.getDestinationIP();
+    destinationHigh = packet.getDestinationHigh();
+    destinationLow = packet.getDestinationLow();
     destinationPort = packet.getDestinationPort();
   }
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see java.lang.Object#equals(java.lang.Object)
    */
   @Override
@@ -54,14 +72,17 @@ public class WiffConnection {
         return false;
       WiffConnection conn = (WiffConnection) o;
 
-      return (conn.getSourceIp().equals(sourceIp)
-          && conn.getSourcePort() == sourcePort
-          && conn.getDestinationIp().equals(destinationIp) && conn
-          .getDestinationPort() == destinationPort)
-          || (conn.getSourceIp().equals(destinationIp)
-              && conn.getSourcePort() == destinationPort
-              && conn.getDestinationIp().equals(sourceIp) && conn
-              .getDestinationPort() == sourcePort);
+      return (conn.sourceHigh == sourceHigh && conn.sourceLow == sourceLow
+          && conn.sourcePort == sourcePort
+          && conn.destinationHigh == destinationHigh
+          && conn.destinationLow == destinationLow
+          && conn.destinationPort == destinationPort)
+          || (conn.sourceHigh == destinationHigh
+              && conn.sourceLow == destinationLow
+              && conn.sourcePort == destinationPort
+              && conn.destinationHigh == sourceHigh
+              && conn.destinationLow == sourceLow
+              && conn.destinationPort == sourcePort);
     }
   }
 
@@ -69,7 +90,7 @@ public class WiffConnection {
    * @return the connection's source IP address
    */
   public String getSourceIp() {
-    return sourceIp;
+    return format(sourceHigh, sourceLow);
   }
 
   /**
@@ -83,7 +104,7 @@ public class WiffConnection {
    * @return the connection's destination IP address
    */
   public String getDestinationIp() {
-    return destinationIp;
+    return format(destinationHigh, destinationLow);
   }
 
   /**
@@ -95,23 +116,65 @@ public class WiffConnection {
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see java.lang.Object#hashCode()
    */
   @Override
   public int hashCode() {
-    return ((sourceIp.hashCode() ^ sourcePort) ^ (destinationIp.hashCode() ^ destinationPort));
+    return FlowHash.hash(sourceHigh, sourceLow, sourcePort, destinationHigh,
+        destinationLow, destinationPort);
   }
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see java.lang.Object#toString()
    */
   @Override
   public String toString() {
-    return "\nSource IP: " + sourceIp + "\nSource Port: " + sourcePort
-        + "\nDestination IP: " + destinationIp + "\nDestination Port: "
+    return "\nSource IP: " + getSourceIp() + "\nSource Port: " + sourcePort
+        + "\nDestination IP: " + getDestinationIp() + "\nDestination Port: "
         + destinationPort;
   }
-}
\ No newline at end of file
+
+  /**
+   * @return an IPv4 or IPv6 address as the two longs of an IPv6 address
+   */
+  private static long[] toLongs(byte[] address) {
+    long high = 0;
+    long low = 0;
+    if (address.length == 4) {
+      low = 0xffffL << 32;
+      for (int i = 0; i < 4; i++) {
+        low |= (address[i] & 0xffL) << (24 - 8 * i);
+      }
+    } else {
+      for (int i = 0; i < 8; i++) {
+        high = high << 8 | (address[i] & 0xff);
+        low = low << 8 | (address[i + 8] & 0xff);
+      }
+    }
+    return new long[] { high, low };
+  }
+
+  private static String format(long high, long low) {
+    byte[] address;
+    if (high == 0 && low >>> 32 == 0xffffL) {
+      address = new byte[4];
+      for (int i = 0; i < 4; i++) {
+        address[i] = (byte) (low >>> (24 - 8 * i));
+      }
+    } else {
+      address = new byte[16];
+      for (int i = 0; i < 8; i++) {
+        address[i] = (byte) (high >>> (56 - 8 * i));
+        address[i + 8] = (byte) (low >>> (56 - 8 * i));
+      }
+    }
+    try {
+      return InetAddress.getByAddress(address).getHostAddress();
+    } catch (UnknownHostException e) {
+      return "";
+    }
+  }
+}
@@ -1,33 +1,236 @@
 package org.wayfair.wiff.util;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 import org.apache.log4j.Logger;
 import org.jnetpcap.packet.format.FormatUtils;
 
+/**
+ * A reusable view of one captured packet. The link-layer, IP and TCP headers
+ * are decoded once, when the packet is set, into plain fields that the getters
+ * return, so reading a header field neither allocates nor moves the buffer's
+ * position. Fields are read with absolute gets, leaving the buffer as it was
+ * given.
+ *
+ * The packet starts at the buffer's position and ends at its limit. Its
+ * link-layer header is of the capture's link type: Ethernet, with up to two
+ * VLAN tags, Linux cooked (SLL or SLL2) or none, and it may carry IPv4 or
+ * IPv6. An IPv4 address is also given as an IPv4-mapped IPv6 address, so
+ * either kind fits in two longs.
+ */
 public class WiffPacket {
-  private ByteBuffer     buffer;
-  private int            size;
-
-  protected final Logger LOGGER = Logger.getLogger(this.getClass());
+  private static final int    PROTOCOL_TCP      = 0x06;
+  private static final byte[] EMPTY             = new byte[0];
+
+  // The high 64 bits of an IPv4-mapped address, ::ffff:a.b.c.d, are zero
+  private static final long   IPV4_MAPPED       = 0xffffL << 32;
+
+  private ByteBuffer          buffer;
+  private int                 start;
+  private int                 size;
+  private int                 linkType          = LinkLayer.ETHERNET;
+
+  // Decoded when the packet is set
+  private int                 linkHeaderLength;
+  private int                 ipVersion;
+  private int                 ipHeaderLength;
+  private boolean             tcp;
+  private int                 tcpHeaderLength;
+  private int                 sourceIp;
+  private int                 destinationIp;
+  private long                sourceHigh;
+  private long                sourceLow;
+  private long                destinationHigh;
+  private long                destinationLow;
+  private int                 sourcePort;
+  private int                 destinationPort;
+  private long                sequenceNumber;
+  private long                ackNumber;
+  private int                 flags;
+  private int                 payloadLength;
+  private long                tsval;
+  private long                timestamp;
+
+  protected final Logger      LOGGER            = Logger.getLogger(this
+                                                    .getClass());
 
   public WiffPacket() {
   }
 
   public WiffPacket(byte[] bytes) {
-    buffer = ByteBuffer.wrap(bytes);
-    size = bytes.length;
+    setPacket(ByteBuffer.wrap(bytes));
   }
 
+  /**
+   * Points this object at an Ethernet frame and decodes its headers
+   *
+   * @param buffer
+   *          the packet's bytes, from its position to its limit
+   */
   public void setPacket(ByteBuffer buffer) {
+    setPacket(buffer, LinkLayer.ETHERNET);
+  }
+
+  /**
+   * Points this object at a packet and decodes its headers
+   *
+   * @param buffer
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the capture, see LinkLayer
+   */
+  public void setPacket(ByteBuffer buffer, int linkType) {
+    setPacket(buffer, linkType, 0);
+  }
+
+  /**
+   * Points this object at a packet and decodes its headers
+   *
+   * @param buffer
+   *          the packet's bytes, from its position to its limit
+   * @param linkType
+   *          the link-layer header type of the capture, see LinkLayer
+   * @param timestamp
+   *          the time the packet was captured, in microseconds since the
+   *          epoch, 0 if unknown
+   */
+  public void setPacket(ByteBuffer buffer, int linkType, long timestamp) {
     this.buffer = buffer;
-    size = buffer.limit();
+    this.linkType = linkType;
+    this.timestamp = timestamp;
+    start = buffer.position();
+    size = buffer.limit() - start;
+    decode();
+  }
+
+  /**
+   * Reads every header field the getters return
+   */
+  private void decode() {
+    linkHeaderLength = 0;
+    ipVersion = 0;
+    ipHeaderLength = 0;
+    tcp = false;
+    tcpHeaderLength = 0;
+    sourceIp = destinationIp = 0;
+    sourceHigh = sourceLow = destinationHigh = destinationLow = 0;
+    sourcePort = destinationPort = 0;
+    sequenceNumber = ackNumber = 0;
+    flags = 0;
+    payloadLength = 0;
+    tsval = -1;
+
+    int end = start + size;
+    int ip = LinkLayer.networkOffset(buffer, start, end, linkType);
+    if (ip < 0) {
+      return;
+    }
+    linkHeaderLength = ip - start;
+    ipVersion = LinkLayer.version(buffer, ip);
+
+    // the IP length leaves out any link-layer padding after the packet
+    int ipLength;
+    if (ipVersion == 4) {
+      sourceIp = buffer.getInt(ip + 12);
+      destinationIp = buffer.getInt(ip + 16);
+      sourceLow = IPV4_MAPPED | (sourceIp & 0xffffffffL);
+      destinationLow = IPV4_MAPPED | (destinationIp & 0xffffffffL);
+      ipLength = buffer.getShort(ip + 2) & 0xffff;
+    } else {
+      sourceHigh = buffer.getLong(ip + 8);
+      sourceLow = buffer.getLong(ip + 16);
+      destinationHigh = buffer.getLong(ip + 24);
+      destinationLow = buffer.getLong(ip + 32);
+      sourceIp = fold(sourceHigh, sourceLow);
+      destinationIp = fold(destinationHigh, destinationLow);
+      ipLength = buffer.getShort(ip + 4) & 0xffff;
+      ipLength = ipLength == 0 ? 0 : ipLength + 40;
+    }
+    if (ipLength > 0) {
+      end = Math.min(end, ip + ipLength);
+    }
+
+    long t = LinkLayer.transport(buffer, ip, end);
+    int transport = LinkLayer.offset(t);
+    if (transport < 0) {
+      ipHeaderLength = ipVersion == 4 ? (buffer.get(ip) & 0x0f) * 4 : 40;
+      return;
+    }
+    ipHeaderLength = transport - ip;
+    if (transport + 4 <= end) {
+      sourcePort = buffer.getShort(transport) & 0xffff;
+      destinationPort = buffer.getShort(transport + 2) & 0xffff;
+    }
+
+    /*
+     * The TCP fields are read wherever a TCP header would be, whatever the
+     * protocol, as callers that do not check for one have always seen them.
+     */
+    if (transport + 20 <= end) {
+      sequenceNumber = buffer.getInt(transport + 4) & 0xffffffffL;
+      ackNumber = buffer.getInt(transport + 8) & 0xffffffffL;
+      flags = buffer.get(transport + 13) & 0xff;
+      tcp = LinkLayer.protocol(t) == PROTOCOL_TCP;
+    }
+    if (tcp) {
+      tcpHeaderLength = ((buffer.get(transport + 12) & 0xff) >> 4) * 4;
+    }
+    payloadLength = Math.max(0, end - transport - tcpHeaderLength);
+    if (!tcp) {
+      return;
+    }
+
+    // Walk the options for a timestamp
+    int option = transport + 20;
+    int optionsEnd = Math.min(end, transport + tcpHeaderLength);
+    while (option < optionsEnd) {
+      int kind = buffer.get(option) & 0xff;
+      if (kind == 0) {
+        break;
+      } else if (kind == 1) {
+        option++;
+        continue;
+      }
+      if (option + 1 >= optionsEnd) {
+        break;
+      }
+      int length = buffer.get(option + 1) & 0xff;
+      if (length < 2) {
+        break;
+      }
+      if (kind == 8 && length == 10 && option + 10 <= optionsEnd) {
+        tsval = buffer.getInt(option + 2) & 0xffffffffL;
+        break;
+      }
+      option += length;
+    }
+  }
+
+  /**
+   * @return the time the packet was captured, in microseconds since the
+   *         epoch, 0 if unknown
+   */
+  public long getTimestamp() {
+    return timestamp;
   }
 
-  /* Ethernet */
+  /* Link layer */
 
+  /**
+   * @return the number of bytes before the network header: the link-layer
+   *         header, with any VLAN tags
+   */
   public int getEthHeaderLength() {
-    return 14;
+    return linkHeaderLength;
+  }
+
+  /**
+   * @return the link-layer header type of the capture
+   */
+  public int getLinkType() {
+    return linkType;
   }
 
   /* IP */
@@ -39,62 +242,81 @@ public class WiffPacket {
     return size;
   }
 
-  public byte[] source() {
-    int offset = getEthHeaderLength() + 12;
-
-    byte[] bytes = new byte[4];
-    buffer.clear().position(offset).limit(offset + 4);
-    buffer.get(bytes);
+  /**
+   * @return 4 or 6, 0 if the packet is not IP
+   */
+  public int getIpVersion() {
+    return ipVersion;
+  }
 
-    return bytes;
+  public byte[] source() {
+    return toBytes(sourceIp, sourceHigh, sourceLow);
   }
 
   public byte[] destination() {
-    int offset = getEthHeaderLength() + 16;
-
-    byte[] bytes = new byte[4];
-    buffer.clear().position(offset).limit(offset + 4);
-    buffer.get(bytes);
-
-    return bytes;
+    return toBytes(destinationIp, destinationHigh, destinationLow);
   }
 
   /**
    * @return the source IP address
    */
   public String getSourceIP() {
-    return FormatUtils.ip(source());
+    return format(source());
   }
 
   /**
    * @return the destination IP address
    */
   public String getDestinationIP() {
-    return FormatUtils.ip(destination());
+    return format(destination());
   }
 
   /**
-   * @return the source ip
+   * @return the source ip. An IPv6 address is folded into 32 bits, which only
+   *         tells the two ends of a connection apart.
    */
   public int getSourceIPAsInt() {
-    return getUInt(source());
+    return sourceIp;
   }
 
   /**
-   * @return the destination ip
+   * @return the destination ip. An IPv6 address is folded into 32 bits, which
+   *         only tells the two ends of a connection apart.
    */
   public int getDestinationIPAsInt() {
-    return getUInt(destination());
+    return destinationIp;
   }
 
-  public int getIpHeaderLength() {
-    int offset = getEthHeaderLength();
+  /**
+   * @return the high 64 bits of the source address as IPv6
+   */
+  public long getSourceHigh() {
+    return sourceHigh;
+  }
+
+  /**
+   * @return the low 64 bits of the source address as IPv6
+   */
+  public long getSourceLow() {
+    return sourceLow;
+  }
+
+  /**
+   * @return the high 64 bits of the destination address as IPv6
+   */
+  public long getDestinationHigh() {
+    return destinationHigh;
+  }
 
-    byte[] bytes = new byte[1];
-    buffer.clear().position(offset).limit(offset + 1);
-    buffer.get(bytes);
+  /**
+   * @return the low 64 bits of the destination address as IPv6
+   */
+  public long getDestinationLow() {
+    return destinationLow;
+  }
 
-    return (bytes[0] & 0x0000000F) * 4;
+  public int getIpHeaderLength() {
+    return ipHeaderLength;
   }
 
   /* TCP */
@@ -103,202 +325,166 @@ public class WiffPacket {
    * @return true if a TCP header is present
    */
   public boolean hasTcpHeader() {
-    int offset = getEthHeaderLength() + 9;
-
-    byte[] bytes = new byte[1];
-    buffer.clear().position(offset).limit(offset + 1);
-    buffer.get(bytes);
-
-    return (bytes[0] & 0xFF) == 0x06;
+    return tcp;
   }
 
   /**
    * @return the number of bytes in the TCP header
    */
   public int getTcpHeaderLength() {
-    int length = 0;
-    if (hasTcpHeader()) {
-      int offset = getEthHeaderLength() + getIpHeaderLength() + 12;
-
-      byte[] bytes = new byte[1];
-      buffer.clear().position(offset).limit(offset + 1);
-      buffer.get(bytes);
-
-      length = (((bytes[0] & 0xff) >> 4) & 0x0000000f) * 4;
-    }
-    return length;
+    return tcpHeaderLength;
   }
 
   /**
    * @return the source port
    */
   public int getSourcePort() {
-    int offset = getEthHeaderLength() + getIpHeaderLength();
-
-    byte[] bytes = new byte[2];
-    buffer.clear().position(offset).limit(offset + 2);
-    buffer.get(bytes);
-
-    return getUShortAsUInt(bytes);
+    return sourcePort;
   }
 
   /**
    * @return the destination port
    */
   public int getDestinationPort() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 2;
-
-    byte[] bytes = new byte[2];
-    buffer.clear().position(offset).limit(offset + 2);
-    buffer.get(bytes);
-
-    return getUShortAsUInt(bytes);
+    return destinationPort;
   }
 
   /**
    * @return the packet's sequence number
    */
   public long getSequenceNumber() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 4;
-
-    byte[] bytes = new byte[4];
-    buffer.clear().position(offset).limit(offset + 4);
-    buffer.get(bytes);
-
-    return getULong(bytes);
+    return sequenceNumber;
   }
 
   public long getAckNumber() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 8;
-
-    byte[] bytes = new byte[4];
-    buffer.clear().position(offset).limit(offset + 4);
-    buffer.get(bytes);
-
-    return getULong(bytes);
+    return ackNumber;
   }
 
   /**
    * @return the number of bytes in the packet's payload
    */
   public int getTcpPayloadLength() {
-    // payload = total size - tcp header - ip header
-    return getPacketByteLength() - getTcpHeaderLength() - getIpHeaderLength()
-        - getEthHeaderLength();
+    return payloadLength;
   }
 
+  /**
+   * @return the offset of the payload from the start of the packet
+   */
   public int getTcpPayloadOffset() {
-    return getEthHeaderLength() + getTcpHeaderLength() + getIpHeaderLength();
+    return linkHeaderLength + ipHeaderLength + tcpHeaderLength;
   }
 
   /**
-   * @return the packet's payload
+   * @return a copy of the packet's payload, null if there is no TCP header
    */
   public byte[] getTcpPayload() {
-    byte[] payload = null;
-    if (hasTcpHeader()) {
-      int firstByte = getTcpPayloadOffset();
-      int length = getTcpPayloadLength();
-
-      payload = new byte[length];
-      buffer.clear().position(firstByte).limit(firstByte + length);
-      buffer.get(payload);
+    if (!tcp) {
+      return null;
+    }
+    if (payloadLength == 0) {
+      return EMPTY;
+    }
+
+    byte[] payload = new byte[payloadLength];
+    int offset = start + getTcpPayloadOffset();
+    if (buffer.hasArray()) {
+      System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, payload,
+          0, payloadLength);
+    } else {
+      ByteBuffer view = buffer.duplicate();
+      view.limit(offset + payloadLength).position(offset);
+      view.get(payload);
     }
     return payload;
   }
 
+  /**
+   * @return a view of the packet's buffer from the start to the end of the
+   *         payload, sharing the packet's bytes rather than copying them, or
+   *         null if there is no TCP header. It is only valid until the
+   *         packet's buffer is reused.
+   */
+  public ByteBuffer getTcpPayloadBuffer() {
+    if (!tcp) {
+      return null;
+    }
+    int offset = start + getTcpPayloadOffset();
+    ByteBuffer view = buffer.duplicate();
+    view.limit(offset + payloadLength).position(offset);
+    return view;
+  }
+
   /**
    * @return true if the packet's SYN flag is raised
    */
   public boolean isSyn() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 13;
-
-    byte[] bytes = new byte[1];
-    buffer.clear().position(offset).limit(offset + 1);
-    buffer.get(bytes);
-
-    return (bytes[0] & 0x02) == 0x02;
+    return (flags & 0x02) == 0x02;
   }
 
   /**
    * @return true if the packet's FIN flag is raised
    */
   public boolean isFin() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 13;
-
-    byte[] bytes = new byte[1];
-    buffer.clear().position(offset).limit(offset + 1);
-    buffer.get(bytes);
-
-    return (bytes[0] & 0x01) == 0x01;
+    return (flags & 0x01) == 0x01;
   }
 
   /**
    * @return true if the packet's ACK flag is raised
    */
   public boolean isAck() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 13;
-
-    byte[] bytes = new byte[1];
-    buffer.clear().position(offset).limit(offset + 1);
-    buffer.get(bytes);
-
-    return (bytes[0] & 0x10) == 0x10;
+    return (flags & 0x10) == 0x10;
   }
 
   /**
    * @return true if the packet's PSH flag is raised
    */
   public boolean isPSH() {
-    int offset = getEthHeaderLength() + getIpHeaderLength() + 13;
-
-    byte[] bytes = new byte[1];
-    buffer.clear().position(offset).limit(offset + 1);
-    buffer.get(bytes);
-
-    return (bytes[0] & 0x08) == 0x08;
+    return (flags & 0x08) == 0x08;
   }
 
+  /**
+   * @return the timestamp value of the TCP timestamp option, -1 if there is
+   *         none
+   */
   public long getTsval() {
-    if (hasTcpHeader()) {
-      int offset = getEthHeaderLength() + getIpHeaderLength() + 20;
-      int headerEnd = offset + getTcpHeaderLength() - 20;
-
-      byte[] option = new byte[2]; // , optLen;
-      while (offset + 9 < headerEnd) {
-        buffer.clear().position(offset).limit(offset + 2);
-        buffer.get(option);
-
-        if ((option[0] & 0xff) == 0x08 && (option[1] & 0xff) == 0x0a) {
-          byte[] bytes = new byte[4];
-          buffer.clear().position(offset + 2).limit(offset + 6);
-          buffer.get(bytes);
-          return getULong(bytes);
-        }
-        offset++;
-      }
-    }
-    return -1;
+    return tsval;
   }
 
-  private int getUInt(byte[] bytes) {
-    return ((bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16
-        | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff) << 0) & 0xffffffff;
+  private byte[] toBytes(int ip, long high, long low) {
+    if (ipVersion != 6) {
+      return new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16),
+          (byte) (ip >>> 8), (byte) ip };
+    }
+    byte[] bytes = new byte[16];
+    for (int i = 0; i < 8; i++) {
+      bytes[i] = (byte) (high >>> (56 - 8 * i));
+      bytes[i + 8] = (byte) (low >>> (56 - 8 * i));
+    }
+    return bytes;
   }
 
-  private long getULong(byte[] bytes) {
-    return ((bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16
-        | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff) << 0) & 0xffffffffL;
+  private static String format(byte[] address) {
+    if (address.length == 4) {
+      return FormatUtils.ip(address);
+    }
+    try {
+      return InetAddress.getByAddress(address).getHostAddress();
+    } catch (UnknownHostException e) {
+      // only thrown for an address of the wrong length
+      return FormatUtils.ip(address);
+    }
   }
 
-  private int getUShortAsUInt(byte[] bytes) {
-    return (bytes[0] << 8 | bytes[1] & 0xff) & 0xffff;
+  private static int fold(long high, long low) {
+    long h = high * 0x9e3779b97f4a7c15L ^ low;
+    return (int) (h ^ h >>> 32);
   }
 
   public byte[] getBytes() {
     byte[] bytes = new byte[size];
-    buffer.clear().limit(size);
-    buffer.get(bytes);
+    ByteBuffer view = buffer.duplicate();
+    view.limit(start + size).position(start);
+    view.get(bytes);
     return bytes;
   }
-}
\ No newline at end of file
+}
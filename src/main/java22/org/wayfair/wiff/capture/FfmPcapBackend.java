@@ -0,0 +1,80 @@
+package org.wayfair.wiff.capture;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Captures through libpcap called directly with the Foreign Function & Memory
+ * API. Only libpcap itself needs to be installed. Chosen with capture_backend =
+ * Ffm; it is only built on Java 22 and above.
+ */
+public class FfmPcapBackend implements CaptureBackend {
+
+  /**
+   * Loads libpcap
+   *
+   * @throws UnsatisfiedLinkError
+   *           if libpcap cannot be found
+   */
+  public FfmPcapBackend() {
+    LibPcap.libVersion();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.CaptureBackend#getVersion()
+   */
+  public String getVersion() {
+    return LibPcap.libVersion();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.CaptureBackend#findDevices()
+   */
+  public List<Device> findDevices() throws IOException {
+    try (Arena arena = Arena.ofConfined()) {
+      MemorySegment first = arena.allocate(ValueLayout.ADDRESS);
+      MemorySegment errbuf = arena.allocate(LibPcap.ERRBUF_SIZE);
+      if (LibPcap.findalldevs(first, errbuf) != 0) {
+        throw new IOException(errbuf.getString(0));
+      }
+
+      List<Device> found = new ArrayList<Device>();
+      MemorySegment devices = first.get(ValueLayout.ADDRESS, 0);
+      try {
+        MemorySegment device = devices;
+        while (!device.equals(MemorySegment.NULL)) {
+          long d = device.address();
+          String name = LibPcap.string(LibPcap.getAddress(d + LibPcap.IF_NAME));
+          String description = LibPcap.string(LibPcap.getAddress(d
+              + LibPcap.IF_DESC));
+          found.add(new Device(name, description));
+          device = LibPcap.getAddress(d);
+        }
+      } finally {
+        if (!devices.equals(MemorySegment.NULL)) {
+          LibPcap.freealldevs(devices);
+        }
+      }
+      return found;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.CaptureBackend#open(java.lang.String, int,
+   * int, int, int)
+   */
+  public LiveCapture open(String name, int snaplen, int promisc, int timeout,
+      int bufferSize) throws IOException {
+    return new FfmPcapCapture(name, snaplen, promisc, timeout, bufferSize);
+  }
+}
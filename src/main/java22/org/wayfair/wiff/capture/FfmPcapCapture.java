@@ -0,0 +1,225 @@
+package org.wayfair.wiff.capture;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Captures packets by calling libpcap directly through the Foreign Function &
+ * Memory API, without a native library of its own. Each packet is handed over
+ * as a view of libpcap's own buffer, so it is only copied once, into the pool.
+ * Views are taken of a large window of native memory and reused while packets
+ * fall inside it, so no object is made per packet.
+ */
+public class FfmPcapCapture extends LiveCapture {
+  // Size of the window of native memory packets are viewed through
+  private static final long   WINDOW = 1L << 30;
+
+  private final Arena         arena  = Arena.ofShared();
+  private final MemorySegment pcap;
+  private final MemorySegment callback;
+  private final MemorySegment stats;
+
+  // The handler of the dispatch in progress, and anything it threw
+  private PacketHandler       handler;
+  private Throwable           failure;
+
+  // The view of native memory the last packet was in
+  private ByteBuffer          window;
+  private long                windowStart;
+
+  /**
+   * Opens a live capture handle on a network interface
+   *
+   * @param name
+   *          the name of the network interface
+   * @param snaplen
+   *          the most bytes captured of each packet
+   * @param promisc
+   *          the promiscuous mode flag
+   * @param timeout
+   *          the read timeout in milliseconds
+   * @param bufferSize
+   *          the size of the kernel capture buffer in bytes
+   * @throws IOException
+   *           if the interface cannot be opened
+   */
+  public FfmPcapCapture(String name, int snaplen, int promisc, int timeout,
+      int bufferSize) throws IOException {
+    super(name);
+
+    MemorySegment errbuf = arena.allocate(LibPcap.ERRBUF_SIZE);
+    pcap = LibPcap.create(arena.allocateFrom(name), errbuf);
+    if (pcap.equals(MemorySegment.NULL)) {
+      arena.close();
+      throw new IOException("Could not open " + name + ": "
+          + errbuf.getString(0));
+    }
+
+    LibPcap.setSnaplen(pcap, snaplen);
+    LibPcap.setPromisc(pcap, promisc);
+    LibPcap.setTimeout(pcap, timeout);
+    LibPcap.setBufferSize(pcap, bufferSize);
+    // warnings are positive, errors negative
+    if (LibPcap.activate(pcap) < 0) {
+      String error = LibPcap.geterr(pcap);
+      close();
+      throw new IOException("Could not activate " + name + ": " + error);
+    }
+
+    try {
+      callback = Linker.nativeLinker().upcallStub(
+          MethodHandles.lookup().bind(
+              this,
+              "nextPacket",
+              MethodType.methodType(void.class, MemorySegment.class,
+                  MemorySegment.class, MemorySegment.class)),
+          LibPcap.HANDLER, arena);
+    } catch (ReflectiveOperationException e) {
+      close();
+      throw new IOException(e);
+    }
+    stats = arena.allocate(LibPcap.STAT);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#setFilter(java.lang.String)
+   */
+  public void setFilter(String filter) throws IllegalArgumentException {
+    int optimize = 0; // 0 = false
+    int netmask = 0xFFFFFF00; // 255.255.255.0
+
+    try (Arena local = Arena.ofConfined()) {
+      MemorySegment program = local.allocate(LibPcap.BPF_PROGRAM);
+      if (LibPcap.compile(pcap, program, local.allocateFrom(filter), optimize,
+          netmask) != 0) {
+        throw new IllegalArgumentException(
+            "Problem compiling tcpdump filter with error"
+                + LibPcap.geterr(pcap));
+      }
+      try {
+        if (LibPcap.setfilter(pcap, program) != 0) {
+          throw new IllegalArgumentException(
+              "Problem setting tcpdump filter with error"
+                  + LibPcap.geterr(pcap));
+        }
+      } finally {
+        LibPcap.freecode(program);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#getLinkType()
+   */
+  public int getLinkType() {
+    return LibPcap.datalink(pcap);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#dispatch(int,
+   * org.wayfair.wiff.capture.LiveCapture.PacketHandler)
+   */
+  public int dispatch(int count, PacketHandler handler) {
+    this.handler = handler;
+    int result = LibPcap.dispatch(pcap, count, callback);
+    this.handler = null;
+
+    if (failure != null) {
+      // an exception must not unwind through libpcap, so it is thrown here
+      Throwable t = failure;
+      failure = null;
+      if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw (RuntimeException) t;
+    }
+    if (result == -1) {
+      LOGGER.error("Error while capturing on " + name + ": "
+          + LibPcap.geterr(pcap));
+    }
+    return result;
+  }
+
+  /**
+   * Called by libpcap for each packet of a dispatch
+   *
+   * @param user
+   *          unused
+   * @param header
+   *          the packet's pcap_pkthdr
+   * @param data
+   *          the packet's bytes
+   */
+  @SuppressWarnings("unused")
+  private void nextPacket(MemorySegment user, MemorySegment header,
+      MemorySegment data) {
+    if (failure != null) {
+      return;
+    }
+    try {
+      long h = header.address();
+      long timestamp = LibPcap.getLong(h) * 1000000
+          + LibPcap.getLong(h + LibPcap.TV_USEC);
+      int length = LibPcap.getInt(h + LibPcap.CAPLEN);
+
+      long address = data.address();
+      if (window == null || address < windowStart
+          || address + length > windowStart + WINDOW) {
+        window = LibPcap.MEMORY.asSlice(address, WINDOW).asByteBuffer();
+        windowStart = address;
+      }
+      int offset = (int) (address - windowStart);
+      window.clear();
+      window.position(offset).limit(offset + length);
+
+      handler.nextPacket(window, timestamp);
+    } catch (Throwable t) {
+      failure = t;
+      LibPcap.breakloop(pcap);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#breakLoop()
+   */
+  public void breakLoop() {
+    LibPcap.breakloop(pcap);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#getDroppedPackets()
+   */
+  public synchronized long getDroppedPackets() {
+    if (LibPcap.stats(pcap, stats) != 0) {
+      return 0;
+    }
+    return stats.get(JAVA_INT, LibPcap.STAT_DROP) & 0xFFFFFFFFL;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.wayfair.wiff.capture.LiveCapture#close()
+   */
+  public void close() {
+    LibPcap.close(pcap);
+    arena.close();
+  }
+}
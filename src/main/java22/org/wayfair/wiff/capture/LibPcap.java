@@ -0,0 +1,312 @@
+package org.wayfair.wiff.capture;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * The libpcap functions used for live capture, called through the Foreign
+ * Function & Memory API. Structures are read at offsets worked out from the
+ * platform's C long and pointer sizes.
+ */
+final class LibPcap {
+  static final int                  ERRBUF_SIZE = 256;
+
+  // Every address, so native structures are read without a segment each
+  static final MemorySegment        MEMORY      = MemorySegment.NULL
+      .reinterpret(Long.MAX_VALUE);
+
+  private static final Linker       LINKER      = Linker.nativeLinker();
+  private static final SymbolLookup LIBRARY     = load();
+  private static final MemoryLayout C_LONG      = LINKER.canonicalLayouts()
+      .get("long");
+
+  // struct pcap_pkthdr { struct timeval ts; bpf_u_int32 caplen, len; }
+  static final long                 TV_USEC     = C_LONG.byteSize();
+  static final long                 CAPLEN      = 2 * C_LONG.byteSize();
+
+  // struct bpf_program { u_int bf_len; struct bpf_insn *bf_insns; }
+  static final long                 BPF_PROGRAM = 2 * ADDRESS.byteSize();
+
+  // struct pcap_if { struct pcap_if *next; char *name, *description; ... }
+  static final long                 IF_NAME     = ADDRESS.byteSize();
+  static final long                 IF_DESC     = 2 * ADDRESS.byteSize();
+
+  // struct pcap_stat { u_int ps_recv, ps_drop, ps_ifdrop; }
+  static final long                 STAT        = 3 * JAVA_INT.byteSize();
+  static final long                 STAT_DROP   = JAVA_INT.byteSize();
+
+  // void pcap_handler(u_char *user, const pcap_pkthdr *h, const u_char *bytes)
+  static final FunctionDescriptor   HANDLER     = FunctionDescriptor
+      .ofVoid(ADDRESS, ADDRESS, ADDRESS);
+
+  private static final MethodHandle LIB_VERSION = function("pcap_lib_version",
+      ADDRESS);
+  private static final MethodHandle FINDALLDEVS = function("pcap_findalldevs",
+      JAVA_INT, ADDRESS, ADDRESS);
+  private static final MethodHandle FREEALLDEVS = function("pcap_freealldevs",
+      null, ADDRESS);
+  private static final MethodHandle CREATE      = function("pcap_create",
+      ADDRESS, ADDRESS, ADDRESS);
+  private static final MethodHandle SET_SNAPLEN = function("pcap_set_snaplen",
+      JAVA_INT, ADDRESS, JAVA_INT);
+  private static final MethodHandle SET_PROMISC = function("pcap_set_promisc",
+      JAVA_INT, ADDRESS, JAVA_INT);
+  private static final MethodHandle SET_TIMEOUT = function("pcap_set_timeout",
+      JAVA_INT, ADDRESS, JAVA_INT);
+  private static final MethodHandle SET_BUFFER  = function(
+      "pcap_set_buffer_size", JAVA_INT, ADDRESS, JAVA_INT);
+  private static final MethodHandle ACTIVATE    = function("pcap_activate",
+      JAVA_INT, ADDRESS);
+  private static final MethodHandle GETERR      = function("pcap_geterr",
+      ADDRESS, ADDRESS);
+  private static final MethodHandle COMPILE     = function("pcap_compile",
+      JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT);
+  private static final MethodHandle SETFILTER   = function("pcap_setfilter",
+      JAVA_INT, ADDRESS, ADDRESS);
+  private static final MethodHandle FREECODE    = function("pcap_freecode",
+      null, ADDRESS);
+  private static final MethodHandle DATALINK    = function("pcap_datalink",
+      JAVA_INT, ADDRESS);
+  private static final MethodHandle DISPATCH    = function("pcap_dispatch",
+      JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, ADDRESS);
+  private static final MethodHandle BREAKLOOP   = function("pcap_breakloop",
+      null, ADDRESS);
+  private static final MethodHandle STATS       = function("pcap_stats",
+      JAVA_INT, ADDRESS, ADDRESS);
+  private static final MethodHandle CLOSE       = function("pcap_close", null,
+      ADDRESS);
+
+  private LibPcap() {
+  }
+
+  /**
+   * Finds libpcap under the names it is installed as on Linux, macOS and
+   * Windows (Npcap)
+   */
+  private static SymbolLookup load() {
+    String[] names = { "libpcap.so.1", System.mapLibraryName("pcap"),
+        System.mapLibraryName("wpcap") };
+    for (String name : names) {
+      try {
+        return SymbolLookup.libraryLookup(name, Arena.global());
+      } catch (IllegalArgumentException e) {
+        // not installed under this name
+      }
+    }
+    throw new UnsatisfiedLinkError("libpcap could not be found");
+  }
+
+  /**
+   * Looks up a libpcap function
+   *
+   * @param name
+   *          the name of the function
+   * @param result
+   *          the layout of its result, null if it returns nothing
+   * @param arguments
+   *          the layouts of its arguments
+   */
+  private static MethodHandle function(String name, MemoryLayout result,
+      MemoryLayout... arguments) {
+    MemorySegment address = LIBRARY.find(name).orElseThrow(
+        () -> new UnsatisfiedLinkError("libpcap has no " + name));
+    return LINKER.downcallHandle(address, result == null ? FunctionDescriptor
+        .ofVoid(arguments) : FunctionDescriptor.of(result, arguments));
+  }
+
+  /**
+   * @return a C string, or null for a null pointer
+   */
+  static String string(MemorySegment address) {
+    return address.equals(MemorySegment.NULL) ? null : MEMORY
+        .getString(address.address());
+  }
+
+  /**
+   * Reads a C long, which is 4 bytes on some platforms and 8 on others
+   */
+  static long getLong(long address) {
+    return C_LONG.byteSize() == 8 ? MEMORY.get(JAVA_LONG_UNALIGNED, address)
+        : MEMORY.get(JAVA_INT_UNALIGNED, address);
+  }
+
+  static int getInt(long address) {
+    return MEMORY.get(JAVA_INT_UNALIGNED, address);
+  }
+
+  static MemorySegment getAddress(long address) {
+    return MEMORY.get(ADDRESS, address);
+  }
+
+  /*
+   * The functions, with the Throwable of invokeExact turned back into what the
+   * native call can actually throw
+   */
+
+  static String libVersion() {
+    try {
+      return string((MemorySegment) LIB_VERSION.invokeExact());
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int findalldevs(MemorySegment devices, MemorySegment errbuf) {
+    try {
+      return (int) FINDALLDEVS.invokeExact(devices, errbuf);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void freealldevs(MemorySegment devices) {
+    try {
+      FREEALLDEVS.invokeExact(devices);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static MemorySegment create(MemorySegment source, MemorySegment errbuf) {
+    try {
+      return (MemorySegment) CREATE.invokeExact(source, errbuf);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int setSnaplen(MemorySegment pcap, int snaplen) {
+    try {
+      return (int) SET_SNAPLEN.invokeExact(pcap, snaplen);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int setPromisc(MemorySegment pcap, int promisc) {
+    try {
+      return (int) SET_PROMISC.invokeExact(pcap, promisc);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int setTimeout(MemorySegment pcap, int timeout) {
+    try {
+      return (int) SET_TIMEOUT.invokeExact(pcap, timeout);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int setBufferSize(MemorySegment pcap, int bufferSize) {
+    try {
+      return (int) SET_BUFFER.invokeExact(pcap, bufferSize);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int activate(MemorySegment pcap) {
+    try {
+      return (int) ACTIVATE.invokeExact(pcap);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static String geterr(MemorySegment pcap) {
+    try {
+      return string((MemorySegment) GETERR.invokeExact(pcap));
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int compile(MemorySegment pcap, MemorySegment program,
+      MemorySegment filter, int optimize, int netmask) {
+    try {
+      return (int) COMPILE.invokeExact(pcap, program, filter, optimize,
+          netmask);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int setfilter(MemorySegment pcap, MemorySegment program) {
+    try {
+      return (int) SETFILTER.invokeExact(pcap, program);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void freecode(MemorySegment program) {
+    try {
+      FREECODE.invokeExact(program);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int datalink(MemorySegment pcap) {
+    try {
+      return (int) DATALINK.invokeExact(pcap);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int dispatch(MemorySegment pcap, int count, MemorySegment handler) {
+    try {
+      return (int) DISPATCH.invokeExact(pcap, count, handler,
+          MemorySegment.NULL);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void breakloop(MemorySegment pcap) {
+    try {
+      BREAKLOOP.invokeExact(pcap);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int stats(MemorySegment pcap, MemorySegment stats) {
+    try {
+      return (int) STATS.invokeExact(pcap, stats);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void close(MemorySegment pcap) {
+    try {
+      CLOSE.invokeExact(pcap);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new IllegalStateException(t);
+  }
+}
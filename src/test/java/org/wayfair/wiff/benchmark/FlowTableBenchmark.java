@@ -0,0 +1,120 @@
+package org.wayfair.wiff.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayfair.wiff.util.FlowTable;
+import org.wayfair.wiff.util.WiffConnection;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Looking up connections in a table holding a million of them, in alternating
+ * directions, as WiffStitch does for every TCP packet: in FlowTable, and in
+ * the Guava cache of WiffConnection keys it replaced. The cache is given its
+ * keys ready made, where WiffStitch built one per packet. The memory each
+ * table holds per connection, keys included, is logged once it is filled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g",
+    "-Dlog4j.configuration=file:config/log4j.properties" })
+@State(Scope.Benchmark)
+public class FlowTableBenchmark {
+  private static final Object             VALUE = new Object();
+
+  @Param({ "1000000" })
+  public int                              flows;
+
+  @Param({ "FlowTable", "Cache" })
+  public String                           table;
+
+  private FlowTable<Object>               flowTable;
+  private Cache<WiffConnection, Object>   cache;
+  private WiffConnection[]                connections;
+  private long[]                          clients;
+
+  private static final Logger             LOGGER = Logger
+                                                     .getLogger(FlowTableBenchmark.class);
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    // clients in 10.0.0.0/8 on ephemeral ports, all talking to one server
+    clients = new long[flows];
+    for (int i = 0; i < flows; i++) {
+      clients[i] = 0xffff0a000000L | (i >> 4);
+    }
+
+    long before = usedMemory();
+    if (table.equals("FlowTable")) {
+      flowTable = new FlowTable<Object>(64, 60, TimeUnit.SECONDS, null);
+      for (int i = 0; i < flows; i++) {
+        flowTable.replace(0, clients[i], port(i), 0, 0xffffc0a80001L, 80,
+            null, VALUE);
+      }
+    } else {
+      cache = CacheBuilder.newBuilder().concurrencyLevel(1)
+          .expireAfterAccess(60, TimeUnit.SECONDS).build();
+      connections = new WiffConnection[flows];
+      for (int i = 0; i < flows; i++) {
+        connections[i] = new WiffConnection(format(clients[i]), port(i),
+            "192.168.0.1", 80);
+      }
+      for (int i = 0; i < flows; i++) {
+        cache.put(connections[i], VALUE);
+      }
+    }
+    long bytes = usedMemory() - before;
+    LOGGER.info(table + ": " + bytes / flows + " bytes per flow");
+  }
+
+  @Benchmark
+  public Object lookup(Cursor cursor) {
+    // step through the flows out of order, in both directions
+    int n = cursor.next++;
+    int i = (int) ((n * 0x9e3779b1L & 0xffffffffL) % flows);
+    boolean reply = (n & 1) != 0;
+    if (flowTable != null) {
+      return reply ? flowTable.get(0, 0xffffc0a80001L, 80, 0, clients[i],
+          port(i)) : flowTable.get(0, clients[i], port(i), 0,
+          0xffffc0a80001L, 80);
+    }
+    return cache.getIfPresent(connections[i]);
+  }
+
+  private static int port(int i) {
+    return 32768 + (i & 0xf);
+  }
+
+  private static String format(long address) {
+    return (address >> 24 & 0xff) + "." + (address >> 16 & 0xff) + "."
+        + (address >> 8 & 0xff) + "." + (address & 0xff);
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
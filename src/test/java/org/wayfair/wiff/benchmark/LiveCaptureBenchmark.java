@@ -0,0 +1,136 @@
+package org.wayfair.wiff.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayfair.wiff.capture.LiveCapture;
+import org.wayfair.wiff.capture.LiveCapture.Backends;
+import org.wayfair.wiff.capture.LiveCapture.PacketHandler;
+
+/**
+ * Live capture on the loopback interface through each capture backend. A
+ * thread sends UDP datagrams to the loopback as fast as it can while the
+ * benchmark dispatches them, copying each packet into one buffer as
+ * WiffCapture copies it into the pool. The packets counter is the packets
+ * captured per second; run with -prof gc for the allocation rate. Capturing
+ * needs root (or CAP_NET_RAW), and Ffm needs Java 22 with WIFF built on it:
+ * sudo mvn -P benchmark test-compile exec:exec -Dbenchmark=LiveCapture
+ * (add -p device=lo0 to the benchmark on macOS).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.library.path=.",
+    "-Dlog4j.configuration=file:config/log4j.properties" })
+@State(Scope.Benchmark)
+public class LiveCaptureBenchmark implements PacketHandler {
+  private static final Logger LOGGER = Logger
+                                         .getLogger(LiveCaptureBenchmark.class);
+
+  @Param({ "JNetPcap", "Ffm" })
+  public Backends             backend;
+
+  @Param({ "lo" })
+  public String               device;
+
+  // Size of the UDP payload sent
+  @Param({ "64", "1400" })
+  public int                  size;
+
+  private LiveCapture         capture;
+  private DatagramChannel     receiver;
+  private Thread              sender;
+  private volatile boolean    sending;
+
+  private final ByteBuffer    copy = ByteBuffer.allocateDirect(64 * 1024);
+
+  /**
+   * Packets captured, reported per second alongside the dispatch calls
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Packets {
+    public long packets;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      packets = 0;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    // a bound socket, so the datagrams are not refused
+    receiver = DatagramChannel.open().bind(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    InetSocketAddress target = (InetSocketAddress) receiver.getLocalAddress();
+
+    capture = backend.load().open(device, 64 * 1024, 0, 100,
+        128 * 1024 * 1024);
+    capture.setFilter("udp and dst port " + target.getPort());
+
+    final DatagramChannel channel = DatagramChannel.open().connect(target);
+    sending = true;
+    sender = new Thread(new Runnable() {
+      public void run() {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(size);
+        try {
+          while (sending) {
+            datagram.clear();
+            channel.write(datagram);
+          }
+        } catch (IOException e) {
+          LOGGER.error("", e);
+        } finally {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            LOGGER.error("", e);
+          }
+        }
+      }
+    });
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException {
+    sending = false;
+    sender.join();
+    capture.close();
+    receiver.close();
+  }
+
+  @Benchmark
+  public int dispatch(Packets packets) {
+    int n = capture.dispatch(-1, this);
+    packets.packets += Math.max(0, n);
+    return n;
+  }
+
+  public void nextPacket(ByteBuffer packet, long timestamp) {
+    copy.clear();
+    copy.put(packet);
+  }
+}
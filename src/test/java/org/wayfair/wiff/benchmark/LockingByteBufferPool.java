@@ -0,0 +1,80 @@
+package org.wayfair.wiff.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+
+import org.wayfair.wiff.core.ByteBufferPool;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+/**
+ * The pool as it was before magazines, kept as a baseline: buffers are handed
+ * out under the pool's monitor and counted by a semaphore, and a free buffer
+ * is found by scanning a list of flags.
+ */
+class LockingByteBufferPool extends ByteBufferPool {
+  private final ArrayList<WiffByteBuffer> buffers;
+  private final ArrayList<Boolean>        available;
+  private final Semaphore                 sema;
+
+  LockingByteBufferPool(int size, int bufferCapacity) {
+    super(0, 0);
+    buffers = new ArrayList<WiffByteBuffer>(size);
+    available = new ArrayList<Boolean>(size);
+    sema = new Semaphore(size);
+    for (int i = 0; i < size; i++) {
+      buffers.add(new WiffByteBuffer(i, bufferCapacity));
+      available.add(true);
+    }
+  }
+
+  @Override
+  public synchronized WiffByteBuffer getByteBuffer() {
+    try {
+      sema.acquire();
+    } catch (InterruptedException e) {
+      return null;
+    }
+    return takeBuffer();
+  }
+
+  @Override
+  public WiffByteBuffer getByteBuffer(int length) {
+    return getByteBuffer();
+  }
+
+  @Override
+  public synchronized WiffByteBuffer pollByteBuffer(int length) {
+    if (!sema.tryAcquire()) {
+      return null;
+    }
+    return takeBuffer();
+  }
+
+  private WiffByteBuffer takeBuffer() {
+    for (int i = 0; i < buffers.size(); i++) {
+      if (available.get(i)) {
+        available.set(i, false);
+        return buffers.get(i);
+      }
+    }
+    sema.release();
+    return null;
+  }
+
+  @Override
+  public void returnBuffer(WiffByteBuffer buffer) {
+    buffer.clear();
+    available.set(buffer.getID(), true);
+    sema.release();
+  }
+
+  @Override
+  public int size() {
+    return buffers.size();
+  }
+
+  @Override
+  public int available() {
+    return sema.availablePermits();
+  }
+}
@@ -0,0 +1,76 @@
+package org.wayfair.wiff.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayfair.wiff.parser.HTTPParser;
+import org.wayfair.wiff.test.TestHelperFunctions;
+import org.wayfair.wiff.test.TestHelperFunctions.Segment;
+import org.wayfair.wiff.util.ByteRope;
+import org.wayfair.wiff.util.TcpReconstructor;
+import org.wayfair.wiff.util.WiffPacket;
+
+/**
+ * Reassembling the packets of a connection carrying one large response and
+ * parsing the stream, as WiffStitch and HTTPParser do. Run with -prof gc to
+ * see how many times over the stream's bytes are allocated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamParseBenchmark {
+  @Param({ "200000" })
+  public int            size;
+
+  private ByteBuffer[]  packets;
+  private WiffPacket    packet = new WiffPacket();
+  private HTTPParser    parser = new HTTPParser("wiff", false, null, null);
+
+  @Setup
+  public void setup() {
+    byte[] request = ("GET /index.html HTTP/1.1\r\nHost: example.com\r\n"
+        + "Accept: */*\r\n\r\n").getBytes();
+    byte[] headers = ("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n"
+        + "Date: Mon, 02 Jun 2014 14:01:02 GMT\r\nContent-Length: " + size
+        + "\r\n\r\n").getBytes();
+    byte[] response = new byte[headers.length + size];
+    System.arraycopy(headers, 0, response, 0, headers.length);
+    for (int i = headers.length; i < response.length; i++) {
+      response[i] = (byte) ('a' + i % 26);
+    }
+    List<Segment> segments = TestHelperFunctions.tcpConnection(1000, 500000,
+        request, response, 1448);
+    packets = new ByteBuffer[segments.size()];
+    for (int i = 0; i < packets.length; i++) {
+      packets[i] = ByteBuffer.wrap(segments.get(i).toPacket());
+    }
+  }
+
+  @Benchmark
+  public byte[] reassembleAndParse() throws Exception {
+    TcpReconstructor reconstructor = new TcpReconstructor();
+    for (ByteBuffer buffer : packets) {
+      packet.setPacket(buffer);
+      reconstructor.ReassemblePacket(packet);
+    }
+    ByteRope stream = reconstructor.getStream();
+    byte[] message = parser.parse(stream);
+    stream.release();
+    return message;
+  }
+}
@@ -0,0 +1,83 @@
+package org.wayfair.wiff.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayfair.wiff.test.TestHelperFunctions;
+import org.wayfair.wiff.test.TestHelperFunctions.Segment;
+import org.wayfair.wiff.util.TcpReconstructor;
+
+/**
+ * Reassembling one connection with a large response, its segments delivered
+ * in order, with neighbouring segments swapped, in reverse, and with one in
+ * fifty lost and sent again at the end. The time is per connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TcpReconstructorBenchmark {
+  @Param({ "2000" })
+  public int            segments;
+
+  @Param({ "InOrder", "Reordered", "Reversed", "Lossy" })
+  public String         pattern;
+
+  private List<Segment> delivered;
+
+  @Setup
+  public void setup() {
+    byte[] request = "GET / HTTP/1.1\r\n\r\n".getBytes();
+    byte[] response = new byte[segments * 1460];
+    Random random = new Random(1);
+    random.nextBytes(response);
+    List<Segment> sent = TestHelperFunctions.tcpConnection(1000, 500000,
+        request, response, 1460);
+
+    // the handshake and the request stay in order, the FINs last
+    delivered = new ArrayList<Segment>(sent);
+    List<Segment> data = delivered.subList(3, delivered.size() - 2);
+    if (pattern.equals("Reordered")) {
+      for (int i = 0; i + 1 < data.size(); i += 2) {
+        Collections.swap(data, i, i + 1);
+      }
+    } else if (pattern.equals("Reversed")) {
+      Collections.reverse(data);
+    } else if (pattern.equals("Lossy")) {
+      List<Segment> lost = new ArrayList<Segment>();
+      for (int i = data.size() - 1; i >= 0; i--) {
+        if (random.nextInt(50) == 0) {
+          lost.add(data.remove(i));
+        }
+      }
+      data.addAll(lost);
+    }
+  }
+
+  @Benchmark
+  public byte[] reassemble() throws Exception {
+    TcpReconstructor reconstructor = new TcpReconstructor();
+    for (Segment segment : delivered) {
+      if (segment.reassemble(reconstructor)) {
+        return reconstructor.getBytes();
+      }
+    }
+    throw new IllegalStateException("incomplete");
+  }
+}
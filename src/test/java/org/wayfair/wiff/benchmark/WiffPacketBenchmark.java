@@ -0,0 +1,81 @@
+package org.wayfair.wiff.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wayfair.wiff.test.TestHelperFunctions;
+import org.wayfair.wiff.util.WiffPacket;
+
+/**
+ * Decoding captured packets the way the services do: every header field
+ * WiffStitch and WiffRoundtrip read, and the payload. Run with -prof gc to
+ * see the bytes allocated per packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WiffPacketBenchmark {
+  private ByteBuffer[] packets;
+  private int          next;
+  private WiffPacket   packet = new WiffPacket();
+
+  @Setup
+  public void setup() {
+    ArrayList<byte[]> captured = TestHelperFunctions
+        .readPacktsFromFile("./src/test/resources/http_gzip.cap");
+    packets = new ByteBuffer[captured.size()];
+    for (int i = 0; i < packets.length; i++) {
+      packets[i] = ByteBuffer.allocateDirect(captured.get(i).length);
+      packets[i].put(captured.get(i)).flip();
+    }
+  }
+
+  private WiffPacket nextPacket() {
+    packet.setPacket(packets[next]);
+    next = (next + 1) % packets.length;
+    return packet;
+  }
+
+  @Benchmark
+  public void decode(Blackhole bh) {
+    WiffPacket p = nextPacket();
+    bh.consume(p.hasTcpHeader());
+    bh.consume(p.getSourceIPAsInt());
+    bh.consume(p.getDestinationIPAsInt());
+    bh.consume(p.getSourcePort());
+    bh.consume(p.getDestinationPort());
+    bh.consume(p.getSequenceNumber());
+    bh.consume(p.getAckNumber());
+    bh.consume(p.isSyn());
+    bh.consume(p.isFin());
+    bh.consume(p.isAck());
+    bh.consume(p.isPSH());
+    bh.consume(p.getTcpPayloadLength());
+    bh.consume(p.getTsval());
+  }
+
+  @Benchmark
+  public byte[] payloadCopy() {
+    return nextPacket().getTcpPayload();
+  }
+
+  @Benchmark
+  public ByteBuffer payloadSlice() {
+    return nextPacket().getTcpPayloadBuffer();
+  }
+}
@@ -0,0 +1,83 @@
+package org.wayfair.wiff.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayfair.wiff.queue.WiffLinkedBlockingQueue;
+import org.wayfair.wiff.queue.WiffQueue;
+import org.wayfair.wiff.queue.WiffQueue.Queues;
+import org.wayfair.wiff.queue.WiffRingQueue;
+import org.wayfair.wiff.queue.WiffRingQueue.WaitStrategies;
+import org.wayfair.wiff.util.Overload.Policies;
+
+/**
+ * Elements handed from a capture thread to two consumer threads that take
+ * them in batches, as WIFF does, through each type of queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class WiffQueueBenchmark {
+  private static final Integer ELEMENT = 1;
+
+  @Param({ "WiffLinkedBlockingQueue", "WiffRingQueue" })
+  public Queues                queueType;
+
+  private WiffQueue<Integer>   queue;
+
+  @State(Scope.Thread)
+  public static class Batch {
+    ArrayList<Integer> elements = new ArrayList<Integer>();
+  }
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    switch (queueType) {
+      case WiffRingQueue:
+        queue = new WiffRingQueue<Integer>(65536, Policies.DropNewest,
+            WaitStrategies.Yield);
+        break;
+      case WiffLinkedBlockingQueue:
+      default:
+        queue = new WiffLinkedBlockingQueue<Integer>(65536, Policies.DropNewest);
+        break;
+    }
+  }
+
+  @Benchmark
+  @Group("handoff")
+  @GroupThreads(1)
+  public boolean capture() throws Exception {
+    return queue.add(ELEMENT);
+  }
+
+  @Benchmark
+  @Group("handoff")
+  @GroupThreads(2)
+  public int consume(Batch batch) {
+    // polls rather than drains, which would wait and so could outlast the run
+    batch.elements.clear();
+    Integer element;
+    while (batch.elements.size() < 64 && (element = queue.poll()) != null) {
+      batch.elements.add(element);
+    }
+    return batch.elements.size();
+  }
+}
@@ -0,0 +1,166 @@
+package org.wayfair.wiff.core;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+import static org.wayfair.wiff.test.TestHelperFunctions.*;
+
+public class ArenaByteBufferPoolTest {
+
+  @Test
+  public void testPacking() {
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/sample.pcap");
+    ArenaByteBufferPool pool = new ArenaByteBufferPool(2, 64 * 1024, 9000);
+
+    // every packet of the capture fits in one slab
+    ArrayList<WiffByteBuffer> buffers = new ArrayList<WiffByteBuffer>();
+    for (byte[] packet : packets) {
+      WiffByteBuffer b = pool.getByteBuffer(packet.length);
+      b.put(ByteBuffer.wrap(packet));
+      b.flip();
+      buffers.add(b);
+    }
+    assertEquals(1, pool.available());
+
+    for (int i = 0; i < packets.size(); i++) {
+      ByteBuffer b = buffers.get(i).asByteBuffer();
+      assertEquals(packets.get(i).length, b.remaining());
+      assertEquals(ByteBuffer.wrap(packets.get(i)), b);
+      pool.returnBuffer(buffers.get(i));
+    }
+
+    // the slab is still the current one until the pool moves on
+    assertEquals(1, pool.available());
+    pool.returnBuffer(pool.getByteBuffer(60 * 1024));
+    assertEquals(1, pool.available());
+    pool.returnBuffer(pool.getByteBuffer(60 * 1024));
+    assertEquals(1, pool.available());
+  }
+
+  @Test
+  public void testReclaim() throws InterruptedException {
+    final ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/sample.pcap");
+    final ArenaByteBufferPool pool = new ArenaByteBufferPool(2, 16 * 1024,
+        9000);
+    final WiffByteBuffer[] queue = new WiffByteBuffer[1];
+    final int rounds = 50;
+
+    // only a couple of slabs, so the producer blocks until they are reclaimed
+    Thread consumer = new Thread(new Runnable() {
+      public void run() {
+        for (int i = 0; i < rounds * packets.size(); i++) {
+          WiffByteBuffer b;
+          synchronized (queue) {
+            while (queue[0] == null) {
+              try {
+                queue.wait();
+              } catch (InterruptedException e) {
+                return;
+              }
+            }
+            b = queue[0];
+            queue[0] = null;
+            queue.notifyAll();
+          }
+          pool.returnBuffer(b);
+        }
+      }
+    });
+    consumer.start();
+
+    for (int i = 0; i < rounds * packets.size(); i++) {
+      byte[] packet = packets.get(i % packets.size());
+      WiffByteBuffer b = pool.getByteBuffer(packet.length);
+      b.put(ByteBuffer.wrap(packet));
+      b.flip();
+      synchronized (queue) {
+        while (queue[0] != null) {
+          queue.wait();
+        }
+        queue[0] = b;
+        queue.notifyAll();
+      }
+    }
+    consumer.join();
+
+    // only the current slab is still held
+    assertEquals(1, pool.available());
+  }
+
+  @Test
+  public void testReuse() {
+    ArenaByteBufferPool pool = new ArenaByteBufferPool(2, 16 * 1024, 9000);
+    byte[] first = new byte[100];
+    byte[] second = new byte[200];
+    Arrays.fill(first, (byte) 1);
+    Arrays.fill(second, (byte) 2);
+
+    // fill the first slab, then the second
+    WiffByteBuffer a = pool.getByteBuffer(first.length);
+    WiffByteBuffer b = pool.getByteBuffer(second.length);
+    pool.returnBuffer(pool.getByteBuffer(16 * 1024 - 300));
+    pool.returnBuffer(a);
+    pool.returnBuffer(b);
+    pool.returnBuffer(pool.getByteBuffer(16 * 1024));
+
+    // the first slab's packets are all back, so it is packed again from its
+    // start with the same buffers
+    assertSame(a, pool.getByteBuffer(second.length));
+    assertSame(b, pool.getByteBuffer(first.length));
+    a.put(second);
+    a.flip();
+    b.put(first);
+    b.flip();
+    assertEquals(ByteBuffer.wrap(second), a.asByteBuffer());
+    assertEquals(ByteBuffer.wrap(first), b.asByteBuffer());
+  }
+
+  @Test
+  public void testWaitOutsideLock() throws InterruptedException {
+    final ArenaByteBufferPool pool = new ArenaByteBufferPool(2, 16 * 1024,
+        9000);
+    WiffByteBuffer held = pool.getByteBuffer(10 * 1024);
+    WiffByteBuffer current = pool.getByteBuffer(10 * 1024);
+
+    // neither slab is free, so this waits
+    final WiffByteBuffer[] waited = new WiffByteBuffer[2];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        waited[0] = pool.getByteBuffer(10 * 1024);
+      }
+    });
+    waiter.setDaemon(true);
+    waiter.start();
+    while (waiter.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+
+    // the pool still packs into the current slab while it waits
+    Thread poller = new Thread(new Runnable() {
+      public void run() {
+        waited[1] = pool.pollByteBuffer(1024);
+      }
+    });
+    poller.setDaemon(true);
+    poller.start();
+    poller.join(10000);
+    assertNotNull(waited[1]);
+
+    pool.returnBuffer(held);
+    waiter.join(10000);
+    assertNotNull(waited[0]);
+    assertEquals(10 * 1024, waited[0].asByteBuffer().remaining());
+    pool.returnBuffer(current);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSlabTooSmall() {
+    new ArenaByteBufferPool(1, 1500, 9000);
+  }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.Test;
 import org.wayfair.wiff.util.WiffByteBuffer;
@@ -35,6 +36,56 @@ public class ByteBufferPoolTest {
     assertEquals(0, consumer1.getSum());
     assertEquals(23675, consumer2.getSum());
   }
+
+  @Test
+  public void testHandoff() throws Exception {
+    final ByteBufferPool pool = new ByteBufferPool(256, 64);
+    final LinkedBlockingQueue<WiffByteBuffer> queue = new LinkedBlockingQueue<WiffByteBuffer>();
+
+    // buffers taken on one thread are returned on others, many times over
+    Thread[] processors = new Thread[4];
+    for (int i = 0; i < processors.length; i++) {
+      processors[i] = new Thread() {
+        public void run() {
+          try {
+            WiffByteBuffer buffer;
+            while ((buffer = queue.take()).getID() >= 0) {
+              pool.returnBuffer(buffer);
+            }
+            pool.flush();
+          } catch (InterruptedException e) {
+          }
+        }
+      };
+      processors[i].start();
+    }
+
+    boolean[] held = new boolean[pool.size()];
+    for (int i = 0; i < 100000; i++) {
+      WiffByteBuffer buffer = pool.getByteBuffer();
+      assertEquals(0, buffer.asByteBuffer().position());
+      buffer.asByteBuffer().put((byte) 1);
+      queue.add(buffer);
+      held[buffer.getID()] = true;
+    }
+    for (Thread processor : processors) {
+      queue.add(new WiffByteBuffer(-1, 1));
+    }
+    for (Thread processor : processors) {
+      processor.join();
+    }
+
+    // every buffer went round, and the processors' part-filled magazines were
+    // handed back when they stopped
+    for (boolean h : held) {
+      assertTrue(h);
+    }
+    int free = 0;
+    while (pool.pollByteBuffer(0) != null) {
+      free++;
+    }
+    assertEquals(pool.size(), free);
+  }
 }
 
 class Consumer implements Runnable {
@@ -0,0 +1,113 @@
+package org.wayfair.wiff.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+public class SizeClassByteBufferPoolTest {
+  private static final int[] SIZES = { 128, 2048, 9216, 65536 };
+
+  @Test
+  public void testSizeClasses() {
+    SizeClassByteBufferPool pool = new SizeClassByteBufferPool(8 << 20, SIZES,
+        65535);
+    assertArrayEquals(new int[] { 128, 2048, 9216, 65535 }, pool.getSizes());
+
+    WiffByteBuffer small = pool.getByteBuffer(60);
+    assertTrue(small.asByteBuffer().isDirect());
+    assertEquals(128, small.asByteBuffer().capacity());
+    assertEquals(60, small.asByteBuffer().remaining());
+
+    assertEquals(2048, pool.getByteBuffer(1500).asByteBuffer().capacity());
+    assertEquals(65535, pool.getByteBuffer().asByteBuffer().capacity());
+    assertNull(pool.pollByteBuffer(70000));
+
+    // a returned buffer is whole again
+    pool.returnBuffer(small);
+    assertEquals(128, small.asByteBuffer().remaining());
+  }
+
+  @Test
+  public void testGrowAndShrink() {
+    SizeClassByteBufferPool pool = new SizeClassByteBufferPool(8 << 20, SIZES,
+        65535);
+    assertEquals(4 << 20, pool.getAllocated());
+
+    // a size grows a chunk at a time until the pool is out of memory
+    ArrayList<WiffByteBuffer> buffers = new ArrayList<WiffByteBuffer>();
+    for (int i = 0; i < 5 * 512; i++) {
+      buffers.add(pool.pollByteBuffer(1500));
+    }
+    assertEquals(5, pool.getChunks(1));
+    assertEquals(8 << 20, pool.getAllocated());
+
+    // then a larger size will do
+    WiffByteBuffer larger = pool.pollByteBuffer(1500);
+    assertEquals(9216, larger.asByteBuffer().capacity());
+    buffers.add(larger);
+    for (WiffByteBuffer buffer : buffers) {
+      pool.returnBuffer(buffer);
+    }
+
+    // once only small packets arrive, the 2 KB buffers give memory back
+    for (int i = 0; i < 2 << 16; i++) {
+      pool.returnBuffer(pool.getByteBuffer(100));
+    }
+    assertTrue(pool.getChunks(1) < 5);
+    assertTrue(pool.getAllocated() < 8 << 20);
+    assertEquals(1500, pool.getByteBuffer(1500).asByteBuffer().remaining());
+  }
+
+  @Test
+  public void testRetiresEveryChunk() throws Exception {
+    final SizeClassByteBufferPool pool = new SizeClassByteBufferPool(8 << 20,
+        SIZES, 65535);
+    final ArrayList<WiffByteBuffer> buffers = new ArrayList<WiffByteBuffer>();
+    for (int i = 0; i < 4 * 512; i++) {
+      buffers.add(pool.pollByteBuffer(1500));
+    }
+    assertEquals(4, pool.getChunks(1));
+
+    // another thread returns a few buffers of each chunk and keeps them while
+    // the chunks are marked for giving back
+    final CountDownLatch returned = new CountDownLatch(1);
+    final CountDownLatch retiring = new CountDownLatch(1);
+    Thread other = new Thread() {
+      public void run() {
+        for (int i = 0; i < buffers.size(); i += 128) {
+          pool.returnBuffer(buffers.get(i));
+        }
+        returned.countDown();
+        try {
+          retiring.await();
+        } catch (InterruptedException e) {
+        }
+        pool.flush();
+      }
+    };
+    other.start();
+    returned.await();
+    for (int i = 0; i < buffers.size(); i++) {
+      if (i % 128 != 0) {
+        pool.returnBuffer(buffers.get(i));
+      }
+    }
+
+    for (int i = 0; i < 4 << 16; i++) {
+      pool.returnBuffer(pool.getByteBuffer(100));
+    }
+    assertTrue(pool.getChunks(1) > 1);
+
+    // once handed back, they are counted and every surplus chunk goes
+    retiring.countDown();
+    other.join();
+    for (int i = 0; i < 4 << 16; i++) {
+      pool.returnBuffer(pool.getByteBuffer(100));
+    }
+    assertEquals(1, pool.getChunks(1));
+  }
+}
@@ -0,0 +1,38 @@
+package org.wayfair.wiff.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+public class TrackingByteBufferPoolTest {
+
+  @Test
+  public void testLeaks() {
+    TrackingByteBufferPool pool = new TrackingByteBufferPool(
+        new ByteBufferPool(10, 100), 1, 60000);
+    assertEquals(10, pool.getLive());
+
+    WiffByteBuffer first = pool.getByteBuffer();
+    WiffByteBuffer second = pool.pollByteBuffer(50);
+    pool.returnBuffer(pool.getByteBuffer(50));
+    assertEquals(2, pool.getLeased());
+
+    // nothing is held past the threshold yet
+    pool.check(System.currentTimeMillis());
+    assertEquals(0, pool.getLeaked());
+
+    // both buffers are flagged once, and no longer leaked when returned
+    pool.check(System.currentTimeMillis() + 120000);
+    pool.check(System.currentTimeMillis() + 120000);
+    assertEquals(2, pool.getLeaked());
+    pool.returnBuffer(first);
+    assertEquals(1, pool.getLeaked());
+    assertEquals(1, pool.getLeased());
+    assertEquals(2, pool.getFlagged());
+
+    pool.returnBuffer(second);
+    assertEquals(0, pool.getLeaked());
+    assertEquals(0, pool.getLeased());
+  }
+}
@@ -0,0 +1,509 @@
+package org.wayfair.wiff.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wayfair.wiff.queue.WiffLinkedBlockingQueue;
+import org.wayfair.wiff.queue.WiffQueue;
+import org.wayfair.wiff.reporter.WiffReporter;
+import org.wayfair.wiff.service.WiffService;
+import org.wayfair.wiff.service.WiffStitch;
+import org.wayfair.wiff.service.WiffStitchTest;
+import org.wayfair.wiff.util.ByteRope;
+import org.wayfair.wiff.util.FlowHash;
+import org.wayfair.wiff.util.LinkLayer;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+import org.wayfair.wiff.util.WiffByteBuffer;
+import org.wayfair.wiff.util.WiffPacket;
+
+public class WiffCaptureTest {
+  private static final String CAPTURE = "./src/test/resources/http.cap";
+
+  @Rule
+  public TemporaryFolder      folder  = new TemporaryFolder();
+
+  @Test
+  public void testRunToCompletion() throws Exception {
+    // queued: captured into the pool, stitched by a consumer
+    ByteBufferPool pool = new ByteBufferPool(1000, 2048);
+    WiffQueue<WiffByteBuffer> queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    Recorder queued = new Recorder();
+    WiffStitch stitch = new WiffStitch(60, queued);
+    new WiffCapture(CAPTURE, queue, pool, "").run();
+    assertTrue(queue.size() > 0);
+
+    WiffPacket packet = new WiffPacket();
+    while (queue.size() > 0) {
+      WiffByteBuffer buffer = queue.remove();
+      packet.setPacket(buffer.asByteBuffer(), buffer.getLinkType(),
+          buffer.getTimestamp());
+      stitch.processData(packet);
+      pool.returnBuffer(buffer);
+    }
+    stitch.stop();
+
+    // run to completion: stitched on the capture thread, nothing queued
+    queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    Recorder inline = new Recorder();
+    stitch = new WiffStitch(60, inline);
+    WiffCapture capture = new WiffCapture(CAPTURE, queue, new ByteBufferPool(0,
+        0), "");
+    capture.setServices(new WiffService[] { stitch });
+    capture.run();
+    assertEquals(0, queue.size());
+    stitch.stop();
+
+    assertFalse(queued.messages.isEmpty());
+    assertEquals(queued.messages.size(), inline.messages.size());
+    for (int i = 0; i < queued.messages.size(); i++) {
+      assertArrayEquals(queued.messages.get(i), inline.messages.get(i));
+    }
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    WiffQueue<WiffByteBuffer> queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    new WiffCapture(CAPTURE, queue, new ByteBufferPool(1000, 2048), "").run();
+    int packets = queue.size();
+
+    // nothing consumes, and a kill signal waits ahead of the packets
+    queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    queue.add(new WiffByteBuffer(-1, 1));
+    long oldest = Overload.getDropped(Reasons.PoolOldest);
+    long missed = Overload.getDropped(Reasons.PoolOldestMissed);
+    WiffCapture capture = new WiffCapture(CAPTURE, queue, new ByteBufferPool(4,
+        2048), "");
+    capture.setOverloadPolicy(Policies.DropOldest, 0);
+    capture.run();
+
+    // each packet past the pool's four dropped one waiting packet, or itself
+    // when the kill signal came up, which stayed queued
+    oldest = Overload.getDropped(Reasons.PoolOldest) - oldest;
+    missed = Overload.getDropped(Reasons.PoolOldestMissed) - missed;
+    assertTrue(missed > 0);
+    assertEquals(packets - 4, oldest + missed);
+    assertEquals(5, queue.size());
+    int signals = 0;
+    while (queue.size() > 0) {
+      if (queue.remove().getID() < 0) {
+        signals++;
+      }
+    }
+    assertEquals(1, signals);
+  }
+
+  @Test
+  public void testDirectoryReadOnce() throws Exception {
+    // the packets in one copy of the capture
+    WiffQueue<WiffByteBuffer> queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    new WiffCapture(CAPTURE, queue, new ByteBufferPool(1000, 2048), "").run();
+    int packets = queue.size();
+
+    // six gzipped copies, of which the two newest are left for the writer
+    File dir = folder.newFolder();
+    for (int i = 0; i < 6; i++) {
+      File file = new File(dir, "capture" + i + ".pcap.gz");
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+      try {
+        Files.copy(Paths.get(CAPTURE), out);
+      } finally {
+        out.close();
+      }
+      file.setLastModified(1000000L * (i + 1));
+    }
+
+    queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    WiffCapture capture = new WiffCapture(dir.getPath(), queue,
+        new ByteBufferPool(10000, 2048), "", 3, false);
+    Thread thread = new Thread(capture);
+    thread.start();
+    assertTrue(capture.awaitIdle(10000));
+    capture.stop();
+    thread.join();
+
+    // each file read by one of the three readers, not by all of them
+    assertEquals(2, dir.list().length);
+    assertEquals(4 * packets, queue.size());
+  }
+
+  @Test
+  public void testDirectoryWorkers() throws Exception {
+    // six copies of the capture, of which the two newest are left for the
+    // writer, read by the capture thread alone and then with four workers
+    Flows single = readDirectory(1);
+    Flows workers = readDirectory(4);
+
+    // every connection on one worker, its packets in the order they were read
+    assertFalse(single.packets.isEmpty());
+    assertEquals(single.packets, workers.packets);
+    assertEquals(workers.packets.keySet(), workers.threads.keySet());
+    for (Set<String> threads : workers.threads.values()) {
+      assertEquals(1, threads.size());
+      assertTrue(threads.iterator().next().startsWith("CaptureFileWorker-"));
+    }
+  }
+
+  @Test
+  public void testConnectionSpanningFiles() throws Exception {
+    // the sessions in one copy of the capture
+    Recorder single = new Recorder();
+    stitch(CAPTURE, 1, single);
+    assertFalse(single.messages.isEmpty());
+
+    // the capture split in two files, then copies ten minutes apart, of which
+    // the two newest are left for the writer
+    byte[] capture = Files.readAllBytes(Paths.get(CAPTURE));
+    ByteBuffer records = ByteBuffer.wrap(capture);
+    if (records.getInt(0) != 0xa1b2c3d4) {
+      records.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    int half = 24;
+    for (int i = 0; i < 10; i++) {
+      half += 16 + records.getInt(half + 8);
+    }
+    File dir = folder.newFolder();
+    writeCapture(new File(dir, "capture0.pcap.gz"), capture, 24, half, 0);
+    writeCapture(new File(dir, "capture1.pcap.gz"), capture, half,
+        capture.length, 0);
+    for (int i = 2; i < 8; i++) {
+      writeCapture(new File(dir, "capture" + i + ".pcap.gz"), capture, 24,
+          capture.length, 600 * (i - 1));
+    }
+    for (int i = 0; i < 8; i++) {
+      new File(dir, "capture" + i + ".pcap.gz")
+          .setLastModified(1000000L * (i + 1));
+    }
+
+    // several files open at once, the newer ones decompressing ahead
+    Recorder recorder = new Recorder();
+    stitch(dir.getPath(), 4, recorder);
+
+    // the connection split between the first two files is one session
+    assertEquals(5 * single.messages.size(), recorder.messages.size());
+    for (int i = 0; i < recorder.messages.size(); i++) {
+      assertArrayEquals(single.messages.get(i % single.messages.size()),
+          recorder.messages.get(i));
+    }
+  }
+
+  @Test
+  public void testFanoutFilter() {
+    // one handle keeps the filter as it is
+    assertEquals("port 80", WiffCapture.fanoutFilter("port 80", 1, 0,
+        LinkLayer.ETHERNET));
+    assertTrue(WiffCapture.fanoutFilter("port 80", 4, 1, LinkLayer.ETHERNET)
+        .startsWith("(port 80) and "));
+
+    // every packet, in either direction, is taken by exactly one of the shares
+    int fanout = 4;
+    String[] shares = new String[fanout];
+    for (int i = 0; i < fanout; i++) {
+      shares[i] = WiffCapture.fanoutFilter(null, fanout, i, LinkLayer.ETHERNET);
+    }
+    Random random = new Random(42);
+    int[] taken = new int[fanout];
+    for (int i = 0; i < 1000; i++) {
+      byte[] source = new byte[16];
+      byte[] destination = new byte[16];
+      random.nextBytes(source);
+      random.nextBytes(destination);
+      int type = i % 6;
+      int share = share(shares, frame(type, source, destination));
+      assertEquals(share, share(shares, frame(type, destination, source)));
+      if (type >= 4) {
+        // ARP and stacked VLAN tags go to the first handle
+        assertEquals(0, share);
+      }
+      taken[share]++;
+    }
+    for (int count : taken) {
+      assertTrue(count > 100);
+    }
+  }
+
+  /**
+   * @return the one share whose filter accepts the packet
+   */
+  private static int share(String[] shares, ByteBuffer packet) {
+    int share = -1;
+    for (int i = 0; i < shares.length; i++) {
+      if (new Bpf(shares[i], packet).accepts()) {
+        assertEquals("taken by shares " + share + " and " + i, -1, share);
+        share = i;
+      }
+    }
+    assertTrue("taken by no share", share >= 0);
+    return share;
+  }
+
+  /**
+   * Builds an Ethernet frame: IPv4, IPv6, IPv4 or IPv6 behind a VLAN tag, ARP,
+   * or IPv4 behind two VLAN tags
+   */
+  private static ByteBuffer frame(int type, byte[] source, byte[] destination) {
+    ByteBuffer b = ByteBuffer.allocate(14 + 8 + 40);
+    int at = 12;
+    if (type == 2 || type == 3 || type == 5) {
+      b.putShort(at, (short) 0x8100);
+      at += 4;
+    }
+    if (type == 5) {
+      b.putShort(at, (short) 0x8100);
+      at += 4;
+    }
+    if (type == 4) {
+      b.putShort(at, (short) 0x0806);
+    } else if (type == 1 || type == 3) {
+      b.putShort(at, (short) 0x86dd);
+      b.put(at + 2, (byte) 0x60);
+      System.arraycopy(source, 0, b.array(), at + 2 + 8, 16);
+      System.arraycopy(destination, 0, b.array(), at + 2 + 24, 16);
+    } else {
+      b.putShort(at, (short) 0x0800);
+      b.put(at + 2, (byte) 0x45);
+      System.arraycopy(source, 0, b.array(), at + 2 + 12, 4);
+      System.arraycopy(destination, 0, b.array(), at + 2 + 16, 4);
+    }
+    return b;
+  }
+
+  /**
+   * Evaluates the tcpdump expressions fanoutFilter builds on an Ethernet frame
+   * as libpcap would: ip, ip6, vlan, ether proto, not, and, or, parentheses
+   * and sums of 4-byte words of the IP header compared modulo a number. As in
+   * libpcap, vlan moves the offsets of everything written after it.
+   */
+  private static class Bpf {
+    private final String[]   tokens;
+    private final ByteBuffer packet;
+    private int              next;
+    private int              shift;
+
+    Bpf(String expression, ByteBuffer packet) {
+      this.tokens = expression.replace("(", " ( ").replace(")", " ) ")
+          .trim().split("\\s+");
+      this.packet = packet;
+    }
+
+    boolean accepts() {
+      boolean result = or();
+      assertEquals(tokens.length, next);
+      return result;
+    }
+
+    private boolean or() {
+      boolean result = and();
+      while (next < tokens.length && tokens[next].equals("or")) {
+        next++;
+        result |= and();
+      }
+      return result;
+    }
+
+    private boolean and() {
+      boolean result = unary();
+      while (next < tokens.length && tokens[next].equals("and")) {
+        next++;
+        result &= unary();
+      }
+      return result;
+    }
+
+    private boolean unary() {
+      String token = tokens[next++];
+      if (token.equals("not")) {
+        return !unary();
+      } else if (token.equals("(") && tokens[next].matches("ip6?\\[.*")) {
+        // (word + word ...) % n = k
+        long sum = word();
+        while (tokens[next].equals("+")) {
+          next++;
+          sum += word();
+        }
+        assertEquals(")", tokens[next++]);
+        assertEquals("%", tokens[next++]);
+        long n = Long.parseLong(tokens[next++]);
+        assertEquals("=", tokens[next++]);
+        return (sum & 0xffffffffL) % n == Long.parseLong(tokens[next++]);
+      } else if (token.equals("(")) {
+        boolean result = or();
+        assertEquals(")", tokens[next++]);
+        return result;
+      } else if (token.equals("ip")) {
+        return type() == 0x0800;
+      } else if (token.equals("ip6")) {
+        return type() == 0x86dd;
+      } else if (token.equals("vlan")) {
+        boolean result = type() == 0x8100;
+        shift += 4;
+        return result;
+      } else if (token.equals("ether")) {
+        assertEquals("proto", tokens[next++]);
+        return type() == Integer.decode(tokens[next++]);
+      }
+      throw new AssertionError("unexpected " + token);
+    }
+
+    private int type() {
+      return packet.getShort(12 + shift) & 0xffff;
+    }
+
+    private long word() {
+      // ip6[8:4] reads the four bytes 8 bytes into the IP header
+      String token = tokens[next++];
+      assertTrue(token, token.endsWith(":4]"));
+      int offset = Integer.parseInt(token.substring(token.indexOf('[') + 1,
+          token.indexOf(':')));
+      return packet.getInt(14 + shift + offset) & 0xffffffffL;
+    }
+  }
+
+  /**
+   * Reads copies of the capture from a folder, running a service over the
+   * packets on the capture side
+   */
+  private Flows readDirectory(int fileReaders) throws Exception {
+    File dir = folder.newFolder();
+    for (int i = 0; i < 6; i++) {
+      File file = new File(dir, "capture" + i + ".pcap");
+      Files.copy(Paths.get(CAPTURE), file.toPath());
+      file.setLastModified(1000000L * (i + 1));
+    }
+
+    Flows flows = new Flows();
+    WiffQueue<WiffByteBuffer> queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    WiffCapture capture = new WiffCapture(dir.getPath(), queue,
+        new ByteBufferPool(0, 0), "", fileReaders, false);
+    capture.setServices(new WiffService[] { flows });
+    Thread thread = new Thread(capture);
+    thread.start();
+    assertTrue(capture.awaitIdle(10000));
+    capture.stop();
+    thread.join();
+    assertEquals(0, queue.size());
+    return flows;
+  }
+
+  /**
+   * Captures from a source and stitches the queued packets in order. Whenever
+   * the packet time jumps past the session timeout, the sessions that went
+   * idle are expired before the next packet is stitched, as the expiry thread
+   * would on a slower pipeline.
+   */
+  private void stitch(String source, int fileReaders, Recorder recorder)
+      throws Exception {
+    WiffQueue<WiffByteBuffer> queue = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    WiffCapture capture = new WiffCapture(source, queue, new ByteBufferPool(
+        10000, 2048), "", fileReaders, false);
+    if (new File(source).isDirectory()) {
+      Thread thread = new Thread(capture);
+      thread.start();
+      assertTrue(capture.awaitIdle(10000));
+      capture.stop();
+      thread.join();
+    } else {
+      capture.run();
+    }
+
+    WiffStitch stitch = new WiffStitch(60, recorder);
+    WiffPacket packet = new WiffPacket();
+    long latest = 0;
+    while (queue.size() > 0) {
+      WiffByteBuffer buffer = queue.remove();
+      if (buffer.getTimestamp() - latest > 60 * 1000000L) {
+        WiffStitchTest.advance(stitch, buffer.getTimestamp());
+      }
+      latest = Math.max(latest, buffer.getTimestamp());
+      packet.setPacket(buffer.asByteBuffer(), buffer.getLinkType(),
+          buffer.getTimestamp());
+      stitch.processData(packet);
+    }
+    stitch.stop();
+  }
+
+  /**
+   * Writes the records between two offsets of a pcap file to a gzipped pcap
+   * file, with their time moved on by a number of seconds
+   */
+  private void writeCapture(File file, byte[] capture, int from, int to,
+      int seconds) throws IOException {
+    ByteBuffer records = ByteBuffer.wrap(capture.clone());
+    if (records.getInt(0) != 0xa1b2c3d4) {
+      records.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    for (int offset = from; offset < to; offset += 16 + records
+        .getInt(offset + 8)) {
+      records.putInt(offset, records.getInt(offset) + seconds);
+    }
+
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+    try {
+      out.write(capture, 0, 24);
+      out.write(records.array(), from, to - from);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Keeps the timestamps of each connection's packets, and the threads that
+   * processed them
+   */
+  private static class Flows extends WiffService<WiffPacket, ByteRope> {
+    final Map<Integer, List<Long>>  packets = new HashMap<Integer, List<Long>>();
+    final Map<Integer, Set<String>> threads = new HashMap<Integer, Set<String>>();
+
+    @Override
+    public synchronized void processData(WiffPacket packet) {
+      int hash = FlowHash.hash(packet);
+      if (!packets.containsKey(hash)) {
+        packets.put(hash, new ArrayList<Long>());
+        threads.put(hash, new HashSet<String>());
+      }
+      packets.get(hash).add(packet.getTimestamp());
+      threads.get(hash).add(Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Keeps every message it is sent, on the sending thread
+   */
+  private static class Recorder extends WiffReporter<ByteRope> {
+    final List<byte[]> messages = new ArrayList<byte[]>();
+
+    Recorder() {
+      super(new ByteRope());
+      setInline(true);
+    }
+
+    @Override
+    protected void process(ByteRope value) throws IOException {
+      messages.add(value.toByteArray());
+      value.release();
+    }
+
+    public void run() {
+    }
+  }
+}
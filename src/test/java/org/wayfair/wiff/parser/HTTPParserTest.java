@@ -3,9 +3,11 @@ package org.wayfair.wiff.parser;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Test;
 import org.wayfair.wiff.parser.HTTPParser;
+import org.wayfair.wiff.util.ByteRope;
 
 import static org.wayfair.wiff.test.TestHelperFunctions.*;
 
@@ -33,4 +35,18 @@ public class HTTPParserTest {
     HTTPParser parser = new HTTPParser("test", true, null, null);
     assertEquals(json, new String(parser.parse(stream)));
   }
+
+  @Test
+  public void testChunked() throws IOException {
+    // the stream in short chunks, so tokens straddle them
+    byte[] bytes = readBytesFromFile("./src/test/resources/http_gzip.txt");
+    ByteRope stream = new ByteRope();
+    for (int end = bytes.length; end > 0; end -= 37) {
+      stream.prepend(Arrays.copyOfRange(bytes, Math.max(0, end - 37), end));
+    }
+
+    HTTPParser parser = new HTTPParser("test", true, null, null);
+    assertEquals(readFile("./src/test/resources/http_gzip_json.txt"),
+        new String(parser.parse(stream)));
+  }
 }
@@ -0,0 +1,113 @@
+package org.wayfair.wiff.queue;
+
+import static org.junit.Assert.*;
+import static org.wayfair.wiff.test.TestHelperFunctions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.wayfair.wiff.util.WiffByteBuffer;
+import org.wayfair.wiff.util.WiffPacket;
+
+public class FlowAffinityQueueTest {
+
+  @Test
+  public void testLanes() throws Exception {
+    @SuppressWarnings("unchecked")
+    WiffQueue<WiffByteBuffer>[] lanes = new WiffQueue[3];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    }
+    FlowAffinityQueue queue = new FlowAffinityQueue(lanes);
+
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/sample.pcap");
+    for (int i = 0; i < packets.size(); i++) {
+      queue.add(new WiffByteBuffer(i, ByteBuffer.wrap(packets.get(i))));
+    }
+    assertEquals(packets.size(), queue.size());
+
+    // both directions of a connection are in one lane, in capture order
+    HashMap<String, Integer> connections = new HashMap<String, Integer>();
+    WiffPacket packet = new WiffPacket();
+    for (int i = 0; i < lanes.length; i++) {
+      int last = -1;
+      while (lanes[i].size() > 0) {
+        WiffByteBuffer buffer = lanes[i].remove();
+        assertTrue(buffer.getID() > last);
+        last = buffer.getID();
+
+        packet.setPacket(buffer.asByteBuffer());
+        String client = packet.getSourceIP() + ":" + packet.getSourcePort();
+        String server = packet.getDestinationIP() + ":"
+            + packet.getDestinationPort();
+        String connection = client.compareTo(server) < 0 ? client + server
+            : server + client;
+        Integer lane = connections.put(connection, i);
+        assertTrue(lane == null || lane == i);
+      }
+    }
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void testDrain() throws Exception {
+    @SuppressWarnings("unchecked")
+    WiffQueue<WiffByteBuffer>[] lanes = new WiffQueue[3];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    }
+    FlowAffinityQueue queue = new FlowAffinityQueue(lanes);
+
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/sample.pcap");
+    for (int i = 0; i < packets.size(); i++) {
+      queue.add(new WiffByteBuffer(i, ByteBuffer.wrap(packets.get(i))));
+    }
+
+    // every packet comes out of the queue as a whole, once
+    boolean[] seen = new boolean[packets.size()];
+    ArrayList<WiffByteBuffer> batch = new ArrayList<WiffByteBuffer>();
+    assertEquals(5, queue.drainTo(batch, 5));
+    batch.add(queue.remove());
+    while (queue.size() > 0) {
+      queue.drainTo(batch, 100);
+    }
+    assertEquals(packets.size(), batch.size());
+    for (WiffByteBuffer buffer : batch) {
+      assertFalse(seen[buffer.getID()]);
+      seen[buffer.getID()] = true;
+    }
+  }
+
+  @Test
+  public void testKillSignalStaysOnLane() throws Exception {
+    @SuppressWarnings("unchecked")
+    WiffQueue<WiffByteBuffer>[] lanes = new WiffQueue[3];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new WiffLinkedBlockingQueue<WiffByteBuffer>();
+    }
+    FlowAffinityQueue queue = new FlowAffinityQueue(lanes);
+
+    // a consumer being stopped puts the signal on its own lane
+    WiffByteBuffer signal = new WiffByteBuffer(-1,
+        ByteBuffer.wrap("KILL".getBytes()));
+    lanes[1].add(signal);
+
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/sample.pcap");
+    for (int i = 0; i < packets.size(); i++) {
+      queue.add(new WiffByteBuffer(i, ByteBuffer.wrap(packets.get(i))));
+    }
+
+    // dropping the oldest packets never takes the signal off its lane
+    int polled = 0;
+    WiffByteBuffer buffer;
+    while ((buffer = queue.poll()) != null) {
+      assertTrue(buffer.getID() >= 0);
+      polled++;
+    }
+    assertEquals(packets.size(), polled);
+    assertEquals(1, lanes[1].size());
+    assertSame(signal, lanes[1].remove());
+  }
+}
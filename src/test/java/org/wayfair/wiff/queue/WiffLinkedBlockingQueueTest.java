@@ -0,0 +1,42 @@
+package org.wayfair.wiff.queue;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+
+public class WiffLinkedBlockingQueueTest {
+
+  @Test
+  public void testDropNewest() throws Exception {
+    long dropped = Overload.getDropped(Reasons.QueueFull);
+    WiffLinkedBlockingQueue<Integer> queue = new WiffLinkedBlockingQueue<Integer>(
+        3, Policies.DropNewest);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i < 3, queue.add(i));
+    }
+
+    assertEquals(3, queue.size());
+    assertEquals(2, Overload.getDropped(Reasons.QueueFull) - dropped);
+    assertEquals(Integer.valueOf(0), queue.remove());
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    long dropped = Overload.getDropped(Reasons.QueueOldest);
+    WiffLinkedBlockingQueue<Integer> queue = new WiffLinkedBlockingQueue<Integer>(
+        3, Policies.DropOldest);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(queue.add(i));
+    }
+
+    assertEquals(3, queue.size());
+    assertEquals(2, Overload.getDropped(Reasons.QueueOldest) - dropped);
+    assertEquals(Integer.valueOf(2), queue.remove());
+    assertEquals(Integer.valueOf(3), queue.poll());
+    assertEquals(Integer.valueOf(4), queue.poll());
+    assertNull(queue.poll());
+  }
+}
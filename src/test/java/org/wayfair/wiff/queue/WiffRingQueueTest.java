@@ -0,0 +1,135 @@
+package org.wayfair.wiff.queue;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.wayfair.wiff.queue.WiffRingQueue.WaitStrategies;
+import org.wayfair.wiff.util.Overload;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.Overload.Reasons;
+
+public class WiffRingQueueTest {
+
+  @Test
+  public void testOrder() throws Exception {
+    WiffRingQueue<Integer> queue = new WiffRingQueue<Integer>(3,
+        Policies.Block, WaitStrategies.Spin);
+    assertEquals(4, queue.capacity());
+
+    // several laps of the ring
+    for (int i = 0; i < 10; i++) {
+      assertTrue(queue.add(2 * i));
+      assertTrue(queue.add(2 * i + 1));
+      assertEquals(2, queue.size());
+      assertEquals(Integer.valueOf(2 * i), queue.remove());
+      assertEquals(Integer.valueOf(2 * i + 1), queue.poll());
+    }
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    long dropped = Overload.getDropped(Reasons.QueueFull);
+    WiffRingQueue<Integer> queue = new WiffRingQueue<Integer>(4,
+        Policies.DropNewest, WaitStrategies.Yield);
+    assertEquals(3, queue.addAll(Arrays.asList(0, 1, 2)));
+
+    // one fits, one is dropped
+    assertEquals(1, queue.addAll(Arrays.asList(3, 4)));
+    assertEquals(1, Overload.getDropped(Reasons.QueueFull) - dropped);
+
+    ArrayList<Integer> batch = new ArrayList<Integer>();
+    assertEquals(3, queue.drainTo(batch, 3));
+    assertEquals(1, queue.drainTo(batch, 3));
+    assertEquals(Arrays.asList(0, 1, 2, 3), batch);
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    WiffRingQueue<Integer> queue = new WiffRingQueue<Integer>(2,
+        Policies.DropOldest, WaitStrategies.Park);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(queue.add(i));
+    }
+    assertEquals(Integer.valueOf(3), queue.remove());
+    assertEquals(Integer.valueOf(4), queue.remove());
+  }
+
+  @Test
+  public void testThreads() throws Exception {
+    final WiffRingQueue<Long> queue = new WiffRingQueue<Long>(64,
+        Policies.Block, WaitStrategies.Park);
+    final int count = 100000;
+    final AtomicLong sum = new AtomicLong();
+
+    // producers add singly and in batches, consumers drain in batches
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < 4; t++) {
+      final int producer = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            ArrayList<Long> batch = new ArrayList<Long>();
+            for (long i = 1; i <= count; i++) {
+              if (producer % 2 == 0) {
+                queue.add(i);
+              } else {
+                batch.add(i);
+                if (batch.size() == 10) {
+                  queue.addAll(batch);
+                  batch.clear();
+                }
+              }
+            }
+          } catch (Exception e) {
+            fail(e.toString());
+          }
+        }
+      };
+      threads[t + 4] = new Thread() {
+        public void run() {
+          try {
+            ArrayList<Long> batch = new ArrayList<Long>();
+            boolean stopped = false;
+            while (!stopped) {
+              batch.clear();
+              queue.drainTo(batch, 16);
+              for (long i : batch) {
+                if (i > 0) {
+                  sum.addAndGet(i);
+                } else if (stopped) {
+                  // another consumer's stop signal
+                  queue.add(i);
+                } else {
+                  stopped = true;
+                }
+              }
+            }
+          } catch (Exception e) {
+            fail(e.toString());
+          }
+        }
+      };
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (int t = 0; t < 4; t++) {
+      threads[t].join();
+    }
+    for (int t = 0; t < 4; t++) {
+      queue.add(-1L);
+    }
+    for (int t = 4; t < 8; t++) {
+      threads[t].join();
+    }
+
+    assertEquals(4L * count * (count + 1) / 2, sum.get());
+    assertEquals(0, queue.size());
+  }
+}
@@ -0,0 +1,157 @@
+package org.wayfair.wiff.queue;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wayfair.wiff.core.ByteBufferPool;
+import org.wayfair.wiff.queue.WiffSpillingQueue.BufferCodec;
+import org.wayfair.wiff.queue.WiffSpillingQueue.BytesCodec;
+import org.wayfair.wiff.util.Overload.Policies;
+import org.wayfair.wiff.util.WiffByteBuffer;
+
+public class WiffSpillingQueueTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSpill() throws Exception {
+    File directory = folder.newFolder("spill");
+    WiffSpillingQueue<byte[]> queue = new WiffSpillingQueue<byte[]>(2,
+        new BytesCodec(), directory, 64, 0, Policies.Block);
+
+    // two in memory, the rest across several segments
+    for (int i = 0; i < 20; i++) {
+      assertTrue(queue.add(new byte[] { (byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+    }
+    assertEquals(20, queue.size());
+    assertEquals(18, queue.getSpilled());
+    assertEquals(18, queue.getBacklog());
+    assertEquals(180, queue.getBacklogBytes());
+    assertTrue(directory.list().length > 1);
+
+    // read back in order, adding more on the way keeps them behind
+    assertEquals(0, queue.remove()[0]);
+    queue.add(new byte[] { 20 });
+    ArrayList<byte[]> batch = new ArrayList<byte[]>();
+    assertEquals(10, queue.drainTo(batch, 10));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i + 1, batch.get(i)[0]);
+    }
+    for (int i = 11; i <= 20; i++) {
+      assertEquals(i, queue.poll()[0]);
+    }
+
+    // the backlog is gone, and memory takes new elements again
+    assertNull(queue.poll());
+    assertEquals(19, queue.getUnspilled());
+    assertEquals(0, queue.getBacklog());
+    assertEquals(0, directory.list().length);
+    queue.add(new byte[] { 21 });
+    assertEquals(19, queue.getSpilled());
+  }
+
+  @Test
+  public void testDiskFull() throws Exception {
+    WiffSpillingQueue<byte[]> queue = new WiffSpillingQueue<byte[]>(1,
+        new BytesCodec(), folder.newFolder("spill"), 64, 64,
+        Policies.DropNewest);
+    assertTrue(queue.add(new byte[10]));
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.add(new byte[10]));
+    }
+    assertFalse(queue.add(new byte[10]));
+    assertEquals(5, queue.size());
+  }
+
+  @Test
+  public void testPooledBuffers() throws Exception {
+    ByteBufferPool pool = new ByteBufferPool(4, 100);
+    WiffSpillingQueue<WiffByteBuffer> queue = new WiffSpillingQueue<WiffByteBuffer>(
+        1, new BufferCodec(pool), folder.newFolder("spill"), 1024, 0,
+        Policies.Block);
+
+    // spilled buffers go back to the pool, so more are queued than it holds
+    for (int i = 0; i < 10; i++) {
+      WiffByteBuffer buffer = pool.getByteBuffer();
+      buffer.put(new byte[] { (byte) i, (byte) i });
+      buffer.flip();
+      queue.add(buffer);
+    }
+    assertEquals(10, queue.size());
+
+    for (int i = 0; i < 10; i++) {
+      WiffByteBuffer buffer = queue.remove();
+      assertEquals(2, buffer.asByteBuffer().remaining());
+      assertEquals(i, buffer.asByteBuffer().get(1));
+      pool.returnBuffer(buffer);
+    }
+  }
+
+  @Test
+  public void testKillPillStaysInMemory() throws Exception {
+    ByteBufferPool pool = new ByteBufferPool(4, 100);
+    WiffSpillingQueue<WiffByteBuffer> queue = new WiffSpillingQueue<WiffByteBuffer>(
+        1, new BufferCodec(pool), folder.newFolder("spill"), 1024, 0,
+        Policies.Block);
+    WiffByteBuffer killPill = new WiffByteBuffer(-1,
+        ByteBuffer.wrap("KILL".getBytes()));
+
+    // queued between spilled buffers, it keeps its place without being spilled
+    for (int i = 0; i < 4; i++) {
+      if (i == 2) {
+        queue.add(killPill);
+      }
+      WiffByteBuffer buffer = pool.getByteBuffer();
+      buffer.put(new byte[] { (byte) i });
+      buffer.flip();
+      queue.add(buffer);
+    }
+    assertEquals(5, queue.size());
+    assertEquals(3, queue.getSpilled());
+
+    for (int i = 0; i < 5; i++) {
+      WiffByteBuffer buffer = queue.remove();
+      if (i == 2) {
+        assertSame(killPill, buffer);
+        continue;
+      }
+      assertEquals(i < 2 ? i : i - 1, buffer.asByteBuffer().get(0));
+      pool.returnBuffer(buffer);
+    }
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testReadBackWaitsForRoom() throws Exception {
+    ByteBufferPool pool = new ByteBufferPool(2, 100);
+    WiffSpillingQueue<WiffByteBuffer> queue = new WiffSpillingQueue<WiffByteBuffer>(
+        1, new BufferCodec(pool), folder.newFolder("spill"), 1024, 0,
+        Policies.Block);
+    for (int i = 0; i < 2; i++) {
+      WiffByteBuffer buffer = pool.getByteBuffer();
+      buffer.put(new byte[] { (byte) i });
+      buffer.flip();
+      queue.add(buffer);
+    }
+    assertEquals(1, queue.getBacklog());
+
+    // with every buffer taken, the spilled one stays on disk
+    WiffByteBuffer first = queue.remove();
+    WiffByteBuffer held = pool.pollByteBuffer(0);
+    assertNotNull(held);
+    assertNull(queue.poll());
+    assertEquals(1, queue.size());
+
+    pool.returnBuffer(first);
+    WiffByteBuffer second = queue.poll();
+    assertNotNull(second);
+    assertEquals(1, second.asByteBuffer().get(0));
+    assertEquals(0, queue.size());
+  }
+}
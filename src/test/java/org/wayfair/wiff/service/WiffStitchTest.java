@@ -0,0 +1,82 @@
+package org.wayfair.wiff.service;
+
+import static org.junit.Assert.*;
+import static org.wayfair.wiff.test.TestHelperFunctions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.wayfair.wiff.reporter.WiffReporter;
+import org.wayfair.wiff.util.ByteRope;
+import org.wayfair.wiff.util.LinkLayer;
+import org.wayfair.wiff.util.WiffPacket;
+
+public class WiffStitchTest {
+  private static final long START = 1000000000000000L;
+
+  @Test
+  public void testAdvance() throws Exception {
+    List<byte[]> packets = readPacktsFromFile("./src/test/resources/http.cap");
+    Recorder recorder = new Recorder();
+    WiffStitch stitch = new WiffStitch(60, recorder);
+    // an idle connection is sent with what it has rather than dropped
+    stitch.setGapBudget(1024 * 1024, 0);
+
+    // the first half of the connection, which does not close it
+    WiffPacket packet = new WiffPacket();
+    for (int i = 0; i < packets.size() / 2; i++) {
+      packet.setPacket(ByteBuffer.wrap(packets.get(i)), LinkLayer.ETHERNET,
+          START + i);
+      stitch.processData(packet);
+    }
+    assertTrue(recorder.messages.isEmpty());
+
+    // idle for less than the cache time, then for more
+    advance(stitch, START + TimeUnit.SECONDS.toMicros(59));
+    assertTrue(recorder.messages.isEmpty());
+    advance(stitch, START + TimeUnit.SECONDS.toMicros(61));
+    assertEquals(1, recorder.messages.size());
+
+    stitch.stop();
+    assertEquals(1, recorder.messages.size());
+  }
+
+  /**
+   * Moves a stitcher's packet clock on to a time and expires the connections
+   * idle by then, without waiting for its expiry thread. For tests outside
+   * this package.
+   * 
+   * @param stitch
+   *          the stitcher
+   * @param timestamp
+   *          a packet time, in microseconds since the epoch
+   */
+  public static void advance(WiffStitch stitch, long timestamp) {
+    stitch.advance(timestamp);
+  }
+
+  /**
+   * Keeps every message it is sent, on the sending thread
+   */
+  private static class Recorder extends WiffReporter<ByteRope> {
+    final List<byte[]> messages = new ArrayList<byte[]>();
+
+    Recorder() {
+      super(new ByteRope());
+      setInline(true);
+    }
+
+    @Override
+    protected void process(ByteRope value) throws IOException {
+      messages.add(value.toByteArray());
+      value.release();
+    }
+
+    public void run() {
+    }
+  }
+}
@@ -7,8 +7,10 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.jnetpcap.Pcap;
+import org.wayfair.wiff.util.TcpReconstructor;
 
 public class TestHelperFunctions {
   public static ArrayList<byte[]> readPacktsFromFile(String filePath) {
@@ -34,4 +36,114 @@ public class TestHelperFunctions {
   public static String readFile(String path) throws IOException {
     return new String(readBytesFromFile(path));
   }
+
+  /**
+   * A segment of a synthetic TCP connection between 10.0.0.1:40000 and
+   * 10.0.0.2:80
+   */
+  public static class Segment {
+    public final boolean client;
+    public final long    seq;
+    public final long    ack;
+    public final byte[]  data;
+    public final boolean syn;
+    public final boolean fin;
+
+    public Segment(boolean client, long seq, long ack, byte[] data,
+        boolean syn, boolean fin) {
+      this.client = client;
+      this.seq = seq & 0xffffffffL;
+      this.ack = ack & 0xffffffffL;
+      this.data = data;
+      this.syn = syn;
+      this.fin = fin;
+    }
+
+    /**
+     * @return the part of this segment's payload from an offset, as sent
+     *         again
+     */
+    public Segment slice(int from, int to) {
+      byte[] part = new byte[to - from];
+      System.arraycopy(data, from, part, 0, part.length);
+      return new Segment(client, seq + from, ack, part, false, fin
+          && to == data.length);
+    }
+
+    /**
+     * @return this segment as an Ethernet frame
+     */
+    public byte[] toPacket() {
+      ByteBuffer packet = ByteBuffer.allocate(54 + data.length);
+      packet.position(12);
+      packet.putShort((short) 0x0800);
+      packet.put((byte) 0x45).put((byte) 0).putShort((short) (40 + data.length));
+      packet.putInt(0x00004000).putInt(0x40060000);
+      packet.putInt(client ? 0x0a000001 : 0x0a000002);
+      packet.putInt(client ? 0x0a000002 : 0x0a000001);
+      packet.putShort((short) (client ? 40000 : 80));
+      packet.putShort((short) (client ? 80 : 40000));
+      packet.putInt((int) seq).putInt((int) ack).put((byte) 0x50);
+      boolean ackFlag = client ? !syn : true;
+      packet.put((byte) ((fin ? 0x01 : 0) | (syn ? 0x02 : 0)
+          | (fin ? 0 : 0x08) | (ackFlag ? 0x10 : 0)));
+      packet.putShort((short) 65535).putInt(0);
+      packet.put(data);
+      return packet.array();
+    }
+
+    /**
+     * Passes this segment to a reconstructor
+     */
+    public boolean reassemble(TcpReconstructor r) throws IOException {
+      int clientIp = 0x0a000001;
+      int serverIp = 0x0a000002;
+      return client ? r.reassemble_tcp(seq, ack, data, syn, fin, !syn, !fin,
+          clientIp, 40000, serverIp, 80, "10.0.0.1", "10.0.0.2") : r
+          .reassemble_tcp(seq, ack, data, syn, fin, true, !fin, serverIp, 80,
+              clientIp, 40000, "10.0.0.2", "10.0.0.1");
+    }
+  }
+
+  /**
+   * Builds the segments of a connection that sends one request and one
+   * response, in the order they were sent
+   *
+   * @param clientIsn
+   *          the client's initial sequence number
+   * @param serverIsn
+   *          the server's initial sequence number
+   * @param request
+   *          the bytes the client sends
+   * @param response
+   *          the bytes the server sends back
+   * @param mss
+   *          the most bytes in a segment
+   * @return the handshake, the request, the response and both FINs
+   */
+  public static List<Segment> tcpConnection(long clientIsn, long serverIsn,
+      byte[] request, byte[] response, int mss) {
+    List<Segment> segments = new ArrayList<Segment>();
+    long client = clientIsn + 1;
+    long server = serverIsn + 1;
+    segments.add(new Segment(true, clientIsn, 0, new byte[0], true, false));
+    segments.add(new Segment(false, serverIsn, client, new byte[0], true,
+        false));
+    for (int i = 0; i < request.length; i += mss) {
+      byte[] data = new byte[Math.min(mss, request.length - i)];
+      System.arraycopy(request, i, data, 0, data.length);
+      segments.add(new Segment(true, client + i, server, data, false, false));
+    }
+    client += request.length;
+    for (int i = 0; i < response.length; i += mss) {
+      byte[] data = new byte[Math.min(mss, response.length - i)];
+      System.arraycopy(response, i, data, 0, data.length);
+      segments.add(new Segment(false, server + i, client, data, false, false));
+    }
+    server += response.length;
+    segments.add(new Segment(false, server, client, new byte[0], false, true));
+    segments.add(new Segment(true, client, server + 1, new byte[0], false,
+        true));
+    return segments;
+  }
 }
@@ -0,0 +1,138 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ByteRopeTest {
+
+  @Test
+  public void testAppend() {
+    // from arrays, heap buffers, slices and direct buffers, across chunks
+    byte[] bytes = new byte[100000];
+    new Random(1).nextBytes(bytes);
+    ByteRope rope = new ByteRope();
+    for (int i = 0; i < bytes.length; i += 1448) {
+      int n = Math.min(1448, bytes.length - i);
+      ByteBuffer buffer;
+      switch (i % 4) {
+        case 0:
+          rope.append(Arrays.copyOfRange(bytes, i, i + n));
+          continue;
+        case 1:
+          buffer = ByteBuffer.wrap(bytes, i, n);
+          break;
+        case 2:
+          buffer = ByteBuffer.wrap(bytes, i, n).slice();
+          break;
+        default:
+          buffer = ByteBuffer.allocateDirect(n);
+          buffer.put(bytes, i, n).flip();
+          break;
+      }
+      int position = buffer.position();
+      rope.append(buffer);
+      assertEquals(position, buffer.position());
+    }
+    assertEquals(bytes.length, rope.length());
+    assertArrayEquals(bytes, rope.toByteArray());
+    assertEquals(bytes[77777], rope.byteAt(77777));
+  }
+
+  @Test
+  public void testSearch() throws IOException {
+    StringBuilder builder = new StringBuilder();
+    Random random = new Random(2);
+    while (builder.length() < 100000) {
+      builder.append(random.nextBoolean() ? "HTTP/1.1 200 OK\r\n" : "a: b\r\n");
+      builder.append((char) ('a' + random.nextInt(26)));
+    }
+    String text = builder.toString();
+    ByteRope rope = rope(text);
+    assertEquals(text.length(), rope.length());
+    assertEquals(text, rope.toString());
+
+    // searched and cut in place as the String would be
+    for (String token : new String[] { "HTTP/", "\r\n\r\n", "\r\n", "z",
+        "none" }) {
+      for (int from = -1; from <= text.length() + 1; from += 1 + random
+          .nextInt(700)) {
+        assertEquals(text.indexOf(token, from), rope.indexOf(token, from));
+        assertEquals(text.lastIndexOf(token, from),
+            rope.lastIndexOf(token, from));
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      int start = random.nextInt(text.length());
+      int end = start + random.nextInt(Math.min(40000, text.length() - start));
+      assertEquals(text.substring(start, end), rope.substring(start, end));
+      assertEquals(text.charAt(start), rope.charAt(start));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    rope.writeTo(out);
+    assertEquals(text, out.toString("ISO-8859-1"));
+  }
+
+  @Test
+  public void testPrependAndRelease() throws IOException {
+    ByteRope rope = rope("world");
+    rope.prepend("hello ".getBytes());
+    assertEquals("hello world", rope.toString());
+    assertEquals(6, rope.indexOf("world", 0));
+    assertEquals(4, rope.lastIndexOf("o ", 10));
+
+    byte[] copy = new byte[13];
+    rope.copyTo(2, copy, 1, 9);
+    assertEquals("llo world", new String(copy, 1, 9));
+
+    rope.release();
+    assertEquals(0, rope.length());
+    assertEquals(-1, rope.indexOf("world", 0));
+
+    // released chunks are written again as new
+    rope = rope("again");
+    assertEquals("again", rope.toString());
+  }
+
+  @Test
+  public void testReleasedOnAnotherThread() throws Exception {
+    final ByteRope[] ropes = new ByteRope[100];
+    for (int i = 0; i < ropes.length; i++) {
+      ropes[i] = rope("first " + i);
+    }
+
+    // chunks released on a reporter's thread come back to the one filling
+    Thread reporter = new Thread() {
+      public void run() {
+        for (ByteRope rope : ropes) {
+          rope.release();
+        }
+      }
+    };
+    reporter.start();
+    reporter.join();
+
+    for (int i = 0; i < ropes.length; i++) {
+      ropes[i] = rope("second " + i);
+    }
+    for (int i = 0; i < ropes.length; i++) {
+      assertEquals("second " + i, ropes[i].toString());
+    }
+  }
+
+  private static ByteRope rope(String text) throws IOException {
+    byte[] bytes = text.getBytes("ISO-8859-1");
+    ByteRope rope = new ByteRope();
+    for (int i = 0; i < bytes.length; i += 1448) {
+      rope.append(ByteBuffer.wrap(bytes, i, Math.min(1448, bytes.length - i)));
+    }
+    return rope;
+  }
+}
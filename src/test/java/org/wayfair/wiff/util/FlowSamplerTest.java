@@ -0,0 +1,130 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.wayfair.wiff.queue.WiffLinkedBlockingQueue;
+
+public class FlowSamplerTest {
+
+  @Test
+  public void testRate() {
+    FlowSampler half = new FlowSampler(0.5f);
+    FlowSampler quarter = new FlowSampler(0.25f);
+
+    Random random = new Random(1);
+    int kept = 0;
+    for (int i = 0; i < 100000; i++) {
+      int client = random.nextInt();
+      int port = random.nextInt(65536);
+      int hash = FlowHash.hash(client, port, 0x0a000001, 80);
+
+      // both directions of a connection are sampled alike
+      boolean keep = quarter.sample(hash);
+      assertEquals(keep, quarter.sample(FlowHash.hash(0x0a000001, 80, client,
+          port)));
+
+      // connections kept at a lower rate are kept at a higher one
+      if (keep) {
+        assertTrue(half.sample(hash));
+        kept++;
+      }
+    }
+    assertEquals(25000, kept, 1000);
+    assertEquals(2 * (100000 - kept), quarter.getDropped());
+  }
+
+  @Test
+  public void testAdaptive() throws Exception {
+    WiffLinkedBlockingQueue<Integer> queue = new WiffLinkedBlockingQueue<Integer>();
+    for (int i = 0; i < 20; i++) {
+      queue.add(i);
+    }
+
+    // the queue is over its limit, so the first packet lowers the rate once
+    FlowSampler sampler = new FlowSampler(0.5f, 0.1f, queue, 10);
+    sampler.sample(0);
+    assertEquals(0.25f, sampler.getRate(), 0);
+    sampler.sample(0);
+    assertEquals(0.25f, sampler.getRate(), 0);
+  }
+
+  @Test
+  public void testDecidedOnce() throws Exception {
+    WiffLinkedBlockingQueue<Integer> queue = new WiffLinkedBlockingQueue<Integer>();
+    for (int i = 0; i < 20; i++) {
+      queue.add(i);
+    }
+
+    // connections opened while the queue is over its limit, at half the rate
+    FlowSampler sampler = new FlowSampler(1f, 0.25f, queue, 10);
+    int[] hashes = new int[1000];
+    boolean[] kept = new boolean[hashes.length];
+    int count = 0;
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = FlowHash.hash(0x0a000002 + i, 40000, 0x0a000001, 80);
+      kept[i] = sampler.sample(hashes[i], true);
+      count += kept[i] ? 1 : 0;
+    }
+    assertEquals(0.5f, sampler.getRate(), 0);
+    assertEquals(500, count, 100);
+
+    // the queue drains and the rate goes back up, for new connections only
+    while (queue.size() > 0) {
+      queue.remove();
+    }
+    Thread.sleep(1100);
+    for (int i = 0; i < hashes.length; i++) {
+      assertEquals(kept[i], sampler.sample(hashes[i]));
+      assertEquals(0.5f, sampler.getRate(hashes[i]), 0);
+    }
+    assertEquals(1f, sampler.getRate(), 0);
+    int hash = FlowHash.hash(0x0a0f0002, 40000, 0x0a000001, 80);
+    assertTrue(sampler.sample(hash, true));
+    assertEquals(1f, sampler.getRate(hash), 0);
+
+    // a connection's SYN decides it again, at the current rate
+    for (int i = 0; i < hashes.length; i++) {
+      assertTrue(sampler.sample(hashes[i], true));
+    }
+  }
+
+  @Test
+  public void testManyConnections() throws Exception {
+    WiffLinkedBlockingQueue<Integer> queue = new WiffLinkedBlockingQueue<Integer>();
+    for (int i = 0; i < 20; i++) {
+      queue.add(i);
+    }
+
+    // far more live connections than a fixed table of 64k slots holds
+    FlowSampler sampler = new FlowSampler(1f, 0.25f, queue, 10);
+    int[] hashes = new int[300000];
+    boolean[] kept = new boolean[hashes.length];
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = FlowHash.hash(0x0a000000 + (i >> 4), 40000 + (i & 0xf),
+          0x0a800001, 443);
+      kept[i] = sampler.sample(hashes[i], true);
+    }
+    assertEquals(0.5f, sampler.getRate(), 0);
+    // bar the few connections whose hashes are the same
+    assertEquals(hashes.length, sampler.size(), 100);
+
+    // at the higher rate every connection still keeps its first decision
+    while (queue.size() > 0) {
+      queue.remove();
+    }
+    Thread.sleep(1100);
+    for (int i = 0; i < hashes.length; i++) {
+      assertEquals(kept[i], sampler.sample(hashes[i]));
+      assertEquals(0.5f, sampler.getRate(hashes[i]), 0);
+    }
+    assertEquals(1f, sampler.getRate(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRate() {
+    new FlowSampler(1.5f);
+  }
+}
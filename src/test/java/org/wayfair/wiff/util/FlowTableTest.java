@@ -0,0 +1,150 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class FlowTableTest {
+
+  @Test
+  public void testDirection() {
+    FlowTable<String> table = new FlowTable<String>(4, 0, TimeUnit.SECONDS,
+        null);
+    assertTrue(table.replace(0, 1, 80, 0, 2, 40000, null, "a"));
+    assertEquals("a", table.get(0, 1, 80, 0, 2, 40000));
+    assertEquals("a", table.get(0, 2, 40000, 0, 1, 80));
+    assertNull(table.get(0, 1, 80, 0, 2, 40001));
+    assertNull(table.get(1, 1, 80, 0, 2, 40000));
+
+    // the same address at both ends, told apart by port
+    assertTrue(table.replace(0, 1, 80, 0, 1, 81, null, "b"));
+    assertEquals("b", table.get(0, 1, 81, 0, 1, 80));
+    assertEquals(2, table.size());
+  }
+
+  @Test
+  public void testReplace() {
+    final List<String> removed = new ArrayList<String>();
+    FlowTable<String> table = new FlowTable<String>(1, 0, TimeUnit.SECONDS,
+        new FlowTable.RemovalListener<String>() {
+          public void onRemoval(String value) {
+            removed.add(value);
+          }
+        });
+
+    assertTrue(table.replace(0, 1, 80, 0, 2, 40000, null, "a"));
+    assertFalse(table.replace(0, 1, 80, 0, 2, 40000, null, "b"));
+    assertTrue(table.replace(0, 2, 40000, 0, 1, 80, "a", "b"));
+    assertEquals("b", table.get(0, 1, 80, 0, 2, 40000));
+    assertFalse(table.remove(0, 1, 80, 0, 2, 40000, "a"));
+    assertTrue(table.remove(0, 1, 80, 0, 2, 40000, "b"));
+    assertNull(table.get(0, 1, 80, 0, 2, 40000));
+    assertEquals(0, table.size());
+
+    // every value that leaves the table is passed on, once
+    assertEquals(2, removed.size());
+    assertEquals("a", removed.get(0));
+    assertEquals("b", removed.get(1));
+  }
+
+  @Test
+  public void testListenerUnlocked() throws Exception {
+    final AtomicReference<FlowTable<String>> table = new AtomicReference<FlowTable<String>>();
+    final List<Boolean> free = new ArrayList<Boolean>();
+    table.set(new FlowTable<String>(1, 0, TimeUnit.SECONDS,
+        new FlowTable.RemovalListener<String>() {
+          public void onRemoval(String value) {
+            // another thread can use the table while the listener runs
+            Thread other = new Thread(new Runnable() {
+              public void run() {
+                table.get().get(0, 1, 80, 0, 2, 40000);
+              }
+            });
+            other.start();
+            try {
+              other.join(1000);
+            } catch (InterruptedException e) {
+            }
+            free.add(!other.isAlive());
+          }
+        }));
+
+    table.get().replace(0, 1, 80, 0, 2, 40000, null, "a");
+    table.get().remove(0, 1, 80, 0, 2, 40000, "a");
+    assertEquals(1, free.size());
+    assertTrue(free.get(0));
+  }
+
+  @Test
+  public void testManyFlows() {
+    // grows, and removes from the middle of probe sequences, as a map would
+    FlowTable<Integer> table = new FlowTable<Integer>(4, 0, TimeUnit.SECONDS,
+        null);
+    Map<Long, Integer> expected = new HashMap<Long, Integer>();
+    Random random = new Random(1);
+    for (int i = 0; i < 200000; i++) {
+      long flow = random.nextInt(50000);
+      Integer current = expected.get(flow);
+      if (current != null && random.nextBoolean()) {
+        assertTrue(table.remove(0, flow, 80, 0, 0xffff00000000L | flow, 1000,
+            current));
+        expected.remove(flow);
+      } else {
+        // values are compared by identity, and each i is boxed once
+        Integer value = Integer.valueOf(i);
+        assertTrue(table.replace(0, 0xffff00000000L | flow, 1000, 0, flow, 80,
+            current, value));
+        expected.put(flow, value);
+      }
+    }
+    assertEquals(expected.size(), table.size());
+    for (long flow = 0; flow < 50000; flow++) {
+      assertEquals(expected.get(flow),
+          table.get(0, flow, 80, 0, 0xffff00000000L | flow, 1000));
+    }
+  }
+
+  @Test
+  public void testExpiry() {
+    final long[] time = new long[1];
+    final List<String> removed = new ArrayList<String>();
+    FlowTable<String> table = new FlowTable<String>(1, 10, TimeUnit.SECONDS,
+        new FlowTable.RemovalListener<String>() {
+          public void onRemoval(String value) {
+            removed.add(value);
+          }
+        }, new Ticker() {
+          public long read() {
+            return time[0];
+          }
+        });
+
+    table.replace(0, 1, 80, 0, 2, 40000, null, "a");
+    table.replace(0, 1, 80, 0, 3, 40000, null, "b");
+    time[0] = TimeUnit.SECONDS.toNanos(8);
+    assertEquals("a", table.get(0, 1, 80, 0, 2, 40000));
+
+    // only the flow not looked up since has expired
+    time[0] = TimeUnit.SECONDS.toNanos(12);
+    table.expire();
+    assertEquals(1, table.size());
+    assertEquals(1, removed.size());
+    assertEquals("b", removed.get(0));
+
+    // an expired flow is not found, even before it is swept
+    time[0] = TimeUnit.SECONDS.toNanos(30);
+    assertNull(table.get(0, 1, 80, 0, 2, 40000));
+    assertEquals(2, removed.size());
+    assertEquals(0, table.size());
+  }
+}
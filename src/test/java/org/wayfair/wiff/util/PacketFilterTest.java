@@ -0,0 +1,87 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.wayfair.wiff.test.TestHelperFunctions.*;
+
+public class PacketFilterTest {
+
+  @Test
+  public void test() {
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/http_gzip.cap");
+
+    // every packet in the capture is between 192.168.69.2:34059 and
+    // 192.168.69.1:80
+    assertEquals(10, count(packets, ""));
+    assertEquals(10, count(packets, "tcp"));
+    assertEquals(0, count(packets, "udp"));
+    assertEquals(10, count(packets, "port 80"));
+    assertEquals(0, count(packets, "not port 80"));
+    assertEquals(10, count(packets, "host 192.168.69.1 and (port 80 || port 443)"));
+    assertEquals(10, count(packets, "net 192.168.0.0/16"));
+    assertEquals(count(packets, "dst port 80"), count(packets, "src host 192.168.69.2"));
+    assertEquals(count(packets, "src port 80"), count(packets, "dst host 192.168.69.2"));
+    assertEquals(10, count(packets, "dst port 80 or src port 80"));
+    assertEquals(10, count(packets, "portrange 1-1024"));
+
+    // protocols qualify the primitive after them, with an implicit "and"
+    assertEquals(10, count(packets, "ip"));
+    assertEquals(0, count(packets, "ip6"));
+    assertEquals(10, count(packets, "tcp port 80"));
+    assertEquals(0, count(packets, "udp port 80"));
+    assertEquals(count(packets, "dst port 80"), count(packets, "tcp dst port 80"));
+    assertEquals(count(packets, "src port 80"),
+        count(packets, "ip src host 192.168.69.1"));
+    assertEquals(10, count(packets, "tcp port 80 or tcp port 443"));
+    assertEquals(0, count(packets, "tcp not port 80"));
+    assertEquals(10, count(packets, "(tcp port 80) host 192.168.69.1"));
+  }
+
+  @Test
+  public void testIpv6() {
+    // TCP from [2001:db8::1]:40000 to [2001:db8::2]:80
+    ByteBuffer b = ByteBuffer.wrap(new byte[14 + 40 + 20]);
+    b.putShort(12, (short) 0x86dd);
+    b.put(14, (byte) 0x60);
+    b.putShort(18, (short) 20);
+    b.put(20, (byte) 6);
+    b.putLong(22, 0x20010db800000000L).putLong(30, 1);
+    b.putLong(38, 0x20010db800000000L).putLong(46, 2);
+    b.putShort(54, (short) 40000).putShort(56, (short) 80);
+    b.put(66, (byte) 0x50);
+
+    assertTrue(new PacketFilter("ip6").accept(b));
+    assertFalse(new PacketFilter("ip").accept(b));
+    assertTrue(new PacketFilter("ip6 and tcp dst port 80").accept(b));
+    assertTrue(new PacketFilter("tcp src port 40000").accept(b));
+    assertFalse(new PacketFilter("tcp src port 80").accept(b));
+    assertFalse(new PacketFilter("udp port 80").accept(b));
+    assertFalse(new PacketFilter("host 192.168.69.1").accept(b));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testQualifierWithoutPrimitive() {
+    new PacketFilter("tcp dst");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupported() {
+    new PacketFilter("ether host 00:11:22:33:44:55");
+  }
+
+  private int count(ArrayList<byte[]> packets, String expression) {
+    PacketFilter filter = new PacketFilter(expression);
+    int count = 0;
+    for (byte[] packet : packets) {
+      if (filter.accept(ByteBuffer.wrap(packet))) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
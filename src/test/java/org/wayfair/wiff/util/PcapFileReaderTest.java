@@ -0,0 +1,173 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.wayfair.wiff.test.TestHelperFunctions.*;
+
+public class PcapFileReaderTest {
+
+  @Test
+  public void testPcap() {
+    String resource = "./src/test/resources/http.cap";
+    ArrayList<byte[]> expected = readPacktsFromFile(resource);
+
+    try {
+      assertPackets(expected, readAll(new File(resource)));
+    } catch (IOException e) {
+      fail("Could not read resource: " + resource);
+    }
+  }
+
+  @Test
+  public void testPcapng() {
+    ArrayList<byte[]> expected = readPacktsFromFile("./src/test/resources/http.cap");
+
+    File file = null;
+    try {
+      file = File.createTempFile("wiff", ".pcapng");
+      writePcapng(file, expected);
+      assertPackets(expected, readAll(file));
+    } catch (IOException e) {
+      fail("Could not write pcapng file");
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptPcapng() throws IOException {
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/http.cap");
+    File file = File.createTempFile("wiff", ".pcapng");
+    try {
+      writePcapng(file, packets);
+
+      // a captured length that runs past the end of the first packet block
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.seek(80);
+      raf.writeInt(Integer.reverseBytes(packets.get(0).length + 4));
+      raf.close();
+
+      PcapFileReader reader = new PcapFileReader(file);
+      try {
+        reader.nextPacket();
+        fail("Read a packet longer than its block");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().startsWith("Corrupt block at offset 60"));
+      } finally {
+        reader.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testTimestamp() {
+    try {
+      PcapFileReader reader = new PcapFileReader(new File(
+          "./src/test/resources/http.cap"));
+      assertNotNull(reader.nextPacket());
+      assertEquals(1, reader.getLinkType());
+      assertEquals(1084443427311224L, reader.getTimestamp());
+      reader.close();
+    } catch (IOException e) {
+      fail("Could not read resource");
+    }
+  }
+
+  @Test
+  public void testTail() throws IOException {
+    ArrayList<byte[]> expected = readPacktsFromFile("./src/test/resources/http.cap");
+    byte[] bytes = readBytesFromFile("./src/test/resources/http.cap");
+
+    File file = File.createTempFile("wiff", ".pcap");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      PcapFileReader reader = new PcapFileReader(file, true);
+      ArrayList<byte[]> actual = new ArrayList<byte[]>();
+      try {
+        // append the file a few bytes at a time, splitting records
+        for (int written = 0; written < bytes.length; written += 37) {
+          out.write(bytes, written, Math.min(37, bytes.length - written));
+          out.flush();
+
+          ByteBuffer packet;
+          while ((packet = reader.nextPacket()) != null) {
+            byte[] b = new byte[packet.remaining()];
+            packet.get(b);
+            actual.add(b);
+          }
+        }
+      } finally {
+        reader.close();
+        out.close();
+      }
+      assertPackets(expected, actual);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private ArrayList<byte[]> readAll(File file) throws IOException {
+    ArrayList<byte[]> packets = new ArrayList<byte[]>();
+    PcapFileReader reader = new PcapFileReader(file);
+    ByteBuffer packet;
+    while ((packet = reader.nextPacket()) != null) {
+      byte[] bytes = new byte[packet.remaining()];
+      packet.get(bytes);
+      packets.add(bytes);
+    }
+    reader.close();
+    return packets;
+  }
+
+  private void assertPackets(ArrayList<byte[]> expected, ArrayList<byte[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  /**
+   * Writes a little endian pcapng file with one interface and one enhanced
+   * packet block per packet
+   */
+  private void writePcapng(File file, ArrayList<byte[]> packets)
+      throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(1024 * 1024).order(
+        ByteOrder.LITTLE_ENDIAN);
+
+    // section header
+    b.putInt(0x0a0d0d0a).putInt(28).putInt(0x1a2b3c4d).putShort((short) 1)
+        .putShort((short) 0).putLong(-1).putInt(28);
+
+    // interface description, nanosecond resolution
+    b.putInt(1).putInt(32).putShort((short) 1).putShort((short) 0)
+        .putInt(65535).putShort((short) 9).putShort((short) 1)
+        .put((byte) 9).put(new byte[3]).putInt(0).putInt(32);
+
+    for (byte[] packet : packets) {
+      int padded = (packet.length + 3) & ~3;
+      int length = 32 + padded;
+      b.putInt(6).putInt(length).putInt(0).putInt(0).putInt(0)
+          .putInt(packet.length).putInt(packet.length).put(packet)
+          .put(new byte[padded - packet.length]).putInt(length);
+    }
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(b.array(), 0, b.position());
+    out.close();
+  }
+}
@@ -0,0 +1,53 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import static org.wayfair.wiff.test.TestHelperFunctions.*;
+
+public class PcapStreamReaderTest {
+
+  @Test
+  public void test() {
+    String resource = "./src/test/resources/http.cap";
+    ArrayList<byte[]> expected = readPacktsFromFile(resource);
+
+    try {
+      // gzip the capture
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(readBytesFromFile(resource));
+      gzip.close();
+
+      // small chunks and a small buffer so records straddle both
+      PcapStreamReader reader = new PcapStreamReader(new ReadAheadInputStream(
+          new GZIPInputStream(new ByteArrayInputStream(
+              compressed.toByteArray())), "test", 100, 2), resource, 512);
+
+      ArrayList<byte[]> actual = new ArrayList<byte[]>();
+      ByteBuffer packet;
+      while ((packet = reader.nextPacket()) != null) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        actual.add(bytes);
+      }
+      reader.close();
+
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertArrayEquals(expected.get(i), actual.get(i));
+      }
+    } catch (IOException e) {
+      fail("Could not read resource: " + resource);
+    }
+  }
+}
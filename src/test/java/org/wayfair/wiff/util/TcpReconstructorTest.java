@@ -5,10 +5,16 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import org.wayfair.wiff.test.TestHelperFunctions.Segment;
+
 import static org.wayfair.wiff.test.TestHelperFunctions.*;
 
 public class TcpReconstructorTest {
@@ -47,4 +53,98 @@ public class TcpReconstructorTest {
     }
     assertEquals(expectedStream, recon.toString());
   }
+
+  @Test
+  public void testOutOfOrder() throws IOException {
+    // the server's sequence numbers wrap part way through the response
+    byte[] request = "GET / HTTP/1.1\r\n\r\n".getBytes();
+    byte[] response = new byte[20000];
+    new Random(1).nextBytes(response);
+    List<Segment> sent = tcpConnection(1000, 0xffffffffL - 3000, request,
+        response, 1000);
+    byte[] expected = reassemble(sent);
+    assertNotNull(expected);
+    assertTrue(expected.length > response.length);
+
+    // the response backwards
+    List<Segment> reversed = new ArrayList<Segment>(sent);
+    Collections.reverse(reversed.subList(3, sent.size() - 2));
+    assertArrayEquals(expected, reassemble(reversed));
+
+    // every other segment lost, then sent again overlapping its neighbours
+    List<Segment> lossy = new ArrayList<Segment>(sent.subList(0, 3));
+    List<Segment> data = sent.subList(3, sent.size() - 2);
+    for (int i = 0; i < data.size(); i += 2) {
+      lossy.add(data.get(i));
+    }
+    for (int i = 1; i < data.size(); i += 2) {
+      Segment lost = data.get(i);
+      lossy.add(data.get(i - 1).slice(500, 1000));
+      lossy.add(lost.slice(0, 700));
+      lossy.add(lost);
+      lossy.add(lost.slice(300, lost.data.length));
+    }
+    lossy.addAll(sent.subList(sent.size() - 2, sent.size()));
+    assertArrayEquals(expected, reassemble(lossy));
+
+    // everything but the handshake in a random order, some of it twice
+    List<Segment> shuffled = new ArrayList<Segment>(sent.subList(2,
+        sent.size()));
+    shuffled.addAll(sent.subList(5, 12));
+    Collections.shuffle(shuffled, new Random(2));
+    shuffled.addAll(0, sent.subList(0, 2));
+    assertArrayEquals(expected, reassemble(shuffled));
+  }
+
+  @Test
+  public void testGapSkipping() throws IOException {
+    byte[] request = "GET / HTTP/1.1\r\n\r\n".getBytes();
+    byte[] response = new byte[20000];
+    new Random(3).nextBytes(response);
+    List<Segment> sent = tcpConnection(1000, 0xffffffffL - 3000, request,
+        response, 1000);
+    String whole = new String(reassemble(sent), "ISO-8859-1");
+    int headerEnd = whole.indexOf("\r\n");
+
+    // the sixth segment of the response is never seen
+    List<Segment> lossy = new ArrayList<Segment>(sent);
+    lossy.remove(3 + 5);
+    String expected = whole.substring(0, headerEnd)
+        + ", \"missing_bytes\" : 1000, \"missing\" : [ { \"from\" : "
+        + "\"server\", \"offset\" : 5000, \"length\" : 1000 } ]"
+        + whole.substring(headerEnd, headerEnd + 2 + request.length + 5000)
+        + whole.substring(headerEnd + 2 + request.length + 6000);
+
+    // given up on once 4000 bytes wait behind it
+    TcpReconstructor recon = new TcpReconstructor();
+    recon.setGapBudget(4000, 0, TimeUnit.MILLISECONDS);
+    boolean complete = false;
+    for (Segment segment : lossy) {
+      complete = segment.reassemble(recon);
+    }
+    assertTrue(complete);
+    assertEquals(1000, recon.getMissingBytes());
+    assertEquals(expected, new String(recon.getBytes(), "ISO-8859-1"));
+
+    // without a byte budget, waited for until the stream is closed
+    recon = new TcpReconstructor();
+    recon.setGapBudget(0, 5, TimeUnit.SECONDS);
+    for (Segment segment : lossy) {
+      assertFalse(segment.reassemble(recon));
+    }
+    assertNull(recon.getBytes());
+    recon.close();
+    assertEquals(expected, new String(recon.getBytes(), "ISO-8859-1"));
+  }
+
+  private static byte[] reassemble(List<Segment> segments) throws IOException {
+    TcpReconstructor recon = new TcpReconstructor();
+    for (Segment segment : segments) {
+      if (segment.reassemble(recon)) {
+        return recon.getBytes();
+      }
+    }
+    fail("incomplete");
+    return null;
+  }
 }
@@ -0,0 +1,112 @@
+package org.wayfair.wiff.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+  @Test
+  public void testExpiry() {
+    TimingWheel<TimingWheel.Timer> wheel = new TimingWheel<TimingWheel.Timer>(
+        10);
+    List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+    TimingWheel.Timer soon = new TimingWheel.Timer();
+    TimingWheel.Timer later = new TimingWheel.Timer();
+    TimingWheel.Timer extended = new TimingWheel.Timer();
+    TimingWheel.Timer cancelled = new TimingWheel.Timer();
+    wheel.schedule(soon, 1000);
+    wheel.schedule(later, 50000);
+    wheel.schedule(extended, 1000);
+    wheel.schedule(cancelled, 1000);
+    extended.extend(3000000);
+    cancelled.cancel();
+
+    wheel.advance(990, expired);
+    assertTrue(expired.isEmpty());
+    wheel.advance(1000, expired);
+    assertEquals(1, expired.size());
+    assertSame(soon, expired.get(0));
+
+    expired.clear();
+    wheel.advance(49999, expired);
+    assertTrue(expired.isEmpty());
+    wheel.advance(50005, expired);
+    assertEquals(1, expired.size());
+    assertSame(later, expired.get(0));
+
+    // put back at its new deadline, across every level of the wheel
+    expired.clear();
+    wheel.advance(2999990, expired);
+    assertTrue(expired.isEmpty());
+    assertEquals(1, wheel.size());
+    wheel.advance(3000000, expired);
+    assertEquals(1, expired.size());
+    assertSame(extended, expired.get(0));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testMany() {
+    // every timer expires at the first tick at or after its deadline
+    TimingWheel<TimingWheel.Timer> wheel = new TimingWheel<TimingWheel.Timer>(
+        1);
+    List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+    Random random = new Random(1);
+    wheel.advance(1000, expired);
+    for (int i = 0; i < 10000; i++) {
+      wheel.schedule(new TimingWheel.Timer(), 1001 + random.nextInt(300000));
+    }
+    for (long now = 1001; now <= 301000; now += 1 + random.nextInt(50)) {
+      wheel.advance(now, expired);
+      for (TimingWheel.Timer timer : expired) {
+        assertTrue(timer.getDeadline() <= now);
+        assertTrue(timer.getDeadline() > now - 50);
+      }
+      expired.clear();
+    }
+    wheel.advance(301000, expired);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testJump() {
+    // a gap longer than the wheel turns expires everything due in it at once
+    TimingWheel<TimingWheel.Timer> wheel = new TimingWheel<TimingWheel.Timer>(
+        1);
+    List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+    TimingWheel.Timer due = new TimingWheel.Timer();
+    TimingWheel.Timer notDue = new TimingWheel.Timer();
+    wheel.schedule(due, 100);
+    wheel.schedule(notDue, 100000000L);
+    wheel.advance(50000000L, expired);
+    assertEquals(1, expired.size());
+    assertSame(due, expired.get(0));
+
+    expired.clear();
+    wheel.clear(expired);
+    assertEquals(1, expired.size());
+    assertSame(notDue, expired.get(0));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testEventClock() {
+    EventClock clock = new EventClock(1, TimeUnit.HOURS);
+    assertEquals(5000000, clock.observe(5000000));
+    assertEquals(5000000, clock.now());
+
+    // only ever moves forward
+    clock.observe(4000000);
+    assertEquals(5000000, clock.now());
+    clock.observe(9000000);
+    assertEquals(9000000, clock.now());
+    assertEquals(9000000000L, clock.read());
+  }
+}
@@ -3,6 +3,7 @@ package org.wayfair.wiff.util;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.junit.Test;
@@ -49,5 +50,164 @@ public class WiffPacketTest {
     assertEquals(true, p.isAck());
     assertEquals(true, p.isPSH());
     assertEquals(2011387883, p.getTsval());
+
+    ByteBuffer slice = p.getTcpPayloadBuffer();
+    byte[] bytes = new byte[slice.remaining()];
+    slice.get(bytes);
+    assertEquals(payload, new String(bytes));
+  }
+
+  @Test
+  public void testOffset() {
+    ArrayList<byte[]> packets = readPacktsFromFile("./src/test/resources/http_gzip.cap");
+    byte[] bytes = packets.get(3);
+
+    // a packet in the middle of a larger buffer, read without moving it
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 100);
+    buffer.position(40);
+    buffer.put(bytes);
+    buffer.limit(40 + bytes.length).position(40);
+
+    WiffPacket p = new WiffPacket();
+    p.setPacket(buffer);
+    assertEquals(40, buffer.position());
+    assertEquals(40 + bytes.length, buffer.limit());
+
+    WiffPacket expected = new WiffPacket(bytes);
+    assertEquals(expected.getPacketByteLength(), p.getPacketByteLength());
+    assertEquals(expected.getSourceIP(), p.getSourceIP());
+    assertEquals(expected.getDestinationPort(), p.getDestinationPort());
+    assertEquals(expected.getAckNumber(), p.getAckNumber());
+    assertEquals(expected.getTsval(), p.getTsval());
+    assertArrayEquals(expected.getTcpPayload(), p.getTcpPayload());
+    assertArrayEquals(bytes, p.getBytes());
+  }
+
+  @Test
+  public void testTruncated() {
+    WiffPacket p = new WiffPacket(new byte[20]);
+    assertEquals(false, p.hasTcpHeader());
+    assertNull(p.getTcpPayload());
+    assertEquals(-1, p.getTsval());
+  }
+
+  @Test
+  public void testLinkLayers() {
+    byte[] ethernet = readPacktsFromFile("./src/test/resources/http_gzip.cap")
+        .get(3);
+    byte[] ip = new byte[ethernet.length - 14];
+    System.arraycopy(ethernet, 14, ip, 0, ip.length);
+    WiffPacket expected = new WiffPacket(ethernet);
+
+    // QinQ: two tags between the MAC addresses and the ethertype
+    byte[] qinq = new byte[ethernet.length + 8];
+    System.arraycopy(ethernet, 0, qinq, 0, 12);
+    qinq[12] = (byte) 0x88;
+    qinq[13] = (byte) 0xa8;
+    qinq[16] = (byte) 0x81;
+    qinq[17] = 0x00;
+    System.arraycopy(ethernet, 12, qinq, 20, ethernet.length - 12);
+    assertSamePacket(expected, qinq, LinkLayer.ETHERNET, 22);
+
+    // Linux cooked capture, protocol at the end of a 16 byte header
+    byte[] sll = new byte[ip.length + 16];
+    sll[14] = 0x08;
+    System.arraycopy(ip, 0, sll, 16, ip.length);
+    assertSamePacket(expected, sll, LinkLayer.LINUX_SLL, 16);
+
+    // Linux cooked capture v2, protocol first in a 20 byte header
+    byte[] sll2 = new byte[ip.length + 20];
+    sll2[0] = 0x08;
+    System.arraycopy(ip, 0, sll2, 20, ip.length);
+    assertSamePacket(expected, sll2, LinkLayer.LINUX_SLL2, 20);
+
+    // raw IP, with trailing padding the IP length leaves out
+    byte[] raw = new byte[ip.length + 6];
+    System.arraycopy(ip, 0, raw, 0, ip.length);
+    assertSamePacket(expected, raw, LinkLayer.RAW, 0);
+    assertSamePacket(expected, raw, LinkLayer.DLT_RAW, 0);
+  }
+
+  @Test
+  public void testIpv6() throws Exception {
+    byte[] payload = "GET / HTTP/1.1\r\n\r\n".getBytes();
+    byte[] packet = new byte[14 + 40 + 8 + 20 + payload.length];
+    ByteBuffer b = ByteBuffer.wrap(packet);
+    b.putShort(12, (short) 0x86dd);
+    b.put(14, (byte) 0x60);
+    b.putShort(18, (short) (8 + 20 + payload.length));
+    b.put(20, (byte) 0); // a hop-by-hop options header first
+    b.putLong(22, 0x20010db800000000L);
+    b.putLong(30, 1);
+    b.putLong(38, 0x20010db800000000L);
+    b.putLong(46, 2);
+    b.put(54, (byte) 6);
+    b.putShort(62, (short) 40000);
+    b.putShort(64, (short) 80);
+    b.putInt(66, 1000);
+    b.putInt(70, 2000);
+    b.put(74, (byte) 0x50);
+    b.put(75, (byte) 0x18);
+    System.arraycopy(payload, 0, packet, 82, payload.length);
+
+    WiffPacket p = new WiffPacket(packet);
+    assertEquals(6, p.getIpVersion());
+    assertEquals(48, p.getIpHeaderLength());
+    assertEquals(true, p.hasTcpHeader());
+    assertEquals("2001:db8:0:0:0:0:0:1", p.getSourceIP());
+    assertEquals("2001:db8:0:0:0:0:0:2", p.getDestinationIP());
+    assertEquals(0x20010db800000000L, p.getSourceHigh());
+    assertEquals(2, p.getDestinationLow());
+    assertEquals(40000, p.getSourcePort());
+    assertEquals(80, p.getDestinationPort());
+    assertEquals(1000, p.getSequenceNumber());
+    assertEquals(2000, p.getAckNumber());
+    assertEquals(true, p.isPSH());
+    assertArrayEquals(payload, p.getTcpPayload());
+
+    // either direction of a connection hashes the same
+    ByteBuffer reply = ByteBuffer.wrap(packet.clone());
+    reply.putLong(30, 2).putLong(46, 1);
+    reply.putShort(62, (short) 80).putShort(64, (short) 40000);
+    assertEquals(FlowHash.hash(ByteBuffer.wrap(packet)), FlowHash.hash(reply));
+    WiffPacket r = new WiffPacket(reply.array());
+    assertEquals(new WiffConnection(p), new WiffConnection(r));
+    assertEquals(new WiffConnection(p).hashCode(),
+        new WiffConnection(r).hashCode());
+  }
+
+  @Test
+  public void testBadHeaderLength() {
+    // an IPv4 header that claims fewer than 20 bytes, or more than there are
+    ByteBuffer b = ByteBuffer.wrap(new byte[20 + 20]);
+    b.put(0, (byte) 0x42).put(9, (byte) 6);
+    assertEquals(-1, LinkLayer.transport(b, 0, 40));
+    b.put(0, (byte) 0x4f);
+    assertEquals(-1, LinkLayer.transport(b, 0, 40));
+    b.put(0, (byte) 0x45);
+    assertEquals(6, LinkLayer.protocol(LinkLayer.transport(b, 0, 40)));
+    assertEquals(20, LinkLayer.offset(LinkLayer.transport(b, 0, 40)));
+
+    // an IPv6 extension header that runs past the end of the packet
+    b = ByteBuffer.wrap(new byte[40 + 8]);
+    b.put(0, (byte) 0x60).put(6, (byte) 0);
+    b.put(40, (byte) 6).put(41, (byte) 1);
+    assertEquals(-1, LinkLayer.transport(b, 0, 48));
+    b.put(41, (byte) 0);
+    assertEquals(48, LinkLayer.offset(LinkLayer.transport(b, 0, 48)));
+  }
+
+  private static void assertSamePacket(WiffPacket expected, byte[] bytes,
+      int linkType, int linkHeaderLength) {
+    WiffPacket p = new WiffPacket();
+    p.setPacket(ByteBuffer.wrap(bytes), linkType);
+    assertEquals(linkHeaderLength, p.getEthHeaderLength());
+    assertEquals(4, p.getIpVersion());
+    assertEquals(expected.getSourceIP(), p.getSourceIP());
+    assertEquals(expected.getDestinationIPAsInt(), p.getDestinationIPAsInt());
+    assertEquals(expected.getSourcePort(), p.getSourcePort());
+    assertEquals(expected.getSequenceNumber(), p.getSequenceNumber());
+    assertEquals(expected.getTsval(), p.getTsval());
+    assertArrayEquals(expected.getTcpPayload(), p.getTcpPayload());
   }
 }